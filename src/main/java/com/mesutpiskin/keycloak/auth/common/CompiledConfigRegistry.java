@@ -0,0 +1,136 @@
+package com.mesutpiskin.keycloak.auth.common;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Registry of compiled authenticator configurations
+ * Each AuthenticatorConfigModel is parsed into an immutable typed object once,
+ * keyed by config id and content version, and swapped atomically when the
+ * configuration changes. Lookups on the authentication hot path do no parsing.
+ *
+ * @param <T> the compiled configuration type
+ */
+public class CompiledConfigRegistry<T> {
+
+    private static final Logger logger = Logger.getLogger(CompiledConfigRegistry.class);
+
+    private final String name;
+    private final Function<Map<String, String>, T> compiler;
+    private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    public CompiledConfigRegistry(String name, Function<Map<String, String>, T> compiler) {
+        this.name = name;
+        this.compiler = compiler;
+    }
+
+    /**
+     * Get the compiled form of a configuration, compiling it if this is the
+     * first lookup or if the configuration content has changed since
+     */
+    public T get(RealmModel realm, AuthenticatorConfigModel config) {
+        Map<String, String> source = config.getConfig() != null ? config.getConfig() : Collections.emptyMap();
+        String key = config.getId() != null ? config.getId() : config.getAlias();
+
+        Entry<T> entry = entries.get(key);
+        if (entry != null) {
+            if (entry.source == source) {
+                return entry.compiled;
+            }
+            if (entry.sameContent(source)) {
+                // Same content behind a new model instance, remember it for the identity check
+                entries.replace(key, entry, entry.withSource(source));
+                return entry.compiled;
+            }
+        }
+
+        Map<String, String> snapshot = Collections.unmodifiableMap(new HashMap<>(source));
+        Entry<T> compiled = new Entry<>(realm != null ? realm.getId() : null, source, snapshot, compiler.apply(snapshot));
+        entries.put(key, compiled);
+
+        logger.debugf("Compiled %s configuration '%s' (version %08x)", name, config.getAlias(), compiled.version);
+        return compiled.compiled;
+    }
+
+    /**
+     * Content version of the currently compiled configuration, or 0 if none
+     */
+    public int getVersion(AuthenticatorConfigModel config) {
+        Entry<T> entry = entries.get(config.getId() != null ? config.getId() : config.getAlias());
+        return entry != null ? entry.version : 0;
+    }
+
+    /**
+     * Drop the compiled form of a single configuration
+     */
+    public void invalidate(String configId) {
+        entries.remove(configId);
+    }
+
+    /**
+     * Drop all compiled configurations belonging to a realm
+     */
+    public void invalidateRealm(String realmId) {
+        entries.values().removeIf(entry -> realmId.equals(entry.realmId));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Register a listener that evicts compiled configurations of removed realms
+     */
+    public void registerInvalidation(KeycloakSessionFactory factory) {
+        factory.register(this::onEvent);
+    }
+
+    private void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            invalidateRealm(removed.getRealm().getId());
+            logger.debugf("Invalidated %s configurations of removed realm %s", name, removed.getRealm().getName());
+        }
+    }
+
+    /**
+     * Compiled configuration together with the content it was compiled from
+     */
+    private static class Entry<T> {
+        private final String realmId;
+        private final Map<String, String> source;
+        private final Map<String, String> snapshot;
+        private final int version;
+        private final T compiled;
+
+        Entry(String realmId, Map<String, String> source, Map<String, String> snapshot, T compiled) {
+            this.realmId = realmId;
+            this.source = source;
+            this.snapshot = snapshot;
+            this.version = snapshot.hashCode();
+            this.compiled = compiled;
+        }
+
+        Entry<T> withSource(Map<String, String> newSource) {
+            return new Entry<>(realmId, newSource, snapshot, compiled);
+        }
+
+        /**
+         * The realm cache hands out the same model instance until it is invalidated,
+         * so the identity check in get() covers nearly every lookup. Otherwise fall
+         * back to comparing content, which is still far cheaper than re-parsing it.
+         */
+        boolean sameContent(Map<String, String> current) {
+            return current.hashCode() == version && current.equals(snapshot);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.mesutpiskin.keycloak.auth.common;
+
+import org.keycloak.OAuthErrorException;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.idm.OAuth2ErrorRepresentation;
+
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cheap responses for authenticators that reject a request outright
+ *
+ * Browser flows get the theme's error page, rendered once per realm, client, theme,
+ * locale, status and message and then served from memory. The page is rendered
+ * without the authentication session, so it holds no per-request state and can be
+ * shared. Flows without a browser (direct grant, API clients) get a small JSON
+ * error instead of an HTML page.
+ */
+public final class DenialResponses {
+
+    // Flow path of the direct grant (resource owner password) flow at the token endpoint
+    private static final String TOKEN_FLOW_PATH = "token";
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static final ConcurrentMap<String, Page> pages = new ConcurrentHashMap<>();
+
+    private DenialResponses() {
+    }
+
+    /**
+     * Response that rejects the current request with the given message
+     */
+    public static Response create(AuthenticationFlowContext context, String errorMessage, Response.Status status) {
+        String flowPath = context.getFlowPath();
+        boolean browser = flowPath != null && !TOKEN_FLOW_PATH.equals(flowPath);
+        return create(context.getSession(), context.getUser(), browser, errorMessage, status);
+    }
+
+    /**
+     * Response that rejects the current request outside of an authentication flow
+     * The realm (and client, if known) must be set on the session context.
+     *
+     * @param browser whether to answer with an error page rather than a JSON error
+     */
+    public static Response create(KeycloakSession session, UserModel user, boolean browser,
+                                  String errorMessage, Response.Status status) {
+        if (!browser) {
+            // Not a browser flow, there is no page to show
+            return Response.status(status)
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .cacheControl(noStore())
+                .entity(new OAuth2ErrorRepresentation(OAuthErrorException.ACCESS_DENIED, errorMessage))
+                .build();
+        }
+
+        KeycloakContext context = session.getContext();
+        RealmModel realm = context.getRealm();
+        ClientModel client = context.getClient();
+        Locale locale = context.resolveLocale(user);
+        String key = realm.getId() + '\n' + realm.getLoginTheme() + '\n' + (client != null ? client.getId() : "")
+            + '\n' + locale.toLanguageTag() + '\n' + status.getStatusCode()
+            + '\n' + context.getUri().getBaseUri() + context.getUri().getPath() + '\n' + errorMessage;
+
+        long now = System.currentTimeMillis();
+        Page page = pages.get(key);
+        if (page == null || page.expires < now) {
+            Response rendered = session.getProvider(LoginFormsProvider.class)
+                .setError(errorMessage)
+                .createErrorPage(status);
+            if (!(rendered.getEntity() instanceof String)) {
+                return rendered;
+            }
+            if (pages.size() >= MAX_ENTRIES) {
+                pages.clear();
+            }
+            page = new Page((String) rendered.getEntity(), rendered.getMediaType(), now + TTL_MILLIS);
+            pages.put(key, page);
+        }
+
+        return Response.status(status)
+            .type(page.mediaType)
+            .cacheControl(noStore())
+            .entity(page.body)
+            .build();
+    }
+
+    private static CacheControl noStore() {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setNoStore(true);
+        cacheControl.setMustRevalidate(true);
+        return cacheControl;
+    }
+
+    private static class Page {
+        private final String body;
+        private final MediaType mediaType;
+        private final long expires;
+
+        Page(String body, MediaType mediaType, long expires) {
+            this.body = body;
+            this.mediaType = mediaType;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The access code email with its static parts rendered once
+ *
+ * The template is rendered twice with placeholder values for the username and
+ * the code. The first rendering is split around the placeholders, and the split
+ * is only kept if splicing the second set of placeholders in reproduces the
+ * second rendering exactly, as plain text or HTML-escaped. Templates that
+ * transform the values, or show anything else that differs between users, are
+ * not compiled and keep being rendered in full.
+ */
+class CompiledEmailCodeTemplate {
+
+    static final String USERNAME_A = "kcusername7f3a";
+    static final String CODE_A = "kccode5d1e";
+    // Characters that HTML output escapes, to tell plain text from escaped HTML
+    static final String USERNAME_B = "kcusername<&\"'>b";
+    static final String CODE_B = "kccode<&\"'>b";
+
+    private static final UnaryOperator<String> PLAIN = UnaryOperator.identity();
+    private static final UnaryOperator<String> HTML = CompiledEmailCodeTemplate::escapeHtml;
+
+    private final String subject;
+    private final Body textBody;
+    private final Body htmlBody;
+
+    private CompiledEmailCodeTemplate(String subject, Body textBody, Body htmlBody) {
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+    }
+
+    /**
+     * @param a rendering with USERNAME_A and CODE_A
+     * @param b rendering with USERNAME_B and CODE_B
+     * @return the compiled template, or null if the template can't be spliced
+     */
+    static CompiledEmailCodeTemplate compile(String subjectA, String textA, String htmlA,
+                                             String subjectB, String textB, String htmlB) {
+        if (subjectA == null || !subjectA.equals(subjectB)) {
+            return null;
+        }
+        Body text = Body.compile(textA, textB);
+        Body html = Body.compile(htmlA, htmlB);
+        if ((textA != null && text == null) || (htmlA != null && html == null)) {
+            return null;
+        }
+        return new CompiledEmailCodeTemplate(subjectA, text, html);
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    String renderText(String username, String code) {
+        return textBody == null ? null : textBody.render(username, code);
+    }
+
+    String renderHtml(String username, String code) {
+        return htmlBody == null ? null : htmlBody.render(username, code);
+    }
+
+    static String escapeHtml(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '&' -> escaped.append("&amp;");
+                case '"' -> escaped.append("&quot;");
+                case '\'' -> escaped.append("&#39;");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Static text with the username and code slots in between
+     */
+    private static class Body {
+        private static final int USERNAME = 0;
+        private static final int CODE = 1;
+
+        private final List<String> parts;
+        private final int[] slots;
+        private final UnaryOperator<String> escaper;
+        private final int staticLength;
+
+        private Body(List<String> parts, int[] slots, UnaryOperator<String> escaper) {
+            this.parts = parts;
+            this.slots = slots;
+            this.escaper = escaper;
+            this.staticLength = parts.stream().mapToInt(String::length).sum();
+        }
+
+        static Body compile(String a, String b) {
+            if (a == null || b == null) {
+                return null;
+            }
+
+            List<String> parts = new ArrayList<>();
+            List<Integer> slots = new ArrayList<>();
+            int from = 0;
+            while (true) {
+                int username = a.indexOf(USERNAME_A, from);
+                int code = a.indexOf(CODE_A, from);
+                if (username < 0 && code < 0) {
+                    break;
+                }
+                boolean isUsername = code < 0 || (username >= 0 && username < code);
+                int at = isUsername ? username : code;
+                parts.add(a.substring(from, at));
+                slots.add(isUsername ? USERNAME : CODE);
+                from = at + (isUsername ? USERNAME_A : CODE_A).length();
+            }
+            parts.add(a.substring(from));
+            int[] slotArray = slots.stream().mapToInt(Integer::intValue).toArray();
+
+            for (UnaryOperator<String> escaper : List.of(PLAIN, HTML)) {
+                Body body = new Body(parts, slotArray, escaper);
+                if (body.render(USERNAME_B, CODE_B).equals(b)) {
+                    return body;
+                }
+            }
+            return null;
+        }
+
+        String render(String username, String code) {
+            String escapedUsername = escaper.apply(username);
+            String escapedCode = escaper.apply(code);
+            StringBuilder out = new StringBuilder(staticLength + slots.length * 16);
+            for (int i = 0; i < slots.length; i++) {
+                out.append(parts.get(i)).append(slots[i] == USERNAME ? escapedUsername : escapedCode);
+            }
+            return out.append(parts.get(slots.length)).toString();
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.provider.ProviderConfigProperty;
@@ -106,4 +107,14 @@ public class ConditionalEmailAuthenticatorFormFactory extends EmailAuthenticator
     public Authenticator create(KeycloakSession session) {
         return SINGLETON;
     }
+
+    @Override
+    public void init(Config.Scope config) {
+        // Code delivery is shared, it is configured through the email-authenticator provider
+    }
+
+    @Override
+    public void close() {
+        // NOOP
+    }
 }
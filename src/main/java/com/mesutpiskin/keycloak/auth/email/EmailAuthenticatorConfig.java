@@ -0,0 +1,119 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Compiled, immutable form of the email authenticator configuration
+ */
+public class EmailAuthenticatorConfig {
+
+    private static final Logger logger = Logger.getLogger(EmailAuthenticatorConfig.class);
+
+    public static final EmailAuthenticatorConfig DEFAULTS = new EmailAuthenticatorConfig(
+            EmailConstants.DEFAULT_LENGTH, EmailConstants.DEFAULT_TTL, EmailConstants.DEFAULT_SIMULATION_MODE,
+            LogEmailCodeSink.INSTANCE, EmailConstants.DEFAULT_RESEND_COOLDOWN, EmailConstants.DEFAULT_MAX_SENDS, EmailConstants.DEFAULT_SEND_WINDOW,
+            EmailConstants.DEFAULT_MAX_ATTEMPTS, EmailConstants.DEFAULT_HASH_CODE);
+
+    private final int codeLength;
+    private final int ttl;
+    private final boolean simulationMode;
+    private final EmailCodeSink simulationSink;
+    private final int resendCooldown;
+    private final int maxSends;
+    private final int sendWindow;
+    private final int maxAttempts;
+    private final boolean hashCode;
+
+    private EmailAuthenticatorConfig(int codeLength, int ttl, boolean simulationMode, EmailCodeSink simulationSink,
+                                     int resendCooldown, int maxSends, int sendWindow,
+                                     int maxAttempts, boolean hashCode) {
+        this.codeLength = codeLength;
+        this.ttl = ttl;
+        this.simulationMode = simulationMode;
+        this.simulationSink = simulationSink;
+        this.resendCooldown = resendCooldown;
+        this.maxSends = maxSends;
+        this.sendWindow = sendWindow;
+        this.maxAttempts = maxAttempts;
+        this.hashCode = hashCode;
+    }
+
+    public static EmailAuthenticatorConfig compile(Map<String, String> config) {
+        return new EmailAuthenticatorConfig(
+                parseInt(config, EmailConstants.CODE_LENGTH, EmailConstants.DEFAULT_LENGTH),
+                parseInt(config, EmailConstants.CODE_TTL, EmailConstants.DEFAULT_TTL),
+                Boolean.parseBoolean(config.get(EmailConstants.SIMULATION_MODE)),
+                EmailCodeSink.forName(config.get(EmailConstants.SIMULATION_SINK)),
+                parseInt(config, EmailConstants.RESEND_COOLDOWN, EmailConstants.DEFAULT_RESEND_COOLDOWN),
+                parseInt(config, EmailConstants.MAX_SENDS, EmailConstants.DEFAULT_MAX_SENDS),
+                parseInt(config, EmailConstants.SEND_WINDOW, EmailConstants.DEFAULT_SEND_WINDOW),
+                parseInt(config, EmailConstants.MAX_ATTEMPTS, EmailConstants.DEFAULT_MAX_ATTEMPTS),
+                Boolean.parseBoolean(config.get(EmailConstants.HASH_CODE)));
+    }
+
+    private static int parseInt(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.strip());
+        } catch (NumberFormatException e) {
+            logger.warnf("Invalid value '%s' for email authenticator setting '%s', using default %d", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public int getCodeLength() {
+        return codeLength;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public boolean isSimulationMode() {
+        return simulationMode;
+    }
+
+    /**
+     * Where the codes go in simulation mode
+     */
+    EmailCodeSink getSimulationSink() {
+        return simulationSink;
+    }
+
+    /**
+     * Seconds before a user may request another code, 0 for no cooldown
+     */
+    public int getResendCooldown() {
+        return resendCooldown;
+    }
+
+    /**
+     * Codes sent to a user per send window, 0 for no limit
+     */
+    public int getMaxSends() {
+        return maxSends;
+    }
+
+    public int getSendWindow() {
+        return sendWindow;
+    }
+
+    /**
+     * Wrong codes accepted per code before the user has to request a new one, 0 for no limit
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Whether the code is stored hashed in the login instead of in clear
+     */
+    public boolean isHashCode() {
+        return hashCode;
+    }
+}
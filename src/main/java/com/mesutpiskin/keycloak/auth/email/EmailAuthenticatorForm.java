@@ -1,10 +1,10 @@
 package com.mesutpiskin.keycloak.auth.email;
 
+import com.mesutpiskin.keycloak.auth.common.CompiledConfigRegistry;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.AuthenticationFlowException;
 import org.keycloak.email.EmailException;
-import org.keycloak.email.EmailTemplateProvider;
 import org.keycloak.events.Errors;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.AuthenticationExecutionModel;
@@ -14,21 +14,20 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.utils.FormMessage;
 import org.keycloak.services.messages.Messages;
-import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.authentication.authenticators.browser.AbstractUsernameFormAuthenticator;
 import org.keycloak.common.util.SecretGenerator;
 
 import org.jboss.logging.Logger;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.Response;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
 
       protected static final Logger logger = Logger.getLogger(EmailAuthenticatorForm.class);
 
+    protected static final CompiledConfigRegistry<EmailAuthenticatorConfig> CONFIGS =
+            new CompiledConfigRegistry<>("email", EmailAuthenticatorConfig::compile);
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         challenge(context, null);
@@ -36,18 +35,24 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
 
     @Override
     protected Response challenge(AuthenticationFlowContext context, String error, String field) {
-        generateAndSendEmailCode(context);
-
-        // Get configured code length
-        int length = EmailConstants.DEFAULT_LENGTH;
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        if (config != null) {
-            length = Integer.parseInt(config.getConfig().get(EmailConstants.CODE_LENGTH));
+        EmailAuthenticatorConfig config = getConfig(context);
+        EmailCodeGovernor governor = EmailCodeGovernor.of(context, config);
+        EmailCodeState state = EmailCodeState.of(context);
+        String sendError = generateAndSendEmailCode(context, config, governor, state);
+        state.save();
+        if (sendError != null) {
+            error = sendError;
+            field = null;
         }
+        return createChallenge(context, config, governor, error, field);
+    }
 
+    private Response createChallenge(AuthenticationFlowContext context, EmailAuthenticatorConfig config,
+                                     EmailCodeGovernor governor, String error, String field) {
         LoginFormsProvider form = context.form()
             .setExecution(context.getExecution().getId())
-            .setAttribute("codeLength", length);
+            .setAttribute("codeLength", config.getCodeLength())
+            .setAttribute("resendCooldown", governor.getRemainingCooldown());
         if (error != null) {
             if (field != null) {
                 form.addError(new FormMessage(field, error));
@@ -62,31 +67,69 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
 
 
 
-    private void generateAndSendEmailCode(AuthenticationFlowContext context) {
+    /**
+     * Get the compiled configuration of the current execution, or the defaults if it has none
+     */
+    protected EmailAuthenticatorConfig getConfig(AuthenticationFlowContext context) {
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        AuthenticationSessionModel session = context.getAuthenticationSession();
+        if (config == null) {
+            return EmailAuthenticatorConfig.DEFAULTS;
+        }
+        return CONFIGS.get(context.getRealm(), config);
+    }
 
-        if (session.getAuthNote(EmailConstants.CODE) != null) {
+    /**
+     * @return the error message if no code could be sent, null otherwise
+     */
+    private String generateAndSendEmailCode(AuthenticationFlowContext context, EmailAuthenticatorConfig config,
+                                           EmailCodeGovernor governor, EmailCodeState state) {
+        if (state.hasCode()) {
             // skip sending email code
-            return;
+            return null;
         }
 
-        int length = EmailConstants.DEFAULT_LENGTH;
-        int ttl = EmailConstants.DEFAULT_TTL;
-        if (config != null) {
-            // get config values
-            length = Integer.parseInt(config.getConfig().get(EmailConstants.CODE_LENGTH));
-            ttl = Integer.parseInt(config.getConfig().get(EmailConstants.CODE_TTL));
+        String sharedSecret = governor.getSecret();
+        if (sharedSecret != null) {
+            // A code sent for a parallel login of the user is still valid, use it instead of sending another
+            state.setCode(sharedSecret, governor.getExpiresAt(), governor.getDispatchId());
+            return null;
         }
 
-        String code = SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
-        if (config != null && Boolean.parseBoolean(config.getConfig().get(EmailConstants.SIMULATION_MODE))) {
-            logger.infof("***** SIMULATION MODE ***** Email code send to %s for user %s is: %s", context.getUser().getEmail(), context.getUser().getUsername(), code);
+        if (governor.getRemainingLimit() > 0) {
+            logger.warnf("Access code email not sent, too many codes requested. realm=%s user=%s sends=%d",
+                context.getRealm().getId(), context.getUser().getUsername(), state.getSends());
+            return EmailConstants.TOO_MANY_SENDS_MESSAGE;
+        }
+
+        int ttl = config.getTtl();
+        long expiresAt = System.currentTimeMillis() + (ttl * 1000L);
+        String dispatchId = null;
+
+        String code = SecretGenerator.getInstance().randomString(config.getCodeLength(), SecretGenerator.DIGITS);
+        if (config.isSimulationMode()) {
+            config.getSimulationSink().capture(context.getRealm(), context.getUser(), code, expiresAt);
         } else {
-            sendEmailWithCode(context.getSession(), context.getRealm(), context.getUser(), code, ttl);
+            dispatchId = sendEmailWithCode(context.getSession(), context.getRealm(), context.getUser(), code, ttl);
+            if (dispatchId == null) {
+                return EmailConstants.SEND_FAILED_MESSAGE;
+            }
+            if (!EmailCodeDispatcher.getInstance().isAsync()) {
+                dispatchId = null;
+            }
         }
-        session.setAuthNote(EmailConstants.CODE, code);
-        session.setAuthNote(EmailConstants.CODE_TTL, Long.toString(System.currentTimeMillis() + (ttl * 1000L)));
+        String secret = config.isHashCode() ? EmailCodeState.hash(code) : code;
+        state.setCode(secret, expiresAt, dispatchId);
+        state.countSend();
+        governor.recordSend(secret, expiresAt, dispatchId);
+        return null;
+    }
+
+    /**
+     * Whether the code email sent in the background could not be delivered
+     */
+    private boolean deliveryFailed(AuthenticationFlowContext context, EmailCodeState state) {
+        String dispatchId = state.getDispatchId();
+        return dispatchId != null && EmailCodeDispatcher.getInstance().getFailure(context.getSession(), dispatchId) != null;
     }
 
     @Override
@@ -97,37 +140,73 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
             return;
         }
 
+        EmailAuthenticatorConfig config = getConfig(context);
+        EmailCodeGovernor governor = EmailCodeGovernor.of(context, config);
+        EmailCodeState state = EmailCodeState.of(context);
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
         if (formData.containsKey("resend")) {
-            resetEmailCode(context);
+            if (governor.getRemainingCooldown() > 0) {
+                createChallenge(context, config, governor, EmailConstants.RESEND_COOLDOWN_MESSAGE, null);
+                return;
+            }
+            // A new code was asked for, don't hand out the previous one again
+            governor.discardCode(null);
+            state.clearCode();
             challenge(context, null);
             return;
         }
 
         if (formData.containsKey("cancel")) {
-            resetEmailCode(context);
+            state.remove();
             context.resetFlow();
             return;
         }
 
-        AuthenticationSessionModel session = context.getAuthenticationSession();
-        String code = session.getAuthNote(EmailConstants.CODE);
-        String ttl = session.getAuthNote(EmailConstants.CODE_TTL);
+        if (deliveryFailed(context, state)) {
+            // The code never arrived, let the user ask for a new one
+            context.getEvent().user(userModel).error(Errors.EMAIL_SEND_FAILED);
+            governor.discardCode(state.getSecret());
+            state.clearCode();
+            state.save();
+            createChallenge(context, config, governor, EmailConstants.SEND_FAILED_MESSAGE, null);
+            return;
+        }
+
+        // Wrong codes of this login, or of all logins that got the same code
+        int attempts = Math.max(state.getAttempts(), governor.getAttempts(state.getSecret()));
+        if (config.getMaxAttempts() > 0 && attempts >= config.getMaxAttempts()) {
+            // Too many wrong codes, the user has to request a new one
+            context.getEvent().user(userModel).error(Errors.INVALID_USER_CREDENTIALS);
+            Response challengeResponse = createChallenge(context, config, governor,
+                EmailConstants.TOO_MANY_ATTEMPTS_MESSAGE, null);
+            context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challengeResponse);
+            return;
+        }
+
         String enteredCode = formData.getFirst(EmailConstants.CODE).strip();
+        // The latest code sent for any login of the user is accepted too, it's in the user's mailbox
+        String sharedSecret = governor.getSecret();
+        boolean sharedCode = EmailCodeState.matches(sharedSecret, enteredCode);
+        String secret = sharedCode ? sharedSecret : state.getSecret();
 
-        if (enteredCode.equals(code)) {
-            if (Long.parseLong(ttl) < System.currentTimeMillis()) {
+        if ((sharedCode || EmailCodeState.matches(secret, enteredCode)) && !governor.isUsed(secret)) {
+            if (!sharedCode && state.isExpired()) {
                 // expired
                 context.getEvent().user(userModel).error(Errors.EXPIRED_CODE);
                 Response challengeResponse = challenge(context, Messages.EXPIRED_ACTION_TOKEN_SESSION_EXISTS, EmailConstants.CODE);
                 context.failureChallenge(AuthenticationFlowError.EXPIRED_CODE, challengeResponse);
             } else {
                 // valid
-                resetEmailCode(context);
+                governor.consume(secret);
+                state.remove();
                 context.success();
             }
         } else {
             // invalid
+            state.recordAttempt();
+            if (state.getSecret() != null) {
+                governor.recordAttempt(state.getSecret());
+            }
             context.getEvent().user(userModel).error(Errors.INVALID_USER_CREDENTIALS);
             Response challengeResponse = challenge(context, Messages.INVALID_ACCESS_CODE, EmailConstants.CODE);
             context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS, challengeResponse);
@@ -138,10 +217,6 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
         return Messages.INVALID_ACCESS_CODE;
     }
 
-    private void resetEmailCode(AuthenticationFlowContext context) {
-        context.getAuthenticationSession().removeAuthNote(EmailConstants.CODE);
-    }
-
     @Override
     public boolean requiresUser() {
         return true;
@@ -162,28 +237,23 @@ public class EmailAuthenticatorForm extends AbstractUsernameFormAuthenticator {
         // NOOP
     }
 
-    private void sendEmailWithCode(KeycloakSession session, RealmModel realm, UserModel user, String code, int ttl) {
+    /**
+     * Render the code email and hand it over for delivery
+     *
+     * @return the dispatch id, or null if the email could not be rendered or was refused
+     */
+    private String sendEmailWithCode(KeycloakSession session, RealmModel realm, UserModel user, String code, int ttl) {
         if (user.getEmail() == null) {
             logger.warnf("Could not send access code email due to missing email. realm=%s user=%s", realm.getId(), user.getUsername());
             throw new AuthenticationFlowException(AuthenticationFlowError.INVALID_USER);
         }
 
-        Map<String, Object> mailBodyAttributes = new HashMap<>();
-        mailBodyAttributes.put("username", user.getUsername());
-        mailBodyAttributes.put("code", code);
-        mailBodyAttributes.put("ttl", ttl);
-        mailBodyAttributes.put("codeLength", code.length());
-
-        String realmName = realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName();
-        List<Object> subjectParams = List.of(realmName);
         try {
-            EmailTemplateProvider emailProvider = session.getProvider(EmailTemplateProvider.class);
-            emailProvider.setRealm(realm);
-            emailProvider.setUser(user);
-            // Don't forget to add the welcome-email.ftl (html and text) template to your theme.
-            emailProvider.send("emailCodeSubject", subjectParams, "code-email.ftl", mailBodyAttributes);
+            EmailCodeMessage message = new EmailCodeRenderer(session).render(realm, user, code, ttl);
+            return EmailCodeDispatcher.getInstance().dispatch(session, message, ttl);
         } catch (EmailException eex) {
-            logger.errorf(eex, "Failed to send access code email. realm=%s user=%s", realm.getId(), user.getUsername());
+            logger.errorf(eex, "Failed to render access code email. realm=%s user=%s", realm.getId(), user.getUsername());
+            return null;
         }
     }
 }
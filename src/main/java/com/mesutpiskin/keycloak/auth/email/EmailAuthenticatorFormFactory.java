@@ -64,13 +64,40 @@ public class EmailAuthenticatorFormFactory implements AuthenticatorFactory {
                         String.valueOf(EmailConstants.DEFAULT_TTL)),
                 new ProviderConfigProperty(EmailConstants.SIMULATION_MODE, "Simulation mode (dev only)",
                         "In simulation mode, the mail won't be sent, but printed to the server logs", ProviderConfigProperty.BOOLEAN_TYPE,
-                        Boolean.valueOf(EmailConstants.DEFAULT_SIMULATION_MODE))
+                        Boolean.valueOf(EmailConstants.DEFAULT_SIMULATION_MODE)),
+                simulationSinkProperty(),
+                new ProviderConfigProperty(EmailConstants.RESEND_COOLDOWN, "Resend cooldown",
+                        "Seconds before a user may request another code (0 for no cooldown).", ProviderConfigProperty.STRING_TYPE,
+                        String.valueOf(EmailConstants.DEFAULT_RESEND_COOLDOWN)),
+                new ProviderConfigProperty(EmailConstants.MAX_SENDS, "Max codes per window",
+                        "Maximum number of codes sent to a user per send window (0 for no limit).", ProviderConfigProperty.STRING_TYPE,
+                        String.valueOf(EmailConstants.DEFAULT_MAX_SENDS)),
+                new ProviderConfigProperty(EmailConstants.SEND_WINDOW, "Send window",
+                        "Length in seconds of the window the max codes apply to.", ProviderConfigProperty.STRING_TYPE,
+                        String.valueOf(EmailConstants.DEFAULT_SEND_WINDOW)),
+                new ProviderConfigProperty(EmailConstants.MAX_ATTEMPTS, "Max attempts per code",
+                        "Wrong codes a user may enter before having to request a new code (0 for no limit).", ProviderConfigProperty.STRING_TYPE,
+                        String.valueOf(EmailConstants.DEFAULT_MAX_ATTEMPTS)),
+                new ProviderConfigProperty(EmailConstants.HASH_CODE, "Hash stored code",
+                        "Store a salted hash of the code in the login session instead of the code itself.", ProviderConfigProperty.BOOLEAN_TYPE,
+                        Boolean.valueOf(EmailConstants.DEFAULT_HASH_CODE))
                 );
     }
 
+    private static ProviderConfigProperty simulationSinkProperty() {
+        ProviderConfigProperty property = new ProviderConfigProperty(EmailConstants.SIMULATION_SINK, "Simulation sink",
+                "Where codes go in simulation mode: 'log' prints them to the server logs, 'mailbox' keeps them in memory "
+                        + "for load tests, readable through the email-code-mailbox admin endpoint.",
+                ProviderConfigProperty.LIST_TYPE, EmailConstants.SIMULATION_SINK_LOG);
+        property.setOptions(List.of(EmailConstants.SIMULATION_SINK_LOG, EmailConstants.SIMULATION_SINK_MAILBOX));
+        return property;
+    }
+
     @Override
     public void close() {
-        // NOOP
+        EmailCodeDispatcher.getInstance().close();
+        PooledSmtpEmailCodeSender.getInstance().close();
+        EmailCodeOutbox.getInstance().close();
     }
 
     @Override
@@ -80,11 +107,37 @@ public class EmailAuthenticatorFormFactory implements AuthenticatorFactory {
 
     @Override
     public void init(Config.Scope config) {
-        // NOOP
+        EmailCodeDispatcher.getInstance().configure(
+                config.getBoolean(EmailConstants.ASYNC_DISPATCH, EmailConstants.DEFAULT_ASYNC_DISPATCH),
+                config.getInt(EmailConstants.DISPATCH_MAX_CONCURRENT, EmailConstants.DEFAULT_DISPATCH_MAX_CONCURRENT),
+                config.getInt(EmailConstants.DISPATCH_MAX_PENDING, EmailConstants.DEFAULT_DISPATCH_MAX_PENDING),
+                config.getInt(EmailConstants.DISPATCH_TIMEOUT, EmailConstants.DEFAULT_DISPATCH_TIMEOUT),
+                config.getInt(EmailConstants.BREAKER_FAILURE_THRESHOLD, EmailConstants.DEFAULT_BREAKER_FAILURE_THRESHOLD),
+                config.getInt(EmailConstants.BREAKER_OPEN_DURATION, EmailConstants.DEFAULT_BREAKER_OPEN_DURATION));
+
+        PooledSmtpEmailCodeSender.getInstance().configure(
+                config.getInt(EmailConstants.SMTP_POOL_MAX_CONNECTIONS, EmailConstants.DEFAULT_SMTP_POOL_MAX_CONNECTIONS),
+                config.getInt(EmailConstants.SMTP_POOL_MAX_MESSAGES, EmailConstants.DEFAULT_SMTP_POOL_MAX_MESSAGES),
+                config.getInt(EmailConstants.SMTP_POOL_IDLE_TIMEOUT, EmailConstants.DEFAULT_SMTP_POOL_IDLE_TIMEOUT));
+        EmailCodeSender sender = config.getBoolean(EmailConstants.SMTP_POOL, EmailConstants.DEFAULT_SMTP_POOL)
+                ? PooledSmtpEmailCodeSender.getInstance() : SmtpEmailCodeSender.INSTANCE;
+
+        List<SmtpRelay> relays = SmtpRelay.parse(config.getArray(EmailConstants.RELAYS),
+                config.getInt(EmailConstants.BREAKER_FAILURE_THRESHOLD, EmailConstants.DEFAULT_BREAKER_FAILURE_THRESHOLD),
+                config.getInt(EmailConstants.BREAKER_OPEN_DURATION, EmailConstants.DEFAULT_BREAKER_OPEN_DURATION) * 1000L);
+        if (!relays.isEmpty()) {
+            sender = new RelayEmailCodeSender(relays, sender,
+                    config.getInt(EmailConstants.RELAY_SLOW_THRESHOLD, EmailConstants.DEFAULT_RELAY_SLOW_THRESHOLD) * 1000L);
+        }
+        EmailCodeDispatcher.getInstance().setSender(sender);
+        EmailCodeOutbox.getInstance().configure(config.get(EmailConstants.OUTBOX_DIR));
+        EmailCodeMailbox.getInstance().configure(
+                config.getInt(EmailConstants.MAILBOX_CAPACITY, EmailConstants.DEFAULT_MAILBOX_CAPACITY));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // NOOP
+        EmailAuthenticatorForm.CONFIGS.registerInvalidation(factory);
+        EmailCodeDispatcher.getInstance().redeliver(factory, EmailCodeOutbox.getInstance().recover());
     }
 }
@@ -0,0 +1,77 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+/**
+ * An access code captured by the simulation mailbox, as returned by the admin API
+ */
+public class EmailCodeCapture {
+
+    private String username;
+    private String email;
+    private String code;
+    private long expiresAt;
+    private long capturedAt;
+    private long sequence;
+
+    public EmailCodeCapture() {
+    }
+
+    EmailCodeCapture(String username, String email, String code, long expiresAt, long capturedAt, long sequence) {
+        this.username = username;
+        this.email = email;
+        this.code = code;
+        this.expiresAt = expiresAt;
+        this.capturedAt = capturedAt;
+        this.sequence = sequence;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getCapturedAt() {
+        return capturedAt;
+    }
+
+    public void setCapturedAt(long capturedAt) {
+        this.capturedAt = capturedAt;
+    }
+
+    /**
+     * Increases with every capture on the node, pass it as "after" to wait for the next code
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+}
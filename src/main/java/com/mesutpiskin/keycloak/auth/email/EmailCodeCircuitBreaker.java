@@ -0,0 +1,63 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Circuit breaker for one SMTP server
+ * After a number of consecutive failures the circuit opens and sends are refused
+ * outright for a while. Then a single trial send is let through: if it succeeds
+ * the circuit closes, if it fails the circuit opens again.
+ */
+class EmailCodeCircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(EmailCodeCircuitBreaker.class);
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean trial;
+
+    EmailCodeCircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether a send may be attempted now; a true result must be followed by
+     * recordSuccess() or recordFailure()
+     */
+    synchronized boolean allow() {
+        if (openUntil == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < openUntil || trial) {
+            return false;
+        }
+        trial = true;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        if (openUntil != 0) {
+            logger.infof("Email delivery to %s recovered, closing the circuit", name);
+        }
+        consecutiveFailures = 0;
+        openUntil = 0;
+        trial = false;
+    }
+
+    synchronized void recordFailure() {
+        if (trial || ++consecutiveFailures >= failureThreshold) {
+            if (!trial) {
+                logger.warnf("%d consecutive email delivery failures to %s, opening the circuit for %d ms",
+                    consecutiveFailures, name, openMillis);
+            }
+            trial = false;
+            openUntil = System.currentTimeMillis() + openMillis;
+        }
+    }
+}
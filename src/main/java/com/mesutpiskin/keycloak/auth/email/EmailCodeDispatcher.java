@@ -0,0 +1,302 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers access code emails off the request thread
+ *
+ * Each message is sent on a virtual thread in a transaction of its own, so the
+ * code form renders without waiting for the SMTP server. Delivery is bounded:
+ * at most maxConcurrent sends run at once, at most maxPending messages are
+ * accepted (more are refused, so the login can report it), and a send that takes
+ * longer than the timeout is abandoned. Repeated failures open a circuit breaker
+ * per SMTP server, during which messages are refused without trying.
+ *
+ * Failed deliveries are recorded in the single-use object store under the
+ * dispatch id, so the next step of the login (on any node) can report them.
+ */
+class EmailCodeDispatcher {
+
+    private static final Logger logger = Logger.getLogger(EmailCodeDispatcher.class);
+
+    private static final EmailCodeDispatcher INSTANCE = new EmailCodeDispatcher();
+
+    static final String KEY_PREFIX = "email-code-dispatch:";
+    static final String NOTE_ERROR = "error";
+
+    static final String ERROR_TIMEOUT = "timeout";
+
+    private volatile boolean async = EmailConstants.DEFAULT_ASYNC_DISPATCH;
+    private volatile int maxPending = EmailConstants.DEFAULT_DISPATCH_MAX_PENDING;
+    private volatile long timeoutMillis = EmailConstants.DEFAULT_DISPATCH_TIMEOUT * 1000L;
+    private volatile int failureThreshold = EmailConstants.DEFAULT_BREAKER_FAILURE_THRESHOLD;
+    private volatile long openMillis = EmailConstants.DEFAULT_BREAKER_OPEN_DURATION * 1000L;
+    private volatile Semaphore sending = new Semaphore(EmailConstants.DEFAULT_DISPATCH_MAX_CONCURRENT);
+    private volatile EmailCodeSender sender = SmtpEmailCodeSender.INSTANCE;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentMap<String, EmailCodeCircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private volatile Workers workers;
+
+    static EmailCodeDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    void configure(boolean async, int maxConcurrent, int maxPending, int timeoutSeconds,
+                   int failureThreshold, int openSeconds) {
+        this.async = async;
+        this.sending = new Semaphore(Math.max(1, maxConcurrent));
+        this.maxPending = Math.max(1, maxPending);
+        this.timeoutMillis = Math.max(1, timeoutSeconds) * 1000L;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(1, openSeconds) * 1000L;
+        breakers.clear();
+    }
+
+    /**
+     * Replace the sender, e.g. with a stand-in for tests
+     */
+    void setSender(EmailCodeSender sender) {
+        this.sender = sender;
+    }
+
+    boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Hand a message over for delivery
+     * When dispatching synchronously the message is sent before returning.
+     *
+     * @param failureLifespan seconds a delivery failure stays visible to getFailure()
+     * @return the dispatch id, or null if the message was refused or (synchronously) could not be sent
+     */
+    String dispatch(KeycloakSession session, EmailCodeMessage message, int failureLifespan) {
+        EmailCodeCircuitBreaker breaker = breaker(message);
+        if (!async) {
+            if (!breaker.allow()) {
+                logger.warnf("Access code email not sent, circuit open. realm=%s user=%s", message.getRealmId(), message.getUserId());
+                return null;
+            }
+            try {
+                sender.send(session, message);
+                breaker.recordSuccess();
+                return KeycloakModelUtils.generateId();
+            } catch (EmailException | RuntimeException e) {
+                breaker.recordFailure();
+                logger.errorf(e, "Failed to send access code email. realm=%s user=%s", message.getRealmId(), message.getUserId());
+                return null;
+            }
+        }
+
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            logger.warnf("Access code email not sent, %d messages pending. realm=%s user=%s",
+                maxPending, message.getRealmId(), message.getUserId());
+            return null;
+        }
+        if (!breaker.allow()) {
+            pending.decrementAndGet();
+            logger.warnf("Access code email not sent, circuit open. realm=%s user=%s", message.getRealmId(), message.getUserId());
+            return null;
+        }
+
+        String id = KeycloakModelUtils.generateId();
+        EmailCodeOutbox outbox = EmailCodeOutbox.getInstance();
+        if (outbox.isEnabled() && !outbox.append(id, message, System.currentTimeMillis() + failureLifespan * 1000L)) {
+            logger.warnf("Sending access code email without journaling it. realm=%s user=%s", message.getRealmId(), message.getUserId());
+        }
+        submit(new Job(id, message, failureLifespan, breaker, session.getKeycloakSessionFactory()));
+        return id;
+    }
+
+    /**
+     * Send again the emails left pending by the previous run, under their original ids,
+     * with the current SMTP settings of their realm
+     */
+    void redeliver(KeycloakSessionFactory sessionFactory, Map<String, EmailCodeOutbox.Pending> emails) {
+        if (emails.isEmpty()) {
+            return;
+        }
+        Map<String, EmailCodeMessage> messages = new LinkedHashMap<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> emails.forEach((id, email) -> {
+            RealmModel realm = session.realms().getRealm(email.message.getRealmId());
+            if (realm == null) {
+                logger.debugf("Dropping journaled access code email of removed realm %s", email.message.getRealmId());
+                EmailCodeOutbox.getInstance().complete(id);
+            } else {
+                messages.put(id, email.message.withSmtpConfig(realm.getSmtpConfig()));
+            }
+        }));
+
+        long now = System.currentTimeMillis();
+        messages.forEach((id, message) -> {
+            int lifespan = (int) Math.max(1, (emails.get(id).expiresAt - now) / 1000);
+            Job job = new Job(id, message, lifespan, breaker(message), sessionFactory);
+            pending.incrementAndGet();
+            if (job.breaker.allow()) {
+                submit(job);
+            } else {
+                pending.decrementAndGet();
+                job.finish();
+                workers().executor.execute(() -> fail(job, "circuit open", null));
+            }
+        });
+    }
+
+    private void submit(Job job) {
+        // The timeout reports through the executor the job was submitted to, even if close() ran since
+        Workers current = workers();
+        Future<?> future = current.executor.submit(() -> run(job));
+        current.timer.schedule(() -> {
+            if (job.finish()) {
+                future.cancel(true);
+                current.executor.execute(() -> fail(job, ERROR_TIMEOUT, null));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reason a dispatched message could not be delivered, or null if it was
+     * delivered, is still on its way or the failure has expired
+     */
+    String getFailure(KeycloakSession session, String dispatchId) {
+        Map<String, String> notes = session.singleUseObjects().get(KEY_PREFIX + dispatchId);
+        return notes == null ? null : notes.get(NOTE_ERROR);
+    }
+
+    private void run(Job job) {
+        Semaphore permits = sending;
+        try {
+            permits.acquire();
+            try {
+                KeycloakModelUtils.runJobInTransaction(job.sessionFactory, session -> {
+                    try {
+                        sender.send(session, job.message);
+                    } catch (EmailException e) {
+                        throw new DeliveryException(e);
+                    }
+                });
+            } finally {
+                permits.release();
+            }
+            if (job.finish()) {
+                job.breaker.recordSuccess();
+                EmailCodeOutbox.getInstance().complete(job.id);
+            }
+        } catch (InterruptedException e) {
+            // Timed out, reported by the timer
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            if (job.finish()) {
+                fail(job, e instanceof DeliveryException ? e.getCause().getMessage() : e.toString(), e);
+            }
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    private void fail(Job job, String reason, Exception cause) {
+        job.breaker.recordFailure();
+        EmailCodeOutbox.getInstance().complete(job.id);
+        logger.errorf(cause, "Failed to send access code email (%s). realm=%s user=%s",
+            reason, job.message.getRealmId(), job.message.getUserId());
+        try {
+            KeycloakModelUtils.runJobInTransaction(job.sessionFactory, session ->
+                session.singleUseObjects().put(KEY_PREFIX + job.id, job.failureLifespan,
+                    Map.of(NOTE_ERROR, reason == null ? "unknown" : reason)));
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Could not record the access code email failure. realm=%s user=%s",
+                job.message.getRealmId(), job.message.getUserId());
+        }
+    }
+
+    private EmailCodeCircuitBreaker breaker(EmailCodeMessage message) {
+        String server = message.getSmtpConfig().get("host") + ":" + message.getSmtpConfig().get("port");
+        return breakers.computeIfAbsent(server, name -> new EmailCodeCircuitBreaker(name, failureThreshold, openMillis));
+    }
+
+    private Workers workers() {
+        Workers current = workers;
+        return current != null ? current : createWorkers();
+    }
+
+    private synchronized Workers createWorkers() {
+        if (workers == null) {
+            workers = new Workers();
+        }
+        return workers;
+    }
+
+    synchronized void close() {
+        if (workers != null) {
+            workers.timer.shutdownNow();
+            workers.executor.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /**
+     * Send threads and the timer that abandons slow sends, created and closed together
+     */
+    private static class Workers {
+        private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-code-dispatch-", 0).factory());
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-code-dispatch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class Job {
+        private final String id;
+        private final EmailCodeMessage message;
+        private final int failureLifespan;
+        private final EmailCodeCircuitBreaker breaker;
+        private final KeycloakSessionFactory sessionFactory;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Job(String id, EmailCodeMessage message, int failureLifespan, EmailCodeCircuitBreaker breaker,
+            KeycloakSessionFactory sessionFactory) {
+            this.id = id;
+            this.message = message;
+            this.failureLifespan = failureLifespan;
+            this.breaker = breaker;
+            this.sessionFactory = sessionFactory;
+        }
+
+        /**
+         * Claim the outcome of the job; only the first caller (send or timer) reports it
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+    }
+
+    private static class DeliveryException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DeliveryException(EmailException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the access code emails sent to a user, across logins and nodes
+ *
+ * The state of a user lives in the single-use object store. It holds the last
+ * code sent and when it was sent; parallel logins reuse that code while it is
+ * valid instead of sending their own. It counts the codes sent in the current
+ * window and remembers the last code used, which can't be used again from
+ * another login. It also counts the wrong codes entered for the last code tried,
+ * so opening more logins doesn't buy more guesses.
+ *
+ * Codes are kept as the secrets stored in the logins (see EmailCodeState), so
+ * hashed codes are never stored in clear here either. A new code can be
+ * requested once the resend cooldown has passed, and at most maxSends codes are
+ * sent per window.
+ *
+ * Reads and writes are not atomic, parallel requests may slip past a limit by
+ * one email; that's fine for throttling.
+ */
+class EmailCodeGovernor {
+
+    static final String KEY_PREFIX = "email-code-governor:";
+
+    private static final String NOTE_CODE = "code";
+    private static final String NOTE_EXPIRES_AT = "expiresAt";
+    private static final String NOTE_DISPATCH = "dispatch";
+    private static final String NOTE_USED = "used";
+    private static final String NOTE_SENT_AT = "sentAt";
+    private static final String NOTE_WINDOW_START = "windowStart";
+    private static final String NOTE_SENDS = "sends";
+    private static final String NOTE_ATTEMPTS_CODE = "attemptsCode";
+    private static final String NOTE_ATTEMPTS = "attempts";
+
+    private final KeycloakSession session;
+    private final String key;
+    private final EmailAuthenticatorConfig config;
+    private final Map<String, String> state;
+
+    private EmailCodeGovernor(KeycloakSession session, String key, EmailAuthenticatorConfig config, Map<String, String> state) {
+        this.session = session;
+        this.key = key;
+        this.config = config;
+        this.state = state;
+    }
+
+    static EmailCodeGovernor of(AuthenticationFlowContext context, EmailAuthenticatorConfig config) {
+        KeycloakSession session = context.getSession();
+        String key = KEY_PREFIX + context.getRealm().getId() + ":" + context.getUser().getId();
+        Map<String, String> state = session.singleUseObjects().get(key);
+        return new EmailCodeGovernor(session, key, config, state == null ? new HashMap<>() : new HashMap<>(state));
+    }
+
+    /**
+     * The secret of the code last sent to the user if it can still be used, or null
+     */
+    String getSecret() {
+        String secret = state.get(NOTE_CODE);
+        return secret != null && getExpiresAt() > System.currentTimeMillis() ? secret : null;
+    }
+
+    long getExpiresAt() {
+        return getLong(NOTE_EXPIRES_AT);
+    }
+
+    String getDispatchId() {
+        return state.get(NOTE_DISPATCH);
+    }
+
+    /**
+     * Whether the code was already used by a login of the user
+     */
+    boolean isUsed(String secret) {
+        return secret != null && secret.equals(state.get(NOTE_USED));
+    }
+
+    /**
+     * Wrong codes entered by any login of the user while holding the code
+     */
+    int getAttempts(String secret) {
+        return secret != null && secret.equals(state.get(NOTE_ATTEMPTS_CODE)) ? (int) getLong(NOTE_ATTEMPTS) : 0;
+    }
+
+    /**
+     * Count a wrong code entered by a login holding the code; once the limit is
+     * reached the code is no longer handed out to other logins
+     *
+     * @return the wrong codes entered for the code by all logins of the user
+     */
+    int recordAttempt(String secret) {
+        int attempts = getAttempts(secret) + 1;
+        state.put(NOTE_ATTEMPTS_CODE, secret);
+        state.put(NOTE_ATTEMPTS, Integer.toString(attempts));
+        if (config.getMaxAttempts() > 0 && attempts >= config.getMaxAttempts() && secret.equals(state.get(NOTE_CODE))) {
+            clearCode();
+        }
+        save();
+        return attempts;
+    }
+
+    /**
+     * Seconds before the user may request another code
+     */
+    int getRemainingCooldown() {
+        if (config.getResendCooldown() <= 0) {
+            return 0;
+        }
+        return remaining(getLong(NOTE_SENT_AT) + config.getResendCooldown() * 1000L);
+    }
+
+    /**
+     * Seconds before another code may be sent because of the limit per window, 0 if it may be sent now
+     */
+    int getRemainingLimit() {
+        if (config.getMaxSends() <= 0) {
+            return 0;
+        }
+        long windowEnd = getLong(NOTE_WINDOW_START) + config.getSendWindow() * 1000L;
+        if (getLong(NOTE_SENDS) < config.getMaxSends()) {
+            return 0;
+        }
+        return remaining(windowEnd);
+    }
+
+    void recordSend(String secret, long expiresAt, String dispatchId) {
+        long now = System.currentTimeMillis();
+        if (getLong(NOTE_WINDOW_START) + config.getSendWindow() * 1000L <= now) {
+            state.put(NOTE_WINDOW_START, Long.toString(now));
+            state.put(NOTE_SENDS, "1");
+        } else {
+            state.put(NOTE_SENDS, Long.toString(getLong(NOTE_SENDS) + 1));
+        }
+        state.put(NOTE_SENT_AT, Long.toString(now));
+        state.put(NOTE_CODE, secret);
+        state.put(NOTE_EXPIRES_AT, Long.toString(expiresAt));
+        if (dispatchId != null) {
+            state.put(NOTE_DISPATCH, dispatchId);
+        } else {
+            state.remove(NOTE_DISPATCH);
+        }
+        save();
+    }
+
+    /**
+     * Stop sharing the code with other logins, e.g. because a new one was requested or it never arrived
+     */
+    void discardCode(String secret) {
+        if (state.get(NOTE_CODE) != null && (secret == null || secret.equals(state.get(NOTE_CODE)))) {
+            clearCode();
+            save();
+        }
+    }
+
+    /**
+     * Mark the code as used, no other login can use it
+     */
+    void consume(String secret) {
+        if (secret.equals(state.get(NOTE_CODE))) {
+            clearCode();
+        }
+        state.put(NOTE_USED, secret);
+        save();
+    }
+
+    private void clearCode() {
+        state.remove(NOTE_CODE);
+        state.remove(NOTE_EXPIRES_AT);
+        state.remove(NOTE_DISPATCH);
+    }
+
+    private void save() {
+        long lifespan = Math.max(Math.max(config.getSendWindow(), config.getTtl()), config.getResendCooldown());
+        session.singleUseObjects().put(key, Math.max(1, lifespan), state);
+    }
+
+    private long getLong(String note) {
+        String value = state.get(note);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int remaining(long until) {
+        long millis = until - System.currentTimeMillis();
+        return millis <= 0 ? 0 : (int) ((millis + 999) / 1000);
+    }
+}
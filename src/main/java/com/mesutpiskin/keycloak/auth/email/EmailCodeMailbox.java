@@ -0,0 +1,168 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last simulated access code of each user in memory, for load tests
+ * Load generators read the code from the admin API (see EmailCodeMailboxAdminResource)
+ * instead of a real mailbox. Only the latest code per realm and username is kept,
+ * and the least recently created users are dropped beyond the capacity.
+ *
+ * Readers may wait for a code newer than the one they saw: each user has a
+ * future completed by the next capture, so waiting holds no thread. Readers of
+ * a user without codes wait on a future that is dropped with its last reader,
+ * so polling for unknown users doesn't take mailbox space.
+ * Captures are per node, readers must ask the node that served the login.
+ */
+class EmailCodeMailbox implements EmailCodeSink {
+
+    private static final EmailCodeMailbox INSTANCE = new EmailCodeMailbox();
+
+    private final ConcurrentMap<String, Box> boxes = new ConcurrentHashMap<>();
+    // Keys in creation order, to drop the oldest beyond the capacity
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    // Readers waiting for the first code of a user
+    private final ConcurrentMap<String, Waiter> waiters = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile int capacity = EmailConstants.DEFAULT_MAILBOX_CAPACITY;
+
+    static EmailCodeMailbox getInstance() {
+        return INSTANCE;
+    }
+
+    void configure(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        evict();
+    }
+
+    @Override
+    public void capture(RealmModel realm, UserModel user, String code, long expiresAt) {
+        EmailCodeCapture capture = new EmailCodeCapture(user.getUsername(), user.getEmail(), code, expiresAt,
+            System.currentTimeMillis(), sequence.incrementAndGet());
+        String key = key(realm.getId(), user.getUsername());
+        box(key).deliver(capture);
+        Waiter waiter = waiters.remove(key);
+        if (waiter != null) {
+            waiter.future.complete(capture);
+        }
+        evict();
+    }
+
+    /**
+     * The user's latest code, if it is valid and newer than the given sequence number
+     * Completes with null if there is none, or if none was captured before the wait elapsed.
+     */
+    CompletableFuture<EmailCodeCapture> poll(String realmId, String username, long after, long waitMillis) {
+        String key = key(realmId, username);
+        if (waitMillis <= 0) {
+            Box box = boxes.get(key);
+            return CompletableFuture.completedFuture(box == null ? null : box.latest(after));
+        }
+
+        Box box = boxes.get(key);
+        if (box == null) {
+            return waitForFirst(key, after, waitMillis);
+        }
+        return waitFor(box.next(after), waitMillis);
+    }
+
+    private CompletableFuture<EmailCodeCapture> waitForFirst(String key, long after, long waitMillis) {
+        Waiter waiter = waiters.compute(key, (k, current) -> {
+            Waiter joined = current != null ? current : new Waiter();
+            joined.readers++;
+            return joined;
+        });
+        // A capture between the lookup and joining the waiter completed the box, not the waiter
+        Box box = boxes.get(key);
+        CompletableFuture<EmailCodeCapture> next = box != null ? box.next(after) : waiter.future;
+        return waitFor(next, waitMillis).whenComplete((capture, error) ->
+            waiters.computeIfPresent(key, (k, current) -> current == waiter && --current.readers == 0 ? null : current));
+    }
+
+    private static CompletableFuture<EmailCodeCapture> waitFor(CompletableFuture<EmailCodeCapture> next, long waitMillis) {
+        // Copied, so the timeout doesn't complete the future other readers wait on
+        return next.copy()
+            .thenApply(capture -> capture.getExpiresAt() > System.currentTimeMillis() ? capture : null)
+            .completeOnTimeout(null, waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop the codes captured for a realm
+     */
+    void clear(String realmId) {
+        String prefix = realmId + "/";
+        boxes.keySet().removeIf(key -> key.startsWith(prefix));
+        order.removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Number of users with captured codes
+     */
+    int size() {
+        return boxes.size();
+    }
+
+    private Box box(String key) {
+        return boxes.computeIfAbsent(key, k -> {
+            order.add(k);
+            return new Box();
+        });
+    }
+
+    private void evict() {
+        while (boxes.size() > capacity) {
+            String key = order.poll();
+            if (key == null) {
+                return;
+            }
+            boxes.remove(key);
+        }
+    }
+
+    private static String key(String realmId, String username) {
+        // Keycloak stores usernames in lower case
+        return realmId + "/" + username.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Waiter {
+        private final CompletableFuture<EmailCodeCapture> future = new CompletableFuture<>();
+        // Changed under the waiters map's lock for the key
+        private int readers;
+    }
+
+    private static class Box {
+        private EmailCodeCapture latest;
+        private CompletableFuture<EmailCodeCapture> next = new CompletableFuture<>();
+
+        void deliver(EmailCodeCapture capture) {
+            CompletableFuture<EmailCodeCapture> waiting;
+            synchronized (this) {
+                latest = capture;
+                waiting = next;
+                next = new CompletableFuture<>();
+            }
+            waiting.complete(capture);
+        }
+
+        synchronized EmailCodeCapture latest(long after) {
+            return latest != null && latest.getSequence() > after
+                && latest.getExpiresAt() > System.currentTimeMillis() ? latest : null;
+        }
+
+        synchronized CompletableFuture<EmailCodeCapture> next(long after) {
+            EmailCodeCapture capture = latest(after);
+            return capture != null ? CompletableFuture.completedFuture(capture) : next;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Admin REST resource for reading the access codes captured in simulation mode
+ * Reading codes lets the caller log in as the user, so it requires manage-users.
+ *
+ * GET    /{username}?after=&wait=  latest code of the user, waiting up to wait seconds for one newer than after
+ * DELETE /                         drop the realm's captured codes
+ */
+public class EmailCodeMailboxAdminResource {
+
+    private static final int MAX_WAIT_SECONDS = 60;
+
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    public EmailCodeMailboxAdminResource(RealmModel realm, AdminPermissionEvaluator auth) {
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    /**
+     * The latest valid code captured for the user on this node, 404 if there is none
+     * With after (the sequence of a code already read) only a newer code is returned,
+     * with wait the request is held until one is captured or the wait elapsed.
+     */
+    @GET
+    @Path("{username}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletionStage<Response> get(@PathParam("username") String username,
+                                         @QueryParam("after") @DefaultValue("0") long after,
+                                         @QueryParam("wait") @DefaultValue("0") int wait) {
+        auth.users().requireManage();
+        long waitMillis = Math.min(Math.max(wait, 0), MAX_WAIT_SECONDS) * 1000L;
+        return EmailCodeMailbox.getInstance().poll(realm.getId(), username, after, waitMillis)
+            .thenApply(capture -> capture == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : Response.ok(capture).build());
+    }
+
+    @DELETE
+    public Response clear() {
+        auth.users().requireManage();
+        EmailCodeMailbox.getInstance().clear(realm.getId());
+        return Response.noContent().build();
+    }
+}
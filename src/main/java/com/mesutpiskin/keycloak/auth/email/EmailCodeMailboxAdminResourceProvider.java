@@ -0,0 +1,23 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Provides the simulation mailbox admin resource under /admin/realms/{realm}/email-code-mailbox
+ */
+public class EmailCodeMailboxAdminResourceProvider implements AdminRealmResourceProvider {
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new EmailCodeMailboxAdminResource(realm, auth);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
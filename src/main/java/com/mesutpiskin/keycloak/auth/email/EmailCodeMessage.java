@@ -0,0 +1,70 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A rendered access code email, ready to be handed to an EmailCodeSender
+ * Holds everything needed for delivery, so it can be sent from any thread
+ * after the request that produced it has completed.
+ */
+public class EmailCodeMessage {
+
+    private final String realmId;
+    private final String userId;
+    private final String address;
+    private final String subject;
+    private final String textBody;
+    private final String htmlBody;
+    private final Map<String, String> smtpConfig;
+
+    public EmailCodeMessage(String realmId, String userId, String address, String subject,
+                            String textBody, String htmlBody, Map<String, String> smtpConfig) {
+        this.realmId = realmId;
+        this.userId = userId;
+        this.address = address;
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+        this.smtpConfig = Collections.unmodifiableMap(new HashMap<>(smtpConfig));
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+
+    /**
+     * SMTP settings of the realm at the time the message was rendered
+     */
+    public Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    /**
+     * Copy of this message to be delivered with other SMTP settings
+     */
+    public EmailCodeMessage withSmtpConfig(Map<String, String> smtpConfig) {
+        return new EmailCodeMessage(realmId, userId, address, subject, textBody, htmlBody, smtpConfig);
+    }
+}
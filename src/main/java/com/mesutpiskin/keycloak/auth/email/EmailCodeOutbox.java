@@ -0,0 +1,446 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only journal of access code emails handed to the dispatcher
+ *
+ * An email is journaled before the login stores its code, and marked done once
+ * it was delivered or reported as failed. If the node dies in between, the
+ * emails still pending are replayed on the next start, under their original
+ * dispatch id (so failures are still reported to the login that is waiting),
+ * unless their code has expired meanwhile.
+ *
+ * Appends use group commit: a single writer thread writes whatever records
+ * queued up while the previous batch was being synced, then syncs them with one
+ * fsync, so concurrent logins share the cost of a disk sync.
+ *
+ * The journal is split in segments; a segment is deleted once every email it
+ * holds is done or expired.
+ *
+ * The journal holds the rendered emails, so codes that are still valid, but not
+ * the SMTP settings: only the realm is recorded, its SMTP settings (and vault
+ * references) are read again when an email is replayed.
+ */
+class EmailCodeOutbox {
+
+    private static final Logger logger = Logger.getLogger(EmailCodeOutbox.class);
+
+    private static final EmailCodeOutbox INSTANCE = new EmailCodeOutbox();
+
+    private static final String SEGMENT_PREFIX = "email-outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long APPEND_TIMEOUT_MILLIS = 5000;
+
+    private static final byte TYPE_SEND = 1;
+    private static final byte TYPE_DONE = 2;
+
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+
+    // Writer thread state
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Path, Integer> outstanding = new HashMap<>();
+    private Path segment;
+    private FileChannel channel;
+
+    private volatile Path directory;
+    private Thread writer;
+
+    static EmailCodeOutbox getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param directory journal directory, null or blank to disable the journal
+     */
+    void configure(String directory) {
+        this.directory = directory == null || directory.isBlank() ? null : Paths.get(directory);
+    }
+
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Journal an email and wait until it is on disk
+     *
+     * @return false if the email could not be journaled (it can still be sent)
+     */
+    boolean append(String id, EmailCodeMessage message, long expiresAt) {
+        if (!isEnabled() || !start()) {
+            return false;
+        }
+        Record record = new Record(TYPE_SEND, id, message, expiresAt, new CompletableFuture<>());
+        queue.add(record);
+        try {
+            record.durable.get(APPEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warnf(e, "Could not journal access code email. realm=%s user=%s", message.getRealmId(), message.getUserId());
+            return false;
+        }
+    }
+
+    /**
+     * Mark an email as delivered or reported, it won't be replayed
+     */
+    void complete(String id) {
+        if (isEnabled() && writer != null) {
+            queue.add(new Record(TYPE_DONE, id, null, 0, null));
+        }
+    }
+
+    /**
+     * Read the journal left by the previous run and return the emails that were
+     * neither done nor expired, already journaled again in a fresh segment
+     */
+    synchronized Map<String, Pending> recover() {
+        Map<String, Pending> pending = new LinkedHashMap<>();
+        if (!isEnabled()) {
+            return pending;
+        }
+
+        List<Path> segments = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                stream.forEach(segments::add);
+            }
+        } catch (IOException e) {
+            logger.errorf(e, "Could not read the access code email journal in %s", directory);
+            return pending;
+        }
+        segments.sort(null);
+
+        long now = System.currentTimeMillis();
+        // A segment already in use belongs to this run
+        segments.remove(segment);
+        for (Path path : segments) {
+            try (InputStream in = Files.newInputStream(path)) {
+                readSegment(new DataInputStream(in), path, pending);
+            } catch (IOException e) {
+                logger.warnf(e, "Could not read access code email journal segment %s", path);
+            }
+        }
+        pending.values().removeIf(p -> p.expiresAt <= now);
+
+        if (!start()) {
+            return new LinkedHashMap<>();
+        }
+        // Journal the survivors again before dropping the old segments
+        for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> e = it.next();
+            if (!append(e.getKey(), e.getValue().message, e.getValue().expiresAt)) {
+                it.remove();
+            }
+        }
+        for (Path path : segments) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warnf(e, "Could not delete access code email journal segment %s", path);
+            }
+        }
+        if (!pending.isEmpty()) {
+            logger.infof("Replaying %d access code emails from the journal", pending.size());
+        }
+        return pending;
+    }
+
+    private void readSegment(DataInputStream in, Path path, Map<String, Pending> pending) throws IOException {
+        while (true) {
+            int length;
+            long checksum;
+            byte[] payload;
+            try {
+                length = in.readInt();
+                checksum = in.readLong();
+                if (length <= 0 || length > SEGMENT_SIZE) {
+                    throw new EOFException();
+                }
+                payload = in.readNBytes(length);
+            } catch (EOFException e) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (payload.length != length || crc.getValue() != checksum) {
+                // Torn write at the end of the segment
+                logger.debugf("Ignoring incomplete record at the end of %s", path);
+                return;
+            }
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = record.readByte();
+            String id = record.readUTF();
+            if (type == TYPE_DONE) {
+                pending.remove(id);
+            } else if (type == TYPE_SEND) {
+                long expiresAt = record.readLong();
+                String realmId = readString(record);
+                String userId = readString(record);
+                String address = readString(record);
+                String subject = readString(record);
+                String textBody = readString(record);
+                String htmlBody = readString(record);
+                pending.put(id, new Pending(new EmailCodeMessage(realmId, userId, address, subject,
+                    textBody, htmlBody, Collections.emptyMap()), expiresAt));
+            }
+        }
+    }
+
+    private synchronized boolean start() {
+        if (writer != null) {
+            return true;
+        }
+        try {
+            Files.createDirectories(directory);
+            openSegment();
+        } catch (IOException e) {
+            logger.errorf(e, "Could not open the access code email journal in %s", directory);
+            return false;
+        }
+        writer = new Thread(this::write, "email-code-outbox");
+        writer.setDaemon(true);
+        writer.start();
+        return true;
+    }
+
+    private void write() {
+        List<Record> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            writeBatch(batch);
+            batch.clear();
+        }
+        queue.drainTo(batch);
+        writeBatch(batch);
+    }
+
+    private void writeBatch(List<Record> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            for (Record record : batch) {
+                channel.write(ByteBuffer.wrap(record.encode()));
+            }
+            channel.force(false);
+            for (Record record : batch) {
+                track(record);
+                if (record.durable != null) {
+                    record.durable.complete(null);
+                }
+            }
+            if (channel.size() >= SEGMENT_SIZE) {
+                roll();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.errorf(e, "Could not write to the access code email journal %s", segment);
+            for (Record record : batch) {
+                if (record.durable != null) {
+                    record.durable.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void track(Record record) {
+        if (record.type == TYPE_SEND) {
+            entries.put(record.id, new Entry(segment, record.expiresAt));
+            outstanding.merge(segment, 1, Integer::sum);
+        } else {
+            Entry entry = entries.remove(record.id);
+            if (entry != null) {
+                release(entry.segment);
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.expiresAt <= now) {
+                it.remove();
+                release(entry.segment);
+            }
+        }
+        channel.close();
+        Path previous = segment;
+        openSegment();
+        if (!outstanding.containsKey(previous)) {
+            Files.deleteIfExists(previous);
+        }
+    }
+
+    private void release(Path path) {
+        Integer left = outstanding.merge(path, -1, Integer::sum);
+        if (left != null && left <= 0) {
+            outstanding.remove(path);
+            if (!path.equals(segment)) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.warnf(e, "Could not delete access code email journal segment %s", path);
+                }
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path path;
+        long sequence = System.currentTimeMillis();
+        do {
+            path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence++, SEGMENT_SUFFIX));
+        } while (Files.exists(path));
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            // The journal holds access codes
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment = path;
+    }
+
+    synchronized void close() {
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(APPEND_TIMEOUT_MILLIS);
+                channel.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                logger.debug("Failed to close the access code email journal", e);
+            }
+            writer = null;
+            channel = null;
+            segment = null;
+            entries.clear();
+            outstanding.clear();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An email left pending by the previous run, without SMTP settings
+     */
+    static class Pending {
+        final EmailCodeMessage message;
+        final long expiresAt;
+
+        Pending(EmailCodeMessage message, long expiresAt) {
+            this.message = message;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Entry {
+        final Path segment;
+        final long expiresAt;
+
+        Entry(Path segment, long expiresAt) {
+            this.segment = segment;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final String id;
+        final EmailCodeMessage message;
+        final long expiresAt;
+        final CompletableFuture<Void> durable;
+
+        Record(byte type, String id, EmailCodeMessage message, long expiresAt, CompletableFuture<Void> durable) {
+            this.type = type;
+            this.id = id;
+            this.message = message;
+            this.expiresAt = expiresAt;
+            this.durable = durable;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(type);
+            out.writeUTF(id);
+            if (type == TYPE_SEND) {
+                out.writeLong(expiresAt);
+                writeString(out, message.getRealmId());
+                writeString(out, message.getUserId());
+                writeString(out, message.getAddress());
+                writeString(out, message.getSubject());
+                writeString(out, message.getTextBody());
+                writeString(out, message.getHtmlBody());
+            }
+            out.flush();
+
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer framed = ByteBuffer.allocate(12 + bytes.length);
+            framed.putInt(bytes.length).putLong(crc.getValue()).put(bytes);
+            return framed.array();
+        }
+    }
+}
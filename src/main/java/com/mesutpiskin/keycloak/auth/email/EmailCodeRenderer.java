@@ -0,0 +1,168 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the access code email (code-email.ftl) without sending it
+ * Rendering needs the request (theme, locale, URLs), so it runs on the request
+ * thread; the resulting EmailCodeMessage can be delivered from anywhere.
+ *
+ * The template is precompiled per realm, theme, locale, base URL, code length
+ * and TTL (see CompiledEmailCodeTemplate), so most emails only need the username
+ * and code spliced in. A compiled template is dropped when the realm's email
+ * theme, display name or localization texts change, and after a while in any
+ * case. Nothing is cached when Keycloak doesn't cache themes (development).
+ */
+class EmailCodeRenderer extends FreeMarkerEmailTemplateProvider {
+
+    private static final Logger logger = Logger.getLogger(EmailCodeRenderer.class);
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+    private static volatile Boolean cacheEnabled;
+
+    EmailCodeRenderer(KeycloakSession session) {
+        super(session);
+    }
+
+    EmailCodeMessage render(RealmModel realm, UserModel user, String code, int ttl) throws EmailException {
+        setRealm(realm);
+        setUser(user);
+
+        CompiledEmailCodeTemplate template = isCacheEnabled() ? getCompiled(realm, user, code.length(), ttl) : null;
+        if (template != null) {
+            return new EmailCodeMessage(realm.getId(), user.getId(), user.getEmail(), template.getSubject(),
+                template.renderText(user.getUsername(), code), template.renderHtml(user.getUsername(), code),
+                realm.getSmtpConfig());
+        }
+
+        EmailTemplate email = process(realm, user.getUsername(), code, code.length(), ttl);
+        return new EmailCodeMessage(realm.getId(), user.getId(), user.getEmail(),
+            email.getSubject(), email.getTextBody(), email.getHtmlBody(), realm.getSmtpConfig());
+    }
+
+    private EmailTemplate process(RealmModel realm, String username, String code, int codeLength, int ttl)
+        throws EmailException {
+        Map<String, Object> mailBodyAttributes = new HashMap<>();
+        mailBodyAttributes.put("username", username);
+        mailBodyAttributes.put("code", code);
+        mailBodyAttributes.put("ttl", ttl);
+        mailBodyAttributes.put("codeLength", codeLength);
+
+        String realmName = realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName();
+        List<Object> subjectParams = List.of(realmName);
+        // Don't forget to add the code-email.ftl (html and text) template to your theme.
+        return processTemplate(EmailConstants.SUBJECT_KEY, subjectParams, EmailConstants.TEMPLATE, mailBodyAttributes);
+    }
+
+    private CompiledEmailCodeTemplate getCompiled(RealmModel realm, UserModel user, int codeLength, int ttl) {
+        Theme theme;
+        try {
+            theme = getTheme();
+        } catch (IOException e) {
+            return null;
+        }
+        Locale locale = session.getContext().resolveLocale(user);
+        String key = String.join("|", realm.getId(), theme.getName(), locale.toLanguageTag(),
+            String.valueOf(session.getContext().getUri().getBaseUri()),
+            Integer.toString(codeLength), Integer.toString(ttl));
+        int version = Objects.hash(realm.getName(), realm.getDisplayName(),
+            realm.getRealmLocalizationTextsByLocale(locale.toLanguageTag()));
+
+        long now = System.currentTimeMillis();
+        Entry entry = CACHE.get(key);
+        if (entry != null && entry.theme == theme && entry.version == version && now < entry.expiresAt) {
+            return entry.template;
+        }
+
+        CompiledEmailCodeTemplate template = compile(realm, user, locale, codeLength, ttl);
+        if (CACHE.size() >= MAX_ENTRIES) {
+            CACHE.clear();
+        }
+        // Templates that can't be compiled are remembered too, so they aren't retried on every email
+        CACHE.put(key, new Entry(theme, version, template, now + TTL_MILLIS));
+        return template;
+    }
+
+    private CompiledEmailCodeTemplate compile(RealmModel realm, UserModel user, Locale locale, int codeLength, int ttl) {
+        try {
+            EmailTemplate a = processAs(realm, locale, "a", CompiledEmailCodeTemplate.USERNAME_A,
+                CompiledEmailCodeTemplate.CODE_A, codeLength, ttl);
+            EmailTemplate b = processAs(realm, locale, "b", CompiledEmailCodeTemplate.USERNAME_B,
+                CompiledEmailCodeTemplate.CODE_B, codeLength, ttl);
+            CompiledEmailCodeTemplate template = a == null || b == null ? null : CompiledEmailCodeTemplate.compile(
+                a.getSubject(), a.getTextBody(), a.getHtmlBody(), b.getSubject(), b.getTextBody(), b.getHtmlBody());
+            if (template == null) {
+                logger.debugf("The access code email of theme %s can't be precompiled, rendering it in full. realm=%s",
+                    getTheme().getName(), realm.getName());
+            }
+            return template;
+        } catch (EmailException | IOException | RuntimeException e) {
+            logger.debugf(e, "Could not precompile the access code email. realm=%s", realm.getName());
+            return null;
+        } finally {
+            setUser(user);
+        }
+    }
+
+    /**
+     * Render as a placeholder user, or null if the placeholder would get another locale
+     */
+    private EmailTemplate processAs(RealmModel realm, Locale locale, String suffix, String username, String code,
+                                    int codeLength, int ttl) throws EmailException {
+        UserModel placeholder = new InMemoryUserAdapter(session, realm, "email-code-template-" + suffix);
+        placeholder.setUsername(username);
+        placeholder.setFirstName("first-" + suffix);
+        placeholder.setLastName("last-" + suffix);
+        placeholder.setEmail("placeholder-" + suffix + "@example.invalid");
+        placeholder.setSingleAttribute(UserModel.LOCALE, locale.toLanguageTag());
+        if (!locale.equals(session.getContext().resolveLocale(placeholder))) {
+            return null;
+        }
+        setUser(placeholder);
+        return process(realm, username, code, codeLength, ttl);
+    }
+
+    private static boolean isCacheEnabled() {
+        if (cacheEnabled == null) {
+            Config.Scope theme = Config.scope("theme");
+            cacheEnabled = theme.getBoolean("cacheThemes", true) && theme.getBoolean("cacheTemplates", true);
+        }
+        return cacheEnabled;
+    }
+
+    private static class Entry {
+        private final Theme theme;
+        private final int version;
+        private final CompiledEmailCodeTemplate template;
+        private final long expiresAt;
+
+        Entry(Theme theme, int version, CompiledEmailCodeTemplate template, long expiresAt) {
+            this.theme = theme;
+            this.version = version;
+            this.template = template;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
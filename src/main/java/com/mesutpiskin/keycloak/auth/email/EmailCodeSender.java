@@ -0,0 +1,17 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Delivers rendered access code emails
+ * The default implementation sends through the realm's SMTP server; tests can
+ * install a stand-in with EmailCodeDispatcher.setSender().
+ */
+public interface EmailCodeSender {
+
+    /**
+     * Deliver a message, called with a session of its own (not the login request's)
+     */
+    void send(KeycloakSession session, EmailCodeMessage message) throws EmailException;
+}
@@ -0,0 +1,22 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Receives the access codes generated in simulation mode, instead of an email
+ */
+interface EmailCodeSink {
+
+    /**
+     * Called on the login request's thread, must be fast and must not throw
+     */
+    void capture(RealmModel realm, UserModel user, String code, long expiresAt);
+
+    static EmailCodeSink forName(String name) {
+        if (EmailConstants.SIMULATION_SINK_MAILBOX.equalsIgnoreCase(name)) {
+            return EmailCodeMailbox.getInstance();
+        }
+        return LogEmailCodeSink.INSTANCE;
+    }
+}
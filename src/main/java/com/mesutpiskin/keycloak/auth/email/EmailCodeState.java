@@ -0,0 +1,210 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The access code state of a login, kept in a single auth note
+ *
+ * Every auth note change is a write to the replicated authentication session,
+ * so the code, its expiry, the dispatch id and the attempt and send counters are
+ * encoded together ("1|secret|expiresAt|attempts|sends|dispatchId", numbers in
+ * base 36). The state is loaded once per request and save() only writes the
+ * note if it changed, so a step costs at most one write.
+ *
+ * The secret is the code itself, or a salted SHA-256 hash of it ("salt$hash")
+ * when the code shouldn't be readable from the session store. Short numeric
+ * codes can still be recovered from their hash by trying every value, hashing
+ * only keeps them out of plain sight.
+ */
+class EmailCodeState {
+
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = "|";
+    private static final char HASH_SEPARATOR = '$';
+    private static final int SALT_BYTES = 12;
+    private static final int RADIX = 36;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final AuthenticationSessionModel authSession;
+    // Value of the note as last read or written
+    private String stored;
+
+    private String secret;
+    private long expiresAt;
+    private int attempts;
+    private int sends;
+    private String dispatchId;
+
+    private EmailCodeState(AuthenticationSessionModel authSession) {
+        this.authSession = authSession;
+        this.stored = authSession.getAuthNote(EmailConstants.CODE_STATE);
+        decode(stored);
+    }
+
+    /**
+     * The state of the current login, shared by the calls of the same request
+     */
+    static EmailCodeState of(AuthenticationFlowContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String attribute = EmailConstants.CODE_STATE + ":" + authSession.getParentSession().getId()
+            + ":" + authSession.getTabId();
+        EmailCodeState state = context.getSession().getAttribute(attribute, EmailCodeState.class);
+        if (state == null) {
+            state = new EmailCodeState(authSession);
+            context.getSession().setAttribute(attribute, state);
+        }
+        return state;
+    }
+
+    boolean hasCode() {
+        return secret != null;
+    }
+
+    String getSecret() {
+        return secret;
+    }
+
+    boolean isExpired() {
+        return expiresAt < System.currentTimeMillis();
+    }
+
+    /**
+     * Wrong codes entered since the code was sent
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Codes sent for this login, including resends
+     */
+    int getSends() {
+        return sends;
+    }
+
+    String getDispatchId() {
+        return dispatchId;
+    }
+
+    void setCode(String secret, long expiresAt, String dispatchId) {
+        this.secret = secret;
+        this.expiresAt = expiresAt;
+        this.dispatchId = dispatchId;
+        this.attempts = 0;
+    }
+
+    void countSend() {
+        sends++;
+    }
+
+    void recordAttempt() {
+        attempts++;
+    }
+
+    /**
+     * Forget the code, e.g. before sending a new one; the send count is kept
+     */
+    void clearCode() {
+        setCode(null, 0, null);
+    }
+
+    /**
+     * Forget the code and the counters, once the step is over
+     */
+    void remove() {
+        clearCode();
+        sends = 0;
+        save();
+    }
+
+    /**
+     * Write the note if the state changed since it was loaded or last saved
+     */
+    void save() {
+        String encoded = secret == null && sends == 0 ? null : encode();
+        if (encoded == null ? stored == null : encoded.equals(stored)) {
+            return;
+        }
+        if (encoded == null) {
+            authSession.removeAuthNote(EmailConstants.CODE_STATE);
+        } else {
+            authSession.setAuthNote(EmailConstants.CODE_STATE, encoded);
+        }
+        stored = encoded;
+    }
+
+    private String encode() {
+        return String.join(SEPARATOR, VERSION, secret == null ? "" : secret, Long.toString(expiresAt, RADIX),
+            Integer.toString(attempts, RADIX), Integer.toString(sends, RADIX), dispatchId == null ? "" : dispatchId);
+    }
+
+    private void decode(String value) {
+        if (value == null) {
+            return;
+        }
+        String[] fields = value.split("\\|", -1);
+        if (fields.length != 6 || !VERSION.equals(fields[0])) {
+            // Unknown format, start over with a new code
+            return;
+        }
+        try {
+            expiresAt = Long.parseLong(fields[2], RADIX);
+            attempts = Integer.parseInt(fields[3], RADIX);
+            sends = Integer.parseInt(fields[4], RADIX);
+        } catch (NumberFormatException e) {
+            expiresAt = 0;
+            attempts = 0;
+            sends = 0;
+            return;
+        }
+        secret = fields[1].isEmpty() ? null : fields[1];
+        dispatchId = fields[5].isEmpty() ? null : fields[5];
+    }
+
+    /**
+     * Salted hash of a code, to store instead of the code
+     */
+    static String hash(String code) {
+        byte[] salt = SecretGenerator.getInstance().randomBytes(SALT_BYTES);
+        return ENCODER.encodeToString(salt) + HASH_SEPARATOR + ENCODER.encodeToString(digest(salt, code));
+    }
+
+    /**
+     * Whether the code entered by the user is the one of the secret, hashed or not
+     */
+    static boolean matches(String secret, String code) {
+        if (secret == null || code == null) {
+            return false;
+        }
+        int separator = secret.indexOf(HASH_SEPARATOR);
+        if (separator < 0) {
+            return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), code.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            byte[] salt = DECODER.decode(secret.substring(0, separator));
+            byte[] hash = DECODER.decode(secret.substring(separator + 1));
+            return MessageDigest.isEqual(hash, digest(salt, code));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] digest(byte[] salt, String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(code.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
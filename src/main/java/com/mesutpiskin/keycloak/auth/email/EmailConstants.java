@@ -8,4 +8,56 @@ public class EmailConstants {
 	public static int DEFAULT_LENGTH = 6;
 	public static int DEFAULT_TTL = 300;
 	public static boolean DEFAULT_SIMULATION_MODE = false;
+	public static String SIMULATION_SINK = "simulationSink";
+	public static String SIMULATION_SINK_LOG = "log";
+	public static String SIMULATION_SINK_MAILBOX = "mailbox";
+	public static String RESEND_COOLDOWN = "resendCooldown";
+	public static String MAX_SENDS = "maxSends";
+	public static String SEND_WINDOW = "sendWindow";
+	public static int DEFAULT_RESEND_COOLDOWN = 30;
+	public static int DEFAULT_MAX_SENDS = 5;
+	public static int DEFAULT_SEND_WINDOW = 900;
+	public static String MAX_ATTEMPTS = "maxAttempts";
+	public static String HASH_CODE = "hashCode";
+	public static int DEFAULT_MAX_ATTEMPTS = 0;
+	public static boolean DEFAULT_HASH_CODE = false;
+
+	// Auth note holding the code state of the login (see EmailCodeState)
+	public static String CODE_STATE = "emailCodeState";
+
+	// Email template and message keys
+	public static String TEMPLATE = "code-email.ftl";
+	public static String SUBJECT_KEY = "emailCodeSubject";
+	public static String SEND_FAILED_MESSAGE = "emailCodeSendFailed";
+	public static String RESEND_COOLDOWN_MESSAGE = "emailCodeResendCooldown";
+	public static String TOO_MANY_SENDS_MESSAGE = "emailCodeTooManySends";
+	public static String TOO_MANY_ATTEMPTS_MESSAGE = "emailCodeTooManyAttempts";
+
+	// Provider (SPI) configuration keys
+	public static String ASYNC_DISPATCH = "async-dispatch";
+	public static String DISPATCH_MAX_CONCURRENT = "dispatch-max-concurrent";
+	public static String DISPATCH_MAX_PENDING = "dispatch-max-pending";
+	public static String DISPATCH_TIMEOUT = "dispatch-timeout";
+	public static String BREAKER_FAILURE_THRESHOLD = "breaker-failure-threshold";
+	public static String BREAKER_OPEN_DURATION = "breaker-open-duration";
+	public static boolean DEFAULT_ASYNC_DISPATCH = true;
+	public static int DEFAULT_DISPATCH_MAX_CONCURRENT = 32;
+	public static int DEFAULT_DISPATCH_MAX_PENDING = 1000;
+	public static int DEFAULT_DISPATCH_TIMEOUT = 30;
+	public static int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+	public static int DEFAULT_BREAKER_OPEN_DURATION = 30;
+	public static String SMTP_POOL = "smtp-pool";
+	public static String SMTP_POOL_MAX_CONNECTIONS = "smtp-pool-max-connections";
+	public static String SMTP_POOL_MAX_MESSAGES = "smtp-pool-max-messages";
+	public static String SMTP_POOL_IDLE_TIMEOUT = "smtp-pool-idle-timeout";
+	public static boolean DEFAULT_SMTP_POOL = true;
+	public static int DEFAULT_SMTP_POOL_MAX_CONNECTIONS = 8;
+	public static int DEFAULT_SMTP_POOL_MAX_MESSAGES = 100;
+	public static int DEFAULT_SMTP_POOL_IDLE_TIMEOUT = 60;
+	public static String RELAYS = "relays";
+	public static String RELAY_SLOW_THRESHOLD = "relay-slow-threshold";
+	public static int DEFAULT_RELAY_SLOW_THRESHOLD = 5;
+	public static String OUTBOX_DIR = "outbox-dir";
+	public static String MAILBOX_CAPACITY = "mailbox-capacity";
+	public static int DEFAULT_MAILBOX_CAPACITY = 10000;
 }
@@ -0,0 +1,21 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Prints simulated access codes to the server log
+ */
+class LogEmailCodeSink implements EmailCodeSink {
+
+    // Logged under the authenticator, where simulated codes always went
+    private static final Logger logger = Logger.getLogger(EmailAuthenticatorForm.class);
+
+    static final LogEmailCodeSink INSTANCE = new LogEmailCodeSink();
+
+    @Override
+    public void capture(RealmModel realm, UserModel user, String code, long expiresAt) {
+        logger.infof("***** SIMULATION MODE ***** Email code send to %s for user %s is: %s", user.getEmail(), user.getUsername(), code);
+    }
+}
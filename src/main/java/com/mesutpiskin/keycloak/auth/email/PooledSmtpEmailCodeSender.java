@@ -0,0 +1,202 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends access code emails over pooled SMTP connections
+ * Keycloak's email sender opens a connection (TLS, AUTH) for every message; this
+ * sender keeps a pool of connected transports per realm and SMTP server (see
+ * SmtpTransportPool) and reuses them across sends. A pool is replaced when the
+ * realm's SMTP settings change, and dropped after it was unused for the idle timeout.
+ * A message that failed because the server closed a reused connection is sent
+ * once more on a new one.
+ */
+class PooledSmtpEmailCodeSender implements EmailCodeSender {
+
+    private static final Logger logger = Logger.getLogger(PooledSmtpEmailCodeSender.class);
+
+    private static final PooledSmtpEmailCodeSender INSTANCE = new PooledSmtpEmailCodeSender();
+
+    private static final long EVICT_INTERVAL_MILLIS = 15000;
+
+    private final ConcurrentMap<String, SmtpTransportPool> pools = new ConcurrentHashMap<>();
+
+    private volatile int maxConnections = EmailConstants.DEFAULT_SMTP_POOL_MAX_CONNECTIONS;
+    private volatile int maxMessages = EmailConstants.DEFAULT_SMTP_POOL_MAX_MESSAGES;
+    private volatile long idleMillis = EmailConstants.DEFAULT_SMTP_POOL_IDLE_TIMEOUT * 1000L;
+    private volatile ScheduledExecutorService evictor;
+
+    static PooledSmtpEmailCodeSender getInstance() {
+        return INSTANCE;
+    }
+
+    void configure(int maxConnections, int maxMessages, int idleTimeoutSeconds) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxMessages = Math.max(1, maxMessages);
+        this.idleMillis = Math.max(1, idleTimeoutSeconds) * 1000L;
+        closePools();
+    }
+
+    @Override
+    public void send(KeycloakSession session, EmailCodeMessage message) throws EmailException {
+        SmtpTransportPool pool = getPool(message);
+        Message mimeMessage;
+        try {
+            mimeMessage = createMessage(pool, session, message);
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            throw new EmailException("Failed to send the access code email", e);
+        }
+
+        for (boolean retried = false; ; retried = true) {
+            SmtpTransportPool.PooledTransport transport = borrow(pool, session);
+            boolean healthy = false;
+            try {
+                transport.transport.sendMessage(mimeMessage, new Address[]{new InternetAddress(message.getAddress())});
+                transport.sent++;
+                healthy = true;
+                return;
+            } catch (MessagingException e) {
+                // A reused connection the server closed meanwhile (restart, idle timeout) never
+                // got the message, it is sent once more on a new connection
+                if (retried || transport.sent == 0 || transport.transport.isConnected()) {
+                    throw new EmailException("Failed to send the access code email", e);
+                }
+                logger.debugf("Pooled SMTP connection was closed by the server, retrying. realm=%s", message.getRealmId());
+            } finally {
+                pool.release(transport, healthy);
+            }
+        }
+    }
+
+    private static SmtpTransportPool.PooledTransport borrow(SmtpTransportPool pool, KeycloakSession session) throws EmailException {
+        try {
+            return pool.borrow(session);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while waiting for an SMTP connection", e);
+        } catch (MessagingException e) {
+            throw new EmailException("Failed to connect to the SMTP server", e);
+        }
+    }
+
+    private SmtpTransportPool getPool(EmailCodeMessage message) {
+        startEvictor();
+        String key = message.getRealmId() + "/" + message.getSmtpConfig().get("host") + ":" + message.getSmtpConfig().get("port");
+        return pools.compute(key, (poolKey, pool) -> {
+            if (pool != null && pool.getSmtpConfig().equals(message.getSmtpConfig())) {
+                return pool;
+            }
+            if (pool != null) {
+                logger.debugf("SMTP settings changed, replacing the connection pool. realm=%s", message.getRealmId());
+                pool.close();
+            }
+            return new SmtpTransportPool(message.getRealmId(), message.getSmtpConfig(), maxConnections, maxMessages, idleMillis);
+        });
+    }
+
+    /**
+     * Same message layout as Keycloak's email sender
+     */
+    private Message createMessage(SmtpTransportPool pool, KeycloakSession session, EmailCodeMessage message)
+        throws MessagingException, UnsupportedEncodingException, EmailException {
+        Map<String, String> smtpConfig = message.getSmtpConfig();
+        String from = smtpConfig.get("from");
+        if (from == null) {
+            throw new EmailException("No sender address configured in the realm settings for emails");
+        }
+
+        Multipart multipart = new MimeMultipart("alternative");
+        if (message.getTextBody() != null) {
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(message.getTextBody(), "UTF-8");
+            multipart.addBodyPart(textPart);
+        }
+        if (message.getHtmlBody() != null) {
+            MimeBodyPart htmlPart = new MimeBodyPart();
+            htmlPart.setContent(message.getHtmlBody(), "text/html; charset=UTF-8");
+            multipart.addBodyPart(htmlPart);
+        }
+
+        MimeMessage mimeMessage = new MimeMessage(pool.getMailSession(session));
+        mimeMessage.setFrom(toInternetAddress(from, smtpConfig.get("fromDisplayName")));
+        String replyTo = smtpConfig.get("replyTo");
+        if (replyTo != null && !replyTo.isBlank()) {
+            mimeMessage.setReplyTo(new Address[]{toInternetAddress(replyTo, smtpConfig.get("replyToDisplayName"))});
+        }
+        mimeMessage.setHeader("To", message.getAddress());
+        mimeMessage.setSubject(MimeUtility.encodeText(message.getSubject(), StandardCharsets.UTF_8.name(), null));
+        mimeMessage.setContent(multipart);
+        mimeMessage.saveChanges();
+        mimeMessage.setSentDate(new Date());
+        return mimeMessage;
+    }
+
+    private static InternetAddress toInternetAddress(String email, String displayName) throws UnsupportedEncodingException {
+        if (displayName == null || displayName.isBlank()) {
+            return new InternetAddress(email, null, "utf-8");
+        }
+        return new InternetAddress(email, displayName, "utf-8");
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        pools.forEach((key, pool) -> {
+            pool.evictIdle(now);
+            if (pool.isUnused(now) && pools.remove(key, pool)) {
+                pool.close();
+            }
+        });
+    }
+
+    private void startEvictor() {
+        if (evictor == null) {
+            createEvictor();
+        }
+    }
+
+    private synchronized void createEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-smtp-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, EVICT_INTERVAL_MILLIS, EVICT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void closePools() {
+        pools.values().forEach(SmtpTransportPool::close);
+        pools.clear();
+    }
+
+    synchronized void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        closePools();
+    }
+}
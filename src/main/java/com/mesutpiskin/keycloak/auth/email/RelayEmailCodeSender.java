@@ -0,0 +1,125 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads access code emails across several SMTP relays
+ * Relays dedicated to the recipient's domain are preferred, the others take
+ * all remaining mail. Among the candidates a relay is picked at random with
+ * weight / (outstanding sends + 1), so traffic follows the configured weights
+ * and shifts away from relays that are slow to answer. A failed or slow send
+ * counts against the relay's circuit breaker, and the message is retried on
+ * the next candidate until every healthy relay was tried.
+ */
+class RelayEmailCodeSender implements EmailCodeSender {
+
+    private static final Logger logger = Logger.getLogger(RelayEmailCodeSender.class);
+
+    private final List<SmtpRelay> relays;
+    private final EmailCodeSender delegate;
+    private final long slowMillis;
+
+    RelayEmailCodeSender(List<SmtpRelay> relays, EmailCodeSender delegate, long slowMillis) {
+        this.relays = relays;
+        this.delegate = delegate;
+        this.slowMillis = slowMillis;
+    }
+
+    @Override
+    public void send(KeycloakSession session, EmailCodeMessage message) throws EmailException {
+        String domain = recipientDomain(message.getAddress());
+        List<SmtpRelay> tried = new ArrayList<>();
+        EmailException failure = null;
+
+        SmtpRelay relay;
+        while ((relay = select(domain, tried)) != null) {
+            tried.add(relay);
+            long start = System.currentTimeMillis();
+            relay.begin();
+            try {
+                delegate.send(session, message.withSmtpConfig(relay.apply(message.getSmtpConfig())));
+            } catch (EmailException | RuntimeException e) {
+                relay.getBreaker().recordFailure();
+                logger.warnf("Access code email could not be sent through relay %s: %s. realm=%s user=%s",
+                    relay.getName(), e.getMessage(), message.getRealmId(), message.getUserId());
+                failure = e instanceof EmailException ? (EmailException) e : new EmailException(e.getMessage(), e);
+                if (Thread.currentThread().isInterrupted()) {
+                    // Timed out by the dispatcher
+                    break;
+                }
+                continue;
+            } finally {
+                relay.end();
+            }
+
+            if (System.currentTimeMillis() - start > slowMillis) {
+                logger.debugf("Slow access code email delivery through relay %s", relay.getName());
+                relay.getBreaker().recordFailure();
+            } else {
+                relay.getBreaker().recordSuccess();
+            }
+            return;
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        throw new EmailException("No SMTP relay available");
+    }
+
+    /**
+     * Pick the next relay to try, or null if no untried relay is available
+     */
+    private SmtpRelay select(String domain, List<SmtpRelay> tried) {
+        List<SmtpRelay> dedicated = new ArrayList<>();
+        List<SmtpRelay> shared = new ArrayList<>();
+        for (SmtpRelay relay : relays) {
+            if (tried.contains(relay)) {
+                continue;
+            }
+            if (!relay.isDedicated()) {
+                shared.add(relay);
+            } else if (domain != null && relay.serves(domain)) {
+                dedicated.add(relay);
+            }
+        }
+        SmtpRelay relay = pick(dedicated);
+        return relay != null ? relay : pick(shared);
+    }
+
+    private static SmtpRelay pick(List<SmtpRelay> candidates) {
+        while (!candidates.isEmpty()) {
+            double[] weights = new double[candidates.size()];
+            double total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                SmtpRelay relay = candidates.get(i);
+                weights[i] = relay.getWeight() / (relay.getOutstanding() + 1.0);
+                total += weights[i];
+            }
+
+            double point = ThreadLocalRandom.current().nextDouble(total);
+            int index = 0;
+            while (index < weights.length - 1 && point >= weights[index]) {
+                point -= weights[index++];
+            }
+
+            SmtpRelay relay = candidates.remove(index);
+            if (relay.getBreaker().allow()) {
+                return relay;
+            }
+        }
+        return null;
+    }
+
+    private static String recipientDomain(String address) {
+        int at = address == null ? -1 : address.lastIndexOf('@');
+        return at < 0 ? null : address.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,19 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Sends access code emails through Keycloak's email sender with the realm's SMTP settings
+ */
+class SmtpEmailCodeSender implements EmailCodeSender {
+
+    static final SmtpEmailCodeSender INSTANCE = new SmtpEmailCodeSender();
+
+    @Override
+    public void send(KeycloakSession session, EmailCodeMessage message) throws EmailException {
+        session.getProvider(EmailSenderProvider.class).send(message.getSmtpConfig(), message.getAddress(),
+            message.getSubject(), message.getTextBody(), message.getHtmlBody());
+    }
+}
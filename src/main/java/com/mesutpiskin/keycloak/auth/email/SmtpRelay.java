@@ -0,0 +1,161 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One SMTP relay access code emails can be routed to
+ * A relay is written as host:port followed by optional ;key=value parameters:
+ * weight (share of the traffic, default 1), domain (recipient domain the relay
+ * is dedicated to, may be repeated) and any realm SMTP setting to override for
+ * this relay (ssl, starttls, auth, user, password, from, ...), e.g.
+ * smtp1.example.com:587;weight=2;starttls=true;user=otp;password=${vault.smtp1}
+ */
+class SmtpRelay {
+
+    private static final Logger logger = Logger.getLogger(SmtpRelay.class);
+
+    private final String name;
+    private final int weight;
+    private final Set<String> domains;
+    private final Map<String, String> settings;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final EmailCodeCircuitBreaker breaker;
+
+    SmtpRelay(String name, int weight, Set<String> domains, Map<String, String> settings,
+              int failureThreshold, long openMillis) {
+        this.name = name;
+        this.weight = weight;
+        this.domains = domains;
+        this.settings = settings;
+        this.breaker = new EmailCodeCircuitBreaker(name, failureThreshold, openMillis);
+    }
+
+    /**
+     * Parse relay definitions; invalid ones are logged and skipped
+     */
+    static List<SmtpRelay> parse(String[] relays, int failureThreshold, long openMillis) {
+        List<SmtpRelay> parsed = new ArrayList<>();
+        if (relays == null) {
+            return parsed;
+        }
+        for (String relay : relays) {
+            if (relay == null || relay.isBlank()) {
+                continue;
+            }
+            String[] parts = relay.trim().split(";");
+            String address = parts[0].trim();
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0 || colon == address.length() - 1) {
+                // The definition may hold credentials, only the address is logged
+                logger.warnf("Ignoring SMTP relay without host:port: '%s'", address);
+                continue;
+            }
+
+            Map<String, String> settings = new HashMap<>();
+            settings.put("host", address.substring(0, colon));
+            settings.put("port", address.substring(colon + 1));
+            Set<String> domains = new HashSet<>();
+            int weight = 1;
+            // Name of the first invalid parameter, never its value
+            String invalid = null;
+            for (int i = 1; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+                if (eq <= 0) {
+                    invalid = "parameter " + i + " (not key=value)";
+                    break;
+                }
+                String key = parts[i].substring(0, eq).trim();
+                String value = parts[i].substring(eq + 1).trim();
+                if (key.equals("weight")) {
+                    try {
+                        weight = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        invalid = key;
+                        break;
+                    }
+                } else if (key.equals("domain")) {
+                    domains.add(value.toLowerCase(Locale.ROOT));
+                } else {
+                    settings.put(key, value);
+                }
+            }
+            if (invalid == null && weight < 1) {
+                invalid = "weight";
+            }
+            if (invalid != null) {
+                logger.warnf("Ignoring SMTP relay %s with an invalid %s", address, invalid);
+                continue;
+            }
+            if (settings.containsKey("user") && !settings.containsKey("auth")) {
+                settings.put("auth", "true");
+            }
+            parsed.add(new SmtpRelay(address, weight, Collections.unmodifiableSet(domains),
+                Collections.unmodifiableMap(settings), failureThreshold, openMillis));
+        }
+        return parsed;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWeight() {
+        return weight;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    EmailCodeCircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Whether the relay only takes mail for some recipient domains
+     */
+    boolean isDedicated() {
+        return !domains.isEmpty();
+    }
+
+    /**
+     * Whether the relay is dedicated to the domain (or a parent domain) of the recipient
+     */
+    boolean serves(String recipientDomain) {
+        for (String domain = recipientDomain; domain != null; ) {
+            if (domains.contains(domain)) {
+                return true;
+            }
+            int dot = domain.indexOf('.');
+            domain = dot < 0 ? null : domain.substring(dot + 1);
+        }
+        return false;
+    }
+
+    /**
+     * The realm's SMTP settings with this relay's overrides
+     */
+    Map<String, String> apply(Map<String, String> smtpConfig) {
+        Map<String, String> config = new HashMap<>(smtpConfig);
+        config.putAll(settings);
+        return config;
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void end() {
+        outstanding.decrementAndGet();
+    }
+}
@@ -0,0 +1,253 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import org.jboss.logging.Logger;
+import org.keycloak.common.enums.HostnameVerificationPolicy;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+import org.keycloak.vault.VaultStringSecret;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Connected, authenticated SMTP transports for one realm's SMTP settings
+ * Transports are handed out one sender at a time and kept open between sends.
+ * A transport that sat idle for a while is checked (NOOP) before reuse, one
+ * that sat idle longer than the idle timeout is closed by evictIdle(), and one
+ * that carried maxMessages messages is closed instead of being returned.
+ */
+class SmtpTransportPool {
+
+    private static final Logger logger = Logger.getLogger(SmtpTransportPool.class);
+
+    // Idle time after which a transport is checked before being reused
+    private static final long VALIDATE_AFTER_MILLIS = 5000;
+
+    private static final String SUPPORTED_SSL_PROTOCOLS = getSupportedSslProtocols();
+
+    private final String realmId;
+    private final Map<String, String> smtpConfig;
+    private final int maxMessages;
+    private final long idleMillis;
+    private final Semaphore permits;
+    private final Deque<PooledTransport> idle = new ArrayDeque<>();
+
+    private Session mailSession;
+    private boolean closed;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    SmtpTransportPool(String realmId, Map<String, String> smtpConfig, int maxConnections, int maxMessages, long idleMillis) {
+        this.realmId = realmId;
+        this.smtpConfig = smtpConfig;
+        this.maxMessages = maxMessages;
+        this.idleMillis = idleMillis;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    /**
+     * Take a connected transport, waiting while maxConnections are in use
+     * The transport must be handed back with release().
+     */
+    PooledTransport borrow(KeycloakSession session) throws MessagingException, InterruptedException {
+        permits.acquire();
+        try {
+            lastUsed = System.currentTimeMillis();
+            PooledTransport transport;
+            while ((transport = pollIdle()) != null) {
+                if (lastUsed - transport.lastUsed < VALIDATE_AFTER_MILLIS || transport.transport.isConnected()) {
+                    return transport;
+                }
+                logger.debugf("Discarding stale SMTP connection. realm=%s", realmId);
+                transport.close();
+            }
+            return connect(session);
+        } catch (MessagingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a transport back; a broken or used up one is closed
+     */
+    void release(PooledTransport transport, boolean healthy) {
+        try {
+            transport.lastUsed = System.currentTimeMillis();
+            if (healthy && transport.sent < maxMessages && offerIdle(transport)) {
+                return;
+            }
+            transport.close();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close the transports idle for longer than the idle timeout
+     */
+    void evictIdle(long now) {
+        synchronized (idle) {
+            for (Iterator<PooledTransport> it = idle.iterator(); it.hasNext(); ) {
+                PooledTransport transport = it.next();
+                if (now - transport.lastUsed >= idleMillis) {
+                    it.remove();
+                    transport.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the pool was not used for longer than the idle timeout
+     */
+    boolean isUnused(long now) {
+        return now - lastUsed >= idleMillis;
+    }
+
+    /**
+     * Close the idle transports; borrowed ones are closed when released
+     */
+    void close() {
+        synchronized (idle) {
+            closed = true;
+            idle.forEach(PooledTransport::close);
+            idle.clear();
+        }
+    }
+
+    private PooledTransport pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    private boolean offerIdle(PooledTransport transport) {
+        synchronized (idle) {
+            if (closed) {
+                return false;
+            }
+            // Most recently used first, so surplus connections age out
+            idle.offerFirst(transport);
+            return true;
+        }
+    }
+
+    private PooledTransport connect(KeycloakSession session) throws MessagingException {
+        Transport transport = getMailSession(session).getTransport("smtp");
+        if ("true".equals(smtpConfig.get("auth"))) {
+            try (VaultStringSecret vaultStringSecret = session.vault().getStringSecret(smtpConfig.get("password"))) {
+                transport.connect(smtpConfig.get("user"), vaultStringSecret.get().orElse(smtpConfig.get("password")));
+            }
+        } else {
+            transport.connect();
+        }
+        logger.debugf("Opened SMTP connection to %s. realm=%s", smtpConfig.get("host"), realmId);
+        return new PooledTransport(transport);
+    }
+
+    synchronized Session getMailSession(KeycloakSession session) {
+        if (mailSession == null) {
+            mailSession = Session.getInstance(createProperties(session));
+        }
+        return mailSession;
+    }
+
+    /**
+     * Same settings as Keycloak's default email sender
+     */
+    private Properties createProperties(KeycloakSession session) {
+        Properties props = new Properties();
+
+        if (smtpConfig.containsKey("host")) {
+            props.setProperty("mail.smtp.host", smtpConfig.get("host"));
+        }
+
+        boolean auth = "true".equals(smtpConfig.get("auth"));
+        boolean ssl = "true".equals(smtpConfig.get("ssl"));
+        boolean starttls = "true".equals(smtpConfig.get("starttls"));
+
+        if (smtpConfig.containsKey("port") && smtpConfig.get("port") != null) {
+            props.setProperty("mail.smtp.port", smtpConfig.get("port"));
+        }
+        if (auth) {
+            props.setProperty("mail.smtp.auth", "true");
+        }
+        if (ssl) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if (starttls) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if (ssl || starttls) {
+            if (SUPPORTED_SSL_PROTOCOLS != null) {
+                props.put("mail.smtp.ssl.protocols", SUPPORTED_SSL_PROTOCOLS);
+            }
+            setupTruststore(session, props);
+        }
+
+        props.setProperty("mail.smtp.timeout", "10000");
+        props.setProperty("mail.smtp.connectiontimeout", "10000");
+
+        String envelopeFrom = smtpConfig.get("envelopeFrom");
+        if (envelopeFrom != null && !envelopeFrom.isBlank()) {
+            props.setProperty("mail.smtp.from", envelopeFrom);
+        }
+        return props;
+    }
+
+    private static void setupTruststore(KeycloakSession session, Properties props) {
+        JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+        SSLSocketFactory factory = configurator.getSSLSocketFactory();
+        if (factory != null) {
+            props.put("mail.smtp.ssl.socketFactory", factory);
+            if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                props.setProperty("mail.smtp.ssl.trust", "*");
+                props.put("mail.smtp.ssl.checkserveridentity", Boolean.FALSE.toString());
+            } else {
+                props.put("mail.smtp.ssl.checkserveridentity", Boolean.TRUE.toString());
+            }
+        }
+    }
+
+    private static String getSupportedSslProtocols() {
+        try {
+            String[] protocols = SSLContext.getDefault().getSupportedSSLParameters().getProtocols();
+            return protocols != null ? String.join(" ", protocols) : null;
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Failed to get list of supported SSL protocols", e);
+            return null;
+        }
+    }
+
+    static class PooledTransport {
+        final Transport transport;
+        int sent;
+        long lastUsed = System.currentTimeMillis();
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug("Failed to close SMTP connection", e);
+            }
+        }
+    }
+}
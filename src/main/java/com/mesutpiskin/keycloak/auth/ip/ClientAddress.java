@@ -0,0 +1,35 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Client IP address resolved for a request, with the forwarding header it came from
+ */
+public class ClientAddress {
+
+    private final String ip;
+    private final String headerName;
+    private final String headerValue;
+
+    public ClientAddress(String ip, String headerName, String headerValue) {
+        this.ip = ip;
+        this.headerName = headerName;
+        this.headerValue = headerValue;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    /**
+     * Name of the forwarding header that was read, or null if none was used
+     */
+    public String getHeaderName() {
+        return headerName;
+    }
+
+    /**
+     * Raw value of the forwarding header that was read, or null if none was used
+     */
+    public String getHeaderValue() {
+        return headerValue;
+    }
+}
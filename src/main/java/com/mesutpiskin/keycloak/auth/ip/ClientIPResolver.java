@@ -0,0 +1,227 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakSession;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves the client IP address of a request behind reverse proxies
+ *
+ * The forwarding header is walked right-to-left, starting from the address of
+ * the direct peer: as long as the current address belongs to a trusted proxy, the
+ * next hop to the left is taken. The first untrusted address is the client. An
+ * address added by the client itself is always left of the first trusted proxy,
+ * so it can not be spoofed this way. Without trusted proxies configured, only the
+ * direct peer is trusted and the rightmost header entry is used.
+ *
+ * The RFC 7239 Forwarded header ("for=" parameters) is preferred over
+ * X-Forwarded-For when both are present. Scanning works on index ranges of the
+ * header value, so only the resolved address itself is allocated.
+ */
+public class ClientIPResolver {
+
+    private static final Logger logger = Logger.getLogger(ClientIPResolver.class);
+
+    public static final String HEADER_FORWARDED = "Forwarded";
+    public static final String HEADER_X_FORWARDED_FOR = "X-Forwarded-For";
+
+    public static final ClientIPResolver DIRECT = new ClientIPResolver(false);
+
+    // Session attribute holding the resolution of the current request
+    private static final String SESSION_ATTRIBUTE = ClientIPResolver.class.getName();
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final boolean useForwardedHeaders;
+    private final IPv4PrefixTrie trusted = new IPv4PrefixTrie();
+    private final IPv6PrefixTrie trusted6 = new IPv6PrefixTrie();
+
+    private ClientIPResolver(boolean useForwardedHeaders) {
+        this.useForwardedHeaders = useForwardedHeaders;
+    }
+
+    /**
+     * Compile a resolver
+     *
+     * @param useForwardedHeaders read Forwarded / X-Forwarded-For at all
+     * @param trustedProxies addresses or CIDR ranges of the proxies in front of Keycloak
+     */
+    public static ClientIPResolver compile(boolean useForwardedHeaders, List<String> trustedProxies) {
+        ClientIPResolver resolver = new ClientIPResolver(useForwardedHeaders);
+        for (String proxy : trustedProxies) {
+            IPPrefix prefix = IPPrefix.parse(proxy.trim());
+            if (prefix == null) {
+                logger.warnf("Ignoring invalid trusted proxy '%s'", proxy);
+                continue;
+            }
+            prefix.insert(resolver.trusted, resolver.trusted6, 0);
+        }
+        return resolver;
+    }
+
+    public static ClientIPResolver compile(boolean useForwardedHeaders) {
+        return compile(useForwardedHeaders, Collections.emptyList());
+    }
+
+    /**
+     * Resolve the client address of the current request
+     * The result is kept on the session, so further lookups with the same
+     * resolver during the request (decision, event, other authenticators) are free.
+     */
+    public ClientAddress resolve(KeycloakSession session) {
+        Resolution previous = session.getAttribute(SESSION_ATTRIBUTE, Resolution.class);
+        if (previous != null && previous.resolver == this) {
+            return previous.address;
+        }
+
+        String remoteAddr = session.getContext().getConnection().getRemoteAddr();
+        ClientAddress address;
+        if (useForwardedHeaders) {
+            HttpRequest request = session.getContext().getHttpRequest();
+            HttpHeaders headers = request.getHttpHeaders();
+            address = resolve(remoteAddr, headers.getHeaderString(HEADER_FORWARDED),
+                              headers.getHeaderString(HEADER_X_FORWARDED_FOR));
+        } else {
+            address = new ClientAddress(remoteAddr, null, null);
+        }
+
+        session.setAttribute(SESSION_ATTRIBUTE, new Resolution(this, address));
+        return address;
+    }
+
+    /**
+     * Resolve the client address from the peer address and the forwarding headers
+     */
+    public ClientAddress resolve(String remoteAddr, String forwarded, String xForwardedFor) {
+        if (useForwardedHeaders && forwarded != null && !forwarded.isEmpty()) {
+            return new ClientAddress(walk(remoteAddr, forwarded, true), HEADER_FORWARDED, forwarded);
+        }
+        if (useForwardedHeaders && xForwardedFor != null && !xForwardedFor.isEmpty()) {
+            return new ClientAddress(walk(remoteAddr, xForwardedFor, false), HEADER_X_FORWARDED_FOR, xForwardedFor);
+        }
+        return new ClientAddress(remoteAddr, null, null);
+    }
+
+    private String walk(String remoteAddr, String header, boolean rfc7239) {
+        // Without trusted proxies the direct peer is the only trusted hop
+        if (!trusted.isEmpty() || !trusted6.isEmpty()) {
+            if (remoteAddr == null || !isTrusted(remoteAddr, 0, remoteAddr.length())) {
+                return remoteAddr;
+            }
+        }
+
+        int end = header.length();
+        long last = -1;
+        while (end > 0) {
+            int start = header.lastIndexOf(',', end - 1) + 1;
+            long range = rfc7239 ? findForParameter(header, start, end) : stripAddress(header, trim(header, start, end));
+            if (range >= 0 && (int) (range >>> 32) < (int) range) {
+                int from = (int) (range >>> 32);
+                int to = (int) range;
+                if (!isTrusted(header, from, to)) {
+                    return header.substring(from, to);
+                }
+                last = range;
+            }
+            end = start - 1;
+        }
+
+        // Every hop is a trusted proxy, the leftmost one is as close to the client as we get
+        return last >= 0 ? header.substring((int) (last >>> 32), (int) last) : remoteAddr;
+    }
+
+    /**
+     * Find the address of the for= parameter of a Forwarded element
+     *
+     * @return the address range packed as (from << 32 | to), or -1 if the element has none
+     */
+    private static long findForParameter(String header, int start, int end) {
+        int i = start;
+        while (i < end) {
+            int pairEnd = indexOf(header, ';', i, end);
+            long pair = trim(header, i, pairEnd);
+            int from = (int) (pair >>> 32);
+            if ((int) pair - from > 4 && header.regionMatches(true, from, "for=", 0, 4)) {
+                return stripAddress(header, pair + (4L << 32));
+            }
+            i = pairEnd + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Strip quotes, IPv6 brackets and ports from a node value
+     *
+     * @param range the value range packed as (from << 32 | to)
+     */
+    private static long stripAddress(String header, long range) {
+        int from = (int) (range >>> 32);
+        int to = (int) range;
+        if (to - from >= 2 && header.charAt(from) == '"' && header.charAt(to - 1) == '"') {
+            from++;
+            to--;
+        }
+        if (from < to && header.charAt(from) == '[') {
+            int close = indexOf(header, ']', from, to);
+            return close < to ? ((long) (from + 1) << 32) | close : -1;
+        }
+        int colon = indexOf(header, ':', from, to);
+        if (colon < to && indexOf(header, ':', colon + 1, to) == to) {
+            // A single colon is an IPv4 address with a port
+            to = colon;
+        }
+        return ((long) from << 32) | to;
+    }
+
+    private static long trim(String header, int from, int to) {
+        while (from < to && isWhitespace(header.charAt(from))) {
+            from++;
+        }
+        while (to > from && isWhitespace(header.charAt(to - 1))) {
+            to--;
+        }
+        return ((long) from << 32) | to;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int indexOf(String s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private boolean isTrusted(CharSequence s, int from, int to) {
+        long ipv4 = IPLiteralParser.parseIPv4(s, from, to);
+        if (ipv4 != IPLiteralParser.INVALID) {
+            return trusted.firstMatch((int) ipv4) != IPv4PrefixTrie.NO_MATCH;
+        }
+        long[] ipv6 = SCRATCH.get();
+        if (!IPLiteralParser.parseIPv6(s, from, to, ipv6)) {
+            return false;
+        }
+        if (IPLiteralParser.isIPv4Mapped(ipv6[0], ipv6[1])) {
+            return trusted.firstMatch((int) ipv6[1]) != IPv4PrefixTrie.NO_MATCH;
+        }
+        return trusted6.firstMatch(ipv6[0], ipv6[1]) != IPv6PrefixTrie.NO_MATCH;
+    }
+
+    private static class Resolution {
+        private final ClientIPResolver resolver;
+        private final ClientAddress address;
+
+        Resolution(ClientIPResolver resolver, ClientAddress address) {
+            this.resolver = resolver;
+            this.address = address;
+        }
+    }
+}
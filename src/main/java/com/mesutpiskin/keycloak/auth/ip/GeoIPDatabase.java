@@ -0,0 +1,512 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Read-only view of a MaxMind DB (.mmdb) file, such as GeoLite2-Country or GeoLite2-ASN
+ *
+ * The file is memory-mapped and read in place: the search tree is walked bit by bit
+ * and only the two fields used by rules are decoded from the data section, the
+ * country ISO code (country.iso_code, falling back to registered_country.iso_code)
+ * and the autonomous_system_number. Many networks share a data record, so decoded
+ * fields are kept in a small direct-mapped cache keyed by record offset. A lookup
+ * allocates nothing.
+ *
+ * Country codes are returned packed as two ASCII characters (see packCountry),
+ * 0 meaning unknown; ASNs are returned as unsigned values, 0 meaning unknown.
+ */
+public class GeoIPDatabase implements MappedFileRegistry.MappedFile {
+
+    private static final byte[] METADATA_MARKER = {
+        (byte) 0xab, (byte) 0xcd, (byte) 0xef,
+        'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'
+    };
+    private static final int METADATA_MAX_SIZE = 128 * 1024;
+    private static final int DATA_SECTION_SEPARATOR = 16;
+
+    private static final int TYPE_EXTENDED = 0;
+    private static final int TYPE_POINTER = 1;
+    private static final int TYPE_UTF8 = 2;
+    private static final int TYPE_MAP = 7;
+    private static final int TYPE_ARRAY = 11;
+    private static final int TYPE_BOOLEAN = 14;
+
+    private static final byte[] KEY_COUNTRY = ascii("country");
+    private static final byte[] KEY_REGISTERED_COUNTRY = ascii("registered_country");
+    private static final byte[] KEY_ISO_CODE = ascii("iso_code");
+    private static final byte[] KEY_ASN = ascii("autonomous_system_number");
+    private static final byte[] KEY_NODE_COUNT = ascii("node_count");
+    private static final byte[] KEY_RECORD_SIZE = ascii("record_size");
+    private static final byte[] KEY_IP_VERSION = ascii("ip_version");
+    private static final byte[] KEY_DATABASE_TYPE = ascii("database_type");
+
+    private static final int CACHE_SIZE = 1024;
+    private static final int NOT_FOUND = -1;
+
+    // Decoder output: type and size of the value last read by control()
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[2]);
+
+    static final GeoIPDatabase EMPTY = new GeoIPDatabase();
+
+    private final Path source;
+    private final ByteBuffer buffer;
+    private final long lastModified;
+    private final long fileSize;
+    private final String databaseType;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int ipVersion;
+    private final int searchTreeSize;
+    private final int ipv4Start;
+
+    // Written only while loading, metadata pointers are relative to the metadata section
+    private int pointerBase;
+
+    // Entries are (record offset + 1) << 32 | value, 0 is an empty slot
+    private final AtomicLongArray countryCache = new AtomicLongArray(CACHE_SIZE);
+    private final AtomicLongArray asnCache = new AtomicLongArray(CACHE_SIZE);
+
+    private GeoIPDatabase() {
+        this.source = null;
+        this.buffer = ByteBuffer.allocate(0);
+        this.lastModified = 0;
+        this.fileSize = 0;
+        this.databaseType = "";
+        this.nodeCount = 0;
+        this.recordSize = 24;
+        this.ipVersion = 4;
+        this.searchTreeSize = 0;
+        this.ipv4Start = 0;
+    }
+
+    private GeoIPDatabase(Path source, MappedByteBuffer buffer, long lastModified, long fileSize) throws IOException {
+        this.source = source;
+        this.buffer = buffer;
+        this.lastModified = lastModified;
+        this.fileSize = fileSize;
+
+        int metadataStart = findMetadata(buffer);
+        if (metadataStart < 0) {
+            throw new IOException("Not a MaxMind DB file (metadata not found): " + source);
+        }
+        pointerBase = metadataStart;
+        int[] scratch = new int[2];
+        nodeCount = (int) readUnsignedField(metadataStart, KEY_NODE_COUNT, scratch);
+        recordSize = (int) readUnsignedField(metadataStart, KEY_RECORD_SIZE, scratch);
+        ipVersion = (int) readUnsignedField(metadataStart, KEY_IP_VERSION, scratch);
+        databaseType = readStringField(metadataStart, KEY_DATABASE_TYPE, scratch);
+
+        if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+            throw new IOException("Unsupported MaxMind DB record size " + recordSize + ": " + source);
+        }
+        if (ipVersion != 4 && ipVersion != 6) {
+            throw new IOException("Unsupported MaxMind DB IP version " + ipVersion + ": " + source);
+        }
+        long treeSize = (long) nodeCount * recordSize / 4;
+        if (nodeCount <= 0 || treeSize + DATA_SECTION_SEPARATOR > metadataStart) {
+            throw new IOException("MaxMind DB search tree does not fit the file: " + source);
+        }
+        searchTreeSize = (int) treeSize;
+        pointerBase = searchTreeSize + DATA_SECTION_SEPARATOR;
+
+        // IPv4 addresses live under ::/96 of an IPv6 tree
+        int node = 0;
+        if (ipVersion == 6) {
+            for (int i = 0; i < 96 && node < nodeCount; i++) {
+                node = readRecord(node, 0);
+            }
+        }
+        ipv4Start = node;
+    }
+
+    /**
+     * Map a MaxMind DB file
+     */
+    public static GeoIPDatabase load(Path file) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("MaxMind DB file is too large: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new GeoIPDatabase(file, buffer, lastModified, size);
+        }
+    }
+
+    /**
+     * Country of an address
+     *
+     * @param ipv4 true for an IPv4 address held in the low 32 bits of low
+     * @return the ISO code packed with packCountry, or 0 if unknown
+     */
+    public int country(boolean ipv4, long high, long low) {
+        int record = findRecord(ipv4, high, low);
+        if (record < 0) {
+            return 0;
+        }
+        long cached = cacheGet(countryCache, record);
+        if (cached >= 0) {
+            return (int) cached;
+        }
+        int country;
+        try {
+            country = decodeCountry(record);
+        } catch (IndexOutOfBoundsException e) {
+            // Corrupt record, treat as unknown
+            country = 0;
+        }
+        cachePut(countryCache, record, country);
+        return country;
+    }
+
+    /**
+     * Autonomous system number of an address
+     *
+     * @return the ASN, or 0 if unknown
+     */
+    public long asn(boolean ipv4, long high, long low) {
+        int record = findRecord(ipv4, high, low);
+        if (record < 0) {
+            return 0;
+        }
+        long cached = cacheGet(asnCache, record);
+        if (cached >= 0) {
+            return cached;
+        }
+        long asn;
+        try {
+            int[] scratch = SCRATCH.get();
+            int field = findField(record, KEY_ASN, scratch);
+            asn = field < 0 ? 0 : readUnsigned(field, scratch) & 0xffffffffL;
+        } catch (IndexOutOfBoundsException e) {
+            asn = 0;
+        }
+        cachePut(asnCache, record, asn);
+        return asn;
+    }
+
+    /**
+     * Pack a two-letter country code, case-insensitively
+     *
+     * @return the packed code, or 0 if the value is not two ASCII letters
+     */
+    public static int packCountry(String code) {
+        if (code == null || code.length() != 2) {
+            return 0;
+        }
+        char first = Character.toUpperCase(code.charAt(0));
+        char second = Character.toUpperCase(code.charAt(1));
+        if (first < 'A' || first > 'Z' || second < 'A' || second > 'Z') {
+            return 0;
+        }
+        return first << 8 | second;
+    }
+
+    private int decodeCountry(int record) {
+        int[] scratch = SCRATCH.get();
+        int field = findField(record, KEY_COUNTRY, scratch);
+        int country = field < 0 ? 0 : readCountry(field, scratch);
+        if (country == 0) {
+            field = findField(record, KEY_REGISTERED_COUNTRY, scratch);
+            country = field < 0 ? 0 : readCountry(field, scratch);
+        }
+        return country;
+    }
+
+    private int readCountry(int position, int[] scratch) {
+        int payload = resolve(position, scratch);
+        if (scratch[0] == TYPE_MAP) {
+            int isoCode = findField(position, KEY_ISO_CODE, scratch);
+            if (isoCode < 0) {
+                return 0;
+            }
+            payload = resolve(isoCode, scratch);
+        }
+        if (scratch[0] != TYPE_UTF8 || scratch[1] != 2) {
+            return 0;
+        }
+        int first = Character.toUpperCase(buffer.get(payload) & 0xff);
+        int second = Character.toUpperCase(buffer.get(payload + 1) & 0xff);
+        return first << 8 | second;
+    }
+
+    // -- Search tree
+
+    /**
+     * @return the absolute offset of the data record of an address, or -1 if not in the database
+     */
+    private int findRecord(boolean ipv4, long high, long low) {
+        if (nodeCount == 0 || (!ipv4 && ipVersion == 4)) {
+            return NOT_FOUND;
+        }
+        int node = ipv4 ? ipv4Start : 0;
+        int bits = ipv4 ? 32 : 128;
+        for (int i = 0; i < bits && node < nodeCount; i++) {
+            int bit;
+            if (ipv4) {
+                bit = (int) (low >>> (31 - i)) & 1;
+            } else if (i < 64) {
+                bit = (int) (high >>> (63 - i)) & 1;
+            } else {
+                bit = (int) (low >>> (127 - i)) & 1;
+            }
+            node = readRecord(node, bit);
+        }
+        if (node <= nodeCount) {
+            return NOT_FOUND;
+        }
+        long offset = (long) node - nodeCount + searchTreeSize;
+        return offset < buffer.limit() ? (int) offset : NOT_FOUND;
+    }
+
+    private int readRecord(int node, int bit) {
+        long record;
+        switch (recordSize) {
+            case 24: {
+                int base = node * 6 + bit * 3;
+                record = readUnsigned(base, 3);
+                break;
+            }
+            case 28: {
+                int base = node * 7;
+                int middle = buffer.get(base + 3) & 0xff;
+                record = bit == 0
+                    ? (long) (middle & 0xf0) << 20 | readUnsigned(base, 3)
+                    : (long) (middle & 0x0f) << 24 | readUnsigned(base + 4, 3);
+                break;
+            }
+            default:
+                record = readUnsigned(node * 8 + bit * 4, 4);
+        }
+        // Pointers past the end of the file are treated as "not found"
+        return record > Integer.MAX_VALUE ? nodeCount : (int) record;
+    }
+
+    // -- Data section decoding
+
+    /**
+     * Read the control byte(s) of the value at position, without following pointers
+     * scratch[0] receives the type and scratch[1] the size, or the target for a pointer.
+     *
+     * @return the position of the payload
+     */
+    private int control(int position, int[] scratch) {
+        int control = buffer.get(position++) & 0xff;
+        int type = control >>> 5;
+        if (type == TYPE_POINTER) {
+            int value = control & 0x07;
+            int pointer;
+            switch ((control >>> 3) & 0x03) {
+                case 0:
+                    pointer = value << 8 | (buffer.get(position) & 0xff);
+                    position += 1;
+                    break;
+                case 1:
+                    pointer = (value << 16 | (int) readUnsigned(position, 2)) + 2048;
+                    position += 2;
+                    break;
+                case 2:
+                    pointer = (value << 24 | (int) readUnsigned(position, 3)) + 526336;
+                    position += 3;
+                    break;
+                default:
+                    pointer = (int) readUnsigned(position, 4);
+                    position += 4;
+            }
+            scratch[0] = TYPE_POINTER;
+            scratch[1] = pointerBase + pointer;
+            return position;
+        }
+        if (type == TYPE_EXTENDED) {
+            type = 7 + (buffer.get(position++) & 0xff);
+        }
+        int size = control & 0x1f;
+        if (size == 29) {
+            size = 29 + (buffer.get(position) & 0xff);
+            position += 1;
+        } else if (size == 30) {
+            size = 285 + (int) readUnsigned(position, 2);
+            position += 2;
+        } else if (size == 31) {
+            size = 65821 + (int) readUnsigned(position, 3);
+            position += 3;
+        }
+        scratch[0] = type;
+        scratch[1] = size;
+        return position;
+    }
+
+    /**
+     * Read the control byte(s) of the value at position, following a pointer
+     */
+    private int resolve(int position, int[] scratch) {
+        int payload = control(position, scratch);
+        return scratch[0] == TYPE_POINTER ? control(scratch[1], scratch) : payload;
+    }
+
+    /**
+     * @return the position just after the value at position
+     */
+    private int skip(int position, int[] scratch) {
+        int payload = control(position, scratch);
+        int type = scratch[0];
+        int size = scratch[1];
+        switch (type) {
+            case TYPE_POINTER:
+            case TYPE_BOOLEAN:
+                return payload;
+            case TYPE_MAP:
+                for (int i = 0; i < size * 2; i++) {
+                    payload = skip(payload, scratch);
+                }
+                return payload;
+            case TYPE_ARRAY:
+                for (int i = 0; i < size; i++) {
+                    payload = skip(payload, scratch);
+                }
+                return payload;
+            default:
+                return payload + size;
+        }
+    }
+
+    /**
+     * Find a key in the map at position
+     *
+     * @return the position of its value (possibly a pointer), or -1 if absent
+     */
+    private int findField(int position, byte[] key, int[] scratch) {
+        int entry = resolve(position, scratch);
+        if (scratch[0] != TYPE_MAP) {
+            return NOT_FOUND;
+        }
+        int entries = scratch[1];
+        for (int i = 0; i < entries; i++) {
+            int keyPayload = resolve(entry, scratch);
+            boolean matches = scratch[0] == TYPE_UTF8 && equalsKey(keyPayload, scratch[1], key);
+            int value = skip(entry, scratch);
+            if (matches) {
+                return value;
+            }
+            entry = skip(value, scratch);
+        }
+        return NOT_FOUND;
+    }
+
+    private boolean equalsKey(int position, int size, byte[] key) {
+        if (size != key.length) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (buffer.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the unsigned integer at position (uint16, uint32 or uint64 up to 63 bits)
+     */
+    private long readUnsigned(int position, int[] scratch) {
+        int payload = resolve(position, scratch);
+        int size = scratch[1];
+        return size > 8 || scratch[0] == TYPE_MAP || scratch[0] == TYPE_ARRAY ? 0 : readUnsigned(payload, size);
+    }
+
+    private long readUnsigned(int position, int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | (buffer.get(position + i) & 0xff);
+        }
+        return value;
+    }
+
+    private long readUnsignedField(int map, byte[] key, int[] scratch) throws IOException {
+        int field = findField(map, key, scratch);
+        if (field < 0) {
+            throw new IOException("MaxMind DB metadata has no " + new String(key, StandardCharsets.US_ASCII) + ": " + source);
+        }
+        return readUnsigned(field, scratch);
+    }
+
+    private String readStringField(int map, byte[] key, int[] scratch) {
+        int field = findField(map, key, scratch);
+        if (field < 0) {
+            return "";
+        }
+        int payload = resolve(field, scratch);
+        if (scratch[0] != TYPE_UTF8) {
+            return "";
+        }
+        byte[] value = new byte[scratch[1]];
+        buffer.get(payload, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static int findMetadata(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int lowest = Math.max(0, limit - METADATA_MAX_SIZE);
+        for (int start = limit - METADATA_MARKER.length; start >= lowest; start--) {
+            int i = 0;
+            while (i < METADATA_MARKER.length && buffer.get(start + i) == METADATA_MARKER[i]) {
+                i++;
+            }
+            if (i == METADATA_MARKER.length) {
+                return start + METADATA_MARKER.length;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    // -- Decoded field cache
+
+    private static long cacheGet(AtomicLongArray cache, int record) {
+        long entry = cache.getAcquire(slot(record));
+        return (int) (entry >>> 32) == record + 1 ? entry & 0xffffffffL : -1;
+    }
+
+    private static void cachePut(AtomicLongArray cache, int record, long value) {
+        cache.setRelease(slot(record), (long) (record + 1) << 32 | (value & 0xffffffffL));
+    }
+
+    private static int slot(int record) {
+        int hash = record * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public String getDatabaseType() {
+        return databaseType;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+}
@@ -0,0 +1,20 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Shared registry of GeoIP databases
+ * Each database is mapped once and reloaded in the background when it changes,
+ * see MappedFileRegistry.
+ */
+public class GeoIPDatabaseRegistry extends MappedFileRegistry<GeoIPDatabase> {
+
+    private static final GeoIPDatabaseRegistry INSTANCE = new GeoIPDatabaseRegistry();
+
+    private GeoIPDatabaseRegistry() {
+        super("GeoIP database", "geoip-database-watcher", GeoIPDatabase.EMPTY, GeoIPDatabase::load,
+            database -> "(" + database.getDatabaseType() + ", " + database.getNodeCount() + " nodes)");
+    }
+
+    public static GeoIPDatabaseRegistry getInstance() {
+        return INSTANCE;
+    }
+}
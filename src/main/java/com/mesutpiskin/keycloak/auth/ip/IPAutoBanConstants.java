@@ -0,0 +1,34 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+public class IPAutoBanConstants {
+    // Provider (SPI) configuration keys
+    public static final String FAILURE_THRESHOLD = "failure-threshold";
+    public static final String FAILURE_WINDOW = "failure-window";
+    public static final String BAN_DURATION = "ban-duration";
+    public static final String COUNTED_ERRORS = "counted-errors";
+    public static final String BAN_CHECK_INTERVAL = "ban-check-interval";
+
+    // Default values
+    public static final int DEFAULT_FAILURE_THRESHOLD = 20;
+    public static final int DEFAULT_FAILURE_WINDOW = 300;
+    public static final int DEFAULT_BAN_DURATION = 900;
+    public static final String[] DEFAULT_COUNTED_ERRORS = {"invalid_user_credentials", "user_not_found"};
+    public static final int DEFAULT_BAN_CHECK_INTERVAL = 10;
+
+    // Number of buckets the sliding failure window is divided into
+    public static final int WINDOW_BUCKETS = 10;
+
+    // Prefix of the keys kept in the single-use object store
+    public static final String KEY_PREFIX = "ip-auto-ban:";
+
+    // Notes of a ban entry
+    public static final String NOTE_BANNED_UNTIL = "banned_until";
+    public static final String NOTE_FAILURES = "failures";
+
+    // Auth note with the IP restriction config whose resolver gives the client IP of a login
+    public static final String NOTE_CLIENT_IP_CONFIG = "ip_auto_ban_client_ip_config";
+
+    // Error reasons
+    public static final String RESTRICTION_REASON_BANNED = "IP Restriction: IP address is temporarily banned after repeated login failures";
+    public static final String RULE_BANNED = "auto-ban";
+}
@@ -0,0 +1,90 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Counts failed logins per source IP and bans IPs that fail too often
+ * The IP is the client IP as the IP restriction of the flow resolves it, the one bans
+ * are checked against. Without an IP restriction in the flow it is the address Keycloak
+ * records in the event, so Keycloak must then be started with the proxy-headers option
+ * when it runs behind a reverse proxy.
+ */
+public class IPAutoBanEventListenerProvider implements EventListenerProvider {
+
+    private final KeycloakSession session;
+    private final Set<String> countedErrors;
+
+    public IPAutoBanEventListenerProvider(KeycloakSession session, Set<String> countedErrors) {
+        this.session = session;
+        this.countedErrors = countedErrors;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getType() != EventType.LOGIN_ERROR || !countedErrors.contains(event.getError())) {
+            return;
+        }
+        String clientIP = clientIP(event);
+        if (clientIP != null) {
+            IPBanRegistry.getInstance().recordFailure(session, event.getRealmId(), clientIP);
+        }
+    }
+
+    /**
+     * The client IP recorded by the IP restriction in this request, or resolved again
+     * with its configuration on the later requests of the login
+     */
+    private String clientIP(Event event) {
+        Map<String, String> details = event.getDetails() == null ? Map.of() : event.getDetails();
+        String clientIP = details.get(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP);
+        if (clientIP != null) {
+            return clientIP;
+        }
+
+        String rootSessionId = details.get(Details.CODE_ID);
+        RealmModel realm = rootSessionId == null ? null : session.realms().getRealm(event.getRealmId());
+        RootAuthenticationSessionModel rootSession = realm == null ? null
+            : session.authenticationSessions().getRootAuthenticationSession(realm, rootSessionId);
+        String configId = rootSession == null ? null : rootSession.getAuthenticationSessions().values().stream()
+            .map(authSession -> authSession.getAuthNote(IPAutoBanConstants.NOTE_CLIENT_IP_CONFIG))
+            .filter(Objects::nonNull)
+            .findFirst()
+            .orElse(null);
+        AuthenticatorConfigModel config = configId == null ? null : realm.getAuthenticatorConfigById(configId);
+        if (config != null) {
+            AuthenticatorFactory factory = (AuthenticatorFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(Authenticator.class, IPRestrictionAuthenticatorFactory.PROVIDER_ID);
+            IPRestrictionConfig ipConfig = ((IPRestrictionAuthenticator) factory.create(session))
+                .getConfigRegistry().get(realm, config);
+            clientIP = ipConfig.getClientIPResolver().resolve(session).getIp();
+            if (clientIP != null && !clientIP.isEmpty()) {
+                return clientIP;
+            }
+        }
+        return event.getIpAddress();
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        // Admin events are not counted
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
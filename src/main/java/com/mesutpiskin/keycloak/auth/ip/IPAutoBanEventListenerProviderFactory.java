@@ -0,0 +1,55 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class IPAutoBanEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "ip-auto-ban";
+
+    private Set<String> countedErrors = Set.of(IPAutoBanConstants.DEFAULT_COUNTED_ERRORS);
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new IPAutoBanEventListenerProvider(session, countedErrors);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        IPBanRegistry.getInstance().configure(
+            config.getInt(IPAutoBanConstants.FAILURE_THRESHOLD, IPAutoBanConstants.DEFAULT_FAILURE_THRESHOLD),
+            config.getInt(IPAutoBanConstants.FAILURE_WINDOW, IPAutoBanConstants.DEFAULT_FAILURE_WINDOW),
+            config.getInt(IPAutoBanConstants.BAN_DURATION, IPAutoBanConstants.DEFAULT_BAN_DURATION),
+            config.getInt(IPAutoBanConstants.BAN_CHECK_INTERVAL, IPAutoBanConstants.DEFAULT_BAN_CHECK_INTERVAL));
+
+        String[] errors = config.getArray(IPAutoBanConstants.COUNTED_ERRORS);
+        if (errors != null && errors.length > 0) {
+            countedErrors = Arrays.stream(errors)
+                .map(String::trim)
+                .filter(error -> !error.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        }
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,193 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cluster-wide automatic IP bans
+ *
+ * Failures and bans are kept in Keycloak's single-use object store, which is backed
+ * by a clustered Infinispan cache (or an embedded local cache on a single node), so
+ * every node counts the failures of all nodes and sees the bans of all nodes.
+ *
+ * Failures are counted per realm and IP in a sliding window split into buckets.
+ * Each failure claims the next free ticket of the current bucket with an atomic
+ * putIfAbsent, so the ticket number is the cluster-wide count of the bucket. Counts
+ * of older buckets are those this node last saw, which can only underestimate.
+ *
+ * Bans are looked up once per IP and check interval and remembered on the node,
+ * so the check on the login path is a local hash lookup.
+ */
+public class IPBanRegistry {
+
+    private static final Logger logger = Logger.getLogger(IPBanRegistry.class);
+
+    private static final IPBanRegistry INSTANCE = new IPBanRegistry();
+
+    // Local state is dropped once this many IPs are tracked, the store stays authoritative
+    private static final int MAX_TRACKED = 100_000;
+
+    private final ConcurrentMap<String, FailureWindow> windows = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> checks = new ConcurrentHashMap<>();
+
+    private volatile int failureThreshold = IPAutoBanConstants.DEFAULT_FAILURE_THRESHOLD;
+    private volatile long bucketMillis = IPAutoBanConstants.DEFAULT_FAILURE_WINDOW * 1000L / IPAutoBanConstants.WINDOW_BUCKETS;
+    private volatile int banDurationSeconds = IPAutoBanConstants.DEFAULT_BAN_DURATION;
+    private volatile long checkIntervalMillis = IPAutoBanConstants.DEFAULT_BAN_CHECK_INTERVAL * 1000L;
+
+    public static IPBanRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    public void configure(int failureThreshold, int failureWindowSeconds, int banDurationSeconds, int checkIntervalSeconds) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.bucketMillis = Math.max(1000L, Math.max(1, failureWindowSeconds) * 1000L / IPAutoBanConstants.WINDOW_BUCKETS);
+        this.banDurationSeconds = Math.max(1, banDurationSeconds);
+        this.checkIntervalMillis = Math.max(0, checkIntervalSeconds) * 1000L;
+        windows.clear();
+        checks.clear();
+    }
+
+    /**
+     * Count a failed login and ban the IP when the threshold is reached
+     *
+     * @return true if this failure caused a ban
+     */
+    public boolean recordFailure(KeycloakSession session, String realmId, String ip) {
+        String key = realmId + ":" + ip;
+        long now = System.currentTimeMillis();
+        Long known = checks.get(key);
+        if (known != null && now < known) {
+            // Already banned, failures during the ban are not counted
+            return false;
+        }
+        long bucket = now / bucketMillis;
+        int threshold = failureThreshold;
+        SingleUseObjectProvider store = session.singleUseObjects();
+        long ticketLifespan = bucketMillis * (IPAutoBanConstants.WINDOW_BUCKETS + 1) / 1000;
+
+        if (windows.size() >= MAX_TRACKED) {
+            prune(bucket);
+        }
+        FailureWindow window = windows.computeIfAbsent(key, k -> new FailureWindow());
+        int failures;
+        synchronized (window) {
+            int ticket = window.count(bucket) + 1;
+            // Tickets taken by other nodes since we last looked are skipped; past the
+            // threshold the exact count no longer matters
+            while (ticket <= threshold
+                && !store.putIfAbsent(IPAutoBanConstants.KEY_PREFIX + key + ":" + bucket + ":" + ticket, ticketLifespan)) {
+                ticket++;
+            }
+            window.set(bucket, Math.min(ticket, threshold));
+            failures = window.total(bucket);
+        }
+
+        if (failures < threshold || isBanned(session, realmId, ip)) {
+            return false;
+        }
+
+        long bannedUntil = now + banDurationSeconds * 1000L;
+        Map<String, String> notes = new HashMap<>();
+        notes.put(IPAutoBanConstants.NOTE_BANNED_UNTIL, Long.toString(bannedUntil));
+        notes.put(IPAutoBanConstants.NOTE_FAILURES, Integer.toString(failures));
+        store.put(banKey(realmId, ip), banDurationSeconds, notes);
+        checks.put(key, bannedUntil);
+        logger.warnf("Banned IP %s in realm %s for %d seconds after %d failed logins",
+            ip, realmId, banDurationSeconds, failures);
+        return true;
+    }
+
+    /**
+     * Check whether an IP is banned, asking the store at most once per check interval
+     */
+    public boolean isBanned(KeycloakSession session, String realmId, String ip) {
+        String key = realmId + ":" + ip;
+        long now = System.currentTimeMillis();
+        // Positive values are the end of a ban, negative values the time of the next check
+        Long known = checks.get(key);
+        if (known != null) {
+            if (known > 0 && now < known) {
+                return true;
+            }
+            if (known < 0 && now < -known) {
+                return false;
+            }
+        }
+
+        Map<String, String> ban = session.singleUseObjects().get(banKey(realmId, ip));
+        long bannedUntil = ban == null ? 0 : parseLong(ban.get(IPAutoBanConstants.NOTE_BANNED_UNTIL));
+        if (checks.size() >= MAX_TRACKED) {
+            checks.clear();
+        }
+        if (bannedUntil > now) {
+            checks.put(key, bannedUntil);
+            return true;
+        }
+        checks.put(key, -(now + checkIntervalMillis));
+        return false;
+    }
+
+    private void prune(long bucket) {
+        for (Iterator<FailureWindow> it = windows.values().iterator(); it.hasNext(); ) {
+            FailureWindow window = it.next();
+            synchronized (window) {
+                if (window.total(bucket) == 0) {
+                    it.remove();
+                }
+            }
+        }
+        if (windows.size() >= MAX_TRACKED) {
+            logger.warnf("Tracking failed logins of more than %d IP addresses, resetting local counts", MAX_TRACKED);
+            windows.clear();
+        }
+    }
+
+    private static String banKey(String realmId, String ip) {
+        return IPAutoBanConstants.KEY_PREFIX + "ban:" + realmId + ":" + ip;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Last known cluster-wide failure count per bucket, as a ring of WINDOW_BUCKETS entries
+     */
+    private static class FailureWindow {
+        private final long[] buckets = new long[IPAutoBanConstants.WINDOW_BUCKETS];
+        private final int[] counts = new int[IPAutoBanConstants.WINDOW_BUCKETS];
+
+        int count(long bucket) {
+            int slot = (int) (bucket % buckets.length);
+            return buckets[slot] == bucket ? counts[slot] : 0;
+        }
+
+        void set(long bucket, int count) {
+            int slot = (int) (bucket % buckets.length);
+            buckets[slot] = bucket;
+            counts[slot] = count;
+        }
+
+        int total(long bucket) {
+            int total = 0;
+            for (int slot = 0; slot < buckets.length; slot++) {
+                if (bucket - buckets[slot] < buckets.length) {
+                    total += counts[slot];
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Result of checking a client IP against a rule set
+ */
+public class IPCheckResult {
+
+    static final IPCheckResult NOT_ALLOWED = new IPCheckResult(false, false, "none",
+        IPRestrictionConstants.RESTRICTION_REASON_NOT_ALLOWED);
+    static final IPCheckResult DEFAULT_ALLOWED = new IPCheckResult(true, false, "default", "No restrictions");
+
+    private final boolean allowed;
+    private final boolean explicitDeny;
+    private final String matchedRule;
+    private final String reason;
+    private final int ruleIndex;
+
+    public IPCheckResult(boolean allowed, boolean explicitDeny, String matchedRule, String reason) {
+        this(allowed, explicitDeny, matchedRule, reason, -1);
+    }
+
+    public IPCheckResult(boolean allowed, boolean explicitDeny, String matchedRule, String reason, int ruleIndex) {
+        this.allowed = allowed;
+        this.explicitDeny = explicitDeny;
+        this.matchedRule = matchedRule;
+        this.reason = reason;
+        this.ruleIndex = ruleIndex;
+    }
+
+    public boolean isAllowed() {
+        return allowed;
+    }
+
+    public boolean isExplicitDeny() {
+        return explicitDeny;
+    }
+
+    public String getMatchedRule() {
+        return matchedRule;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Position of the matched rule in the compiled rule list, or -1 if it is not an
+     * inline rule (feeds, stored rules, default decisions)
+     */
+    public int getRuleIndex() {
+        return ruleIndex;
+    }
+}
@@ -0,0 +1,140 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of IP rule decisions
+ * Set-associative: an address hashes to a set of WAYS slots and, when the set is
+ * full, replaces its least recently used (or an expired) entry, which approximates
+ * LRU without a shared list or lock. Entries are immutable apart from their access
+ * time, so slots can be read and replaced concurrently without synchronization.
+ *
+ * Entries are keyed by the normalized address and the versions of the feeds and
+ * stored rules the decision was made with, so a reloaded feed or changed stored
+ * rule set is never answered from the cache. The inline rules are covered by the
+ * cache belonging to the compiled rule set: a configuration change compiles a new
+ * rule set with an empty cache.
+ */
+class IPDecisionCache {
+
+    private static final int WAYS = 4;
+
+    private static volatile int defaultSize = IPRestrictionConstants.DEFAULT_DECISION_CACHE_SIZE;
+    private static volatile long defaultTtlSeconds = IPRestrictionConstants.DEFAULT_DECISION_CACHE_TTL;
+
+    private final Entry[] entries;
+    private final int setMask;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    IPDecisionCache(int size, long ttlSeconds) {
+        int sets = Integer.highestOneBit(Math.max(1, (size + WAYS - 1) / WAYS));
+        if (sets * WAYS < size) {
+            sets <<= 1;
+        }
+        this.entries = new Entry[sets * WAYS];
+        this.setMask = sets - 1;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Create a cache with the configured default size and TTL
+     *
+     * @return the cache, or null if caching is disabled
+     */
+    static IPDecisionCache createDefault() {
+        int size = defaultSize;
+        long ttl = defaultTtlSeconds;
+        return size > 0 && ttl > 0 ? new IPDecisionCache(size, ttl) : null;
+    }
+
+    /**
+     * Set the size and TTL used for rule sets compiled from now on
+     */
+    static void configure(int size, long ttlSeconds) {
+        defaultSize = size;
+        defaultTtlSeconds = ttlSeconds;
+    }
+
+    IPCheckResult get(boolean ipv4, long high, long low, long feedVersion, long storedVersion) {
+        int first = (hash(high, low) & setMask) * WAYS;
+        long now = System.nanoTime();
+        for (int i = first; i < first + WAYS; i++) {
+            Entry entry = entries[i];
+            if (entry != null && entry.matches(ipv4, high, low, feedVersion, storedVersion)
+                && now - entry.created < ttlNanos) {
+                entry.lastUsed = now;
+                hits.increment();
+                return entry.result;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(boolean ipv4, long high, long low, long feedVersion, long storedVersion, IPCheckResult result) {
+        int first = (hash(high, low) & setMask) * WAYS;
+        long now = System.nanoTime();
+        int victim = first;
+        long oldestAge = -1;
+        for (int i = first; i < first + WAYS; i++) {
+            Entry entry = entries[i];
+            if (entry == null || now - entry.created >= ttlNanos
+                || entry.matches(ipv4, high, low, feedVersion, storedVersion)) {
+                victim = i;
+                break;
+            }
+            long age = now - entry.lastUsed;
+            if (age > oldestAge) {
+                oldestAge = age;
+                victim = i;
+            }
+        }
+        entries[victim] = new Entry(ipv4, high, low, feedVersion, storedVersion, result, now);
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static class Entry {
+        private final boolean ipv4;
+        private final long high;
+        private final long low;
+        private final long feedVersion;
+        private final long storedVersion;
+        private final IPCheckResult result;
+        private final long created;
+        private volatile long lastUsed;
+
+        Entry(boolean ipv4, long high, long low, long feedVersion, long storedVersion, IPCheckResult result, long created) {
+            this.ipv4 = ipv4;
+            this.high = high;
+            this.low = low;
+            this.feedVersion = feedVersion;
+            this.storedVersion = storedVersion;
+            this.result = result;
+            this.created = created;
+            this.lastUsed = created;
+        }
+
+        boolean matches(boolean ipv4, long high, long low, long feedVersion, long storedVersion) {
+            return this.low == low && this.high == high && this.ipv4 == ipv4
+                && this.feedVersion == feedVersion && this.storedVersion == storedVersion;
+        }
+    }
+}
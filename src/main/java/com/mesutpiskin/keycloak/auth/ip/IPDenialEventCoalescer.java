@@ -0,0 +1,197 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits denial events to one per client IP and rule within a window
+ * The first denial opens a window and is logged; the ones that follow within the
+ * window are only counted. A flood from one address therefore writes one event per
+ * window instead of one per request.
+ *
+ * The count is reported with the first denial after the window has closed, or, if
+ * the client stopped, by a summary event written when the window is swept. The
+ * sweeper also drops closed windows, so denials never scan the table. When too many
+ * windows are open (many addresses at once), denials are coalesced per rule only,
+ * so the number of events stays bounded either way.
+ */
+class IPDenialEventCoalescer {
+
+    private static final Logger logger = Logger.getLogger(IPDenialEventCoalescer.class);
+
+    private static final IPDenialEventCoalescer INSTANCE = new IPDenialEventCoalescer();
+
+    private static final int MAX_WINDOWS = 10_000;
+    private static final long SWEEP_MILLIS = 5_000;
+
+    /**
+     * Returned by admit() when the event should not be logged
+     */
+    static final int SUPPRESS = -1;
+
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+    private volatile long windowMillis = IPRestrictionConstants.DEFAULT_DENIAL_EVENT_WINDOW * 1000L;
+    private volatile KeycloakSessionFactory sessionFactory;
+    private ScheduledExecutorService sweeper;
+
+    static IPDenialEventCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    void setWindowSeconds(long windowSeconds) {
+        this.windowMillis = Math.max(0, windowSeconds) * 1000L;
+        windows.clear();
+    }
+
+    /**
+     * Sweep closed windows in the background, writing summary events with the given factory
+     */
+    synchronized void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ip-denial-event-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        windows.clear();
+    }
+
+    /**
+     * Decide whether to log a denial
+     *
+     * @param ruleDetail event detail that names the rule, repeated in summary events
+     * @param error event error, repeated in summary events
+     * @return SUPPRESS, or the number of denials suppressed since the last logged one
+     */
+    int admit(String realmId, String clientIP, String ruleDetail, String rule, String error) {
+        long window = windowMillis;
+        if (window == 0) {
+            return 0;
+        }
+        boolean perIP = windows.size() < MAX_WINDOWS;
+        String key = realmId + "|" + error + "|" + rule + (perIP ? "|" + clientIP : "");
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            Window open = windows.get(key);
+            if (open != null && now - open.start < window) {
+                if (open.suppress()) {
+                    return SUPPRESS;
+                }
+                // Closed by the sweeper in the meantime
+                continue;
+            }
+            Window fresh = new Window(now, realmId, perIP ? clientIP : null, ruleDetail, rule, error);
+            if (open == null ? windows.putIfAbsent(key, fresh) == null : windows.replace(key, open, fresh)) {
+                return open == null ? 0 : open.close();
+            }
+            // Another request opened the window first, or the sweeper dropped it
+        }
+    }
+
+    /**
+     * Drop the windows that are over, with a summary event for those that suppressed denials
+     */
+    private void sweep() {
+        long window = windowMillis;
+        long now = System.currentTimeMillis();
+        List<Window> summaries = new ArrayList<>();
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            Window open = entry.getValue();
+            if (now - open.start >= window && windows.remove(entry.getKey(), open)) {
+                open.swept = open.close();
+                if (open.swept > 0) {
+                    summaries.add(open);
+                }
+            }
+        }
+        if (summaries.isEmpty() || sessionFactory == null) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                for (Window summary : summaries) {
+                    RealmModel realm = session.realms().getRealm(summary.realmId);
+                    if (realm == null) {
+                        continue;
+                    }
+                    EventBuilder event = new EventBuilder(realm, session)
+                        .event(EventType.LOGIN_ERROR)
+                        .detail(summary.ruleDetail, summary.rule)
+                        .detail(IPRestrictionConstants.EVENT_DETAIL_REPEAT_COUNT, Integer.toString(summary.swept));
+                    if (summary.clientIP != null) {
+                        event.ipAddress(summary.clientIP)
+                            .detail(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP, summary.clientIP);
+                    }
+                    event.error(summary.error);
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.errorf(e, "Could not write %d denial summary events", summaries.size());
+        }
+    }
+
+    private static class Window {
+        // Set when the window was replaced or swept, the count then belongs to its reporter
+        private static final int CLOSED = Integer.MIN_VALUE;
+
+        private final long start;
+        private final String realmId;
+        private final String clientIP;
+        private final String ruleDetail;
+        private final String rule;
+        private final String error;
+        private final AtomicInteger suppressed = new AtomicInteger();
+        // Count taken by the sweeper, for the summary event
+        private int swept;
+
+        Window(long start, String realmId, String clientIP, String ruleDetail, String rule, String error) {
+            this.start = start;
+            this.realmId = realmId;
+            this.clientIP = clientIP;
+            this.ruleDetail = ruleDetail;
+            this.rule = rule;
+            this.error = error;
+        }
+
+        /**
+         * Count a suppressed denial, false if the window was closed
+         */
+        boolean suppress() {
+            return suppressed.getAndUpdate(count -> count == CLOSED ? CLOSED : count + 1) != CLOSED;
+        }
+
+        /**
+         * Close the window and take its count
+         */
+        int close() {
+            int count = suppressed.getAndSet(CLOSED);
+            return count == CLOSED ? 0 : count;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Hand-written parser for IPv4 and IPv6 address literals
+ * Works directly on a range of a CharSequence and produces primitive values, so it
+ * never allocates, never throws on malformed input and never involves the name
+ * resolver (unlike InetAddress.getByName, which falls back to a DNS lookup for
+ * anything that is not a literal).
+ */
+public final class IPLiteralParser {
+
+    /**
+     * Returned by parseIPv4 for anything that is not an IPv4 literal
+     */
+    public static final long INVALID = -1;
+
+    private IPLiteralParser() {
+    }
+
+    public static long parseIPv4(CharSequence s) {
+        return s == null ? INVALID : parseIPv4(s, 0, s.length());
+    }
+
+    /**
+     * Parse a dotted-quad IPv4 literal into its 32-bit value
+     * Octets with leading zeros are rejected as ambiguous (octal in some parsers).
+     *
+     * @return the address as an unsigned value, or INVALID
+     */
+    public static long parseIPv4(CharSequence s, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int i = from;
+
+        while (true) {
+            int start = i;
+            int value = 0;
+            while (i < to && i - start < 3) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            int digits = i - start;
+            if (digits == 0 || value > 255 || (digits > 1 && s.charAt(start) == '0')) {
+                return INVALID;
+            }
+            address = (address << 8) | value;
+
+            if (++octets == 4) {
+                return i == to ? address : INVALID;
+            }
+            if (i >= to || s.charAt(i) != '.') {
+                return INVALID;
+            }
+            i++;
+        }
+    }
+
+    public static boolean parseIPv6(CharSequence s, long[] out) {
+        return s != null && parseIPv6(s, 0, s.length(), out, 0);
+    }
+
+    public static boolean parseIPv6(CharSequence s, int from, int to, long[] out) {
+        return parseIPv6(s, from, to, out, 0);
+    }
+
+    /**
+     * Parse an IPv6 literal into two 64-bit halves
+     * Supports :: compression and a trailing dotted-quad (e.g. ::ffff:192.0.2.1).
+     * A zone id suffix (fe80::1%eth0) is ignored.
+     *
+     * @param out receives the high and low 64 bits at offset and offset + 1; untouched if invalid
+     * @return true if the range is a valid IPv6 literal
+     */
+    public static boolean parseIPv6(CharSequence s, int from, int to, long[] out, int offset) {
+        int end = from;
+        while (end < to && s.charAt(end) != '%') {
+            end++;
+        }
+        if (end - from < 2) {
+            return false;
+        }
+
+        // Groups before and after the :: gap are accumulated separately as 128-bit values
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int count = 0;
+        int headCount = -1;
+        int i = from;
+
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':') {
+                return false;
+            }
+            headCount = 0;
+            i += 2;
+        }
+
+        while (i < end) {
+            if (count == 8) {
+                return false;
+            }
+
+            int start = i;
+            int value = 0;
+            while (i < end && i - start < 4) {
+                int digit = hexDigit(s.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                value = (value << 4) | digit;
+                i++;
+            }
+
+            int groups = 1;
+            if (i < end && s.charAt(i) == '.') {
+                // Embedded IPv4 address, must be the last 32 bits
+                long ipv4 = count <= 6 ? parseIPv4(s, start, end) : INVALID;
+                if (ipv4 == INVALID) {
+                    return false;
+                }
+                value = (int) ipv4;
+                groups = 2;
+                i = end;
+            } else if (i == start) {
+                return false;
+            }
+
+            int shift = groups * 16;
+            long mask = groups == 2 ? 0xffffffffL : 0xffffL;
+            if (headCount < 0) {
+                headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+                headLow = (headLow << shift) | (value & mask);
+            } else {
+                tailHigh = (tailHigh << shift) | (tailLow >>> (64 - shift));
+                tailLow = (tailLow << shift) | (value & mask);
+            }
+            count += groups;
+
+            if (i == end) {
+                break;
+            }
+            if (s.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+            if (i < end && s.charAt(i) == ':') {
+                if (headCount >= 0) {
+                    return false;
+                }
+                headCount = count;
+                i++;
+            } else if (i == end) {
+                // Trailing single colon
+                return false;
+            }
+        }
+
+        if (headCount < 0) {
+            if (count != 8) {
+                return false;
+            }
+            out[offset] = headHigh;
+            out[offset + 1] = headLow;
+            return true;
+        }
+        if (count > 7) {
+            return false;
+        }
+
+        // Move the head groups in front of the zero-filled gap and the tail groups
+        int shift = (8 - headCount) * 16;
+        long high;
+        long low;
+        if (shift >= 128) {
+            high = 0;
+            low = 0;
+        } else if (shift >= 64) {
+            high = headLow << (shift - 64);
+            low = 0;
+        } else {
+            high = (headHigh << shift) | (shift == 0 ? 0 : headLow >>> (64 - shift));
+            low = headLow << shift;
+        }
+        out[offset] = high | tailHigh;
+        out[offset + 1] = low | tailLow;
+        return true;
+    }
+
+    /**
+     * Check whether a parsed IPv6 address is IPv4-mapped (::ffff:a.b.c.d)
+     */
+    public static boolean isIPv4Mapped(long high, long low) {
+        return high == 0 && (low >>> 32) == 0xffffL;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
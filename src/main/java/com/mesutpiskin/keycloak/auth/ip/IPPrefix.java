@@ -0,0 +1,128 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Parsed IP address or CIDR range
+ * IPv4 and IPv4-mapped IPv6 prefixes (::ffff:0:0/96 and longer) are held as IPv4,
+ * with the address in the low 32 bits of low.
+ */
+public final class IPPrefix {
+
+    public static final int FAMILY_IPV4 = 4;
+    public static final int FAMILY_IPV6 = 6;
+
+    private final int family;
+    private final long high;
+    private final long low;
+    private final int length;
+
+    private IPPrefix(int family, long high, long low, int length) {
+        this.family = family;
+        this.high = high;
+        this.low = low;
+        this.length = length;
+    }
+
+    /**
+     * Parse an address or CIDR range, without the + or - rule prefix
+     *
+     * @return the prefix with host bits cleared, or null if the pattern is not an IP literal or CIDR range
+     */
+    public static IPPrefix parse(String pattern) {
+        int slash = pattern.indexOf('/');
+        int end = slash >= 0 ? slash : pattern.length();
+        int prefixLength = -1;
+        if (slash >= 0) {
+            prefixLength = parsePrefixLength(pattern.substring(slash + 1));
+            if (prefixLength < 0) {
+                return null;
+            }
+        }
+
+        long ipv4 = IPLiteralParser.parseIPv4(pattern, 0, end);
+        if (ipv4 != IPLiteralParser.INVALID) {
+            if (prefixLength > 32) {
+                return null;
+            }
+            int length = slash >= 0 ? prefixLength : 32;
+            return new IPPrefix(FAMILY_IPV4, 0, IPv4PrefixTrie.mask((int) ipv4, length) & 0xffffffffL, length);
+        }
+
+        long[] ipv6 = new long[2];
+        if (!IPLiteralParser.parseIPv6(pattern, 0, end, ipv6)) {
+            return null;
+        }
+        int length = slash >= 0 ? prefixLength : 128;
+        if (length >= 96 && IPLiteralParser.isIPv4Mapped(ipv6[0], ipv6[1])) {
+            return new IPPrefix(FAMILY_IPV4, 0, IPv4PrefixTrie.mask((int) ipv6[1], length - 96) & 0xffffffffL, length - 96);
+        }
+        return new IPPrefix(FAMILY_IPV6, IPv6PrefixTrie.maskHigh(ipv6[0], length), IPv6PrefixTrie.maskLow(ipv6[1], length), length);
+    }
+
+    private static int parsePrefixLength(String value) {
+        try {
+            int prefixLength = Integer.parseInt(value.trim());
+            return prefixLength >= 0 && prefixLength <= 128 ? prefixLength : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    void insert(IPv4PrefixTrie trie4, IPv6PrefixTrie trie6, int index) {
+        if (family == FAMILY_IPV4) {
+            trie4.insert((int) low, length, index);
+        } else {
+            trie6.insert(high, low, length, index);
+        }
+    }
+
+    boolean remove(IPv4PrefixTrie trie4, IPv6PrefixTrie trie6, int index) {
+        return family == FAMILY_IPV4
+            ? trie4.remove((int) low, length, index)
+            : trie6.remove(high, low, length, index);
+    }
+
+    public int getFamily() {
+        return family;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * High 64 bits of the first address (always 0 for IPv4)
+     */
+    public long getStartHigh() {
+        return high;
+    }
+
+    /**
+     * Low 64 bits of the first address
+     */
+    public long getStartLow() {
+        return low;
+    }
+
+    /**
+     * High 64 bits of the last address (always 0 for IPv4)
+     */
+    public long getEndHigh() {
+        if (family == FAMILY_IPV4) {
+            return 0;
+        }
+        return length >= 64 ? high : high | (-1L >>> length);
+    }
+
+    /**
+     * Low 64 bits of the last address
+     */
+    public long getEndLow() {
+        if (family == FAMILY_IPV4) {
+            return low | (0xffffffffL >>> length);
+        }
+        if (length <= 64) {
+            return -1L;
+        }
+        return length == 128 ? low : low | (-1L >>> (length - 64));
+    }
+}
@@ -0,0 +1,416 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorted, merged set of IP ranges loaded from a feed file and held off-heap
+ *
+ * Two file formats are accepted:
+ * - Plain text: one IPv4/IPv6 address, CIDR range or "start-end" range per line.
+ *   Blank lines and everything after '#' are ignored. The ranges are sorted,
+ *   merged and written to a temporary file in the compiled format, which is then mapped.
+ * - Compiled binary (see writeCompiled): mapped directly.
+ *
+ * The compiled format is a header (magic, IPv4 count, IPv6 count) followed by
+ * IPv4 ranges as pairs of unsigned 32-bit values and IPv6 ranges as pairs of
+ * 128-bit values, each sorted by start and non-overlapping. Lookups are a binary
+ * search over the mapped buffer, so heap usage does not depend on feed size.
+ */
+public class IPRangeFeed implements MappedFileRegistry.MappedFile {
+
+    private static final Logger logger = Logger.getLogger(IPRangeFeed.class);
+
+    private static final byte[] MAGIC = "KCIPRNG1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+    private static final int IPV4_ENTRY_SIZE = 8;
+    private static final int IPV6_ENTRY_SIZE = 32;
+
+    static final IPRangeFeed EMPTY = new IPRangeFeed(null, ByteBuffer.allocate(0), 0, 0, 0, 0);
+
+    private final Path source;
+    private final ByteBuffer ranges;
+    private final int ipv4Count;
+    private final int ipv6Count;
+    private final int ipv6Offset;
+    private final long lastModified;
+    private final long fileSize;
+
+    private IPRangeFeed(Path source, ByteBuffer ranges, int ipv4Count, int ipv6Count,
+                        long lastModified, long fileSize) {
+        this.source = source;
+        this.ranges = ranges;
+        this.ipv4Count = ipv4Count;
+        this.ipv6Count = ipv6Count;
+        this.ipv6Offset = HEADER_SIZE + ipv4Count * IPV4_ENTRY_SIZE;
+        this.lastModified = lastModified;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Load a feed file, detecting the format from its first bytes
+     */
+    public static IPRangeFeed load(Path file) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        long fileSize = Files.size(file);
+
+        if (isCompiled(file)) {
+            return map(file, file, lastModified, fileSize);
+        }
+
+        // Compile the text feed to a temporary file and map that instead
+        Path compiled = Files.createTempFile("ip-feed-", ".bin");
+        try {
+            writeCompiled(file, compiled);
+            return map(compiled, file, lastModified, fileSize);
+        } finally {
+            // The mapping stays valid after the file is unlinked
+            Files.deleteIfExists(compiled);
+        }
+    }
+
+    private static boolean isCompiled(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(MAGIC.length);
+            return Arrays.equals(head, MAGIC);
+        }
+    }
+
+    private static IPRangeFeed map(Path compiled, Path source, long lastModified, long fileSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(compiled, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Compiled IP feed is truncated: " + source);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int ipv4Count = buffer.getInt(MAGIC.length);
+            int ipv6Count = buffer.getInt(MAGIC.length + 4);
+            long expected = HEADER_SIZE + (long) ipv4Count * IPV4_ENTRY_SIZE + (long) ipv6Count * IPV6_ENTRY_SIZE;
+            if (ipv4Count < 0 || ipv6Count < 0 || expected != size) {
+                throw new IOException("Compiled IP feed has an invalid header: " + source);
+            }
+
+            IPRangeFeed feed = new IPRangeFeed(source, buffer, ipv4Count, ipv6Count, lastModified, fileSize);
+            feed.verifySorted();
+            return feed;
+        }
+    }
+
+    /**
+     * Pre-compiled files are mapped as they are, so make sure binary search is valid on them
+     */
+    private void verifySorted() throws IOException {
+        long previousEnd = -1;
+        for (int i = 0; i < ipv4Count; i++) {
+            long start = ipv4Start(i);
+            long end = ipv4End(i);
+            if (start > end || start <= previousEnd) {
+                throw new IOException("Compiled IP feed is not sorted: " + source);
+            }
+            previousEnd = end;
+        }
+        for (int i = 1; i < ipv6Count; i++) {
+            int previous = ipv6Offset + (i - 1) * IPV6_ENTRY_SIZE;
+            int current = ipv6Offset + i * IPV6_ENTRY_SIZE;
+            if (compare(ranges.getLong(current), ranges.getLong(current + 8),
+                        ranges.getLong(previous + 16), ranges.getLong(previous + 24)) <= 0) {
+                throw new IOException("Compiled IP feed is not sorted: " + source);
+            }
+        }
+    }
+
+    /**
+     * Compile a plain-text feed into the binary format
+     */
+    public static void writeCompiled(Path textFeed, Path target) throws IOException {
+        LongList ipv4 = new LongList();
+        List<long[]> ipv6 = new ArrayList<>();
+        long[] parsed = new long[4];
+        int invalid = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(textFeed, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = line.indexOf('#');
+                String entry = (end >= 0 ? line.substring(0, end) : line).trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                switch (parseRange(entry, parsed)) {
+                    case 4:
+                        // Start in the upper half so that sorting the packed values sorts by start
+                        ipv4.add(((parsed[1] << 32) | parsed[3]) ^ Long.MIN_VALUE);
+                        break;
+                    case 6:
+                        ipv6.add(parsed.clone());
+                        break;
+                    default:
+                        invalid++;
+                }
+            }
+        }
+        if (invalid > 0) {
+            logger.warnf("Skipped %d invalid entries in IP feed %s", invalid, textFeed);
+        }
+
+        long[] v4 = mergeIPv4(ipv4.toSortedArray());
+        List<long[]> v6 = mergeIPv6(ipv6);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.put(MAGIC).putInt(v4.length).putInt(v6.size());
+            for (long range : v4) {
+                flushIfFull(channel, buffer, IPV4_ENTRY_SIZE);
+                buffer.putInt((int) (range >>> 32)).putInt((int) range);
+            }
+            for (long[] range : v6) {
+                flushIfFull(channel, buffer, IPV6_ENTRY_SIZE);
+                buffer.putLong(range[0]).putLong(range[1]).putLong(range[2]).putLong(range[3]);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static void flushIfFull(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Parse "address", "address/prefix" or "start-end" into a range
+     * IPv4 ranges are returned as out[1] (start) and out[3] (end),
+     * IPv6 ranges as out[0..1] (start) and out[2..3] (end).
+     *
+     * @return 4 or 6 for the address family, 0 if invalid
+     */
+    static int parseRange(String entry, long[] out) {
+        int dash = entry.indexOf('-');
+        if (dash > 0) {
+            int startFamily = parseAddress(entry, 0, dash, out, 0);
+            int endFamily = parseAddress(entry, dash + 1, entry.length(), out, 2);
+            if (startFamily == 0 || startFamily != endFamily
+                    || compare(out[0], out[1], out[2], out[3]) > 0) {
+                return 0;
+            }
+            return startFamily;
+        }
+
+        int slash = entry.indexOf('/');
+        int family = parseAddress(entry, 0, slash >= 0 ? slash : entry.length(), out, 0);
+        if (family == 0) {
+            return 0;
+        }
+        int prefixLength = family == 4 ? 32 : 128;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(entry.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            if (prefixLength < 0 || prefixLength > (family == 4 ? 32 : 128)) {
+                return 0;
+            }
+        }
+
+        if (family == 4) {
+            int start = IPv4PrefixTrie.mask((int) out[1], prefixLength);
+            int hostMask = prefixLength == 32 ? 0 : -1 >>> prefixLength;
+            out[1] = start & 0xffffffffL;
+            out[3] = (start | hostMask) & 0xffffffffL;
+        } else {
+            long startHigh = IPv6PrefixTrie.maskHigh(out[0], prefixLength);
+            long startLow = IPv6PrefixTrie.maskLow(out[1], prefixLength);
+            out[0] = startHigh;
+            out[1] = startLow;
+            out[2] = startHigh | ~IPv6PrefixTrie.maskHigh(-1L, prefixLength);
+            out[3] = startLow | ~IPv6PrefixTrie.maskLow(-1L, prefixLength);
+        }
+        return family;
+    }
+
+    private static int parseAddress(String s, int from, int to, long[] out, int offset) {
+        while (from < to && s.charAt(from) == ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) == ' ') {
+            to--;
+        }
+        long ipv4 = IPLiteralParser.parseIPv4(s, from, to);
+        if (ipv4 != IPLiteralParser.INVALID) {
+            out[offset] = 0;
+            out[offset + 1] = ipv4;
+            return 4;
+        }
+        if (IPLiteralParser.parseIPv6(s, from, to, out, offset)) {
+            if (IPLiteralParser.isIPv4Mapped(out[offset], out[offset + 1])) {
+                out[offset] = 0;
+                out[offset + 1] &= 0xffffffffL;
+                return 4;
+            }
+            return 6;
+        }
+        return 0;
+    }
+
+    private static long[] mergeIPv4(long[] sorted) {
+        int count = 0;
+        for (long packed : sorted) {
+            long range = packed ^ Long.MIN_VALUE;
+            long start = range >>> 32;
+            long end = range & 0xffffffffL;
+            if (count > 0) {
+                long previousEnd = sorted[count - 1] & 0xffffffffL;
+                if (start <= previousEnd + 1) {
+                    // Overlapping or adjacent, extend the previous range
+                    if (end > previousEnd) {
+                        sorted[count - 1] = (sorted[count - 1] & 0xffffffff00000000L) | end;
+                    }
+                    continue;
+                }
+            }
+            sorted[count++] = range;
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    private static List<long[]> mergeIPv6(List<long[]> ranges) {
+        ranges.sort(Comparator.<long[]>comparingLong(r -> r[0] ^ Long.MIN_VALUE)
+            .thenComparingLong(r -> r[1] ^ Long.MIN_VALUE));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            if (!merged.isEmpty()) {
+                long[] last = merged.get(merged.size() - 1);
+                // First address after the previous range, with carry into the high half
+                long nextLow = last[3] + 1;
+                long nextHigh = nextLow == 0 ? last[2] + 1 : last[2];
+                boolean coversAll = last[2] == -1L && last[3] == -1L;
+                if (coversAll || compare(range[0], range[1], nextHigh, nextLow) <= 0) {
+                    if (compare(range[2], range[3], last[2], last[3]) > 0) {
+                        last[2] = range[2];
+                        last[3] = range[3];
+                    }
+                    continue;
+                }
+            }
+            merged.add(range);
+        }
+        return merged;
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        int result = Long.compareUnsigned(high1, high2);
+        return result != 0 ? result : Long.compareUnsigned(low1, low2);
+    }
+
+    /**
+     * Check whether an IPv4 address (as an unsigned value) falls in any range
+     */
+    public boolean containsIPv4(long address) {
+        int low = 0;
+        int high = ipv4Count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ipv4Start(mid) <= address) {
+                if (address <= ipv4End(mid)) {
+                    return true;
+                }
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether an IPv6 address falls in any range
+     */
+    public boolean containsIPv6(long addressHigh, long addressLow) {
+        int low = 0;
+        int high = ipv6Count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = ipv6Offset + mid * IPV6_ENTRY_SIZE;
+            if (compare(ranges.getLong(entry), ranges.getLong(entry + 8), addressHigh, addressLow) <= 0) {
+                if (compare(addressHigh, addressLow, ranges.getLong(entry + 16), ranges.getLong(entry + 24)) <= 0) {
+                    return true;
+                }
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    private long ipv4Start(int index) {
+        return ranges.getInt(HEADER_SIZE + index * IPV4_ENTRY_SIZE) & 0xffffffffL;
+    }
+
+    private long ipv4End(int index) {
+        return ranges.getInt(HEADER_SIZE + index * IPV4_ENTRY_SIZE + 4) & 0xffffffffL;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public int size() {
+        return ipv4Count + ipv6Count;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Growable primitive list, to avoid boxing hundreds of thousands of ranges while loading
+     */
+    private static class LongList {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toSortedArray() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
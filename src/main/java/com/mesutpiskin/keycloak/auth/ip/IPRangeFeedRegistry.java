@@ -0,0 +1,20 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Shared registry of IP range feeds
+ * Each feed file is loaded once and reloaded in the background when it changes,
+ * see MappedFileRegistry.
+ */
+public class IPRangeFeedRegistry extends MappedFileRegistry<IPRangeFeed> {
+
+    private static final IPRangeFeedRegistry INSTANCE = new IPRangeFeedRegistry();
+
+    private IPRangeFeedRegistry() {
+        super("IP feed", "ip-feed-watcher", IPRangeFeed.EMPTY, IPRangeFeed::load,
+            feed -> "with " + feed.size() + " ranges");
+    }
+
+    public static IPRangeFeedRegistry getInstance() {
+        return INSTANCE;
+    }
+}
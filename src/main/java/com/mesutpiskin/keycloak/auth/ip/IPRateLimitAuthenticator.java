@@ -0,0 +1,134 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import com.mesutpiskin.keycloak.auth.common.CompiledConfigRegistry;
+import com.mesutpiskin.keycloak.auth.common.DenialResponses;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import java.util.Collections;
+
+/**
+ * IP Rate Limit Authenticator
+ * Throttles authentication attempts per client IP and per client subnet with
+ * token buckets, before the username/password or OTP steps are reached
+ * Answers with 429 Too Many Requests and a Retry-After header when a bucket is empty
+ */
+public class IPRateLimitAuthenticator implements Authenticator {
+
+    private static final Logger logger = Logger.getLogger(IPRateLimitAuthenticator.class);
+
+    private final CompiledConfigRegistry<IPRateLimitConfig> configRegistry =
+        new CompiledConfigRegistry<>("IP rate limit", IPRateLimitConfig::compile);
+
+    @Override
+    public void authenticate(AuthenticationFlowContext context) {
+        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+
+        // Without configuration the defaults apply
+        IPRateLimitConfig rateLimitConfig = getConfig(context.getRealm(), config);
+
+        String clientIP = rateLimitConfig.getClientIPResolver().resolve(context.getSession()).getIp();
+        long wait = rateLimitConfig.tryAcquire(clientIP);
+        if (wait == 0) {
+            context.success();
+            return;
+        }
+
+        long retryAfter = reportRateLimited(context.getEvent(), context.getRealm(), clientIP, wait);
+        context.failure(AuthenticationFlowError.ACCESS_DENIED,
+            withRetryAfter(DenialResponses.create(context, rateLimitConfig.getErrorMessage(),
+                Response.Status.TOO_MANY_REQUESTS), retryAfter));
+    }
+
+    @Override
+    public void action(AuthenticationFlowContext context) {
+        // This authenticator doesn't require user interaction
+        context.success();
+    }
+
+    @Override
+    public boolean requiresUser() {
+        // This runs before user authentication, so no user is required
+        return false;
+    }
+
+    @Override
+    public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
+        return true;
+    }
+
+    @Override
+    public void setRequiredActions(KeycloakSession session, RealmModel realm, UserModel user) {
+        // No required actions
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    CompiledConfigRegistry<IPRateLimitConfig> getConfigRegistry() {
+        return configRegistry;
+    }
+
+    /**
+     * Compiled configuration of an execution, the defaults if it was never configured
+     */
+    IPRateLimitConfig getConfig(RealmModel realm, AuthenticatorConfigModel config) {
+        return configRegistry.get(realm, config == null ? defaultConfig(realm) : config);
+    }
+
+    /**
+     * Log a request over the limit and report it as an event, coalesced like IP
+     * restriction denials since a client over the limit keeps retrying
+     *
+     * @param wait the result of IPRateLimitConfig.tryAcquire
+     * @return the seconds the client should wait
+     */
+    long reportRateLimited(EventBuilder event, RealmModel realm, String clientIP, long wait) {
+        long retryAfter = Math.max(1, (Math.min(Math.abs(wait), Integer.MAX_VALUE * 1000L) + 999) / 1000);
+        String limit = wait < 0 ? IPRateLimitConstants.LIMIT_IP : IPRateLimitConstants.LIMIT_SUBNET;
+        logger.infof("Rate limit (%s) exceeded for IP %s, retry after %d s", limit, clientIP, retryAfter);
+
+        int repeated = IPDenialEventCoalescer.getInstance().admit(realm.getId(), clientIP,
+            IPRateLimitConstants.EVENT_DETAIL_LIMIT, limit, IPRateLimitConstants.EVENT_ERROR);
+        if (repeated != IPDenialEventCoalescer.SUPPRESS) {
+            event.detail(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP, clientIP)
+                .detail(IPRateLimitConstants.EVENT_DETAIL_LIMIT, limit)
+                .detail(IPRateLimitConstants.EVENT_DETAIL_RETRY_AFTER, Long.toString(retryAfter));
+            if (repeated > 0) {
+                event.detail(IPRestrictionConstants.EVENT_DETAIL_REPEAT_COUNT, Integer.toString(repeated));
+            }
+            event.error(IPRateLimitConstants.EVENT_ERROR);
+        }
+        return retryAfter;
+    }
+
+    /**
+     * Stand-in configuration for executions that were never configured
+     */
+    private AuthenticatorConfigModel defaultConfig(RealmModel realm) {
+        AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+        model.setId(IPRateLimitAuthenticatorFactory.PROVIDER_ID + ":" + realm.getId());
+        model.setConfig(Collections.emptyMap());
+        return model;
+    }
+
+    /**
+     * Denial response with the Retry-After header
+     */
+    static Response withRetryAfter(Response page, long retryAfter) {
+        return Response.fromResponse(page)
+            .header(HttpHeaders.RETRY_AFTER, retryAfter)
+            .build();
+    }
+}
@@ -0,0 +1,157 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.List;
+
+public class IPRateLimitAuthenticatorFactory implements AuthenticatorFactory {
+
+    public static final String PROVIDER_ID = "ip-rate-limit-authenticator";
+    private static final IPRateLimitAuthenticator SINGLETON = new IPRateLimitAuthenticator();
+
+    @Override
+    public String getDisplayType() {
+        return "IP Rate Limit";
+    }
+
+    @Override
+    public String getReferenceCategory() {
+        return "ip-rate-limit";
+    }
+
+    @Override
+    public boolean isConfigurable() {
+        return true;
+    }
+
+    @Override
+    public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+        return new AuthenticationExecutionModel.Requirement[]{
+            AuthenticationExecutionModel.Requirement.REQUIRED,
+            AuthenticationExecutionModel.Requirement.DISABLED
+        };
+    }
+
+    @Override
+    public boolean isUserSetupAllowed() {
+        return false;
+    }
+
+    @Override
+    public String getHelpText() {
+        return "Limits authentication attempts per client IP and per client subnet. Clients over the limit get 429 Too Many Requests with a Retry-After header.";
+    }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return ProviderConfigurationBuilder.create()
+            // Per IP limit
+            .property()
+                .name(IPRateLimitConstants.REQUESTS_PER_MINUTE)
+                .label("Attempts per Minute (IP)")
+                .helpText("Sustained number of login attempts allowed per minute from a single IP address")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_REQUESTS_PER_MINUTE)
+                .add()
+
+            .property()
+                .name(IPRateLimitConstants.BURST)
+                .label("Burst (IP)")
+                .helpText("Number of attempts a single IP address can make at once before the per-minute rate applies. 0 disables the per IP limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_BURST)
+                .add()
+
+            // Per subnet limit
+            .property()
+                .name(IPRateLimitConstants.SUBNET_REQUESTS_PER_MINUTE)
+                .label("Attempts per Minute (Subnet)")
+                .helpText("Sustained number of login attempts allowed per minute from all addresses of a subnet")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_SUBNET_REQUESTS_PER_MINUTE)
+                .add()
+
+            .property()
+                .name(IPRateLimitConstants.SUBNET_BURST)
+                .label("Burst (Subnet)")
+                .helpText("Number of attempts a subnet can make at once before the per-minute rate applies. 0 disables the subnet limit.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_SUBNET_BURST)
+                .add()
+
+            .property()
+                .name(IPRateLimitConstants.SUBNET_PREFIX_IPV4)
+                .label("Subnet Prefix (IPv4)")
+                .helpText("Prefix length that groups IPv4 addresses into one subnet (e.g., 24 for x.x.x.0/24)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_SUBNET_PREFIX_IPV4)
+                .add()
+
+            .property()
+                .name(IPRateLimitConstants.SUBNET_PREFIX_IPV6)
+                .label("Subnet Prefix (IPv6)")
+                .helpText("Prefix length that groups IPv6 addresses into one subnet (e.g., 56 or 64)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_SUBNET_PREFIX_IPV6)
+                .add()
+
+            // Client IP resolution, same as the IP restriction authenticator
+            .property()
+                .name(IPRestrictionConstants.CHECK_X_FORWARDED_FOR)
+                .label("Check X-Forwarded-For Header")
+                .helpText("Enable this if Keycloak is behind a reverse proxy. The client IP is taken from the Forwarded or X-Forwarded-For header, see Trusted Proxies.")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .defaultValue(IPRestrictionConstants.DEFAULT_CHECK_X_FORWARDED_FOR)
+                .add()
+
+            .property()
+                .name(IPRestrictionConstants.TRUSTED_PROXIES)
+                .label("Trusted Proxies")
+                .helpText("IP addresses or CIDR ranges of your reverse proxies and load balancers. If empty, only the direct peer is trusted and the last header entry is used.")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+
+            .property()
+                .name(IPRateLimitConstants.ERROR_MESSAGE)
+                .label("Error Message")
+                .helpText("Message to display when the limit is exceeded")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .defaultValue(IPRateLimitConstants.DEFAULT_ERROR_MESSAGE)
+                .add()
+
+            .build();
+    }
+
+    @Override
+    public Authenticator create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        IPRateLimitConfig.setTableSize(config.getInt(IPRateLimitConstants.TABLE_SIZE, IPRateLimitConstants.DEFAULT_TABLE_SIZE));
+        IPRateLimitGate.setEnabled(config.getBoolean(IPRateLimitConstants.HTTP_GATE, IPRateLimitConstants.DEFAULT_HTTP_GATE));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        SINGLETON.getConfigRegistry().registerInvalidation(factory);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
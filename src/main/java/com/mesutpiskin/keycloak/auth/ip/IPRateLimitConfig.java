@@ -0,0 +1,142 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+
+/**
+ * Compiled form of the IP rate limit authenticator configuration
+ * Owns the token buckets, so changing the configuration starts with fresh buckets.
+ */
+public class IPRateLimitConfig {
+
+    private static final Logger logger = Logger.getLogger(IPRateLimitConfig.class);
+
+    private static volatile int tableSize = IPRateLimitConstants.DEFAULT_TABLE_SIZE;
+
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final IPTokenBuckets ipBuckets;
+    private final IPTokenBuckets subnetBuckets;
+    private final int subnetPrefixIPv4;
+    private final int subnetPrefixIPv6;
+    private final ClientIPResolver clientIPResolver;
+    private final String errorMessage;
+
+    private IPRateLimitConfig(IPTokenBuckets ipBuckets, IPTokenBuckets subnetBuckets,
+                              int subnetPrefixIPv4, int subnetPrefixIPv6,
+                              ClientIPResolver clientIPResolver, String errorMessage) {
+        this.ipBuckets = ipBuckets;
+        this.subnetBuckets = subnetBuckets;
+        this.subnetPrefixIPv4 = subnetPrefixIPv4;
+        this.subnetPrefixIPv6 = subnetPrefixIPv6;
+        this.clientIPResolver = clientIPResolver;
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * Compile the raw configuration map
+     */
+    public static IPRateLimitConfig compile(Map<String, String> config) {
+        int perMinute = getInt(config, IPRateLimitConstants.REQUESTS_PER_MINUTE, IPRateLimitConstants.DEFAULT_REQUESTS_PER_MINUTE);
+        int burst = getInt(config, IPRateLimitConstants.BURST, IPRateLimitConstants.DEFAULT_BURST);
+        int subnetPerMinute = getInt(config, IPRateLimitConstants.SUBNET_REQUESTS_PER_MINUTE, IPRateLimitConstants.DEFAULT_SUBNET_REQUESTS_PER_MINUTE);
+        int subnetBurst = getInt(config, IPRateLimitConstants.SUBNET_BURST, IPRateLimitConstants.DEFAULT_SUBNET_BURST);
+        int prefixIPv4 = Math.min(32, getInt(config, IPRateLimitConstants.SUBNET_PREFIX_IPV4, IPRateLimitConstants.DEFAULT_SUBNET_PREFIX_IPV4));
+        int prefixIPv6 = Math.min(128, getInt(config, IPRateLimitConstants.SUBNET_PREFIX_IPV6, IPRateLimitConstants.DEFAULT_SUBNET_PREFIX_IPV6));
+
+        if (burst > IPTokenBuckets.MAX_BURST || subnetBurst > IPTokenBuckets.MAX_BURST) {
+            logger.warnf("Rate limit burst is capped at %d", IPTokenBuckets.MAX_BURST);
+        }
+        logger.infof("Compiled IP rate limit: %d/min (burst %d) per IP, %d/min (burst %d) per /%d or /%d subnet",
+            perMinute, burst, subnetPerMinute, subnetBurst, prefixIPv4, prefixIPv6);
+
+        int size = tableSize;
+        return new IPRateLimitConfig(
+            burst > 0 ? new IPTokenBuckets(size, perMinute, burst) : null,
+            subnetBurst > 0 ? new IPTokenBuckets(size, subnetPerMinute, subnetBurst) : null,
+            prefixIPv4,
+            prefixIPv6,
+            ClientIPResolver.compile(
+                Boolean.parseBoolean(config.getOrDefault(IPRestrictionConstants.CHECK_X_FORWARDED_FOR,
+                                                         IPRestrictionConstants.DEFAULT_CHECK_X_FORWARDED_FOR)),
+                IPRestrictionConfig.parseMultivalued(config, IPRestrictionConstants.TRUSTED_PROXIES)),
+            config.getOrDefault(IPRateLimitConstants.ERROR_MESSAGE, IPRateLimitConstants.DEFAULT_ERROR_MESSAGE)
+        );
+    }
+
+    private static int getInt(Map<String, String> config, String key, String defaultValue) {
+        String value = config.getOrDefault(key, defaultValue);
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            logger.warnf("Invalid value '%s' for %s, using default %s", value, key, defaultValue);
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /**
+     * Set the number of buckets per table for configurations compiled from now on
+     */
+    static void setTableSize(int size) {
+        tableSize = Math.max(1024, size);
+    }
+
+    /**
+     * Take a token for a client IP from its own and its subnet's bucket
+     *
+     * @return 0 if allowed, a negative value if the IP bucket is empty or a positive
+     *         value if the subnet bucket is empty; the magnitude is the wait in milliseconds
+     */
+    long tryAcquire(String clientIP) {
+        long[] address = SCRATCH.get();
+        int family;
+        long ipv4 = IPLiteralParser.parseIPv4(clientIP);
+        if (ipv4 != IPLiteralParser.INVALID) {
+            address[0] = 0;
+            address[1] = ipv4;
+            family = IPPrefix.FAMILY_IPV4;
+        } else if (clientIP != null && IPLiteralParser.parseIPv6(clientIP, address)) {
+            if (IPLiteralParser.isIPv4Mapped(address[0], address[1])) {
+                address[1] &= 0xffffffffL;
+                family = IPPrefix.FAMILY_IPV4;
+            } else {
+                family = IPPrefix.FAMILY_IPV6;
+            }
+        } else {
+            // Not an address we can key on
+            return 0;
+        }
+
+        if (ipBuckets != null) {
+            long wait = ipBuckets.tryAcquire(IPTokenBuckets.key(address[0], address[1], family, 128));
+            if (wait > 0) {
+                return -wait;
+            }
+        }
+        if (subnetBuckets != null) {
+            long high;
+            long low;
+            int prefixLength;
+            if (family == IPPrefix.FAMILY_IPV4) {
+                prefixLength = subnetPrefixIPv4;
+                high = 0;
+                low = IPv4PrefixTrie.mask((int) address[1], prefixLength) & 0xffffffffL;
+            } else {
+                prefixLength = subnetPrefixIPv6;
+                high = IPv6PrefixTrie.maskHigh(address[0], prefixLength);
+                low = IPv6PrefixTrie.maskLow(address[1], prefixLength);
+            }
+            return subnetBuckets.tryAcquire(IPTokenBuckets.key(high, low, family, prefixLength));
+        }
+        return 0;
+    }
+
+    public ClientIPResolver getClientIPResolver() {
+        return clientIPResolver;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+}
@@ -0,0 +1,38 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+public class IPRateLimitConstants {
+    // Configuration keys
+    public static final String REQUESTS_PER_MINUTE = "rate-limit-requests-per-minute";
+    public static final String BURST = "rate-limit-burst";
+    public static final String SUBNET_REQUESTS_PER_MINUTE = "rate-limit-subnet-requests-per-minute";
+    public static final String SUBNET_BURST = "rate-limit-subnet-burst";
+    public static final String SUBNET_PREFIX_IPV4 = "rate-limit-subnet-prefix-ipv4";
+    public static final String SUBNET_PREFIX_IPV6 = "rate-limit-subnet-prefix-ipv6";
+    public static final String ERROR_MESSAGE = "error-message";
+
+    // Provider (SPI) configuration keys
+    public static final String TABLE_SIZE = "table-size";
+    public static final String HTTP_GATE = "http-gate";
+
+    // Default values
+    public static final String DEFAULT_REQUESTS_PER_MINUTE = "20";
+    public static final String DEFAULT_BURST = "10";
+    public static final String DEFAULT_SUBNET_REQUESTS_PER_MINUTE = "200";
+    public static final String DEFAULT_SUBNET_BURST = "100";
+    public static final String DEFAULT_SUBNET_PREFIX_IPV4 = "24";
+    public static final String DEFAULT_SUBNET_PREFIX_IPV6 = "56";
+    public static final String DEFAULT_ERROR_MESSAGE = "Too many login attempts from your network. Please try again later.";
+    public static final int DEFAULT_TABLE_SIZE = 65536;
+    public static final boolean DEFAULT_HTTP_GATE = true;
+
+    // Event details keys
+    public static final String EVENT_DETAIL_LIMIT = "rate_limit";
+    public static final String EVENT_DETAIL_RETRY_AFTER = "retry_after";
+
+    // Limit types for events
+    public static final String LIMIT_IP = "IP";
+    public static final String LIMIT_SUBNET = "SUBNET";
+
+    // Event error
+    public static final String EVENT_ERROR = "rate_limited";
+}
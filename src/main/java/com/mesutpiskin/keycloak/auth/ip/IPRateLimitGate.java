@@ -0,0 +1,110 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import com.mesutpiskin.keycloak.auth.common.DenialResponses;
+import jakarta.ws.rs.HttpMethod;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.Provider;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.utils.KeycloakSessionUtil;
+
+import java.util.List;
+
+/**
+ * Charges the rate limit buckets for every form post of a browser login
+ *
+ * The rate limit authenticator runs once per login: Keycloak only calls the action
+ * of the posted execution (e.g. the password form) on later requests and never runs
+ * a successful execution again, so a client could submit any number of passwords
+ * in one login. This filter charges the same buckets for each POST to
+ * login-actions/authenticate when the flow bound to the client (or realm) has the
+ * rate limit authenticator as a top-level REQUIRED execution, and answers with the
+ * same 429 response as the authenticator. Flow starts and token requests run the
+ * authenticator itself. Disabled if the http-gate SPI option is set to false.
+ *
+ * Not pre-matching: Keycloak opens the request's session once the endpoint has been
+ * matched, a pre-matching filter would run without it.
+ */
+@Provider
+public class IPRateLimitGate implements ContainerRequestFilter {
+
+    private static final String REALMS = "realms/";
+    private static final String AUTHENTICATE_ENDPOINT = "/login-actions/authenticate";
+
+    private static volatile boolean enabled = IPRateLimitConstants.DEFAULT_HTTP_GATE;
+
+    static void setEnabled(boolean enabled) {
+        IPRateLimitGate.enabled = enabled;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        if (!enabled || !HttpMethod.POST.equals(request.getMethod())) {
+            return;
+        }
+        String path = request.getUriInfo().getPath();
+        int start = path.startsWith("/") ? 1 : 0;
+        int realmEnd = path.length() - AUTHENTICATE_ENDPOINT.length();
+        if (!path.startsWith(REALMS, start) || !path.endsWith(AUTHENTICATE_ENDPOINT)
+            || path.indexOf('/', start + REALMS.length()) != realmEnd) {
+            return;
+        }
+
+        KeycloakSession session = KeycloakSessionUtil.getKeycloakSession();
+        if (session == null) {
+            return;
+        }
+        RealmModel realm = session.realms().getRealmByName(path.substring(start + REALMS.length(), realmEnd));
+        if (realm == null || !realm.isEnabled()) {
+            return;
+        }
+        String clientId = request.getUriInfo().getQueryParameters().getFirst(OAuth2Constants.CLIENT_ID);
+        ClientModel client = clientId == null ? null : realm.getClientByClientId(clientId);
+        String flowId = IPRestrictionGate.flowId(realm, client, true);
+        if (flowId == null) {
+            return;
+        }
+
+        List<String> configIds = IPRestrictionGate.requiredConfigs(realm, flowId, IPRateLimitAuthenticatorFactory.PROVIDER_ID);
+        if (configIds.isEmpty()) {
+            return;
+        }
+        IPRateLimitAuthenticator authenticator = authenticator(session);
+        for (String configId : configIds) {
+            AuthenticatorConfigModel configModel = configId == null ? null : realm.getAuthenticatorConfigById(configId);
+            IPRateLimitConfig rateLimitConfig = authenticator.getConfig(realm, configModel);
+            String clientIP = rateLimitConfig.getClientIPResolver().resolve(session).getIp();
+            long wait = rateLimitConfig.tryAcquire(clientIP);
+            if (wait == 0) {
+                continue;
+            }
+
+            session.getContext().setRealm(realm);
+            if (client != null) {
+                session.getContext().setClient(client);
+            }
+            EventBuilder event = new EventBuilder(realm, session, session.getContext().getConnection())
+                .event(EventType.LOGIN_ERROR)
+                .client(clientId);
+            long retryAfter = authenticator.reportRateLimited(event, realm, clientIP, wait);
+            request.abortWith(IPRateLimitAuthenticator.withRetryAfter(DenialResponses.create(session, null, true,
+                rateLimitConfig.getErrorMessage(), Response.Status.TOO_MANY_REQUESTS), retryAfter));
+            return;
+        }
+    }
+
+    private static IPRateLimitAuthenticator authenticator(KeycloakSession session) {
+        AuthenticatorFactory factory = (AuthenticatorFactory) session.getKeycloakSessionFactory()
+            .getProviderFactory(Authenticator.class, IPRateLimitAuthenticatorFactory.PROVIDER_ID);
+        return (IPRateLimitAuthenticator) factory.create(session);
+    }
+}
@@ -0,0 +1,140 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import com.mesutpiskin.keycloak.auth.ip.store.IPRuleIndexCache;
+import com.mesutpiskin.keycloak.auth.ip.store.IPRuleStoreUnavailableException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Admin REST resource for analysing IP restriction rules
+ *
+ * POST /evaluate?rule=&ruleSet=&details=  replay client IPs (request body) through a candidate rule set
+ * GET  /shadow                             shadow evaluation results of the realm's configurations
+ */
+public class IPRestrictionAdminResource {
+
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+    private static final String BUSY_MESSAGE = "An evaluation is already running in this realm";
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    public IPRestrictionAdminResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    /**
+     * Evaluate a list of client IPs against a candidate rule set without enforcing it
+     * The body holds one IP per line, or an access log with the IP as first field.
+     * The candidate is made of the rule query parameters (in order) and, optionally,
+     * a stored rule set. The response is streamed as the input is read.
+     */
+    @POST
+    @Path("evaluate")
+    @Consumes({MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces("text/csv")
+    public StreamingOutput evaluate(@QueryParam("rule") List<String> rules,
+                                    @QueryParam("ruleSet") String ruleSet,
+                                    @QueryParam("details") @DefaultValue("true") boolean details,
+                                    InputStream body) {
+        auth.realm().requireManageRealm();
+        List<String> candidate = rules != null ? rules : Collections.emptyList();
+        if (candidate.isEmpty() && (ruleSet == null || ruleSet.isEmpty())) {
+            throw ErrorResponse.error("Provide candidate rules or a stored rule set", Response.Status.BAD_REQUEST);
+        }
+
+        IPRuleSet compiled = IPRuleSet.compileUncached(candidate);
+        IPRuleIndex stored;
+        try {
+            stored = ruleSet == null || ruleSet.isEmpty() ? null
+                : IPRuleIndexCache.getInstance().get(session, realm, ruleSet);
+        } catch (IPRuleStoreUnavailableException e) {
+            throw ErrorResponse.error("Stored IP rules are not loaded yet", Response.Status.SERVICE_UNAVAILABLE);
+        }
+        IPRuleBatchEvaluator evaluator = new IPRuleBatchEvaluator(compiled, stored, details);
+
+        String realmId = realm.getId();
+        if (IPRuleBatchEvaluator.isRunning(realmId)) {
+            throw ErrorResponse.error(BUSY_MESSAGE, Response.Status.TOO_MANY_REQUESTS);
+        }
+        // The realm is only reserved once the body is written, so a response that is
+        // never written (client gone, failing filter) can't keep it reserved
+        return output -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+            if (!IPRuleBatchEvaluator.tryStart(realmId)) {
+                // Another evaluation started since the check above
+                writer.write("# error=" + BUSY_MESSAGE + "\n");
+                writer.flush();
+                return;
+            }
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), IO_BUFFER_SIZE);
+                evaluator.evaluate(reader, writer);
+            } finally {
+                IPRuleBatchEvaluator.finish(realmId);
+            }
+        };
+    }
+
+    /**
+     * Shadow evaluation results of every IP restriction configuration in the realm
+     * that has shadow rules. Results are those of the node serving the request.
+     */
+    @GET
+    @Path("shadow")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<IPShadowReport> shadow() {
+        auth.realm().requireViewRealm();
+        AuthenticatorFactory factory = (AuthenticatorFactory) session.getKeycloakSessionFactory()
+            .getProviderFactory(Authenticator.class, IPRestrictionAuthenticatorFactory.PROVIDER_ID);
+        IPRestrictionAuthenticator authenticator = (IPRestrictionAuthenticator) factory.create(session);
+
+        return realm.getAuthenticationFlowsStream()
+            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+            .filter(execution -> IPRestrictionAuthenticatorFactory.PROVIDER_ID.equals(execution.getAuthenticator()))
+            .map(execution -> execution.getAuthenticatorConfig())
+            .filter(Objects::nonNull)
+            .distinct()
+            .map(realm::getAuthenticatorConfigById)
+            .filter(Objects::nonNull)
+            .map(configModel -> report(authenticator, configModel))
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    }
+
+    private IPShadowReport report(IPRestrictionAuthenticator authenticator, AuthenticatorConfigModel configModel) {
+        IPRestrictionConfig config = authenticator.getConfigRegistry().get(realm, configModel);
+        return config.getShadowRuleSet() == null ? null
+            : new IPShadowReport(configModel.getId(), configModel.getAlias(), config);
+    }
+}
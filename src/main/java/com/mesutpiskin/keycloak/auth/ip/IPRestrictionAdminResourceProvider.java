@@ -0,0 +1,23 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Provides the IP restriction admin resource under /admin/realms/{realm}/ip-restriction
+ */
+public class IPRestrictionAdminResourceProvider implements AdminRealmResourceProvider {
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new IPRestrictionAdminResource(session, realm, auth);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,42 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+
+/**
+ * Factory for the IP restriction admin resource
+ */
+public class IPRestrictionAdminResourceProviderFactory implements AdminRealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "ip-restriction";
+
+    private static final IPRestrictionAdminResourceProvider SINGLETON = new IPRestrictionAdminResourceProvider();
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // Nothing to initialize
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to do after initialization
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -1,21 +1,21 @@
 package com.mesutpiskin.keycloak.auth.ip;
 
+import com.mesutpiskin.keycloak.auth.common.CompiledConfigRegistry;
+import com.mesutpiskin.keycloak.auth.common.DenialResponses;
+import com.mesutpiskin.keycloak.auth.ip.store.IPRuleIndexCache;
+import com.mesutpiskin.keycloak.auth.ip.store.IPRuleStoreUnavailableException;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
-import org.keycloak.http.HttpRequest;
 import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
 import jakarta.ws.rs.core.Response;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 
 /**
  * IP Restriction Authenticator
@@ -27,6 +27,15 @@ public class IPRestrictionAuthenticator implements Authenticator {
 
     private static final Logger logger = Logger.getLogger(IPRestrictionAuthenticator.class);
 
+    private static final IPCheckResult BANNED = new IPCheckResult(false, true,
+        IPAutoBanConstants.RULE_BANNED, IPAutoBanConstants.RESTRICTION_REASON_BANNED);
+    // Stored deny rules can't be checked, deny rather than let everyone in
+    private static final IPCheckResult STORE_UNAVAILABLE = new IPCheckResult(false, false,
+        IPRestrictionConstants.RULE_STORE_UNAVAILABLE, IPRestrictionConstants.RESTRICTION_REASON_STORE_UNAVAILABLE);
+
+    private final CompiledConfigRegistry<IPRestrictionConfig> configRegistry =
+        new CompiledConfigRegistry<>("IP restriction", IPRestrictionConfig::compile);
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
@@ -38,10 +47,11 @@ public class IPRestrictionAuthenticator implements Authenticator {
             return;
         }
 
-        Map<String, String> configMap = config.getConfig();
+        IPRestrictionConfig ipConfig = configRegistry.get(context.getRealm(), config);
         
-        // Get client IP address
-        String clientIP = getClientIP(context, configMap);
+        // Get client IP address, resolved once per request
+        ClientAddress clientAddress = ipConfig.getClientIPResolver().resolve(context.getSession());
+        String clientIP = clientAddress.getIp();
         
         if (clientIP == null || clientIP.isEmpty()) {
             logger.warn("Could not determine client IP address, allowing access");
@@ -51,32 +61,28 @@ public class IPRestrictionAuthenticator implements Authenticator {
 
         logger.debugf("Checking IP restriction for client IP: %s", clientIP);
 
-        // Get IP rules from configuration
-        List<String> ipRules = getIPRules(configMap);
-        
-        logger.infof("Loaded %d IP rules: %s", ipRules.size(), ipRules);
-        
-        if (ipRules.isEmpty()) {
-            logger.debug("No IP rules configured, allowing access");
-            context.success();
-            return;
-        }
-
-        // Check IP against rules
-        IPCheckResult result = checkIPAgainstRules(clientIP, ipRules);
+        IPCheckResult result = check(context.getSession(), context.getRealm(), ipConfig, clientIP);
+        compareWithShadow(context.getSession(), context.getRealm(), ipConfig, clientIP, result);
         
         if (result.isAllowed()) {
             logger.debugf("IP %s is allowed (matched rule: %s)", clientIP, result.getMatchedRule());
+            if (isAutoBanEnabled(context.getRealm())) {
+                // Failed logins are counted under the address bans are checked against: the
+                // detail covers the rest of this request, the note the later form posts
+                context.getEvent().detail(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP, clientIP);
+                context.getAuthenticationSession().setAuthNote(IPAutoBanConstants.NOTE_CLIENT_IP_CONFIG, config.getId());
+            }
             context.success();
         } else {
             logger.infof("IP %s is blocked (reason: %s, matched rule: %s)", 
                 clientIP, result.getReason(), result.getMatchedRule());
             
             // Log event for failed login due to IP restriction
-            logIPRestrictionEvent(context, clientIP, result, ipRules, configMap);
+            logIPRestrictionEvent(context.getEvent(), context.getRealm(), clientAddress, result,
+                ipConfig.getRuleSet().getVersion());
             
             // Get appropriate error message
-            String errorMessage = getErrorMessage(configMap, result.isExplicitDeny());
+            String errorMessage = ipConfig.getErrorMessage(result.isExplicitDeny());
             
             // Block access
             context.failure(AuthenticationFlowError.INVALID_USER, 
@@ -84,6 +90,46 @@ public class IPRestrictionAuthenticator implements Authenticator {
         }
     }
 
+    /**
+     * Decide on a client IP: automatic bans first, then the rules and the stored rule set
+     */
+    IPCheckResult check(KeycloakSession session, RealmModel realm, IPRestrictionConfig ipConfig, String clientIP) {
+        if (isAutoBanned(session, realm, clientIP)) {
+            return BANNED;
+        }
+
+        IPRuleSet ipRules = ipConfig.getRuleSet();
+        IPRuleIndex storedRules;
+        try {
+            storedRules = storedRules(session, realm, ipConfig);
+        } catch (IPRuleStoreUnavailableException e) {
+            return STORE_UNAVAILABLE;
+        }
+        
+        if (ipRules.isEmpty() && storedRules == null) {
+            logger.debug("No IP rules configured, allowing access");
+            return IPCheckResult.DEFAULT_ALLOWED;
+        }
+
+        // Check IP against rules
+        return ipRules.evaluate(clientIP, storedRules);
+    }
+
+    /**
+     * Compare a decision with the candidate rules, off the request thread
+     */
+    void compareWithShadow(KeycloakSession session, RealmModel realm, IPRestrictionConfig ipConfig,
+                           String clientIP, IPCheckResult result) {
+        if (ipConfig.getShadowRuleSet() != null && result != BANNED && result != STORE_UNAVAILABLE) {
+            IPShadowEvaluator.getInstance().submit(ipConfig, clientIP, storedRules(session, realm, ipConfig), result);
+        }
+    }
+
+    private static IPRuleIndex storedRules(KeycloakSession session, RealmModel realm, IPRestrictionConfig ipConfig) {
+        return ipConfig.getRuleStore() == null ? null
+            : IPRuleIndexCache.getInstance().get(session, realm, ipConfig.getRuleStore());
+    }
+
     @Override
     public void action(AuthenticationFlowContext context) {
         // This authenticator doesn't require user interaction
@@ -112,220 +158,61 @@ public class IPRestrictionAuthenticator implements Authenticator {
     }
 
     /**
-     * Get client IP address, checking X-Forwarded-For if configured
+     * Bans are only looked up in realms that have the ip-auto-ban event listener enabled
      */
-    private String getClientIP(AuthenticationFlowContext context, Map<String, String> config) {
-        HttpRequest request = context.getHttpRequest();
-        
-        boolean checkXForwardedFor = Boolean.parseBoolean(
-            config.getOrDefault(IPRestrictionConstants.CHECK_X_FORWARDED_FOR, 
-                               IPRestrictionConstants.DEFAULT_CHECK_X_FORWARDED_FOR)
-        );
-
-        String clientIP = null;
-        String remoteAddr = context.getConnection().getRemoteAddr();
-        
-        logger.infof("checkXForwardedFor setting: %b", checkXForwardedFor);
-        logger.infof("Remote address from connection: %s", remoteAddr);
-
-        // Check X-Forwarded-For header if enabled
-        if (checkXForwardedFor) {
-            String forwardedFor = request.getHttpHeaders().getHeaderString("X-Forwarded-For");
-            logger.infof("X-Forwarded-For header raw value: '%s'", forwardedFor);
-            
-            if (forwardedFor != null && !forwardedFor.isEmpty()) {
-                clientIP = IPUtils.extractIPFromForwardedHeader(forwardedFor);
-                logger.infof("Extracted IP from X-Forwarded-For: '%s' (original header: '%s')", clientIP, forwardedFor);
-            } else {
-                logger.infof("X-Forwarded-For header is null or empty");
-            }
-        }
-
-        // Fallback to remote address from connection
-        if (clientIP == null || clientIP.isEmpty()) {
-            clientIP = remoteAddr;
-            logger.infof("Using remote address as client IP: %s", clientIP);
-        }
-        
-        logger.infof("Final client IP determined: '%s'", clientIP);
-
-        return clientIP;
+    private boolean isAutoBanned(KeycloakSession session, RealmModel realm, String clientIP) {
+        return isAutoBanEnabled(realm) && IPBanRegistry.getInstance().isBanned(session, realm.getId(), clientIP);
     }
 
-    /**
-     * Get IP rules from configuration as a list
-     * Supports multivalued configuration
-     */
-    private List<String> getIPRules(Map<String, String> config) {
-        List<String> rules = new ArrayList<>();
-        
-        logger.infof("Reading IP rules from config. Config map keys: %s", config.keySet());
-        
-        // Check for multivalued configuration (key with index: ip-rules##0, ip-rules##1, etc.)
-        int index = 0;
-        while (true) {
-            String key = IPRestrictionConstants.IP_RULES + "##" + index;
-            String value = config.get(key);
-            
-            logger.debugf("Checking key '%s': value='%s'", key, value);
-            
-            if (value == null || value.trim().isEmpty()) {
-                // No more values
-                break;
-            }
-            
-            rules.add(value.trim());
-            logger.infof("Added multivalued rule #%d: '%s'", index, value.trim());
-            index++;
-        }
-        
-        // If no multivalued entries found, check for single value
-        if (rules.isEmpty()) {
-            String singleValue = config.get(IPRestrictionConstants.IP_RULES);
-            logger.infof("No multivalued rules found. Single value: '%s'", singleValue);
-            if (singleValue != null && !singleValue.trim().isEmpty()) {
-                // Keycloak stores multivalued strings with ## separator
-                // Also support newlines and commas for backward compatibility
-                String[] splitRules = singleValue.split("##|[\\r\\n,]+");
-                for (String rule : splitRules) {
-                    if (!rule.trim().isEmpty()) {
-                        rules.add(rule.trim());
-                        logger.infof("Added split rule: '%s'", rule.trim());
-                    }
-                }
-            }
-        }
-        
-        logger.infof("Final rules list: %s", rules);
-        return rules;
+    private static boolean isAutoBanEnabled(RealmModel realm) {
+        return realm.getEventsListenersStream().anyMatch(IPAutoBanEventListenerProviderFactory.PROVIDER_ID::equals);
     }
 
-    /**
-     * Check IP against all rules
-     * Returns the result with allow/deny status and matched rule
-     */
-    private IPCheckResult checkIPAgainstRules(String clientIP, List<String> rules) {
-        boolean hasAllowRules = false;
-        boolean hasExplicitDeny = false;
-        String matchedRule = null;
-
-        logger.infof("Checking IP '%s' against %d rules", clientIP, rules.size());
-
-        // First pass: Check for explicit deny rules (-)
-        for (String rule : rules) {
-            logger.debugf("Checking rule: '%s' (starts with deny: %b)", rule, rule.startsWith(IPRestrictionConstants.PREFIX_DENY));
-            if (rule.startsWith(IPRestrictionConstants.PREFIX_DENY)) {
-                String ipPattern = rule.substring(1).trim();
-                boolean matches = IPUtils.matchesRule(clientIP, ipPattern);
-                logger.infof("Deny rule '%s' -> IP pattern '%s' matches '%s': %b", rule, ipPattern, clientIP, matches);
-                if (matches) {
-                    logger.infof("IP '%s' BLOCKED by deny rule: '%s'", clientIP, rule);
-                    return new IPCheckResult(false, true, rule, 
-                        IPRestrictionConstants.RESTRICTION_REASON_BLOCKED);
-                }
-            } else if (rule.startsWith(IPRestrictionConstants.PREFIX_ALLOW)) {
-                hasAllowRules = true;
-            }
-        }
-
-        // Second pass: Check for allow rules (+)
-        for (String rule : rules) {
-            if (rule.startsWith(IPRestrictionConstants.PREFIX_ALLOW)) {
-                String ipPattern = rule.substring(1).trim();
-                if (IPUtils.matchesRule(clientIP, ipPattern)) {
-                    return new IPCheckResult(true, false, rule, "Allowed");
-                }
-            }
-        }
-
-        // If there are allow rules but IP didn't match any, deny
-        if (hasAllowRules) {
-            return new IPCheckResult(false, false, "none", 
-                IPRestrictionConstants.RESTRICTION_REASON_NOT_ALLOWED);
-        }
-
-        // No rules matched and no allow rules exist - allow by default
-        return new IPCheckResult(true, false, "default", "No restrictions");
+    CompiledConfigRegistry<IPRestrictionConfig> getConfigRegistry() {
+        return configRegistry;
     }
 
     /**
      * Log event for IP restriction failure
+     * Repeated denials of the same IP by the same rule are coalesced, see IPDenialEventCoalescer.
      */
-    private void logIPRestrictionEvent(AuthenticationFlowContext context, String clientIP, 
-                                      IPCheckResult result, List<String> allRules, 
-                                      Map<String, String> config) {
-        EventBuilder event = context.getEvent();
-        
-        // Get X-Forwarded-For for logging if it exists
-        String forwardedFor = context.getHttpRequest().getHttpHeaders().getHeaderString("X-Forwarded-For");
-        
-        event.detail(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP, clientIP)
+    void logIPRestrictionEvent(EventBuilder event, RealmModel realm, ClientAddress clientAddress,
+                               IPCheckResult result, String ruleSetVersion) {
+        int repeated = IPDenialEventCoalescer.getInstance().admit(realm.getId(), clientAddress.getIp(),
+            IPRestrictionConstants.EVENT_DETAIL_MATCHED_RULE, result.getMatchedRule(), Errors.NOT_ALLOWED);
+        if (repeated == IPDenialEventCoalescer.SUPPRESS) {
+            return;
+        }
+
+        event.detail(IPRestrictionConstants.EVENT_DETAIL_CLIENT_IP, clientAddress.getIp())
              .detail(IPRestrictionConstants.EVENT_DETAIL_MATCHED_RULE, result.getMatchedRule())
              .detail(IPRestrictionConstants.EVENT_DETAIL_RULE_TYPE, 
                     result.isExplicitDeny() ? IPRestrictionConstants.RULE_TYPE_DENY : 
                                              IPRestrictionConstants.RULE_TYPE_NO_MATCH)
-             .detail(IPRestrictionConstants.EVENT_DETAIL_ALL_RULES, String.join(", ", allRules))
+             .detail(IPRestrictionConstants.EVENT_DETAIL_RULE_SET_VERSION, ruleSetVersion)
              .detail("reason", result.getReason());
         
-        if (forwardedFor != null && !forwardedFor.isEmpty()) {
-            event.detail(IPRestrictionConstants.EVENT_DETAIL_X_FORWARDED_FOR, forwardedFor);
+        if (result.getRuleIndex() >= 0) {
+            event.detail(IPRestrictionConstants.EVENT_DETAIL_MATCHED_RULE_INDEX, Integer.toString(result.getRuleIndex()));
+        }
+        if (repeated > 0) {
+            event.detail(IPRestrictionConstants.EVENT_DETAIL_REPEAT_COUNT, Integer.toString(repeated));
         }
         
-        event.error(Errors.NOT_ALLOWED);
-    }
-
-    /**
-     * Get error message based on deny type
-     */
-    private String getErrorMessage(Map<String, String> config, boolean isExplicitDeny) {
-        if (isExplicitDeny) {
-            return config.getOrDefault(IPRestrictionConstants.ERROR_MESSAGE_BLOCKED, 
-                                      IPRestrictionConstants.DEFAULT_ERROR_MESSAGE_BLOCKED);
-        } else {
-            return config.getOrDefault(IPRestrictionConstants.ERROR_MESSAGE_NOT_ALLOWED, 
-                                      IPRestrictionConstants.DEFAULT_ERROR_MESSAGE_NOT_ALLOWED);
+        // Forwarding header the client IP was taken from, if any
+        if (ClientIPResolver.HEADER_FORWARDED.equals(clientAddress.getHeaderName())) {
+            event.detail(IPRestrictionConstants.EVENT_DETAIL_FORWARDED, clientAddress.getHeaderValue());
+        } else if (clientAddress.getHeaderValue() != null) {
+            event.detail(IPRestrictionConstants.EVENT_DETAIL_X_FORWARDED_FOR, clientAddress.getHeaderValue());
         }
+        
+        event.error(Errors.NOT_ALLOWED);
     }
 
     /**
      * Create error response
      */
     private Response createErrorResponse(AuthenticationFlowContext context, String errorMessage) {
-        return context.form()
-            .setError(errorMessage)
-            .createErrorPage(Response.Status.FORBIDDEN);
-    }
-
-    /**
-     * Inner class to hold IP check result
-     */
-    private static class IPCheckResult {
-        private final boolean allowed;
-        private final boolean explicitDeny;
-        private final String matchedRule;
-        private final String reason;
-
-        public IPCheckResult(boolean allowed, boolean explicitDeny, String matchedRule, String reason) {
-            this.allowed = allowed;
-            this.explicitDeny = explicitDeny;
-            this.matchedRule = matchedRule;
-            this.reason = reason;
-        }
-
-        public boolean isAllowed() {
-            return allowed;
-        }
-
-        public boolean isExplicitDeny() {
-            return explicitDeny;
-        }
-
-        public String getMatchedRule() {
-            return matchedRule;
-        }
-
-        public String getReason() {
-            return reason;
-        }
+        return DenialResponses.create(context, errorMessage, Response.Status.FORBIDDEN);
     }
 }
@@ -1,5 +1,6 @@
 package com.mesutpiskin.keycloak.auth.ip;
 
+import com.mesutpiskin.keycloak.auth.ip.store.IPRuleIndexCache;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
@@ -46,7 +47,7 @@ public class IPRestrictionAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public String getHelpText() {
-        return "Restricts authentication based on client IP address. Use + prefix to allow IPs and - prefix to deny IPs. Supports CIDR notation (e.g., +192.168.0.0/24, -10.0.0.1).";
+        return "Restricts authentication based on client IP address. Use + prefix to allow IPs and - prefix to deny IPs. Supports IPv4, IPv6 and CIDR notation (e.g., +192.168.0.0/24, -10.0.0.1, +2001:db8::/32).";
     }
 
     @Override
@@ -56,19 +57,59 @@ public class IPRestrictionAuthenticatorFactory implements AuthenticatorFactory {
             .property()
                 .name(IPRestrictionConstants.IP_RULES)
                 .label("IP Rules")
-                .helpText("IP address rules. Use + to allow (e.g., +192.168.1.1 or +192.168.0.0/24) and - to deny (e.g., -10.0.0.5). You can add multiple rules using the + button.")
+                .helpText("IP address rules. Use + to allow (e.g., +192.168.1.1, +192.168.0.0/24 or +2001:db8::/32) and - to deny (e.g., -10.0.0.5 or -2001:db8::1). Countries and autonomous systems can be matched with country:XX and asn:NNN (e.g., +country:DE, -asn:14061) when GeoIP databases are configured. Append until <date> to make a rule temporary (e.g., +203.0.113.5 until 2026-11-01). You can add multiple rules using the + button.")
                 .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
                 .add()
             
+            // Range feed files - for lists too large for the rules property
+            .property()
+                .name(IPRestrictionConstants.IP_FEEDS)
+                .label("IP Range Feeds")
+                .helpText("Paths of range feed files on the Keycloak nodes, with + to allow or - to deny everything they contain (e.g., -/opt/keycloak/feeds/blocklist.txt). Files contain one address, CIDR range or start-end range per line, or use the pre-compiled binary format. Changes to the files are picked up automatically.")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+            
+            // GeoIP databases - resolve country: and asn: rules
+            .property()
+                .name(IPRestrictionConstants.GEOIP_DATABASES)
+                .label("GeoIP Databases")
+                .helpText("Paths of MaxMind DB (.mmdb) files on the Keycloak nodes, e.g. GeoLite2-Country.mmdb and GeoLite2-ASN.mmdb. Used by country and ASN rules such as +country:DE or -asn:14061. Updated files are picked up automatically.")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+            
+            // Shadow rules - evaluated next to the IP rules, never enforced
+            .property()
+                .name(IPRestrictionConstants.SHADOW_IP_RULES)
+                .label("Shadow IP Rules")
+                .helpText("Candidate rules, in the same syntax as IP Rules, that are evaluated for every request but never enforced. Requests they would decide differently are counted and sampled; review them at /admin/realms/{realm}/ip-restriction/shadow before promoting the rules. Feeds, GeoIP databases and the stored rule set apply to both.")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+            
+            // Stored rule set - managed through the ip-rules admin API
+            .property()
+                .name(IPRestrictionConstants.IP_RULE_STORE)
+                .label("Stored Rule Set")
+                .helpText("Name of a rule set managed through the admin REST API (/admin/realms/{realm}/ip-rules/{name}). Use for large rule lists. Stored rules are checked after the IP rules and feeds above.")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .add()
+            
             // Check X-Forwarded-For header
             .property()
                 .name(IPRestrictionConstants.CHECK_X_FORWARDED_FOR)
                 .label("Check X-Forwarded-For Header")
-                .helpText("Enable this if Keycloak is behind a reverse proxy (nginx, Apache, load balancer). The authenticator will use the IP from the X-Forwarded-For header.")
+                .helpText("Enable this if Keycloak is behind a reverse proxy (nginx, Apache, load balancer). The authenticator will take the client IP from the Forwarded or X-Forwarded-For header, see Trusted Proxies.")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .defaultValue(IPRestrictionConstants.DEFAULT_CHECK_X_FORWARDED_FOR)
                 .add()
             
+            // Trusted proxies - hops skipped when reading the forwarding header
+            .property()
+                .name(IPRestrictionConstants.TRUSTED_PROXIES)
+                .label("Trusted Proxies")
+                .helpText("IP addresses or CIDR ranges of your reverse proxies and load balancers (e.g., 10.0.0.0/8). The forwarding header is read from right to left, skipping trusted proxies; the first other address is the client IP. If empty, only the direct peer is trusted and the last header entry is used.")
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .add()
+            
             // Error message for blocked IPs
             .property()
                 .name(IPRestrictionConstants.ERROR_MESSAGE_BLOCKED)
@@ -97,17 +138,40 @@ public class IPRestrictionAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public void init(Config.Scope config) {
-        // Nothing to initialize
+        IPRangeFeedRegistry.getInstance().setReloadIntervalSeconds(
+            config.getInt(IPRestrictionConstants.FEED_RELOAD_INTERVAL, IPRestrictionConstants.DEFAULT_FEED_RELOAD_INTERVAL));
+        GeoIPDatabaseRegistry.getInstance().setReloadIntervalSeconds(
+            config.getInt(IPRestrictionConstants.FEED_RELOAD_INTERVAL, IPRestrictionConstants.DEFAULT_FEED_RELOAD_INTERVAL));
+        IPDecisionCache.configure(
+            config.getInt(IPRestrictionConstants.DECISION_CACHE_SIZE, IPRestrictionConstants.DEFAULT_DECISION_CACHE_SIZE),
+            config.getInt(IPRestrictionConstants.DECISION_CACHE_TTL, IPRestrictionConstants.DEFAULT_DECISION_CACHE_TTL));
+        IPDenialEventCoalescer.getInstance().setWindowSeconds(
+            config.getInt(IPRestrictionConstants.DENIAL_EVENT_WINDOW, IPRestrictionConstants.DEFAULT_DENIAL_EVENT_WINDOW));
+        IPShadowEvaluator.getInstance().setQueueSize(
+            config.getInt(IPRestrictionConstants.SHADOW_QUEUE_SIZE, IPRestrictionConstants.DEFAULT_SHADOW_QUEUE_SIZE));
+        IPRestrictionGate.setEnabled(
+            config.getBoolean(IPRestrictionConstants.HTTP_GATE, IPRestrictionConstants.DEFAULT_HTTP_GATE));
+        IPRuleBatchEvaluator.setParallelism(
+            config.getInt(IPRestrictionConstants.WHAT_IF_PARALLELISM, IPRestrictionConstants.DEFAULT_WHAT_IF_PARALLELISM));
+        IPRuleIndexCache.getInstance().setSyncIntervalSeconds(
+            config.getInt(IPRestrictionConstants.RULE_STORE_SYNC_INTERVAL, IPRestrictionConstants.DEFAULT_RULE_STORE_SYNC_INTERVAL));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to post-initialize
+        SINGLETON.getConfigRegistry().registerInvalidation(factory);
+        IPRestrictionGate.registerInvalidation(factory);
+        IPDenialEventCoalescer.getInstance().start(factory);
     }
 
     @Override
     public void close() {
-        // Nothing to close
+        IPRangeFeedRegistry.getInstance().close();
+        GeoIPDatabaseRegistry.getInstance().close();
+        IPRuleExpiryWheel.getInstance().close();
+        IPShadowEvaluator.getInstance().close();
+        IPDenialEventCoalescer.getInstance().close();
+        IPRuleBatchEvaluator.close();
     }
 
     @Override
@@ -0,0 +1,257 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled, immutable form of the IP restriction authenticator configuration
+ * The only part that changes is the rule set, which is recompiled and swapped when
+ * a time-limited rule expires (see IPRuleExpiryWheel). Shadow evaluation counters
+ * (see IPShadowStats) live here too, so they reset when the configuration changes.
+ */
+public class IPRestrictionConfig {
+
+    private static final Logger logger = Logger.getLogger(IPRestrictionConfig.class);
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final List<String> rules;
+    private final long[] expiries;
+    private final List<String> feeds;
+    private final List<String> geoDatabases;
+    private volatile IPRuleSet ruleSet;
+    private final IPRuleSet shadowRuleSet;
+    private final IPShadowStats shadowStats;
+    private final String ruleStore;
+    private final ClientIPResolver clientIPResolver;
+    private final String errorMessageBlocked;
+    private final String errorMessageNotAllowed;
+
+    private IPRestrictionConfig(List<String> rules, long[] expiries, List<String> feeds, List<String> geoDatabases,
+                                IPRuleSet shadowRuleSet, String ruleStore, ClientIPResolver clientIPResolver,
+                                String errorMessageBlocked, String errorMessageNotAllowed) {
+        this.rules = rules;
+        this.expiries = expiries;
+        this.feeds = feeds;
+        this.geoDatabases = geoDatabases;
+        this.shadowRuleSet = shadowRuleSet;
+        this.shadowStats = shadowRuleSet != null ? new IPShadowStats() : null;
+        this.ruleStore = ruleStore;
+        this.clientIPResolver = clientIPResolver;
+        this.errorMessageBlocked = errorMessageBlocked;
+        this.errorMessageNotAllowed = errorMessageNotAllowed;
+    }
+
+    /**
+     * Compile the raw configuration map
+     */
+    public static IPRestrictionConfig compile(Map<String, String> config) {
+        List<String> configured = parseIPRules(config);
+        List<String> rules = new ArrayList<>(configured.size());
+        long[] expiries = new long[configured.size()];
+        for (String rule : configured) {
+            long expiry = parseExpiry(rule);
+            if (expiry < 0) {
+                logger.warnf("Ignoring IP rule with an invalid expiry: '%s'", rule);
+                continue;
+            }
+            expiries[rules.size()] = expiry;
+            rules.add(stripExpiry(rule));
+        }
+        List<String> feeds = parseMultivalued(config, IPRestrictionConstants.IP_FEEDS);
+        List<String> geoDatabases = parseMultivalued(config, IPRestrictionConstants.GEOIP_DATABASES);
+        logger.infof("Compiled %d IP rules: %s, feeds: %s, GeoIP databases: %s", rules.size(), rules, feeds, geoDatabases);
+
+        // Shadow rules share the feeds and databases of the live rules, only the inline rules differ
+        List<String> shadowRules = parseShadowRules(config);
+        IPRuleSet shadowRuleSet = null;
+        if (!shadowRules.isEmpty()) {
+            logger.infof("Compiled %d shadow IP rules: %s", shadowRules.size(), shadowRules);
+            shadowRuleSet = IPRuleSet.compile(shadowRules, feeds, geoDatabases);
+        }
+
+        String ruleStore = config.get(IPRestrictionConstants.IP_RULE_STORE);
+
+        IPRestrictionConfig compiled = new IPRestrictionConfig(
+            rules, expiries, feeds, geoDatabases, shadowRuleSet,
+            ruleStore == null || ruleStore.trim().isEmpty() ? null : ruleStore.trim(),
+            ClientIPResolver.compile(
+                Boolean.parseBoolean(config.getOrDefault(IPRestrictionConstants.CHECK_X_FORWARDED_FOR,
+                                                         IPRestrictionConstants.DEFAULT_CHECK_X_FORWARDED_FOR)),
+                parseMultivalued(config, IPRestrictionConstants.TRUSTED_PROXIES)),
+            config.getOrDefault(IPRestrictionConstants.ERROR_MESSAGE_BLOCKED,
+                                IPRestrictionConstants.DEFAULT_ERROR_MESSAGE_BLOCKED),
+            config.getOrDefault(IPRestrictionConstants.ERROR_MESSAGE_NOT_ALLOWED,
+                                IPRestrictionConstants.DEFAULT_ERROR_MESSAGE_NOT_ALLOWED)
+        );
+        compiled.retireExpiredRules();
+        return compiled;
+    }
+
+    /**
+     * Compile the rules that have not expired yet, swap them in and schedule the next expiry
+     */
+    void retireExpiredRules() {
+        long now = System.currentTimeMillis();
+        long next = NEVER;
+        List<String> active = new ArrayList<>(rules.size());
+        for (int i = 0; i < rules.size(); i++) {
+            if (expiries[i] > now) {
+                active.add(rules.get(i));
+                next = Math.min(next, expiries[i]);
+            }
+        }
+
+        IPRuleSet current = ruleSet;
+        if (current == null || current.size() != active.size()) {
+            if (current != null) {
+                logger.infof("Retired %d expired IP rules", current.size() - active.size());
+            }
+            ruleSet = IPRuleSet.compile(active, feeds, geoDatabases);
+        }
+        if (next != NEVER) {
+            IPRuleExpiryWheel.getInstance().schedule(next, this);
+        }
+    }
+
+    /**
+     * Expiry of a rule written as "<rule> until <date or date-time>"
+     * A date alone means the rule is in effect until the end of that day (UTC).
+     *
+     * @return the expiry in epoch milliseconds, NEVER if the rule has none, or -1 if it cannot be parsed
+     */
+    static long parseExpiry(String rule) {
+        int separator = rule.lastIndexOf(IPRestrictionConstants.RULE_EXPIRY_SEPARATOR);
+        if (separator < 0) {
+            return NEVER;
+        }
+        String value = rule.substring(separator + IPRestrictionConstants.RULE_EXPIRY_SEPARATOR.length()).trim();
+        try {
+            if (value.indexOf('T') < 0) {
+                return LocalDate.parse(value).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            if (value.endsWith("Z")) {
+                return Instant.parse(value).toEpochMilli();
+            }
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+
+    static String stripExpiry(String rule) {
+        int separator = rule.lastIndexOf(IPRestrictionConstants.RULE_EXPIRY_SEPARATOR);
+        return separator < 0 ? rule : rule.substring(0, separator).trim();
+    }
+
+    /**
+     * Shadow rules that are in effect now; expiries are honoured at compile time only,
+     * as shadow results are not enforced
+     */
+    private static List<String> parseShadowRules(Map<String, String> config) {
+        long now = System.currentTimeMillis();
+        List<String> shadowRules = new ArrayList<>();
+        for (String rule : parseMultivalued(config, IPRestrictionConstants.SHADOW_IP_RULES)) {
+            long expiry = parseExpiry(rule);
+            if (expiry < 0) {
+                logger.warnf("Ignoring shadow IP rule with an invalid expiry: '%s'", rule);
+            } else if (expiry > now) {
+                shadowRules.add(stripExpiry(rule));
+            }
+        }
+        return shadowRules;
+    }
+
+    /**
+     * Get IP rules from configuration as a list
+     * Supports multivalued configuration
+     */
+    static List<String> parseIPRules(Map<String, String> config) {
+        List<String> rules = new ArrayList<>();
+
+        // Check for multivalued configuration (key with index: ip-rules##0, ip-rules##1, etc.)
+        int index = 0;
+        while (true) {
+            String value = config.get(IPRestrictionConstants.IP_RULES + "##" + index);
+            if (value == null || value.trim().isEmpty()) {
+                // No more values
+                break;
+            }
+            rules.add(value.trim());
+            index++;
+        }
+
+        // If no multivalued entries found, check for single value
+        if (rules.isEmpty()) {
+            String singleValue = config.get(IPRestrictionConstants.IP_RULES);
+            if (singleValue != null && !singleValue.trim().isEmpty()) {
+                // Keycloak stores multivalued strings with ## separator
+                // Also support newlines and commas for backward compatibility
+                for (String rule : singleValue.split("##|[\\r\\n,]+")) {
+                    if (!rule.trim().isEmpty()) {
+                        rules.add(rule.trim());
+                    }
+                }
+            }
+        }
+
+        return rules;
+    }
+
+    /**
+     * Read a multivalued string property (stored with ## separators)
+     */
+    static List<String> parseMultivalued(Map<String, String> config, String key) {
+        List<String> values = new ArrayList<>();
+        String value = config.get(key);
+        if (value != null) {
+            for (String item : value.split("##")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    public IPRuleSet getRuleSet() {
+        return ruleSet;
+    }
+
+    /**
+     * Candidate rule set evaluated in shadow mode, or null if none is configured
+     */
+    public IPRuleSet getShadowRuleSet() {
+        return shadowRuleSet;
+    }
+
+    IPShadowStats getShadowStats() {
+        return shadowStats;
+    }
+
+    /**
+     * Name of the stored rule set to evaluate, or null if none is used
+     */
+    public String getRuleStore() {
+        return ruleStore;
+    }
+
+    public ClientIPResolver getClientIPResolver() {
+        return clientIPResolver;
+    }
+
+    /**
+     * Get error message based on deny type
+     */
+    public String getErrorMessage(boolean isExplicitDeny) {
+        return isExplicitDeny ? errorMessageBlocked : errorMessageNotAllowed;
+    }
+}
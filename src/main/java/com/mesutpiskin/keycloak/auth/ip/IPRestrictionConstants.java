@@ -6,23 +6,57 @@ public class IPRestrictionConstants {
     public static final String CHECK_X_FORWARDED_FOR = "check-x-forwarded-for";
     public static final String ERROR_MESSAGE_BLOCKED = "error-message-blocked";
     public static final String ERROR_MESSAGE_NOT_ALLOWED = "error-message-not-allowed";
+    public static final String IP_FEEDS = "ip-feeds";
+    public static final String IP_RULE_STORE = "ip-rule-store";
+    public static final String TRUSTED_PROXIES = "trusted-proxies";
+    public static final String GEOIP_DATABASES = "geoip-databases";
+    public static final String SHADOW_IP_RULES = "shadow-ip-rules";
+
+    // Provider (SPI) configuration keys
+    public static final String FEED_RELOAD_INTERVAL = "feed-reload-interval";
+    public static final String RULE_STORE_SYNC_INTERVAL = "rule-store-sync-interval";
+    public static final String DECISION_CACHE_SIZE = "decision-cache-size";
+    public static final String DECISION_CACHE_TTL = "decision-cache-ttl";
+    public static final String DENIAL_EVENT_WINDOW = "denial-event-window";
+    public static final String SHADOW_QUEUE_SIZE = "shadow-queue-size";
+    public static final String HTTP_GATE = "http-gate";
+    public static final String WHAT_IF_PARALLELISM = "what-if-parallelism";
     
     // IP rule prefixes
     public static final String PREFIX_ALLOW = "+";
     public static final String PREFIX_DENY = "-";
+
+    // Rule patterns resolved against GeoIP databases (e.g. +country:DE, -asn:14061)
+    public static final String GEO_RULE_COUNTRY = "country:";
+    public static final String GEO_RULE_ASN = "asn:";
+
+    // Separates a rule from its expiry (e.g. +203.0.113.5 until 2026-11-01)
+    public static final String RULE_EXPIRY_SEPARATOR = " until ";
     
     // Default values
     public static final String DEFAULT_IP_RULES = "";
     public static final String DEFAULT_CHECK_X_FORWARDED_FOR = "true";
     public static final String DEFAULT_ERROR_MESSAGE_BLOCKED = "Access from your IP address is blocked";
     public static final String DEFAULT_ERROR_MESSAGE_NOT_ALLOWED = "Access from your IP address is not allowed";
+    public static final int DEFAULT_FEED_RELOAD_INTERVAL = 30;
+    public static final int DEFAULT_RULE_STORE_SYNC_INTERVAL = 5;
+    public static final int DEFAULT_DECISION_CACHE_SIZE = 10000;
+    public static final int DEFAULT_DECISION_CACHE_TTL = 60;
+    public static final int DEFAULT_DENIAL_EVENT_WINDOW = 60;
+    public static final int DEFAULT_SHADOW_QUEUE_SIZE = 1000;
+    public static final boolean DEFAULT_HTTP_GATE = false;
+    // 0 uses half the processors
+    public static final int DEFAULT_WHAT_IF_PARALLELISM = 0;
     
     // Event details keys
     public static final String EVENT_DETAIL_CLIENT_IP = "client_ip";
     public static final String EVENT_DETAIL_MATCHED_RULE = "matched_rule";
     public static final String EVENT_DETAIL_RULE_TYPE = "rule_type";
-    public static final String EVENT_DETAIL_ALL_RULES = "all_rules";
+    public static final String EVENT_DETAIL_RULE_SET_VERSION = "rule_set_version";
+    public static final String EVENT_DETAIL_MATCHED_RULE_INDEX = "matched_rule_index";
+    public static final String EVENT_DETAIL_REPEAT_COUNT = "repeat_count";
     public static final String EVENT_DETAIL_X_FORWARDED_FOR = "x_forwarded_for";
+    public static final String EVENT_DETAIL_FORWARDED = "forwarded";
     
     // Rule types for events
     public static final String RULE_TYPE_DENY = "DENY";
@@ -32,4 +66,9 @@ public class IPRestrictionConstants {
     // Error reasons
     public static final String RESTRICTION_REASON_BLOCKED = "IP Restriction: IP address is explicitly blocked";
     public static final String RESTRICTION_REASON_NOT_ALLOWED = "IP Restriction: IP address is not in allowed list";
+    public static final String RESTRICTION_REASON_STORE_UNAVAILABLE = "IP Restriction: stored IP rules are not loaded";
+    public static final String RULE_STORE_UNAVAILABLE = "rule-store-unavailable";
+    
+    // Prefix of the rule reported in events when a feed matched
+    public static final String FEED_RULE_PREFIX = "feed:";
 }
@@ -0,0 +1,285 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import com.mesutpiskin.keycloak.auth.common.DenialResponses;
+import jakarta.ws.rs.HttpMethod;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.ext.Provider;
+import org.jboss.logging.Logger;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.authentication.AuthenticatorFactory;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.AuthenticationFlowBindings;
+import org.keycloak.models.AuthenticationFlowModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.utils.KeycloakSessionUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Optional HTTP-layer gate in front of the login and token endpoints
+ *
+ * Rejects a request before Keycloak creates (and replicates) an authentication
+ * session when the flow it would start is certain to be denied by the IP
+ * restriction authenticator: the flow bound to the client (or realm) has the
+ * authenticator as a top-level REQUIRED execution, and the same compiled rules
+ * deny the client IP. A REQUIRED top-level execution runs in every successful
+ * flow, so the gate never rejects a request the flow would have let through.
+ *
+ * Covered: the authorization endpoint and login-actions/authenticate (browser
+ * flow) and password grants at the token endpoint (direct grant flow). Everything
+ * else passes through untouched. Disabled unless the http-gate SPI option is set.
+ *
+ * The filter is post-matching: on the Quarkus distribution the Keycloak session
+ * only exists once the request has been matched to a resource. That is still
+ * before the endpoint runs, so no authentication session has been created yet.
+ */
+@Provider
+public class IPRestrictionGate implements ContainerRequestFilter {
+
+    private static final Logger logger = Logger.getLogger(IPRestrictionGate.class);
+
+    private static final String REALMS = "realms/";
+    private static final String AUTH_ENDPOINT = "/protocol/openid-connect/auth";
+    private static final String TOKEN_ENDPOINT = "/protocol/openid-connect/token";
+    private static final String AUTHENTICATE_ENDPOINT = "/login-actions/authenticate";
+
+    private static final int MAX_FORM_SIZE = 16 * 1024;
+
+    private static volatile boolean enabled;
+    private static final AtomicBoolean warnedNoSession = new AtomicBoolean();
+
+    // Config ids of the top-level REQUIRED executions per authenticator and flow id
+    private static final ConcurrentMap<String, GatedFlow> flows = new ConcurrentHashMap<>();
+
+    static void setEnabled(boolean enabled) {
+        IPRestrictionGate.enabled = enabled;
+        flows.clear();
+    }
+
+    /**
+     * Register a listener that evicts the flows of removed realms
+     * Changed flows are detected on lookup, see requiredConfigs().
+     */
+    static void registerInvalidation(KeycloakSessionFactory factory) {
+        factory.register(IPRestrictionGate::onEvent);
+    }
+
+    private static void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            String realmId = removed.getRealm().getId();
+            flows.values().removeIf(flow -> realmId.equals(flow.realmId));
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        String path = request.getUriInfo().getPath();
+        int start = path.startsWith("/") ? 1 : 0;
+        if (!path.startsWith(REALMS, start)) {
+            return;
+        }
+        int realmEnd = path.indexOf('/', start + REALMS.length());
+        if (realmEnd < 0) {
+            return;
+        }
+        String endpoint = path.substring(realmEnd);
+        boolean browser = endpoint.equals(AUTH_ENDPOINT) || endpoint.equals(AUTHENTICATE_ENDPOINT);
+        if (!browser && !endpoint.equals(TOKEN_ENDPOINT)) {
+            return;
+        }
+
+        String clientId;
+        if (browser) {
+            clientId = request.getUriInfo().getQueryParameters().getFirst(OAuth2Constants.CLIENT_ID);
+        } else {
+            String form = readForm(request);
+            if (form == null || !OAuth2Constants.PASSWORD.equals(formParameter(form, OAuth2Constants.GRANT_TYPE))) {
+                return;
+            }
+            clientId = formParameter(form, OAuth2Constants.CLIENT_ID);
+            if (clientId == null) {
+                clientId = basicAuthClientId(request.getHeaderString(HttpHeaders.AUTHORIZATION));
+            }
+        }
+
+        KeycloakSession session = KeycloakSessionUtil.getKeycloakSession();
+        if (session == null) {
+            if (warnedNoSession.compareAndSet(false, true)) {
+                logger.warn("IP restriction HTTP gate is enabled but runs without a Keycloak session, requests are not gated");
+            }
+            return;
+        }
+        RealmModel realm = session.realms().getRealmByName(path.substring(start + REALMS.length(), realmEnd));
+        if (realm == null || !realm.isEnabled()) {
+            return;
+        }
+        ClientModel client = clientId == null ? null : realm.getClientByClientId(clientId);
+        String flowId = flowId(realm, client, browser);
+        if (flowId == null) {
+            return;
+        }
+
+        List<String> configIds = requiredConfigs(realm, flowId, IPRestrictionAuthenticatorFactory.PROVIDER_ID);
+        if (configIds.isEmpty()) {
+            return;
+        }
+        IPRestrictionAuthenticator authenticator = authenticator(session);
+        for (String configId : configIds) {
+            AuthenticatorConfigModel configModel = configId == null ? null : realm.getAuthenticatorConfigById(configId);
+            if (configModel == null) {
+                continue;
+            }
+            IPRestrictionConfig ipConfig = authenticator.getConfigRegistry().get(realm, configModel);
+            ClientAddress clientAddress = ipConfig.getClientIPResolver().resolve(session);
+            String clientIP = clientAddress.getIp();
+            if (clientIP == null || clientIP.isEmpty()) {
+                continue;
+            }
+            IPCheckResult result = authenticator.check(session, realm, ipConfig, clientIP);
+            if (result.isAllowed()) {
+                continue;
+            }
+
+            logger.infof("IP %s is blocked at the HTTP gate (reason: %s, matched rule: %s)",
+                clientIP, result.getReason(), result.getMatchedRule());
+            authenticator.compareWithShadow(session, realm, ipConfig, clientIP, result);
+
+            session.getContext().setRealm(realm);
+            if (client != null) {
+                session.getContext().setClient(client);
+            }
+            EventBuilder event = new EventBuilder(realm, session, session.getContext().getConnection())
+                .event(EventType.LOGIN_ERROR)
+                .client(clientId);
+            authenticator.logIPRestrictionEvent(event, realm, clientAddress, result, ipConfig.getRuleSet().getVersion());
+            request.abortWith(DenialResponses.create(session, null, browser,
+                ipConfig.getErrorMessage(result.isExplicitDeny()), Response.Status.FORBIDDEN));
+            return;
+        }
+    }
+
+    static String flowId(RealmModel realm, ClientModel client, boolean browser) {
+        String binding = browser ? AuthenticationFlowBindings.BROWSER_BINDING : AuthenticationFlowBindings.DIRECT_GRANT_BINDING;
+        String override = client == null ? null : client.getAuthenticationFlowBindingOverride(binding);
+        if (override != null) {
+            return override;
+        }
+        if (browser) {
+            return realm.getBrowserFlow() == null ? null : realm.getBrowserFlow().getId();
+        }
+        return realm.getDirectGrantFlow() == null ? null : realm.getDirectGrantFlow().getId();
+    }
+
+    /**
+     * Config ids of the top-level REQUIRED executions of an authenticator in a flow,
+     * null for executions that were never configured
+     *
+     * The realm cache hands out the same flow model until the realm is invalidated,
+     * which any change to its flows or executions does (on every node), so a new
+     * model instance means the executions have to be read again.
+     */
+    static List<String> requiredConfigs(RealmModel realm, String flowId, String providerId) {
+        AuthenticationFlowModel model = realm.getAuthenticationFlowById(flowId);
+        if (model == null) {
+            return Collections.emptyList();
+        }
+        String key = providerId + "/" + flowId;
+        GatedFlow flow = flows.get(key);
+        if (flow == null || flow.model != model) {
+            List<String> configIds = realm.getAuthenticationExecutionsStream(flowId)
+                .filter(execution -> providerId.equals(execution.getAuthenticator()) && execution.isRequired())
+                .map(execution -> execution.getAuthenticatorConfig())
+                .collect(Collectors.toList());
+            flow = new GatedFlow(realm.getId(), model, configIds);
+            flows.put(key, flow);
+        }
+        return flow.configIds;
+    }
+
+    private static IPRestrictionAuthenticator authenticator(KeycloakSession session) {
+        AuthenticatorFactory factory = (AuthenticatorFactory) session.getKeycloakSessionFactory()
+            .getProviderFactory(Authenticator.class, IPRestrictionAuthenticatorFactory.PROVIDER_ID);
+        return (IPRestrictionAuthenticator) factory.create(session);
+    }
+
+    /**
+     * Read a form body and put it back for the endpoint, or null if there is none or it is too large
+     */
+    private static String readForm(ContainerRequestContext request) throws IOException {
+        if (!HttpMethod.POST.equals(request.getMethod())
+            || !MediaType.APPLICATION_FORM_URLENCODED_TYPE.isCompatible(request.getMediaType())) {
+            return null;
+        }
+        InputStream entity = request.getEntityStream();
+        byte[] body = entity.readNBytes(MAX_FORM_SIZE + 1);
+        request.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(body), entity));
+        return body.length > MAX_FORM_SIZE ? null : new String(body, StandardCharsets.US_ASCII);
+    }
+
+    private static String formParameter(String form, String name) {
+        for (String pair : form.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0 && name.equals(pair.substring(0, separator))) {
+                try {
+                    return URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    // Malformed, left to the endpoint to reject
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String basicAuthClientId(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            return null;
+        }
+        try {
+            String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()),
+                StandardCharsets.UTF_8);
+            int separator = credentials.indexOf(':');
+            return separator < 0 ? null : URLDecoder.decode(credentials.substring(0, separator), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static class GatedFlow {
+        private final String realmId;
+        private final AuthenticationFlowModel model;
+        private final List<String> configIds;
+
+        GatedFlow(String realmId, AuthenticationFlowModel model, List<String> configIds) {
+            this.realmId = realmId;
+            this.model = model;
+            this.configIds = configIds;
+        }
+    }
+}
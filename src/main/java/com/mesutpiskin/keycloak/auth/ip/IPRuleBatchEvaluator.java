@@ -0,0 +1,228 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Replays a list of client IPs through a rule set, for "what-if" analysis
+ *
+ * Input is read in chunks; each chunk is split across a fork-join pool while the
+ * next chunk is being read, then written out in input order. Memory use is bounded
+ * by two chunks regardless of the input size. Decisions are those of IPRuleSet,
+ * the same the authenticator makes.
+ *
+ * The pool is shared by all realms and sized to half the processors by default, so
+ * an evaluation leaves room for logins; each realm runs one evaluation at a time.
+ *
+ * Output is CSV (ip,decision,matched_rule), followed by summary lines starting with '#':
+ * the totals per decision and the number of hits per matched rule.
+ */
+class IPRuleBatchEvaluator {
+
+    static final String DECISION_INVALID = "INVALID";
+
+    private static final int CHUNK_SIZE = 65536;
+    private static final int SPLIT_THRESHOLD = 2048;
+
+    // Realms with an evaluation running on this node
+    private static final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    private static int parallelism = defaultParallelism();
+    private static ForkJoinPool pool;
+
+    private final IPRuleSet ruleSet;
+    private final IPRuleIndex stored;
+    private final boolean details;
+
+    private long allowed;
+    private long denied;
+    private long notMatched;
+    private long invalid;
+    private final Map<String, long[]> hits = new LinkedHashMap<>();
+
+    IPRuleBatchEvaluator(IPRuleSet ruleSet, IPRuleIndex stored, boolean details) {
+        this.ruleSet = ruleSet;
+        this.stored = stored;
+        this.details = details;
+        // Report inline rules in configuration order, including those without hits
+        for (String rule : ruleSet.getRules()) {
+            hits.put(rule, new long[1]);
+        }
+    }
+
+    /**
+     * Threads evaluating IPs, 0 for half the processors
+     */
+    static synchronized void setParallelism(int parallelism) {
+        IPRuleBatchEvaluator.parallelism = parallelism > 0 ? parallelism : defaultParallelism();
+        close();
+    }
+
+    static synchronized void close() {
+        if (pool != null) {
+            // Running evaluations finish their current chunk, the next one gets a new pool
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Reserve the realm's evaluation, false if one is already running
+     */
+    static boolean tryStart(String realmId) {
+        return running.add(realmId);
+    }
+
+    static boolean isRunning(String realmId) {
+        return running.contains(realmId);
+    }
+
+    static void finish(String realmId) {
+        running.remove(realmId);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("ip-rule-what-if-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    private static int defaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Evaluate every line of the input; the IP is the first field of a line,
+     * so access logs can be fed as they are. Blank lines and '#' comments are skipped.
+     */
+    void evaluate(BufferedReader input, Writer output) throws IOException {
+        String[] current = readChunk(input);
+        while (current.length > 0) {
+            IPCheckResult[] results = new IPCheckResult[current.length];
+            ForkJoinTask<Void> task = pool().submit(new EvaluateTask(current, results, 0, current.length));
+            String[] next = readChunk(input);
+            task.join();
+            write(current, results, output);
+            current = next;
+        }
+        writeSummary(output);
+        output.flush();
+    }
+
+    private static String[] readChunk(BufferedReader input) throws IOException {
+        List<String> chunk = new ArrayList<>();
+        String line;
+        while (chunk.size() < CHUNK_SIZE && (line = input.readLine()) != null) {
+            String ip = firstField(line);
+            if (ip != null) {
+                chunk.add(ip);
+            }
+        }
+        return chunk.toArray(new String[0]);
+    }
+
+    private static String firstField(String line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        if (start == line.length() || line.charAt(start) == '#') {
+            return null;
+        }
+        int end = start;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != ',') {
+            end++;
+        }
+        return line.substring(start, end);
+    }
+
+    private void write(String[] ips, IPCheckResult[] results, Writer output) throws IOException {
+        for (int i = 0; i < ips.length; i++) {
+            IPCheckResult result = results[i];
+            String decision;
+            if (result == null) {
+                decision = DECISION_INVALID;
+                invalid++;
+            } else {
+                if (result.isAllowed()) {
+                    decision = IPRestrictionConstants.RULE_TYPE_ALLOW;
+                    allowed++;
+                } else if (result.isExplicitDeny()) {
+                    decision = IPRestrictionConstants.RULE_TYPE_DENY;
+                    denied++;
+                } else {
+                    decision = IPRestrictionConstants.RULE_TYPE_NO_MATCH;
+                    notMatched++;
+                }
+                hits.computeIfAbsent(result.getMatchedRule(), rule -> new long[1])[0]++;
+            }
+            if (details) {
+                output.write(ips[i]);
+                output.write(',');
+                output.write(decision);
+                output.write(',');
+                output.write(result == null ? "" : result.getMatchedRule());
+                output.write('\n');
+            }
+        }
+    }
+
+    private void writeSummary(Writer output) throws IOException {
+        output.write(String.format("# total=%d allow=%d deny=%d no_match=%d invalid=%d%n",
+            allowed + denied + notMatched + invalid, allowed, denied, notMatched, invalid));
+        output.write(String.format("# rule_set_version=%s%n", ruleSet.getVersion()));
+        for (Map.Entry<String, long[]> entry : hits.entrySet()) {
+            output.write(String.format("# hits %s %d%n", entry.getKey(), entry.getValue()[0]));
+        }
+    }
+
+    private class EvaluateTask extends RecursiveAction {
+        // Never serialized, RecursiveAction just happens to be Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final String[] ips;
+        private final transient IPCheckResult[] results;
+        private final int from;
+        private final int to;
+
+        EvaluateTask(String[] ips, IPCheckResult[] results, int from, int to) {
+            this.ips = ips;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluateTask(ips, results, from, middle), new EvaluateTask(ips, results, middle, to));
+                return;
+            }
+            long[] scratch = new long[2];
+            for (int i = from; i < to; i++) {
+                String ip = ips[i];
+                boolean valid = IPLiteralParser.parseIPv4(ip) != IPLiteralParser.INVALID
+                    || (ip.indexOf(':') >= 0 && IPLiteralParser.parseIPv6(ip, scratch));
+                results[i] = valid ? ruleSet.evaluate(ip, stored) : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel that retires expired IP rules
+ * Each configuration with time-limited rules schedules the earliest expiry; when it
+ * is due the configuration recompiles its rule set without the expired rules and
+ * swaps it in, then schedules its next expiry. Requests never look at expiry times.
+ *
+ * The wheel has SLOTS buckets of one tick each; a deadline further away than one
+ * turn waits for the required number of rounds in its bucket, so scheduling and
+ * each tick cost O(1) per entry regardless of how far away deadlines are.
+ * Configurations are held weakly, so a replaced configuration is simply dropped.
+ */
+class IPRuleExpiryWheel {
+
+    private static final Logger logger = Logger.getLogger(IPRuleExpiryWheel.class);
+
+    private static final IPRuleExpiryWheel INSTANCE = new IPRuleExpiryWheel();
+
+    private static final int SLOTS = 512;
+    private static final long TICK_MILLIS = 1000;
+
+    private final List<List<Timeout>> wheel = new ArrayList<>(SLOTS);
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startMillis = System.currentTimeMillis();
+    private long tick;
+    private ScheduledExecutorService worker;
+
+    private IPRuleExpiryWheel() {
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    static IPRuleExpiryWheel getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Call config.retireExpiredRules() once deadlineMillis has passed
+     */
+    void schedule(long deadlineMillis, IPRestrictionConfig config) {
+        pending.add(new Timeout(deadlineMillis, new WeakReference<>(config)));
+        startWorker();
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ip-rule-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Catch up to the current time, runs on the worker thread only
+     */
+    private void advance() {
+        long target = (System.currentTimeMillis() - startMillis) / TICK_MILLIS;
+        while (tick <= target) {
+            transferPending();
+            expire(wheel.get((int) (tick & (SLOTS - 1))));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            // Round up so a rule never retires early, and never schedule into the past
+            long deadlineTick = Math.max(tick, (timeout.deadlineMillis - startMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+            timeout.rounds = (deadlineTick - tick) / SLOTS;
+            wheel.get((int) (deadlineTick & (SLOTS - 1))).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        List<IPRestrictionConfig> due = null;
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            it.remove();
+            IPRestrictionConfig config = timeout.config.get();
+            if (config != null) {
+                if (due == null) {
+                    due = new ArrayList<>();
+                }
+                due.add(config);
+            }
+        }
+        if (due == null) {
+            return;
+        }
+        for (IPRestrictionConfig config : due) {
+            try {
+                config.retireExpiredRules();
+            } catch (RuntimeException e) {
+                logger.errorf(e, "Failed to retire expired IP rules");
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+    }
+
+    private static class Timeout {
+        private final long deadlineMillis;
+        private final WeakReference<IPRestrictionConfig> config;
+        private long rounds;
+
+        Timeout(long deadlineMillis, WeakReference<IPRestrictionConfig> config) {
+            this.deadlineMillis = deadlineMillis;
+            this.config = config;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updatable in-memory index of a stored IP rule set
+ * Unlike IPRuleSet, which is compiled once, rules are added and removed one at a
+ * time as changes arrive from the rule store, so a node never has to rebuild the
+ * whole index for a small change.
+ *
+ * Updates must come from a single thread at a time (the caller holds a lock);
+ * lookups are lock-free and may run concurrently with updates. Rule slots are not
+ * reused, so a lookup racing with a removal can never report a different rule.
+ * A fresh index should be built once getWaste() grows large.
+ */
+public class IPRuleIndex {
+
+    // Shared so a version is never repeated, even by a replacement index
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final IPv4PrefixTrie denyTrie = new IPv4PrefixTrie();
+    private final IPv4PrefixTrie allowTrie = new IPv4PrefixTrie();
+    private final IPv6PrefixTrie denyTrie6 = new IPv6PrefixTrie();
+    private final IPv6PrefixTrie allowTrie6 = new IPv6PrefixTrie();
+
+    // Written by the updating thread only
+    private final Map<String, Slot> slots = new HashMap<>();
+    private int nextSlot;
+
+    private volatile IPCheckResult[] results = new IPCheckResult[16];
+    private volatile int allowCount;
+    private volatile long version = VERSIONS.incrementAndGet();
+
+    /**
+     * Add a rule, replacing any rule with the same id
+     *
+     * @param rule the rule with its + or - prefix
+     * @return false if the rule is not a valid IP address or CIDR range
+     */
+    public boolean put(String id, String rule) {
+        boolean deny = rule.startsWith(IPRestrictionConstants.PREFIX_DENY);
+        if (!deny && !rule.startsWith(IPRestrictionConstants.PREFIX_ALLOW)) {
+            return false;
+        }
+        IPPrefix prefix = IPPrefix.parse(rule.substring(1).trim());
+        if (prefix == null) {
+            return false;
+        }
+
+        remove(id);
+
+        int index = nextSlot++;
+        IPCheckResult[] current = results;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[index] = deny
+            ? new IPCheckResult(false, true, rule, IPRestrictionConstants.RESTRICTION_REASON_BLOCKED)
+            : new IPCheckResult(true, false, rule, "Allowed");
+        // Publish the result before the trie can lead a lookup to it
+        results = current;
+
+        prefix.insert(deny ? denyTrie : allowTrie, deny ? denyTrie6 : allowTrie6, index);
+        slots.put(id, new Slot(prefix, index, deny));
+        if (!deny) {
+            allowCount++;
+        }
+        version = VERSIONS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remove a rule by id
+     *
+     * @return false if no rule with that id is indexed
+     */
+    public boolean remove(String id) {
+        Slot slot = slots.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        slot.prefix.remove(slot.deny ? denyTrie : allowTrie, slot.deny ? denyTrie6 : allowTrie6, slot.index);
+        if (!slot.deny) {
+            allowCount--;
+        }
+        version = VERSIONS.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Find the first matching deny or allow rule
+     *
+     * @param ipv4 the IPv4 address, or IPLiteralParser.INVALID
+     * @return the result of the matched rule, or null
+     */
+    IPCheckResult match(boolean deny, long ipv4, boolean isIPv6, long high, long low) {
+        int index = IPv4PrefixTrie.NO_MATCH;
+        if (ipv4 != IPLiteralParser.INVALID) {
+            index = (deny ? denyTrie : allowTrie).firstMatch((int) ipv4);
+        } else if (isIPv6) {
+            index = (deny ? denyTrie6 : allowTrie6).firstMatch(high, low);
+        }
+        return index == IPv4PrefixTrie.NO_MATCH ? null : results[index];
+    }
+
+    /**
+     * Changes after every update; read before evaluating so cached decisions are keyed conservatively
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean hasAllowRules() {
+        return allowCount > 0;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Number of slots held by removed rules
+     */
+    public int getWaste() {
+        return nextSlot - slots.size();
+    }
+
+    private static class Slot {
+        private final IPPrefix prefix;
+        private final int index;
+        private final boolean deny;
+
+        Slot(IPPrefix prefix, int index, boolean deny) {
+            this.prefix = prefix;
+            this.index = index;
+            this.deny = deny;
+        }
+    }
+}
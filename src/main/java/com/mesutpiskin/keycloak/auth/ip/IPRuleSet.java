@@ -0,0 +1,430 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled IP rule list
+ * Deny (-) and allow (+) rules are loaded into separate IPv4 and IPv6 prefix tries
+ * so a client IP is checked in a bounded number of steps regardless of how many
+ * rules exist. IPv4-mapped IPv6 addresses and ranges (::ffff:0:0/96 and longer)
+ * are normalized to IPv4, for rules as well as for client addresses.
+ *
+ * Semantics are those of the original two-pass check:
+ * 1. If any deny rule matches, the IP is blocked and the first matching deny rule is reported
+ * 2. Otherwise, if any allow rule matches, the IP is allowed and the first matching allow rule is reported
+ * 3. Otherwise the IP is blocked if allow rules exist and allowed if not
+ *
+ * Rules that are not IP literals or CIDR ranges are kept as literals and
+ * compared to the client IP as strings, as before.
+ *
+ * Range feeds (see IPRangeFeed) are consulted after the inline rules of the same
+ * kind: deny feeds after deny rules, allow feeds after allow rules.
+ *
+ * Country (country:DE) and autonomous system (asn:14061) rules are resolved against
+ * local MaxMind DB files (see GeoIPDatabase) and take part in the rule order like
+ * any other rule.
+ *
+ * Decisions for IP addresses are kept in a bounded IPDecisionCache, so clients that
+ * come back repeatedly (NAT gateways, corporate egress) cost a single hash probe.
+ */
+public class IPRuleSet {
+
+    private static final Logger logger = Logger.getLogger(IPRuleSet.class);
+
+    public static final IPRuleSet EMPTY = new IPRuleSet(Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+
+    private static final ThreadLocal<long[]> IPV6_SCRATCH = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final List<String> rules;
+    private final String version;
+    private final IPCheckResult[] results;
+    private final IPv4PrefixTrie denyTrie = new IPv4PrefixTrie();
+    private final IPv4PrefixTrie allowTrie = new IPv4PrefixTrie();
+    private final IPv6PrefixTrie denyTrie6 = new IPv6PrefixTrie();
+    private final IPv6PrefixTrie allowTrie6 = new IPv6PrefixTrie();
+    private final List<LiteralRule> denyLiterals = new ArrayList<>();
+    private final List<LiteralRule> allowLiterals = new ArrayList<>();
+    private final List<FeedRule> denyFeeds = new ArrayList<>();
+    private final List<FeedRule> allowFeeds = new ArrayList<>();
+    private final List<GeoRule> denyGeoRules = new ArrayList<>();
+    private final List<GeoRule> allowGeoRules = new ArrayList<>();
+    private final List<MappedFileRegistry.Handle<GeoIPDatabase>> geoDatabases = new ArrayList<>();
+    private boolean hasCountryRules;
+    private boolean hasAsnRules;
+    private boolean hasAllowRules;
+    private IPDecisionCache decisionCache;
+
+    private IPRuleSet(List<String> rules, List<String> feeds, List<String> geoDatabases) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.version = String.format("%08x", 31 * (31 * rules.hashCode() + feeds.hashCode()) + geoDatabases.hashCode());
+        this.results = new IPCheckResult[rules.size()];
+    }
+
+    /**
+     * Compile a list of rules in configuration order
+     */
+    public static IPRuleSet compile(List<String> rules) {
+        return compile(rules, Collections.emptyList());
+    }
+
+    /**
+     * Compile a list of rules and range feeds
+     *
+     * @param feeds feed file locations with a + or - prefix (e.g. -/etc/keycloak/blocklist.txt)
+     */
+    public static IPRuleSet compile(List<String> rules, List<String> feeds) {
+        return compile(rules, feeds, Collections.emptyList());
+    }
+
+    /**
+     * Compile a list of rules and range feeds, resolving country and ASN rules against GeoIP databases
+     *
+     * @param geoDatabases MaxMind DB file locations, consulted in order until one knows the address
+     */
+    public static IPRuleSet compile(List<String> rules, List<String> feeds, List<String> geoDatabases) {
+        IPRuleSet ruleSet = new IPRuleSet(rules, feeds, geoDatabases);
+        for (String location : geoDatabases) {
+            ruleSet.geoDatabases.add(GeoIPDatabaseRegistry.getInstance().acquire(location));
+        }
+        for (int index = 0; index < rules.size(); index++) {
+            ruleSet.add(index, rules.get(index));
+        }
+        for (String feed : feeds) {
+            ruleSet.addFeed(feed);
+        }
+        if ((ruleSet.hasCountryRules || ruleSet.hasAsnRules) && geoDatabases.isEmpty()) {
+            logger.warn("Country and ASN rules will never match, no GeoIP database is configured");
+        }
+        ruleSet.decisionCache = IPDecisionCache.createDefault();
+        return ruleSet;
+    }
+
+    /**
+     * Compile rules without a decision cache, for bulk evaluation of mostly distinct addresses
+     */
+    static IPRuleSet compileUncached(List<String> rules) {
+        IPRuleSet ruleSet = compile(rules);
+        ruleSet.decisionCache = null;
+        return ruleSet;
+    }
+
+    private void addFeed(String feed) {
+        boolean deny = feed.startsWith(IPRestrictionConstants.PREFIX_DENY);
+        if (!deny && !feed.startsWith(IPRestrictionConstants.PREFIX_ALLOW)) {
+            logger.warnf("Ignoring IP feed without + or - prefix: '%s'", feed);
+            return;
+        }
+
+        String location = feed.substring(1).trim();
+        String rule = feed.substring(0, 1) + IPRestrictionConstants.FEED_RULE_PREFIX + location;
+        IPCheckResult result = deny
+            ? new IPCheckResult(false, true, rule, IPRestrictionConstants.RESTRICTION_REASON_BLOCKED)
+            : new IPCheckResult(true, false, rule, "Allowed");
+
+        (deny ? denyFeeds : allowFeeds).add(new FeedRule(IPRangeFeedRegistry.getInstance().acquire(location), result));
+        if (!deny) {
+            hasAllowRules = true;
+        }
+    }
+
+    private void add(int index, String rule) {
+        boolean deny;
+        if (rule.startsWith(IPRestrictionConstants.PREFIX_DENY)) {
+            deny = true;
+            results[index] = new IPCheckResult(false, true, rule, IPRestrictionConstants.RESTRICTION_REASON_BLOCKED, index);
+        } else if (rule.startsWith(IPRestrictionConstants.PREFIX_ALLOW)) {
+            deny = false;
+            hasAllowRules = true;
+            results[index] = new IPCheckResult(true, false, rule, "Allowed", index);
+        } else {
+            logger.warnf("Ignoring IP rule without + or - prefix: '%s'", rule);
+            return;
+        }
+
+        String pattern = rule.substring(1).trim();
+        IPPrefix prefix = IPPrefix.parse(pattern);
+        if (prefix != null) {
+            prefix.insert(deny ? denyTrie : allowTrie, deny ? denyTrie6 : allowTrie6, index);
+        } else if (isGeoRule(pattern)) {
+            addGeoRule(deny, pattern, index, rule);
+        } else if (pattern.indexOf('/') >= 0) {
+            logger.warnf("Invalid CIDR rule will never match: '%s'", rule);
+        } else if (!pattern.isEmpty()) {
+            (deny ? denyLiterals : allowLiterals).add(new LiteralRule(pattern, index));
+        }
+    }
+
+    private static boolean isGeoRule(String pattern) {
+        return pattern.regionMatches(true, 0, IPRestrictionConstants.GEO_RULE_COUNTRY, 0, IPRestrictionConstants.GEO_RULE_COUNTRY.length())
+            || pattern.regionMatches(true, 0, IPRestrictionConstants.GEO_RULE_ASN, 0, IPRestrictionConstants.GEO_RULE_ASN.length());
+    }
+
+    private void addGeoRule(boolean deny, String pattern, int index, String rule) {
+        boolean asn = pattern.regionMatches(true, 0, IPRestrictionConstants.GEO_RULE_ASN, 0, IPRestrictionConstants.GEO_RULE_ASN.length());
+        String value = pattern.substring(pattern.indexOf(':') + 1).trim();
+        long parsed;
+        if (asn) {
+            parsed = parseASN(value);
+            hasAsnRules |= parsed > 0;
+        } else {
+            parsed = GeoIPDatabase.packCountry(value);
+            hasCountryRules |= parsed > 0;
+        }
+        if (parsed <= 0) {
+            logger.warnf("Invalid %s rule will never match: '%s'", asn ? "ASN" : "country", rule);
+            return;
+        }
+        (deny ? denyGeoRules : allowGeoRules).add(new GeoRule(asn, parsed, index));
+    }
+
+    private static long parseASN(String value) {
+        // Accept both 14061 and AS14061
+        String number = value.regionMatches(true, 0, "AS", 0, 2) ? value.substring(2) : value;
+        try {
+            long asn = Long.parseLong(number);
+            return asn > 0 && asn <= 0xffffffffL ? asn : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check a client IP against the rule set
+     */
+    public IPCheckResult evaluate(String clientIP) {
+        return evaluate(clientIP, null);
+    }
+
+    /**
+     * Check a client IP against the rule set and a stored rule set
+     * Stored rules are consulted after the inline rules and feeds of the same kind.
+     *
+     * @param stored index of the stored rule set, or null
+     */
+    public IPCheckResult evaluate(String clientIP, IPRuleIndex stored) {
+        long ipv4 = IPLiteralParser.parseIPv4(clientIP);
+        boolean isIPv6 = false;
+        long high = 0;
+        long low = 0;
+
+        if (ipv4 == IPLiteralParser.INVALID && clientIP != null && clientIP.indexOf(':') >= 0) {
+            long[] ipv6 = IPV6_SCRATCH.get();
+            if (IPLiteralParser.parseIPv6(clientIP, ipv6)) {
+                if (IPLiteralParser.isIPv4Mapped(ipv6[0], ipv6[1])) {
+                    ipv4 = ipv6[1] & 0xffffffffL;
+                } else {
+                    isIPv6 = true;
+                    high = ipv6[0];
+                    low = ipv6[1];
+                }
+            }
+        }
+
+        if (decisionCache == null || (ipv4 == IPLiteralParser.INVALID && !isIPv6)) {
+            return decide(clientIP, stored, ipv4, isIPv6, high, low);
+        }
+
+        // Versions are read before deciding, so a concurrent change can only cause a miss
+        boolean isIPv4 = ipv4 != IPLiteralParser.INVALID;
+        long keyLow = isIPv4 ? ipv4 : low;
+        long feedVersion = getFeedVersion();
+        long storedVersion = stored == null ? 0 : stored.getVersion();
+        IPCheckResult cached = decisionCache.get(isIPv4, high, keyLow, feedVersion, storedVersion);
+        if (cached != null) {
+            return cached;
+        }
+
+        IPCheckResult result = decide(clientIP, stored, ipv4, isIPv6, high, low);
+        decisionCache.put(isIPv4, high, keyLow, feedVersion, storedVersion, result);
+        return result;
+    }
+
+    private IPCheckResult decide(String clientIP, IPRuleIndex stored, long ipv4, boolean isIPv6, long high, long low) {
+        int country = hasCountryRules ? lookupCountry(ipv4, isIPv6, high, low) : 0;
+        long asn = hasAsnRules ? lookupASN(ipv4, isIPv6, high, low) : 0;
+
+        int deny = firstMatch(denyTrie, denyTrie6, denyLiterals, ipv4, isIPv6, high, low, clientIP);
+        deny = firstMatch(denyGeoRules, deny, country, asn);
+        if (deny != IPv4PrefixTrie.NO_MATCH) {
+            return results[deny];
+        }
+        IPCheckResult feedDeny = firstMatch(denyFeeds, ipv4, isIPv6, high, low);
+        if (feedDeny != null) {
+            return feedDeny;
+        }
+        IPCheckResult storedDeny = stored == null ? null : stored.match(true, ipv4, isIPv6, high, low);
+        if (storedDeny != null) {
+            return storedDeny;
+        }
+
+        int allow = firstMatch(allowTrie, allowTrie6, allowLiterals, ipv4, isIPv6, high, low, clientIP);
+        allow = firstMatch(allowGeoRules, allow, country, asn);
+        if (allow != IPv4PrefixTrie.NO_MATCH) {
+            return results[allow];
+        }
+        IPCheckResult feedAllow = firstMatch(allowFeeds, ipv4, isIPv6, high, low);
+        if (feedAllow != null) {
+            return feedAllow;
+        }
+        IPCheckResult storedAllow = stored == null ? null : stored.match(false, ipv4, isIPv6, high, low);
+        if (storedAllow != null) {
+            return storedAllow;
+        }
+
+        // If there are allow rules but IP didn't match any, deny
+        boolean anyAllowRules = hasAllowRules || (stored != null && stored.hasAllowRules());
+        return anyAllowRules ? IPCheckResult.NOT_ALLOWED : IPCheckResult.DEFAULT_ALLOWED;
+    }
+
+    private static int firstMatch(IPv4PrefixTrie trie4, IPv6PrefixTrie trie6, List<LiteralRule> literals,
+                                  long ipv4, boolean isIPv6, long high, long low, String clientIP) {
+        int best = IPv4PrefixTrie.NO_MATCH;
+        if (ipv4 != IPLiteralParser.INVALID) {
+            best = trie4.firstMatch((int) ipv4);
+        } else if (isIPv6) {
+            best = trie6.firstMatch(high, low);
+        }
+        for (int i = 0; i < literals.size(); i++) {
+            LiteralRule literal = literals.get(i);
+            if ((best == IPv4PrefixTrie.NO_MATCH || literal.index < best) && literal.pattern.equals(clientIP)) {
+                best = literal.index;
+            }
+        }
+        return best;
+    }
+
+    private static int firstMatch(List<GeoRule> geoRules, int best, int country, long asn) {
+        for (int i = 0; i < geoRules.size(); i++) {
+            GeoRule geoRule = geoRules.get(i);
+            if ((best == IPv4PrefixTrie.NO_MATCH || geoRule.index < best)
+                && geoRule.value == (geoRule.asn ? asn : country)) {
+                best = geoRule.index;
+            }
+        }
+        return best;
+    }
+
+    private int lookupCountry(long ipv4, boolean isIPv6, long high, long low) {
+        if (ipv4 == IPLiteralParser.INVALID && !isIPv6) {
+            return 0;
+        }
+        boolean isIPv4 = ipv4 != IPLiteralParser.INVALID;
+        for (int i = 0; i < geoDatabases.size(); i++) {
+            int country = geoDatabases.get(i).get().country(isIPv4, high, isIPv4 ? ipv4 : low);
+            if (country != 0) {
+                return country;
+            }
+        }
+        return 0;
+    }
+
+    private long lookupASN(long ipv4, boolean isIPv6, long high, long low) {
+        if (ipv4 == IPLiteralParser.INVALID && !isIPv6) {
+            return 0;
+        }
+        boolean isIPv4 = ipv4 != IPLiteralParser.INVALID;
+        for (int i = 0; i < geoDatabases.size(); i++) {
+            long asn = geoDatabases.get(i).get().asn(isIPv4, high, isIPv4 ? ipv4 : low);
+            if (asn != 0) {
+                return asn;
+            }
+        }
+        return 0;
+    }
+
+    private static IPCheckResult firstMatch(List<FeedRule> feeds, long ipv4, boolean isIPv6, long high, long low) {
+        for (int i = 0; i < feeds.size(); i++) {
+            FeedRule feed = feeds.get(i);
+            IPRangeFeed current = feed.handle.get();
+            if (ipv4 != IPLiteralParser.INVALID ? current.containsIPv4(ipv4) : isIPv6 && current.containsIPv6(high, low)) {
+                return feed.result;
+            }
+        }
+        return null;
+    }
+
+    private long getFeedVersion() {
+        // Feed and database versions only grow, so the sum changes whenever any of them is reloaded
+        long version = 0;
+        for (int i = 0; i < geoDatabases.size(); i++) {
+            version += geoDatabases.get(i).getVersion();
+        }
+        for (int i = 0; i < denyFeeds.size(); i++) {
+            version += denyFeeds.get(i).handle.getVersion();
+        }
+        for (int i = 0; i < allowFeeds.size(); i++) {
+            version += allowFeeds.get(i).handle.getVersion();
+        }
+        return version;
+    }
+
+    /**
+     * Number of decisions answered from the decision cache
+     */
+    public long getCacheHits() {
+        return decisionCache == null ? 0 : decisionCache.getHits();
+    }
+
+    /**
+     * Number of decisions that had to be evaluated
+     */
+    public long getCacheMisses() {
+        return decisionCache == null ? 0 : decisionCache.getMisses();
+    }
+
+    public List<String> getRules() {
+        return rules;
+    }
+
+    /**
+     * Short hash identifying the compiled rules, feeds and databases, reported in events
+     * together with the index of the matched rule instead of the whole rule list
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty() && denyFeeds.isEmpty() && allowFeeds.isEmpty();
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    private static class LiteralRule {
+        private final String pattern;
+        private final int index;
+
+        LiteralRule(String pattern, int index) {
+            this.pattern = pattern;
+            this.index = index;
+        }
+    }
+
+    private static class GeoRule {
+        private final boolean asn;
+        private final long value;
+        private final int index;
+
+        GeoRule(boolean asn, long value, int index) {
+            this.asn = asn;
+            this.value = value;
+            this.index = index;
+        }
+    }
+
+    private static class FeedRule {
+        private final MappedFileRegistry.Handle<IPRangeFeed> handle;
+        private final IPCheckResult result;
+
+        FeedRule(MappedFileRegistry.Handle<IPRangeFeed> handle, IPCheckResult result) {
+            this.handle = handle;
+            this.result = result;
+        }
+    }
+}
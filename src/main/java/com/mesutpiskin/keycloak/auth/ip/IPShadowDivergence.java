@@ -0,0 +1,75 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * A request the shadow rule set decided differently, as returned by the admin API
+ */
+public class IPShadowDivergence {
+
+    private long timestamp;
+    private String clientIP;
+    private String liveDecision;
+    private String liveRule;
+    private String shadowDecision;
+    private String shadowRule;
+
+    public IPShadowDivergence() {
+    }
+
+    public IPShadowDivergence(long timestamp, String clientIP, String liveDecision, String liveRule,
+                              String shadowDecision, String shadowRule) {
+        this.timestamp = timestamp;
+        this.clientIP = clientIP;
+        this.liveDecision = liveDecision;
+        this.liveRule = liveRule;
+        this.shadowDecision = shadowDecision;
+        this.shadowRule = shadowRule;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public String getClientIP() {
+        return clientIP;
+    }
+
+    public void setClientIP(String clientIP) {
+        this.clientIP = clientIP;
+    }
+
+    public String getLiveDecision() {
+        return liveDecision;
+    }
+
+    public void setLiveDecision(String liveDecision) {
+        this.liveDecision = liveDecision;
+    }
+
+    public String getLiveRule() {
+        return liveRule;
+    }
+
+    public void setLiveRule(String liveRule) {
+        this.liveRule = liveRule;
+    }
+
+    public String getShadowDecision() {
+        return shadowDecision;
+    }
+
+    public void setShadowDecision(String shadowDecision) {
+        this.shadowDecision = shadowDecision;
+    }
+
+    public String getShadowRule() {
+        return shadowRule;
+    }
+
+    public void setShadowRule(String shadowRule) {
+        this.shadowRule = shadowRule;
+    }
+}
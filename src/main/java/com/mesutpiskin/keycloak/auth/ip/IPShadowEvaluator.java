@@ -0,0 +1,81 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the shadow rule set of a configuration off the request thread
+ * The authenticator hands over the client IP and the decision it enforced; a
+ * small worker pool evaluates the shadow rules and records any divergence in
+ * the configuration's IPShadowStats. The queue is bounded: when it is full the
+ * evaluation is dropped and counted, so a slow or overloaded pool never holds
+ * up a login.
+ */
+class IPShadowEvaluator {
+
+    private static final IPShadowEvaluator INSTANCE = new IPShadowEvaluator();
+
+    private volatile int queueSize = IPRestrictionConstants.DEFAULT_SHADOW_QUEUE_SIZE;
+    private ThreadPoolExecutor executor;
+
+    static IPShadowEvaluator getInstance() {
+        return INSTANCE;
+    }
+
+    void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Queue the shadow evaluation of a request, never blocks
+     *
+     * @param live the decision the live rule set made for clientIP
+     */
+    void submit(IPRestrictionConfig config, String clientIP, IPRuleIndex stored, IPCheckResult live) {
+        executor().execute(new ShadowTask(config, clientIP, stored, live));
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            AtomicInteger threads = new AtomicInteger();
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ip-rule-shadow-" + threads.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> ((ShadowTask) runnable).config.getShadowStats().recordDropped());
+        }
+        return executor;
+    }
+
+    synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static class ShadowTask implements Runnable {
+        private final IPRestrictionConfig config;
+        private final String clientIP;
+        private final IPRuleIndex stored;
+        private final IPCheckResult live;
+
+        ShadowTask(IPRestrictionConfig config, String clientIP, IPRuleIndex stored, IPCheckResult live) {
+            this.config = config;
+            this.clientIP = clientIP;
+            this.stored = stored;
+            this.live = live;
+        }
+
+        @Override
+        public void run() {
+            IPCheckResult shadow = config.getShadowRuleSet().evaluate(clientIP, stored);
+            config.getShadowStats().record(clientIP, live, shadow);
+        }
+    }
+}
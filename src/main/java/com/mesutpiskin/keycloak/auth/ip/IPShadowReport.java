@@ -0,0 +1,147 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.List;
+
+/**
+ * Shadow evaluation results of one IP restriction configuration, as returned by the admin API
+ * Counters are per node and start when the configuration was last compiled.
+ */
+public class IPShadowReport {
+
+    private String configId;
+    private String configAlias;
+    private List<String> shadowRules;
+    private String liveRuleSetVersion;
+    private String shadowRuleSetVersion;
+    private long since;
+    private long evaluations;
+    private long newlyDenied;
+    private long newlyAllowed;
+    private long ruleChanged;
+    private long dropped;
+    private List<IPShadowDivergence> samples;
+
+    public IPShadowReport() {
+    }
+
+    IPShadowReport(String configId, String configAlias, IPRestrictionConfig config) {
+        IPShadowStats stats = config.getShadowStats();
+        this.configId = configId;
+        this.configAlias = configAlias;
+        this.shadowRules = config.getShadowRuleSet().getRules();
+        this.liveRuleSetVersion = config.getRuleSet().getVersion();
+        this.shadowRuleSetVersion = config.getShadowRuleSet().getVersion();
+        this.since = stats.getSince();
+        this.evaluations = stats.getEvaluations();
+        this.newlyDenied = stats.getNewlyDenied();
+        this.newlyAllowed = stats.getNewlyAllowed();
+        this.ruleChanged = stats.getRuleChanged();
+        this.dropped = stats.getDropped();
+        this.samples = stats.getSamples();
+    }
+
+    public String getConfigId() {
+        return configId;
+    }
+
+    public void setConfigId(String configId) {
+        this.configId = configId;
+    }
+
+    public String getConfigAlias() {
+        return configAlias;
+    }
+
+    public void setConfigAlias(String configAlias) {
+        this.configAlias = configAlias;
+    }
+
+    public List<String> getShadowRules() {
+        return shadowRules;
+    }
+
+    public void setShadowRules(List<String> shadowRules) {
+        this.shadowRules = shadowRules;
+    }
+
+    public String getLiveRuleSetVersion() {
+        return liveRuleSetVersion;
+    }
+
+    public void setLiveRuleSetVersion(String liveRuleSetVersion) {
+        this.liveRuleSetVersion = liveRuleSetVersion;
+    }
+
+    public String getShadowRuleSetVersion() {
+        return shadowRuleSetVersion;
+    }
+
+    public void setShadowRuleSetVersion(String shadowRuleSetVersion) {
+        this.shadowRuleSetVersion = shadowRuleSetVersion;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public void setSince(long since) {
+        this.since = since;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public void setEvaluations(long evaluations) {
+        this.evaluations = evaluations;
+    }
+
+    /**
+     * Requests the live rules allowed and the shadow rules would deny
+     */
+    public long getNewlyDenied() {
+        return newlyDenied;
+    }
+
+    public void setNewlyDenied(long newlyDenied) {
+        this.newlyDenied = newlyDenied;
+    }
+
+    /**
+     * Requests the live rules denied and the shadow rules would allow
+     */
+    public long getNewlyAllowed() {
+        return newlyAllowed;
+    }
+
+    public void setNewlyAllowed(long newlyAllowed) {
+        this.newlyAllowed = newlyAllowed;
+    }
+
+    /**
+     * Requests with the same decision but a different matched rule
+     */
+    public long getRuleChanged() {
+        return ruleChanged;
+    }
+
+    public void setRuleChanged(long ruleChanged) {
+        this.ruleChanged = ruleChanged;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public void setDropped(long dropped) {
+        this.dropped = dropped;
+    }
+
+    public List<IPShadowDivergence> getSamples() {
+        return samples;
+    }
+
+    public void setSamples(List<IPShadowDivergence> samples) {
+        this.samples = samples;
+    }
+}
@@ -0,0 +1,91 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome of shadow evaluations for one configuration
+ * Counts evaluations, decisions that differ from the live rule set (by direction)
+ * and evaluations dropped on overload, and keeps the most recent divergences as
+ * samples for review.
+ */
+class IPShadowStats {
+
+    static final int MAX_SAMPLES = 100;
+
+    private final long since = System.currentTimeMillis();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder newlyDenied = new LongAdder();
+    private final LongAdder newlyAllowed = new LongAdder();
+    private final LongAdder ruleChanged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final IPShadowDivergence[] samples = new IPShadowDivergence[MAX_SAMPLES];
+    private long sampleCount;
+
+    void record(String clientIP, IPCheckResult live, IPCheckResult shadow) {
+        evaluations.increment();
+        if (live.isAllowed() == shadow.isAllowed()) {
+            if (!live.getMatchedRule().equals(shadow.getMatchedRule())) {
+                ruleChanged.increment();
+            }
+            return;
+        }
+        (live.isAllowed() ? newlyDenied : newlyAllowed).increment();
+        IPShadowDivergence sample = new IPShadowDivergence(System.currentTimeMillis(), clientIP,
+            decision(live), live.getMatchedRule(), decision(shadow), shadow.getMatchedRule());
+        synchronized (samples) {
+            samples[(int) (sampleCount++ % MAX_SAMPLES)] = sample;
+        }
+    }
+
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    private static String decision(IPCheckResult result) {
+        if (result.isAllowed()) {
+            return IPRestrictionConstants.RULE_TYPE_ALLOW;
+        }
+        return result.isExplicitDeny() ? IPRestrictionConstants.RULE_TYPE_DENY : IPRestrictionConstants.RULE_TYPE_NO_MATCH;
+    }
+
+    long getSince() {
+        return since;
+    }
+
+    long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    long getNewlyDenied() {
+        return newlyDenied.sum();
+    }
+
+    long getNewlyAllowed() {
+        return newlyAllowed.sum();
+    }
+
+    long getRuleChanged() {
+        return ruleChanged.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Recent divergences, most recent first
+     */
+    List<IPShadowDivergence> getSamples() {
+        synchronized (samples) {
+            int count = (int) Math.min(sampleCount, MAX_SAMPLES);
+            List<IPShadowDivergence> recent = new ArrayList<>(count);
+            for (int i = 1; i <= count; i++) {
+                recent.add(samples[(int) ((sampleCount - i) % MAX_SAMPLES)]);
+            }
+            return recent;
+        }
+    }
+}
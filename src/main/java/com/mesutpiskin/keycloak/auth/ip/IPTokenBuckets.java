@@ -0,0 +1,130 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size table of token buckets keyed by a 64-bit address hash
+ *
+ * Memory is bounded by the table size chosen up front. Each bucket is a single
+ * long holding the time of its last update (upper 42 bits, milliseconds) and its
+ * token count (lower 22 bits, in 1/256 token units), so a bucket is updated with
+ * one compare-and-set and no locks; concurrent updates only contend on the same
+ * slot. A key is looked up in a window of PROBES slots; when the window is full,
+ * the least recently updated bucket is replaced. A bucket that has been idle long
+ * enough to refill completely carries no information, so evicting it is exact;
+ * only under heavy pressure can an active bucket be reset (to full, never to empty).
+ */
+class IPTokenBuckets {
+
+    private static final int PROBES = 8;
+    private static final int TOKEN_BITS = 22;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TOKEN = 256;
+
+    /**
+     * Largest supported bucket capacity
+     */
+    static final int MAX_BURST = (int) (TOKEN_MASK / TOKEN);
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+    private final int mask;
+    private final long capacity;
+    private final double refillPerMilli;
+    private final long epoch = System.nanoTime();
+
+    /**
+     * @param size number of buckets, rounded up to a power of two
+     * @param perMinute tokens added per minute
+     * @param burst bucket capacity
+     */
+    IPTokenBuckets(int size, int perMinute, int burst) {
+        int slots = Integer.highestOneBit(Math.max(PROBES, size - 1) << 1);
+        this.keys = new AtomicLongArray(slots);
+        this.states = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.capacity = Math.min(Math.max(1, burst), MAX_BURST) * TOKEN;
+        this.refillPerMilli = perMinute * (double) TOKEN / 60000;
+    }
+
+    /**
+     * Take a token from the bucket of a key
+     *
+     * @param key a non-zero hash of the address
+     * @return 0 if a token was taken, otherwise the milliseconds until the next token
+     */
+    long tryAcquire(long key) {
+        long now = (System.nanoTime() - epoch) / 1_000_000;
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        int victim = start;
+        long victimTime = Long.MAX_VALUE;
+
+        for (int probe = 0; probe < PROBES; probe++) {
+            int i = (start + probe) & mask;
+            long current = keys.get(i);
+            if (current == key) {
+                return take(i, now);
+            }
+            if (current == 0) {
+                if (keys.compareAndSet(i, 0, key)) {
+                    states.set(i, pack(now, capacity));
+                    return take(i, now);
+                }
+                if (keys.get(i) == key) {
+                    return take(i, now);
+                }
+                continue;
+            }
+            long updated = states.get(i) >>> TOKEN_BITS;
+            if (updated < victimTime) {
+                victimTime = updated;
+                victim = i;
+            }
+        }
+
+        // Window is full, reuse the least recently updated bucket
+        long replaced = keys.get(victim);
+        if (keys.compareAndSet(victim, replaced, key)) {
+            states.set(victim, pack(now, capacity));
+        }
+        return take(victim, now);
+    }
+
+    private long take(int i, long now) {
+        while (true) {
+            long state = states.get(i);
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            long elapsed = Math.max(0, now - last);
+            long available = Math.min(capacity, tokens + (long) (elapsed * refillPerMilli));
+
+            if (available < TOKEN) {
+                if (refillPerMilli <= 0) {
+                    return Long.MAX_VALUE;
+                }
+                return (long) Math.ceil((TOKEN - available) / refillPerMilli);
+            }
+            if (states.compareAndSet(i, state, pack(Math.max(now, last), available - TOKEN))) {
+                return 0;
+            }
+        }
+    }
+
+    private static long pack(long time, long tokens) {
+        return (time << TOKEN_BITS) | tokens;
+    }
+
+    /**
+     * Hash an address (or network) into a non-zero bucket key
+     */
+    static long key(long high, long low, int family, int prefixLength) {
+        long h = high * 0x9E3779B97F4A7C15L + low;
+        h += ((long) family << 8 | prefixLength) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
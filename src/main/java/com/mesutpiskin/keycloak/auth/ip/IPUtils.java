@@ -1,32 +1,26 @@
 package com.mesutpiskin.keycloak.auth.ip;
 
-import org.jboss.logging.Logger;
-
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.regex.Pattern;
-
 /**
  * Utility class for IP address validation and CIDR matching
+ * All parsing goes through IPLiteralParser, so no InetAddress is created and no
+ * name resolution can be triggered by a malformed or hostile input.
  */
 public class IPUtils {
 
-    private static final Logger logger = Logger.getLogger(IPUtils.class);
-    
-    // Regex patterns for IP validation
-    private static final Pattern IPV4_PATTERN = Pattern.compile(
-        "^((25[0-5]|(2[0-4]|1\\d|[1-9]|)\\d)\\.?\\b){4}$"
-    );
-    
-    private static final Pattern CIDR_PATTERN = Pattern.compile(
-        "^((25[0-5]|(2[0-4]|1\\d|[1-9]|)\\d)\\.?\\b){4}/([0-9]|[1-2][0-9]|3[0-2])$"
-    );
+    /**
+     * Per-thread scratch space for two parsed IPv6 addresses (high/low pairs)
+     */
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[4]);
+
+    private static final int FAMILY_INVALID = 0;
+    private static final int FAMILY_IPV4 = 4;
+    private static final int FAMILY_IPV6 = 6;
 
     /**
      * Check if an IP address matches a rule (can be single IP or CIDR notation)
      * 
      * @param clientIP The client IP address to check
-     * @param rule The rule (e.g., "192.168.1.1" or "192.168.0.0/24")
+     * @param rule The rule (e.g., "192.168.1.1", "2001:db8::1" or "192.168.0.0/24")
      * @return true if the IP matches the rule
      */
     public static boolean matchesRule(String clientIP, String rule) {
@@ -37,66 +31,102 @@ public class IPUtils {
         rule = rule.trim();
         
         // Check if rule is a CIDR notation
-        if (rule.contains("/")) {
+        if (rule.indexOf('/') >= 0) {
             return matchesCIDR(clientIP, rule);
-        } else {
-            // Simple IP match
+        }
+
+        // Single IP match, comparing parsed addresses so equivalent notations match
+        long[] scratch = SCRATCH.get();
+        int ruleFamily = parse(rule, 0, rule.length(), scratch, 0);
+        if (ruleFamily == FAMILY_INVALID) {
+            // Not an IP literal, fall back to plain comparison
             return clientIP.equals(rule);
         }
+        int clientFamily = parse(clientIP, 0, clientIP.length(), scratch, 2);
+        return clientFamily == ruleFamily && scratch[0] == scratch[2] && scratch[1] == scratch[3];
     }
 
     /**
      * Check if an IP address matches a CIDR range
      * 
      * @param ipAddress The IP address to check
-     * @param cidr The CIDR notation (e.g., "192.168.0.0/24")
+     * @param cidr The CIDR notation (e.g., "192.168.0.0/24" or "2001:db8::/32")
      * @return true if the IP is within the CIDR range
      */
     public static boolean matchesCIDR(String ipAddress, String cidr) {
-        try {
-            String[] parts = cidr.split("/");
-            if (parts.length != 2) {
-                logger.warnf("Invalid CIDR format: %s", cidr);
-                return false;
-            }
-
-            String networkAddress = parts[0];
-            int prefixLength = Integer.parseInt(parts[1]);
-
-            if (prefixLength < 0 || prefixLength > 32) {
-                logger.warnf("Invalid CIDR prefix length: %d", prefixLength);
-                return false;
-            }
+        if (ipAddress == null || cidr == null) {
+            return false;
+        }
 
-            byte[] ipBytes = InetAddress.getByName(ipAddress).getAddress();
-            byte[] networkBytes = InetAddress.getByName(networkAddress).getAddress();
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            return false;
+        }
 
-            if (ipBytes.length != 4 || networkBytes.length != 4) {
-                // Not IPv4
-                return false;
-            }
+        long[] scratch = SCRATCH.get();
+        int networkFamily = parse(cidr, 0, slash, scratch, 0);
+        int prefixLength = parsePrefixLength(cidr, slash + 1, cidr.length(), networkFamily);
+        if (prefixLength < 0) {
+            return false;
+        }
 
-            int mask = 0xffffffff << (32 - prefixLength);
+        int ipFamily = parse(ipAddress, 0, ipAddress.length(), scratch, 2);
+        if (ipFamily != networkFamily) {
+            // Different address families (or an invalid address) never match
+            return false;
+        }
 
-            int ipInt = byteArrayToInt(ipBytes);
-            int networkInt = byteArrayToInt(networkBytes);
+        if (networkFamily == FAMILY_IPV4) {
+            int network = IPv4PrefixTrie.mask((int) scratch[1], prefixLength);
+            return IPv4PrefixTrie.mask((int) scratch[3], prefixLength) == network;
+        }
+        return IPv6PrefixTrie.maskHigh(scratch[2], prefixLength) == IPv6PrefixTrie.maskHigh(scratch[0], prefixLength)
+            && IPv6PrefixTrie.maskLow(scratch[3], prefixLength) == IPv6PrefixTrie.maskLow(scratch[1], prefixLength);
+    }
 
-            return (ipInt & mask) == (networkInt & mask);
+    /**
+     * Parse an IPv4 or IPv6 literal into out[offset] (high) and out[offset + 1] (low)
+     * IPv4 and IPv4-mapped IPv6 addresses are stored as IPv4 in the low slot.
+     *
+     * @return the address family, or FAMILY_INVALID
+     */
+    private static int parse(CharSequence s, int from, int to, long[] out, int offset) {
+        long ipv4 = IPLiteralParser.parseIPv4(s, from, to);
+        if (ipv4 != IPLiteralParser.INVALID) {
+            out[offset] = 0;
+            out[offset + 1] = ipv4;
+            return FAMILY_IPV4;
+        }
 
-        } catch (UnknownHostException | NumberFormatException e) {
-            logger.warnf(e, "Error matching CIDR %s for IP %s", cidr, ipAddress);
-            return false;
+        if (!IPLiteralParser.parseIPv6(s, from, to, out, offset)) {
+            return FAMILY_INVALID;
+        }
+        if (IPLiteralParser.isIPv4Mapped(out[offset], out[offset + 1])) {
+            out[offset] = 0;
+            out[offset + 1] = out[offset + 1] & 0xffffffffL;
+            return FAMILY_IPV4;
         }
+        return FAMILY_IPV6;
     }
 
     /**
-     * Convert byte array to integer
+     * Parse a decimal prefix length valid for the given address family
+     *
+     * @return the prefix length, or -1 if invalid
      */
-    private static int byteArrayToInt(byte[] bytes) {
-        return ((bytes[0] & 0xFF) << 24) |
-               ((bytes[1] & 0xFF) << 16) |
-               ((bytes[2] & 0xFF) << 8) |
-               (bytes[3] & 0xFF);
+    private static int parsePrefixLength(CharSequence s, int from, int to, int family) {
+        if (family == FAMILY_INVALID || from >= to || to - from > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= (family == FAMILY_IPV4 ? 32 : 128) ? value : -1;
     }
 
     /**
@@ -106,17 +136,36 @@ public class IPUtils {
         if (ip == null || ip.trim().isEmpty()) {
             return false;
         }
-        return IPV4_PATTERN.matcher(ip.trim()).matches();
+        return IPLiteralParser.parseIPv4(ip.trim()) != IPLiteralParser.INVALID;
     }
 
     /**
-     * Validate if a string is a valid CIDR notation
+     * Validate if a string is a valid IPv6 address
+     */
+    public static boolean isValidIPv6(String ip) {
+        if (ip == null || ip.trim().isEmpty()) {
+            return false;
+        }
+        return IPLiteralParser.parseIPv6(ip.trim(), SCRATCH.get());
+    }
+
+    /**
+     * Validate if a string is a valid CIDR notation (IPv4 or IPv6)
      */
     public static boolean isValidCIDR(String cidr) {
         if (cidr == null || cidr.trim().isEmpty()) {
             return false;
         }
-        return CIDR_PATTERN.matcher(cidr.trim()).matches();
+        cidr = cidr.trim();
+
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            return false;
+        }
+        long[] scratch = SCRATCH.get();
+        int family = IPLiteralParser.parseIPv4(cidr, 0, slash) != IPLiteralParser.INVALID ? FAMILY_IPV4
+            : IPLiteralParser.parseIPv6(cidr, 0, slash, scratch) ? FAMILY_IPV6 : FAMILY_INVALID;
+        return parsePrefixLength(cidr, slash + 1, cidr.length(), family) >= 0;
     }
 
     /**
@@ -132,14 +181,17 @@ public class IPUtils {
         if (rule.contains("/")) {
             return isValidCIDR(rule);
         } else {
-            return isValidIPv4(rule);
+            return isValidIPv4(rule) || isValidIPv6(rule);
         }
     }
 
     /**
      * Extract the actual IP address from X-Forwarded-For header
      * Takes the first IP if multiple are present
+     *
+     * @deprecated the first entry is chosen by the client and can be spoofed, use ClientIPResolver
      */
+    @Deprecated
     public static String extractIPFromForwardedHeader(String forwardedFor) {
         if (forwardedFor == null || forwardedFor.trim().isEmpty()) {
             return null;
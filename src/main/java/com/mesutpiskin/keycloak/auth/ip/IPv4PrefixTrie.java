@@ -0,0 +1,166 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Path-compressed binary (Patricia) trie of IPv4 prefixes
+ * Every prefix carries the index of the rule it came from. A lookup walks at most
+ * 32 bits of the address and returns the smallest rule index among all prefixes
+ * containing it, i.e. the first matching rule in configuration order, no matter
+ * how many prefixes are stored.
+ *
+ * Lookups need no synchronization. A compiled rule set fills the trie once; the
+ * rule store index (IPRuleIndex) also updates it in place, which is safe with
+ * concurrent lookups as long as there is a single writer at a time: new nodes are
+ * fully built before they are linked in and all links are volatile.
+ */
+class IPv4PrefixTrie {
+
+    static final int NO_MATCH = -1;
+
+    private final Node root = new Node(0, 0);
+    private volatile int size;
+
+    /**
+     * Add a prefix; host bits beyond the prefix length are ignored
+     */
+    void insert(int address, int prefixLength, int ruleIndex) {
+        int prefix = mask(address, prefixLength);
+        Node node = root;
+
+        while (true) {
+            if (node.length == prefixLength) {
+                node.addRule(ruleIndex);
+                size++;
+                return;
+            }
+
+            int bit = bitAt(prefix, node.length);
+            Node child = node.child(bit);
+            if (child == null) {
+                Node leaf = new Node(prefix, prefixLength);
+                leaf.addRule(ruleIndex);
+                node.setChild(bit, leaf);
+                size++;
+                return;
+            }
+
+            int common = Math.min(commonPrefixLength(child.bits, prefix), Math.min(child.length, prefixLength));
+            if (common == child.length) {
+                node = child;
+                continue;
+            }
+
+            // Split the edge to the child at the first differing bit
+            Node split = new Node(mask(prefix, common), common);
+            split.setChild(bitAt(child.bits, common), child);
+            if (common == prefixLength) {
+                split.addRule(ruleIndex);
+            } else {
+                Node leaf = new Node(prefix, prefixLength);
+                leaf.addRule(ruleIndex);
+                split.setChild(bitAt(prefix, common), leaf);
+            }
+            node.setChild(bit, split);
+            size++;
+            return;
+        }
+    }
+
+    /**
+     * Remove a prefix that was inserted with the given rule index
+     * Nodes are left in place; an emptied node simply no longer reports a rule.
+     *
+     * @return false if the prefix is not stored for that rule
+     */
+    boolean remove(int address, int prefixLength, int ruleIndex) {
+        int prefix = mask(address, prefixLength);
+        Node node = root;
+
+        while (node != null && node.length <= prefixLength && mask(prefix, node.length) == node.bits) {
+            if (node.length == prefixLength) {
+                if (node.ruleIndex != ruleIndex) {
+                    return false;
+                }
+                node.ruleIndex = NO_MATCH;
+                size--;
+                return true;
+            }
+            node = node.child(bitAt(prefix, node.length));
+        }
+        return false;
+    }
+
+    /**
+     * Smallest rule index among the prefixes containing the address, or NO_MATCH
+     */
+    int firstMatch(int address) {
+        int best = NO_MATCH;
+        Node node = root;
+
+        while (node != null) {
+            if (mask(address, node.length) != node.bits) {
+                break;
+            }
+            int ruleIndex = node.ruleIndex;
+            if (ruleIndex != NO_MATCH && (best == NO_MATCH || ruleIndex < best)) {
+                best = ruleIndex;
+            }
+            if (node.length == 32) {
+                break;
+            }
+            node = node.child(bitAt(address, node.length));
+        }
+
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    static int mask(int address, int prefixLength) {
+        return prefixLength == 0 ? 0 : address & (-1 << (32 - prefixLength));
+    }
+
+    private static int bitAt(int address, int position) {
+        return (address >>> (31 - position)) & 1;
+    }
+
+    private static int commonPrefixLength(int a, int b) {
+        return Integer.numberOfLeadingZeros(a ^ b);
+    }
+
+    private static class Node {
+        private final int bits;
+        private final int length;
+        private volatile int ruleIndex = NO_MATCH;
+        private volatile Node zero;
+        private volatile Node one;
+
+        Node(int bits, int length) {
+            this.bits = bits;
+            this.length = length;
+        }
+
+        void addRule(int index) {
+            if (ruleIndex == NO_MATCH || index < ruleIndex) {
+                ruleIndex = index;
+            }
+        }
+
+        Node child(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0) {
+                zero = child;
+            } else {
+                one = child;
+            }
+        }
+    }
+}
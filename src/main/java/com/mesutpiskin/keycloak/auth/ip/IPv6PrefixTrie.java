@@ -0,0 +1,182 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+/**
+ * Path-compressed binary (Patricia) trie of IPv6 prefixes
+ * Addresses are held as two 64-bit halves. Like IPv4PrefixTrie, a lookup walks at
+ * most 128 bits and returns the smallest rule index among all prefixes containing
+ * the address. Like IPv4PrefixTrie, it tolerates in-place updates from a single
+ * writer concurrently with lookups.
+ */
+class IPv6PrefixTrie {
+
+    static final int NO_MATCH = -1;
+
+    private final Node root = new Node(0, 0, 0);
+    private volatile int size;
+
+    /**
+     * Add a prefix; host bits beyond the prefix length are ignored
+     */
+    void insert(long high, long low, int prefixLength, int ruleIndex) {
+        long prefixHigh = maskHigh(high, prefixLength);
+        long prefixLow = maskLow(low, prefixLength);
+        Node node = root;
+
+        while (true) {
+            if (node.length == prefixLength) {
+                node.addRule(ruleIndex);
+                size++;
+                return;
+            }
+
+            int bit = bitAt(prefixHigh, prefixLow, node.length);
+            Node child = node.child(bit);
+            if (child == null) {
+                Node leaf = new Node(prefixHigh, prefixLow, prefixLength);
+                leaf.addRule(ruleIndex);
+                node.setChild(bit, leaf);
+                size++;
+                return;
+            }
+
+            int common = Math.min(commonPrefixLength(child.high, child.low, prefixHigh, prefixLow),
+                                  Math.min(child.length, prefixLength));
+            if (common == child.length) {
+                node = child;
+                continue;
+            }
+
+            // Split the edge to the child at the first differing bit
+            Node split = new Node(maskHigh(prefixHigh, common), maskLow(prefixLow, common), common);
+            split.setChild(bitAt(child.high, child.low, common), child);
+            if (common == prefixLength) {
+                split.addRule(ruleIndex);
+            } else {
+                Node leaf = new Node(prefixHigh, prefixLow, prefixLength);
+                leaf.addRule(ruleIndex);
+                split.setChild(bitAt(prefixHigh, prefixLow, common), leaf);
+            }
+            node.setChild(bit, split);
+            size++;
+            return;
+        }
+    }
+
+    /**
+     * Remove a prefix that was inserted with the given rule index
+     *
+     * @return false if the prefix is not stored for that rule
+     */
+    boolean remove(long high, long low, int prefixLength, int ruleIndex) {
+        long prefixHigh = maskHigh(high, prefixLength);
+        long prefixLow = maskLow(low, prefixLength);
+        Node node = root;
+
+        while (node != null && node.length <= prefixLength
+               && maskHigh(prefixHigh, node.length) == node.high && maskLow(prefixLow, node.length) == node.low) {
+            if (node.length == prefixLength) {
+                if (node.ruleIndex != ruleIndex) {
+                    return false;
+                }
+                node.ruleIndex = NO_MATCH;
+                size--;
+                return true;
+            }
+            node = node.child(bitAt(prefixHigh, prefixLow, node.length));
+        }
+        return false;
+    }
+
+    /**
+     * Smallest rule index among the prefixes containing the address, or NO_MATCH
+     */
+    int firstMatch(long high, long low) {
+        int best = NO_MATCH;
+        Node node = root;
+
+        while (node != null) {
+            if (maskHigh(high, node.length) != node.high || maskLow(low, node.length) != node.low) {
+                break;
+            }
+            int ruleIndex = node.ruleIndex;
+            if (ruleIndex != NO_MATCH && (best == NO_MATCH || ruleIndex < best)) {
+                best = ruleIndex;
+            }
+            if (node.length == 128) {
+                break;
+            }
+            node = node.child(bitAt(high, low, node.length));
+        }
+
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    static long maskHigh(long high, int prefixLength) {
+        if (prefixLength >= 64) {
+            return high;
+        }
+        return prefixLength == 0 ? 0 : high & (-1L << (64 - prefixLength));
+    }
+
+    static long maskLow(long low, int prefixLength) {
+        if (prefixLength <= 64) {
+            return 0;
+        }
+        return prefixLength == 128 ? low : low & (-1L << (128 - prefixLength));
+    }
+
+    private static int bitAt(long high, long low, int position) {
+        return position < 64
+            ? (int) ((high >>> (63 - position)) & 1)
+            : (int) ((low >>> (127 - position)) & 1);
+    }
+
+    private static int commonPrefixLength(long high1, long low1, long high2, long low2) {
+        long diff = high1 ^ high2;
+        if (diff != 0) {
+            return Long.numberOfLeadingZeros(diff);
+        }
+        return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+    }
+
+    private static class Node {
+        private final long high;
+        private final long low;
+        private final int length;
+        private volatile int ruleIndex = NO_MATCH;
+        private volatile Node zero;
+        private volatile Node one;
+
+        Node(long high, long low, int length) {
+            this.high = high;
+            this.low = low;
+            this.length = length;
+        }
+
+        void addRule(int index) {
+            if (ruleIndex == NO_MATCH || index < ruleIndex) {
+                ruleIndex = index;
+            }
+        }
+
+        Node child(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0) {
+                zero = child;
+            } else {
+                one = child;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Shared registry of memory-mapped files referenced by compiled rule sets
+ * Each file is loaded once no matter how many configurations reference it.
+ * A background thread polls the files for changes and loads a replacement off the
+ * request path; the new version is then swapped in atomically, so in-flight logins
+ * keep using the version they started with and never wait for a reload. Replace a
+ * file by moving the new version over it rather than rewriting it in place.
+ *
+ * The registry only holds weak references: a file stays loaded as long as a
+ * compiled rule set uses it, and is dropped by the watcher once the last rule
+ * set referencing it was replaced.
+ *
+ * @param <T> the loaded file
+ */
+public class MappedFileRegistry<T extends MappedFileRegistry.MappedFile> {
+
+    private static final Logger logger = Logger.getLogger(MappedFileRegistry.class);
+
+    /**
+     * A loaded version of a file
+     */
+    public interface MappedFile {
+        /**
+         * Modification time of the file when it was loaded
+         */
+        long getLastModified();
+
+        /**
+         * Size of the file when it was loaded
+         */
+        long getFileSize();
+    }
+
+    /**
+     * Maps a file, throwing if it is missing or malformed
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load(Path path) throws IOException;
+    }
+
+    private final String kind;
+    private final String threadName;
+    private final T empty;
+    private final Loader<T> loader;
+    private final Function<T, String> summary;
+    private final ConcurrentMap<Path, WeakReference<Handle<T>>> handles = new ConcurrentHashMap<>();
+    private volatile long reloadIntervalSeconds = IPRestrictionConstants.DEFAULT_FEED_RELOAD_INTERVAL;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * @param kind what the files are, for log messages
+     * @param threadName name of the watcher thread
+     * @param empty version used until the file was loaded once
+     * @param loader maps a file
+     * @param summary describes a loaded version for the log, e.g. "with 12 ranges"
+     */
+    protected MappedFileRegistry(String kind, String threadName, T empty, Loader<T> loader, Function<T, String> summary) {
+        this.kind = kind;
+        this.threadName = threadName;
+        this.empty = empty;
+        this.loader = loader;
+        this.summary = summary;
+    }
+
+    /**
+     * Get the handle of a file, loading it on first use
+     */
+    public Handle<T> acquire(String location) {
+        Path path = Paths.get(location).toAbsolutePath().normalize();
+        Handle<T> handle = null;
+        while (handle == null) {
+            WeakReference<Handle<T>> reference = handles.get(path);
+            handle = reference == null ? null : reference.get();
+            if (handle == null) {
+                Handle<T> created = new Handle<>(this, path);
+                WeakReference<Handle<T>> createdReference = new WeakReference<>(created);
+                boolean installed = reference == null
+                    ? handles.putIfAbsent(path, createdReference) == null
+                    : handles.replace(path, reference, createdReference);
+                handle = installed ? created : null;
+            }
+        }
+        // Loaded outside the map, so only the callers waiting for this file wait for the load
+        handle.loadIfNeeded();
+        startWatcher();
+        return handle;
+    }
+
+    public void setReloadIntervalSeconds(long reloadIntervalSeconds) {
+        this.reloadIntervalSeconds = Math.max(1, reloadIntervalSeconds);
+    }
+
+    private synchronized void startWatcher() {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::checkForChanges, reloadIntervalSeconds, reloadIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void checkForChanges() {
+        for (Map.Entry<Path, WeakReference<Handle<T>>> entry : handles.entrySet()) {
+            Handle<T> handle = entry.getValue().get();
+            if (handle == null) {
+                // No compiled rule set uses the file anymore
+                handles.remove(entry.getKey(), entry.getValue());
+                logger.debugf("Released %s %s", kind, entry.getKey());
+                continue;
+            }
+            try {
+                handle.reloadIfChanged();
+            } catch (RuntimeException e) {
+                logger.errorf(e, "Unexpected error while checking %s %s", kind, handle.path);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+        handles.clear();
+    }
+
+    /**
+     * Stable reference to the current version of a file
+     */
+    public static class Handle<T extends MappedFile> {
+        private final MappedFileRegistry<T> registry;
+        private final Path path;
+        private volatile T current;
+        private volatile long version;
+        private boolean missingReported;
+        private long failedModified = -1;
+        private long failedSize = -1;
+        private boolean loaded;
+
+        Handle(MappedFileRegistry<T> registry, Path path) {
+            this.registry = registry;
+            this.path = path;
+            this.current = registry.empty;
+        }
+
+        synchronized void loadIfNeeded() {
+            if (!loaded) {
+                loaded = true;
+                reloadIfChanged();
+            }
+        }
+
+        public T get() {
+            return current;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Number of times the file was (re)loaded, only ever increases
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        synchronized void reloadIfChanged() {
+            loaded = true;
+            String kind = registry.kind;
+            try {
+                if (!Files.isRegularFile(path)) {
+                    if (!missingReported) {
+                        logger.warnf("%s %s does not exist, keeping the last loaded version if any", kind, path);
+                        missingReported = true;
+                    }
+                    return;
+                }
+                missingReported = false;
+                long lastModified = Files.getLastModifiedTime(path).toMillis();
+                long size = Files.size(path);
+                if (current != registry.empty && lastModified == current.getLastModified() && size == current.getFileSize()) {
+                    return;
+                }
+                if (lastModified == failedModified && size == failedSize) {
+                    // Same broken file as last time, wait for it to change
+                    return;
+                }
+
+                long started = System.nanoTime();
+                try {
+                    T loaded = registry.loader.load(path);
+                    current = loaded;
+                    version++;
+                    logger.infof("Loaded %s %s %s in %d ms", kind, path, registry.summary.apply(loaded),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                } catch (IOException e) {
+                    failedModified = lastModified;
+                    failedSize = size;
+                    throw e;
+                }
+            } catch (IOException e) {
+                logger.errorf(e, "Failed to load %s %s, keeping the previous version", kind, path);
+            }
+        }
+    }
+}
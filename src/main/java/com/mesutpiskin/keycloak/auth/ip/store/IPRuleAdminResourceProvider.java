@@ -0,0 +1,23 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+/**
+ * Provides the stored IP rules admin resource under /admin/realms/{realm}/ip-rules
+ */
+public class IPRuleAdminResourceProvider implements AdminRealmResourceProvider {
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new IPRuleResource(session, realm, auth, adminEvent);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,144 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Entry of the per-realm rule change log
+ * Sequence numbers are assigned while holding the realm's IPRuleStateEntity row
+ * lock, so they are gap-free and become visible in order. Nodes replay the entries
+ * after the last sequence they applied.
+ */
+@Entity
+@Table(name = "IP_RESTRICTION_RULE_CHANGE")
+@IdClass(IPRuleChangeEntity.Key.class)
+@NamedQueries({
+    @NamedQuery(name = "getIPRuleChangesAfter",
+        query = "select c from IPRuleChangeEntity c where c.realmId = :realmId and c.sequence > :sequence order by c.sequence"),
+    @NamedQuery(name = "deleteIPRuleChangesBefore",
+        query = "delete from IPRuleChangeEntity c where c.realmId = :realmId and c.sequence < :sequence"),
+    @NamedQuery(name = "deleteIPRuleChangesByRealm",
+        query = "delete from IPRuleChangeEntity c where c.realmId = :realmId")
+})
+public class IPRuleChangeEntity {
+
+    public static final String OPERATION_ADD = "A";
+    public static final String OPERATION_REMOVE = "R";
+    public static final String OPERATION_CLEAR = "C";
+
+    @Id
+    @Column(name = "REALM_ID", length = 36)
+    private String realmId;
+
+    @Id
+    @Column(name = "SEQ")
+    private long sequence;
+
+    @Column(name = "OPERATION", nullable = false, length = 1)
+    private String operation;
+
+    @Column(name = "RULE_SET", nullable = false)
+    private String ruleSet;
+
+    @Column(name = "RULE_ID", length = 36)
+    private String ruleId;
+
+    @Column(name = "RULE_VALUE")
+    private String rule;
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getRuleSet() {
+        return ruleSet;
+    }
+
+    public void setRuleSet(String ruleSet) {
+        this.ruleSet = ruleSet;
+    }
+
+    public String getRuleId() {
+        return ruleId;
+    }
+
+    public void setRuleId(String ruleId) {
+        this.ruleId = ruleId;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public void setRule(String rule) {
+        this.rule = rule;
+    }
+
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String realmId;
+        private long sequence;
+
+        public Key() {
+        }
+
+        public Key(String realmId, long sequence) {
+            this.realmId = realmId;
+            this.sequence = sequence;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sequence == key.sequence && Objects.equals(realmId, key.realmId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(realmId, sequence);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * Stored IP rule
+ * The covered range is kept in indexed columns (first and last address as two
+ * 64-bit halves each) so rules containing an address can be found in the database.
+ * The halves are stored with the sign bit flipped, which makes the signed column
+ * order match the unsigned address order.
+ */
+@Entity
+@Table(name = "IP_RESTRICTION_RULE")
+@NamedQueries({
+    @NamedQuery(name = "getIPRulesByRuleSet",
+        query = "select r from IPRuleEntity r where r.realmId = :realmId and r.ruleSet = :ruleSet order by r.createdTimestamp, r.id"),
+    @NamedQuery(name = "getIPRuleValuesByRealm",
+        query = "select r.id, r.ruleSet, r.rule from IPRuleEntity r where r.realmId = :realmId order by r.createdTimestamp, r.id"),
+    @NamedQuery(name = "countIPRulesByRuleSet",
+        query = "select count(r) from IPRuleEntity r where r.realmId = :realmId and r.ruleSet = :ruleSet"),
+    @NamedQuery(name = "getIPRuleKeysByRuleSet",
+        query = "select r.deny, r.family, r.startHigh, r.startLow, r.prefixLength from IPRuleEntity r where r.realmId = :realmId and r.ruleSet = :ruleSet"),
+    @NamedQuery(name = "getIPRulesContaining",
+        query = "select r from IPRuleEntity r where r.realmId = :realmId and r.ruleSet = :ruleSet and r.family = :family"
+            + " and (r.startHigh < :high or (r.startHigh = :high and r.startLow <= :low))"
+            + " and (r.endHigh > :high or (r.endHigh = :high and r.endLow >= :low))"
+            + " order by r.createdTimestamp, r.id"),
+    @NamedQuery(name = "deleteIPRulesByRuleSet",
+        query = "delete from IPRuleEntity r where r.realmId = :realmId and r.ruleSet = :ruleSet"),
+    @NamedQuery(name = "deleteIPRulesByRealm",
+        query = "delete from IPRuleEntity r where r.realmId = :realmId")
+})
+public class IPRuleEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false, length = 36)
+    private String realmId;
+
+    @Column(name = "RULE_SET", nullable = false)
+    private String ruleSet;
+
+    @Column(name = "RULE_VALUE", nullable = false)
+    private String rule;
+
+    @Column(name = "IS_DENY", nullable = false)
+    private boolean deny;
+
+    @Column(name = "FAMILY", nullable = false)
+    private int family;
+
+    @Column(name = "PREFIX_LENGTH", nullable = false)
+    private int prefixLength;
+
+    @Column(name = "START_HIGH", nullable = false)
+    private long startHigh;
+
+    @Column(name = "START_LOW", nullable = false)
+    private long startLow;
+
+    @Column(name = "END_HIGH", nullable = false)
+    private long endHigh;
+
+    @Column(name = "END_LOW", nullable = false)
+    private long endLow;
+
+    @Column(name = "CREATED_TIMESTAMP", nullable = false)
+    private long createdTimestamp;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getRuleSet() {
+        return ruleSet;
+    }
+
+    public void setRuleSet(String ruleSet) {
+        this.ruleSet = ruleSet;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public void setRule(String rule) {
+        this.rule = rule;
+    }
+
+    public boolean isDeny() {
+        return deny;
+    }
+
+    public void setDeny(boolean deny) {
+        this.deny = deny;
+    }
+
+    public int getFamily() {
+        return family;
+    }
+
+    public void setFamily(int family) {
+        this.family = family;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public void setPrefixLength(int prefixLength) {
+        this.prefixLength = prefixLength;
+    }
+
+    public long getStartHigh() {
+        return startHigh;
+    }
+
+    public void setStartHigh(long startHigh) {
+        this.startHigh = startHigh;
+    }
+
+    public long getStartLow() {
+        return startLow;
+    }
+
+    public void setStartLow(long startLow) {
+        this.startLow = startLow;
+    }
+
+    public long getEndHigh() {
+        return endHigh;
+    }
+
+    public void setEndHigh(long endHigh) {
+        this.endHigh = endHigh;
+    }
+
+    public long getEndLow() {
+        return endLow;
+    }
+
+    public void setEndLow(long endLow) {
+        this.endLow = endLow;
+    }
+
+    public long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk rule import
+ * Only the first invalid rules are listed, the count covers all of them.
+ */
+public class IPRuleImportResult {
+
+    private static final int MAX_INVALID_LISTED = 100;
+
+    private int added;
+    private int skipped;
+    private int invalidCount;
+    private final List<String> invalid = new ArrayList<>();
+
+    void addAdded() {
+        added++;
+    }
+
+    void addSkipped() {
+        skipped++;
+    }
+
+    void addInvalid(String rule) {
+        if (invalid.size() < MAX_INVALID_LISTED) {
+            invalid.add(rule);
+        }
+        invalidCount++;
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getInvalidCount() {
+        return invalidCount;
+    }
+
+    public List<String> getInvalid() {
+        return invalid;
+    }
+}
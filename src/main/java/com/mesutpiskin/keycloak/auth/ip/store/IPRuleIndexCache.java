@@ -0,0 +1,224 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import com.mesutpiskin.keycloak.auth.ip.IPRestrictionConstants;
+import com.mesutpiskin.keycloak.auth.ip.IPRuleIndex;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node-local indexes of the stored IP rule sets
+ * A realm's rules are loaded in full once; after that, at most once per sync
+ * interval, the node reads the realm's change log sequence and replays only the
+ * new entries into the existing indexes. A full reload is only needed when the
+ * node fell behind the retained change log or an index carries too many
+ * removed slots. Only one request per realm syncs at a time; all others keep
+ * evaluating against the current indexes.
+ *
+ * Until the first load succeeded there is nothing to evaluate against: requests
+ * wait a few seconds for a load in progress, then get an
+ * IPRuleStoreUnavailableException so the caller can fail closed. A failed first
+ * load is retried by a single request after a short delay, not by every login.
+ */
+public class IPRuleIndexCache {
+
+    private static final Logger logger = Logger.getLogger(IPRuleIndexCache.class);
+
+    private static final IPRuleIndexCache INSTANCE = new IPRuleIndexCache();
+
+    private static final int MIN_WASTE_BEFORE_RELOAD = 1024;
+    private static final long FIRST_LOAD_WAIT_MILLIS = 5000;
+    private static final long FIRST_LOAD_RETRY_MILLIS = 5000;
+
+    private final ConcurrentMap<String, RealmIndexes> realms = new ConcurrentHashMap<>();
+    private volatile long syncIntervalMillis = IPRestrictionConstants.DEFAULT_RULE_STORE_SYNC_INTERVAL * 1000L;
+
+    public static IPRuleIndexCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the index of a stored rule set, syncing with the database when due
+     *
+     * @return the index, or null if the rule set has no rules
+     * @throws IPRuleStoreUnavailableException if the realm's rules could not be loaded yet
+     */
+    public IPRuleIndex get(KeycloakSession session, RealmModel realm, String ruleSet) {
+        RealmIndexes indexes = realms.computeIfAbsent(realm.getId(), RealmIndexes::new);
+        indexes.sync(session, syncIntervalMillis);
+        Map<String, IPRuleIndex> ruleSets = indexes.ruleSets;
+        if (ruleSets == null) {
+            throw new IPRuleStoreUnavailableException(realm.getId());
+        }
+        return ruleSets.get(ruleSet);
+    }
+
+    /**
+     * Sync the realm on its next use instead of waiting for the interval
+     */
+    public void invalidate(String realmId) {
+        RealmIndexes indexes = realms.get(realmId);
+        if (indexes != null) {
+            indexes.nextSync = 0;
+        }
+    }
+
+    public void removeRealm(String realmId) {
+        realms.remove(realmId);
+    }
+
+    public void setSyncIntervalSeconds(long syncIntervalSeconds) {
+        this.syncIntervalMillis = Math.max(0, syncIntervalSeconds) * 1000L;
+    }
+
+    private static class RealmIndexes {
+        private final String realmId;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Map<String, IPRuleIndex> ruleSets;
+        private volatile long nextSync;
+        private long sequence;
+
+        RealmIndexes(String realmId) {
+            this.realmId = realmId;
+        }
+
+        void sync(KeycloakSession session, long interval) {
+            if (System.currentTimeMillis() < nextSync) {
+                // Synced recently, or the first load failed recently
+                return;
+            }
+            if (ruleSets != null) {
+                if (!lock.tryLock()) {
+                    return;
+                }
+            } else if (!waitForFirstLoad()) {
+                return;
+            }
+
+            long retryAt = 0;
+            try {
+                if (System.currentTimeMillis() < nextSync) {
+                    return;
+                }
+                IPRuleStore store = new IPRuleStore(session, realmId);
+                if (ruleSets == null || !applyChanges(store)) {
+                    loadAll(store);
+                }
+            } catch (RuntimeException e) {
+                if (ruleSets == null) {
+                    logger.errorf(e, "Failed to load stored IP rules of realm %s, denying logins that use them until they are loaded",
+                        realmId);
+                    retryAt = System.currentTimeMillis() + Math.min(interval, FIRST_LOAD_RETRY_MILLIS);
+                } else {
+                    logger.warnf(e, "Failed to sync stored IP rules of realm %s, keeping the current rules", realmId);
+                }
+            } finally {
+                nextSync = retryAt != 0 ? retryAt : System.currentTimeMillis() + interval;
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait a bounded time for the lock while nothing is loaded, another request may be loading
+         *
+         * @return true if the lock was acquired and the rules still have to be loaded
+         */
+        private boolean waitForFirstLoad() {
+            try {
+                if (!lock.tryLock(FIRST_LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (ruleSets != null) {
+                // Loaded while waiting
+                lock.unlock();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Replay the change log into the current indexes
+         *
+         * @return false if a full reload is needed instead
+         */
+        private boolean applyChanges(IPRuleStore store) {
+            long latest = store.getSequence();
+            if (latest == sequence) {
+                return true;
+            }
+            if (sequence < 0 || latest < sequence || latest - sequence > IPRuleStore.CHANGE_LOG_RETENTION) {
+                return false;
+            }
+
+            List<IPRuleChangeEntity> changes = store.getChangesAfter(sequence, (int) (latest - sequence));
+            for (IPRuleChangeEntity change : changes) {
+                if (change.getSequence() != sequence + 1) {
+                    // Entries were pruned before this node read them
+                    return false;
+                }
+                apply(change);
+                sequence = change.getSequence();
+            }
+
+            for (IPRuleIndex index : ruleSets.values()) {
+                if (index.getWaste() > Math.max(MIN_WASTE_BEFORE_RELOAD, index.size())) {
+                    return false;
+                }
+            }
+            logger.debugf("Applied %d IP rule changes for realm %s", changes.size(), realmId);
+            return true;
+        }
+
+        private void apply(IPRuleChangeEntity change) {
+            switch (change.getOperation()) {
+                case IPRuleChangeEntity.OPERATION_ADD:
+                    IPRuleIndex index = ruleSets.computeIfAbsent(change.getRuleSet(), name -> new IPRuleIndex());
+                    if (!index.put(change.getRuleId(), change.getRule())) {
+                        logger.warnf("Ignoring invalid stored IP rule '%s'", change.getRule());
+                    }
+                    break;
+                case IPRuleChangeEntity.OPERATION_REMOVE:
+                    IPRuleIndex current = ruleSets.get(change.getRuleSet());
+                    if (current != null) {
+                        current.remove(change.getRuleId());
+                    }
+                    break;
+                case IPRuleChangeEntity.OPERATION_CLEAR:
+                    // Swap instead of clearing so in-flight lookups see the old or the new set
+                    ruleSets.remove(change.getRuleSet());
+                    break;
+                default:
+                    logger.warnf("Unknown IP rule change operation '%s'", change.getOperation());
+            }
+        }
+
+        private void loadAll(IPRuleStore store) {
+            long started = System.currentTimeMillis();
+            long latest = store.getSequence();
+            Map<String, IPRuleIndex> loaded = new ConcurrentHashMap<>();
+            int[] count = new int[1];
+            store.getAllRuleValues().forEach(row -> {
+                IPRuleIndex index = loaded.computeIfAbsent((String) row[1], name -> new IPRuleIndex());
+                if (index.put((String) row[0], (String) row[2])) {
+                    count[0]++;
+                }
+            });
+
+            ruleSets = loaded;
+            sequence = latest;
+            logger.infof("Loaded %d stored IP rules for realm %s in %d ms", count[0], realmId,
+                System.currentTimeMillis() - started);
+        }
+    }
+}
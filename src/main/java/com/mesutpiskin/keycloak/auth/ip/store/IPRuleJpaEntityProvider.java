@@ -0,0 +1,31 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+/**
+ * Registers the IP rule store entities and their Liquibase changelog
+ */
+public class IPRuleJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(IPRuleEntity.class, IPRuleChangeEntity.class, IPRuleStateEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/ip-restriction-rules-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return IPRuleJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,50 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Factory for the IP rule store JPA entities
+ * Also removes a realm's stored rules when the realm is deleted.
+ */
+public class IPRuleJpaEntityProviderFactory implements JpaEntityProviderFactory {
+
+    public static final String PROVIDER_ID = "ip-restriction-rules";
+
+    private static final IPRuleJpaEntityProvider SINGLETON = new IPRuleJpaEntityProvider();
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession session) {
+        return SINGLETON;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // Nothing to initialize
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+                new IPRuleStore(removed.getKeycloakSession(), removed.getRealm().getId()).removeRealm();
+                IPRuleIndexCache.getInstance().removeRealm(removed.getRealm().getId());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -0,0 +1,44 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+/**
+ * Stored IP rule as returned by the admin API
+ */
+public class IPRuleRepresentation {
+
+    private String id;
+    private String rule;
+    private long createdTimestamp;
+
+    public IPRuleRepresentation() {
+    }
+
+    public IPRuleRepresentation(IPRuleEntity entity) {
+        this.id = entity.getId();
+        this.rule = entity.getRule();
+        this.createdTimestamp = entity.getCreatedTimestamp();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public void setRule(String rule) {
+        this.rule = rule;
+    }
+
+    public long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+}
@@ -0,0 +1,229 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Admin REST resource for stored IP rule sets
+ *
+ * GET    /{ruleSet}?first=&max=&ip=  page of rules, optionally only those containing an address
+ * GET    /{ruleSet}/count            number of rules
+ * GET    /{ruleSet}/export           all rules as text, one per line
+ * POST   /{ruleSet}?replace=         bulk import from a JSON array or text body
+ * DELETE /{ruleSet}/{id}             remove one rule
+ * DELETE /{ruleSet}                  remove all rules of the set
+ */
+public class IPRuleResource {
+
+    private static final int DEFAULT_MAX_RESULTS = 100;
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final Pattern RULE_SET_NAME = Pattern.compile("[A-Za-z0-9._-]{1,255}");
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+
+    public IPRuleResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent.resource(ResourceType.CUSTOM);
+    }
+
+    @GET
+    @Path("{ruleSet}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Stream<IPRuleRepresentation> getRules(@PathParam("ruleSet") String ruleSet,
+                                                 @QueryParam("first") @DefaultValue("0") int first,
+                                                 @QueryParam("max") @DefaultValue("" + DEFAULT_MAX_RESULTS) int max,
+                                                 @QueryParam("ip") String ip) {
+        auth.realm().requireViewRealm();
+        checkRuleSetName(ruleSet);
+        if (first < 0 || max < 0) {
+            throw ErrorResponse.error("Invalid pagination parameters", Response.Status.BAD_REQUEST);
+        }
+
+        IPRuleStore store = new IPRuleStore(session, realm.getId());
+        Stream<IPRuleEntity> rules;
+        if (ip != null && !ip.isEmpty()) {
+            try {
+                rules = store.getRulesContaining(ruleSet, ip, first, max);
+            } catch (IllegalArgumentException e) {
+                throw ErrorResponse.error(e.getMessage(), Response.Status.BAD_REQUEST);
+            }
+        } else {
+            rules = store.getRules(ruleSet, first, max);
+        }
+        return rules.map(IPRuleRepresentation::new);
+    }
+
+    @GET
+    @Path("{ruleSet}/count")
+    @Produces(MediaType.APPLICATION_JSON)
+    public long countRules(@PathParam("ruleSet") String ruleSet) {
+        auth.realm().requireViewRealm();
+        checkRuleSetName(ruleSet);
+        return new IPRuleStore(session, realm.getId()).countRules(ruleSet);
+    }
+
+    /**
+     * Export all rules of a rule set
+     * Written page by page, each page read in its own transaction, so the export
+     * does not hold every rule in memory.
+     */
+    @GET
+    @Path("{ruleSet}/export")
+    @Produces(MediaType.TEXT_PLAIN)
+    public StreamingOutput exportRules(@PathParam("ruleSet") String ruleSet) {
+        auth.realm().requireViewRealm();
+        checkRuleSetName(ruleSet);
+
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        String realmId = realm.getId();
+        return output -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            int first = 0;
+            while (true) {
+                int offset = first;
+                List<String> page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, exportSession ->
+                    new IPRuleStore(exportSession, realmId).getRules(ruleSet, offset, EXPORT_PAGE_SIZE)
+                        .map(IPRuleEntity::getRule)
+                        .collect(Collectors.toList()));
+                for (String rule : page) {
+                    writer.write(rule);
+                    writer.write('\n');
+                }
+                if (page.size() < EXPORT_PAGE_SIZE) {
+                    break;
+                }
+                first += EXPORT_PAGE_SIZE;
+            }
+            writer.flush();
+        };
+    }
+
+    /**
+     * Import rules from a text body, one rule per line ('#' starts a comment line)
+     */
+    @POST
+    @Path("{ruleSet}")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    public IPRuleImportResult importText(@PathParam("ruleSet") String ruleSet,
+                                         @QueryParam("replace") boolean replace,
+                                         InputStream body) {
+        auth.realm().requireManageRealm();
+        checkRuleSetName(ruleSet);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        return importRules(ruleSet, reader.lines(), replace);
+    }
+
+    /**
+     * Import rules from a JSON array of rule strings
+     */
+    @POST
+    @Path("{ruleSet}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public IPRuleImportResult importJson(@PathParam("ruleSet") String ruleSet,
+                                         @QueryParam("replace") boolean replace,
+                                         List<String> rules) {
+        auth.realm().requireManageRealm();
+        checkRuleSetName(ruleSet);
+        if (rules == null) {
+            throw ErrorResponse.error("Missing rules", Response.Status.BAD_REQUEST);
+        }
+        return importRules(ruleSet, rules.stream(), replace);
+    }
+
+    @DELETE
+    @Path("{ruleSet}/{id}")
+    public Response removeRule(@PathParam("ruleSet") String ruleSet, @PathParam("id") String id) {
+        auth.realm().requireManageRealm();
+        checkRuleSetName(ruleSet);
+        if (!new IPRuleStore(session, realm.getId()).removeRule(ruleSet, id)) {
+            throw new NotFoundException("IP rule not found");
+        }
+        afterChange(OperationType.DELETE, null);
+        return Response.noContent().build();
+    }
+
+    @DELETE
+    @Path("{ruleSet}")
+    public Response removeRuleSet(@PathParam("ruleSet") String ruleSet) {
+        auth.realm().requireManageRealm();
+        checkRuleSetName(ruleSet);
+        new IPRuleStore(session, realm.getId()).removeRuleSet(ruleSet);
+        afterChange(OperationType.DELETE, null);
+        return Response.noContent().build();
+    }
+
+    private IPRuleImportResult importRules(String ruleSet, Stream<String> rules, boolean replace) {
+        IPRuleImportResult result = new IPRuleStore(session, realm.getId()).addRules(ruleSet, rules.iterator(), replace);
+        afterChange(replace ? OperationType.UPDATE : OperationType.CREATE, result);
+        return result;
+    }
+
+    /**
+     * Record the admin event and let this node pick up the change right after commit
+     */
+    private void afterChange(OperationType operation, Object representation) {
+        adminEvent.operation(operation)
+            .resourcePath(session.getContext().getUri())
+            .representation(representation)
+            .success();
+
+        String realmId = realm.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                IPRuleIndexCache.getInstance().invalidate(realmId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // Nothing changed
+            }
+        });
+    }
+
+    private static void checkRuleSetName(String ruleSet) {
+        if (ruleSet == null || !RULE_SET_NAME.matcher(ruleSet).matches()) {
+            throw ErrorResponse.error("Invalid rule set name", Response.Status.BAD_REQUEST);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * Last change log sequence of a realm
+ * Writers lock this row while appending to the change log; readers compare it
+ * with the sequence they applied to decide whether anything changed.
+ */
+@Entity
+@Table(name = "IP_RESTRICTION_RULE_STATE")
+public class IPRuleStateEntity {
+
+    @Id
+    @Column(name = "REALM_ID", length = 36)
+    private String realmId;
+
+    @Column(name = "SEQ", nullable = false)
+    private long sequence;
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+}
@@ -0,0 +1,296 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+import com.mesutpiskin.keycloak.auth.ip.IPPrefix;
+import com.mesutpiskin.keycloak.auth.ip.IPRestrictionConstants;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Database access for the stored IP rules of a realm
+ * Every modification is also appended to the realm's change log, which is what
+ * IPRuleIndexCache replays to keep the in-memory indexes of all nodes current.
+ */
+public class IPRuleStore {
+
+    private static final Logger logger = Logger.getLogger(IPRuleStore.class);
+
+    /**
+     * Change log entries kept per realm; nodes further behind reload all rules
+     */
+    public static final int CHANGE_LOG_RETENTION = 10000;
+
+    private static final int BATCH_SIZE = 500;
+
+    private final EntityManager em;
+    private final String realmId;
+
+    public IPRuleStore(KeycloakSession session, String realmId) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.realmId = realmId;
+    }
+
+    /**
+     * Get a page of the rules of a rule set, in the order they were added
+     */
+    public Stream<IPRuleEntity> getRules(String ruleSet, int first, int max) {
+        return em.createNamedQuery("getIPRulesByRuleSet", IPRuleEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("ruleSet", ruleSet)
+            .setFirstResult(first)
+            .setMaxResults(max)
+            .getResultStream();
+    }
+
+    public long countRules(String ruleSet) {
+        return em.createNamedQuery("countIPRulesByRuleSet", Long.class)
+            .setParameter("realmId", realmId)
+            .setParameter("ruleSet", ruleSet)
+            .getSingleResult();
+    }
+
+    /**
+     * Get the rules of a rule set whose range contains an address
+     *
+     * @throws IllegalArgumentException if the address is not an IP literal
+     */
+    public Stream<IPRuleEntity> getRulesContaining(String ruleSet, String address, int first, int max) {
+        IPPrefix prefix = IPPrefix.parse(address.trim());
+        if (prefix == null || address.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Not an IP address: " + address);
+        }
+        return em.createNamedQuery("getIPRulesContaining", IPRuleEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("ruleSet", ruleSet)
+            .setParameter("family", prefix.getFamily())
+            .setParameter("high", flip(prefix.getStartHigh()))
+            .setParameter("low", flip(prefix.getStartLow()))
+            .setFirstResult(first)
+            .setMaxResults(max)
+            .getResultStream();
+    }
+
+    /**
+     * Get id, rule set and rule of every rule in the realm
+     * Projected to plain values so that a full load does not fill the persistence context.
+     */
+    public Stream<Object[]> getAllRuleValues() {
+        return em.createNamedQuery("getIPRuleValuesByRealm", Object[].class)
+            .setParameter("realmId", realmId)
+            .getResultStream();
+    }
+
+    /**
+     * Add rules to a rule set
+     * Rules that duplicate an existing rule (same action and range) are skipped.
+     *
+     * @param replace remove all existing rules of the rule set first
+     */
+    public IPRuleImportResult addRules(String ruleSet, Iterator<String> rules, boolean replace) {
+        IPRuleStateEntity state = lockState();
+        IPRuleImportResult result = new IPRuleImportResult();
+
+        Set<String> existing = new HashSet<>();
+        if (replace) {
+            deleteRuleSet(state, ruleSet);
+        } else {
+            em.createNamedQuery("getIPRuleKeysByRuleSet", Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("ruleSet", ruleSet)
+                .getResultStream()
+                .forEach(row -> existing.add(key((Boolean) row[0], (Integer) row[1], (Long) row[2], (Long) row[3], (Integer) row[4])));
+        }
+
+        long now = Time.currentTimeMillis();
+        List<Object> batch = new ArrayList<>(BATCH_SIZE * 2);
+        while (rules.hasNext()) {
+            String rule = rules.next().trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+
+            boolean deny = rule.startsWith(IPRestrictionConstants.PREFIX_DENY);
+            IPPrefix prefix = deny || rule.startsWith(IPRestrictionConstants.PREFIX_ALLOW)
+                ? IPPrefix.parse(rule.substring(1).trim())
+                : null;
+            if (prefix == null) {
+                result.addInvalid(rule);
+                continue;
+            }
+
+            IPRuleEntity entity = new IPRuleEntity();
+            entity.setId(KeycloakModelUtils.generateId());
+            entity.setRealmId(realmId);
+            entity.setRuleSet(ruleSet);
+            entity.setRule(rule.charAt(0) + rule.substring(1).trim());
+            entity.setDeny(deny);
+            entity.setFamily(prefix.getFamily());
+            entity.setPrefixLength(prefix.getLength());
+            entity.setStartHigh(flip(prefix.getStartHigh()));
+            entity.setStartLow(flip(prefix.getStartLow()));
+            entity.setEndHigh(flip(prefix.getEndHigh()));
+            entity.setEndLow(flip(prefix.getEndLow()));
+            entity.setCreatedTimestamp(now);
+
+            if (!existing.add(key(deny, entity.getFamily(), entity.getStartHigh(), entity.getStartLow(), entity.getPrefixLength()))) {
+                result.addSkipped();
+                continue;
+            }
+
+            em.persist(entity);
+            batch.add(entity);
+            batch.add(appendChange(state, IPRuleChangeEntity.OPERATION_ADD, ruleSet, entity.getId(), entity.getRule()));
+            result.addAdded();
+
+            if (batch.size() >= BATCH_SIZE * 2) {
+                flush(batch);
+            }
+        }
+        flush(batch);
+
+        pruneChangeLog(state);
+        logger.infof("Added %d IP rules to rule set %s of realm %s (%d skipped, %d invalid)",
+            result.getAdded(), ruleSet, realmId, result.getSkipped(), result.getInvalidCount());
+        return result;
+    }
+
+    /**
+     * Remove a single rule
+     *
+     * @return false if the rule does not exist in the rule set
+     */
+    public boolean removeRule(String ruleSet, String id) {
+        IPRuleStateEntity state = lockState();
+        IPRuleEntity entity = em.find(IPRuleEntity.class, id);
+        if (entity == null || !realmId.equals(entity.getRealmId()) || !ruleSet.equals(entity.getRuleSet())) {
+            return false;
+        }
+        em.remove(entity);
+        appendChange(state, IPRuleChangeEntity.OPERATION_REMOVE, ruleSet, id, null);
+        pruneChangeLog(state);
+        return true;
+    }
+
+    /**
+     * Remove all rules of a rule set
+     *
+     * @return the number of removed rules
+     */
+    public int removeRuleSet(String ruleSet) {
+        IPRuleStateEntity state = lockState();
+        int removed = deleteRuleSet(state, ruleSet);
+        pruneChangeLog(state);
+        return removed;
+    }
+
+    /**
+     * Remove all rules and the change log of the realm
+     */
+    public void removeRealm() {
+        em.createNamedQuery("deleteIPRulesByRealm").setParameter("realmId", realmId).executeUpdate();
+        em.createNamedQuery("deleteIPRuleChangesByRealm").setParameter("realmId", realmId).executeUpdate();
+        IPRuleStateEntity state = em.find(IPRuleStateEntity.class, realmId);
+        if (state != null) {
+            em.remove(state);
+        }
+    }
+
+    /**
+     * Sequence of the last change in the realm, 0 if nothing was ever stored
+     */
+    public long getSequence() {
+        IPRuleStateEntity state = em.find(IPRuleStateEntity.class, realmId);
+        return state == null ? 0 : state.getSequence();
+    }
+
+    public List<IPRuleChangeEntity> getChangesAfter(long sequence, int max) {
+        return em.createNamedQuery("getIPRuleChangesAfter", IPRuleChangeEntity.class)
+            .setParameter("realmId", realmId)
+            .setParameter("sequence", sequence)
+            .setMaxResults(max)
+            .getResultList();
+    }
+
+    private int deleteRuleSet(IPRuleStateEntity state, String ruleSet) {
+        int removed = em.createNamedQuery("deleteIPRulesByRuleSet")
+            .setParameter("realmId", realmId)
+            .setParameter("ruleSet", ruleSet)
+            .executeUpdate();
+        appendChange(state, IPRuleChangeEntity.OPERATION_CLEAR, ruleSet, null, null);
+        return removed;
+    }
+
+    /**
+     * Lock the realm's state row, serializing writers so sequence numbers commit in order
+     */
+    private IPRuleStateEntity lockState() {
+        IPRuleStateEntity state = em.find(IPRuleStateEntity.class, realmId, LockModeType.PESSIMISTIC_WRITE);
+        if (state == null) {
+            state = new IPRuleStateEntity();
+            state.setRealmId(realmId);
+            state.setSequence(0);
+            em.persist(state);
+            em.flush();
+        }
+        return state;
+    }
+
+    private IPRuleChangeEntity appendChange(IPRuleStateEntity state, String operation, String ruleSet, String ruleId, String rule) {
+        long sequence = state.getSequence() + 1;
+        state.setSequence(sequence);
+
+        IPRuleChangeEntity change = new IPRuleChangeEntity();
+        change.setRealmId(realmId);
+        change.setSequence(sequence);
+        change.setOperation(operation);
+        change.setRuleSet(ruleSet);
+        change.setRuleId(ruleId);
+        change.setRule(rule);
+        em.persist(change);
+        return change;
+    }
+
+    private void pruneChangeLog(IPRuleStateEntity state) {
+        long oldest = state.getSequence() - CHANGE_LOG_RETENTION;
+        if (oldest > 0) {
+            em.createNamedQuery("deleteIPRuleChangesBefore")
+                .setParameter("realmId", realmId)
+                .setParameter("sequence", oldest)
+                .executeUpdate();
+        }
+    }
+
+    /**
+     * Write a batch and detach it so large imports do not grow the persistence context
+     */
+    private void flush(List<Object> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        em.flush();
+        batch.forEach(em::detach);
+        batch.clear();
+    }
+
+    private static String key(boolean deny, int family, long startHigh, long startLow, int prefixLength) {
+        return (deny ? '-' : '+') + Integer.toString(family) + ':' + startHigh + ':' + startLow + '/' + prefixLength;
+    }
+
+    /**
+     * Flip the sign bit so that signed column order matches unsigned address order
+     */
+    static long flip(long value) {
+        return value ^ Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,13 @@
+package com.mesutpiskin.keycloak.auth.ip.store;
+
+/**
+ * The stored IP rules of a realm could not be loaded yet, so they can't be evaluated
+ */
+public class IPRuleStoreUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public IPRuleStoreUnavailableException(String realmId) {
+        super("Stored IP rules of realm " + realmId + " are not loaded");
+    }
+}
@@ -1,5 +1,7 @@
 package com.mesutpiskin.keycloak.auth.time;
 
+import com.mesutpiskin.keycloak.auth.common.CompiledConfigRegistry;
+import com.mesutpiskin.keycloak.auth.common.DenialResponses;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
@@ -15,16 +17,16 @@ import org.keycloak.models.UserModel;
 import jakarta.ws.rs.core.Response;
 import java.time.DayOfWeek;
 import java.time.LocalTime;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
 
 public class TimeRestrictionAuthenticator implements Authenticator {
 
     private static final Logger logger = Logger.getLogger(TimeRestrictionAuthenticator.class);
 
+    private final CompiledConfigRegistry<TimeRestrictionConfig> configRegistry =
+        new CompiledConfigRegistry<>("time restriction", TimeRestrictionConfig::compile);
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         AuthenticatorConfigModel config = context.getAuthenticatorConfig();
@@ -35,96 +37,71 @@ public class TimeRestrictionAuthenticator implements Authenticator {
             return;
         }
 
-        // Get configuration values
-        String timezone = config.getConfig().getOrDefault(
-            TimeRestrictionConstants.TIMEZONE, 
-            TimeRestrictionConstants.DEFAULT_TIMEZONE
-        );
-        
-        String allowedDaysStr = config.getConfig().getOrDefault(
-            TimeRestrictionConstants.ALLOWED_DAYS, 
-            TimeRestrictionConstants.DEFAULT_ALLOWED_DAYS
-        );
-        
-        String startTimeStr = config.getConfig().getOrDefault(
-            TimeRestrictionConstants.START_TIME, 
-            TimeRestrictionConstants.DEFAULT_START_TIME
-        );
-        
-        String endTimeStr = config.getConfig().getOrDefault(
-            TimeRestrictionConstants.END_TIME, 
-            TimeRestrictionConstants.DEFAULT_END_TIME
-        );
-        
-        String errorMessage = config.getConfig().getOrDefault(
-            TimeRestrictionConstants.ERROR_MESSAGE, 
-            TimeRestrictionConstants.DEFAULT_ERROR_MESSAGE
-        );
-
-        try {
-            // Get current time in configured timezone
-            ZoneId zoneId = ZoneId.of(timezone);
-            ZonedDateTime now = ZonedDateTime.now(zoneId);
-            DayOfWeek currentDay = now.getDayOfWeek();
-            LocalTime currentTime = now.toLocalTime();
-
-            // Parse allowed days
-            Set<DayOfWeek> allowedDays = parseAllowedDays(allowedDaysStr);
-
-            // Check if current day is allowed
-            if (!allowedDays.contains(currentDay)) {
-                logger.infof("Access denied for user %s: Current day %s is not in allowed days %s", 
-                    context.getUser().getUsername(), currentDay, allowedDays);
-                
-                // Log event for failed login due to day restriction
-                EventBuilder event = context.getEvent();
-                event.user(context.getUser())
-                     .detail(Details.REASON, "Time/Date restriction: Current day " + currentDay + " is not allowed")
-                     .detail("allowed_days", allowedDaysStr)
-                     .detail("current_day", currentDay.toString())
-                     .detail("timezone", timezone)
-                     .error(Errors.NOT_ALLOWED);
-                
-                context.failure(AuthenticationFlowError.INVALID_USER, 
-                    createErrorResponse(context, errorMessage));
-                return;
-            }
-
-            // Parse time restrictions
-            LocalTime startTime = LocalTime.parse(startTimeStr);
-            LocalTime endTime = LocalTime.parse(endTimeStr);
-
-            // Check if current time is within allowed range
-            boolean isTimeAllowed = isTimeInRange(currentTime, startTime, endTime);
-
-            if (!isTimeAllowed) {
-                logger.infof("Access denied for user %s: Current time %s is not within allowed range %s - %s (timezone: %s)", 
-                    context.getUser().getUsername(), currentTime, startTime, endTime, timezone);
-                
-                // Log event for failed login due to time restriction
-                EventBuilder event = context.getEvent();
-                event.user(context.getUser())
-                     .detail(Details.REASON, "Time/Date restriction: Current time " + currentTime + " is not within allowed range")
-                     .detail("allowed_time_range", startTimeStr + " - " + endTimeStr)
-                     .detail("current_time", currentTime.toString())
-                     .detail("current_day", currentDay.toString())
-                     .detail("timezone", timezone)
-                     .error(Errors.NOT_ALLOWED);
-                
-                context.failure(AuthenticationFlowError.INVALID_USER, 
-                    createErrorResponse(context, errorMessage));
-                return;
-            }
-
-            logger.debugf("Access granted for user %s at %s %s (timezone: %s)", 
-                context.getUser().getUsername(), currentDay, currentTime, timezone);
-            context.success();
-
-        } catch (Exception e) {
-            logger.errorf(e, "Error in time restriction authenticator configuration: %s", e.getMessage());
+        TimeRestrictionConfig timeConfig = configRegistry.get(context.getRealm(), config);
+        if (!timeConfig.isValid()) {
             // In case of configuration error, we allow access to prevent lockout
+            logger.debug("Time restriction configuration is invalid, allowing access");
             context.success();
+            return;
+        }
+
+        String timezone = timeConfig.getTimezone();
+        String errorMessage = timeConfig.getErrorMessage();
+
+        // Get current time in configured timezone
+        ZonedDateTime now = ZonedDateTime.now(timeConfig.getZoneId());
+        DayOfWeek currentDay = now.getDayOfWeek();
+        LocalTime currentTime = now.toLocalTime();
+
+        Set<DayOfWeek> allowedDays = timeConfig.getAllowedDays();
+
+        // Check if current day is allowed
+        if (!allowedDays.contains(currentDay)) {
+            logger.infof("Access denied for user %s: Current day %s is not in allowed days %s", 
+                context.getUser().getUsername(), currentDay, allowedDays);
+            
+            // Log event for failed login due to day restriction
+            EventBuilder event = context.getEvent();
+            event.user(context.getUser())
+                 .detail(Details.REASON, "Time/Date restriction: Current day " + currentDay + " is not allowed")
+                 .detail("allowed_days", timeConfig.getAllowedDaysStr())
+                 .detail("current_day", currentDay.toString())
+                 .detail("timezone", timezone)
+                 .error(Errors.NOT_ALLOWED);
+            
+            context.failure(AuthenticationFlowError.INVALID_USER, 
+                createErrorResponse(context, errorMessage));
+            return;
         }
+
+        LocalTime startTime = timeConfig.getStartTime();
+        LocalTime endTime = timeConfig.getEndTime();
+
+        // Check if current time is within allowed range
+        boolean isTimeAllowed = isTimeInRange(currentTime, startTime, endTime);
+
+        if (!isTimeAllowed) {
+            logger.infof("Access denied for user %s: Current time %s is not within allowed range %s - %s (timezone: %s)", 
+                context.getUser().getUsername(), currentTime, startTime, endTime, timezone);
+            
+            // Log event for failed login due to time restriction
+            EventBuilder event = context.getEvent();
+            event.user(context.getUser())
+                 .detail(Details.REASON, "Time/Date restriction: Current time " + currentTime + " is not within allowed range")
+                 .detail("allowed_time_range", timeConfig.getStartTimeStr() + " - " + timeConfig.getEndTimeStr())
+                 .detail("current_time", currentTime.toString())
+                 .detail("current_day", currentDay.toString())
+                 .detail("timezone", timezone)
+                 .error(Errors.NOT_ALLOWED);
+            
+            context.failure(AuthenticationFlowError.INVALID_USER, 
+                createErrorResponse(context, errorMessage));
+            return;
+        }
+
+        logger.debugf("Access granted for user %s at %s %s (timezone: %s)", 
+            context.getUser().getUsername(), currentDay, currentTime, timezone);
+        context.success();
     }
 
     @Override
@@ -153,22 +130,8 @@ public class TimeRestrictionAuthenticator implements Authenticator {
         // Nothing to close
     }
 
-    /**
-     * Parse allowed days from comma-separated string
-     */
-    private Set<DayOfWeek> parseAllowedDays(String allowedDaysStr) {
-        Set<DayOfWeek> allowedDays = new HashSet<>();
-        String[] days = allowedDaysStr.split(",");
-        
-        for (String day : days) {
-            try {
-                allowedDays.add(DayOfWeek.valueOf(day.trim().toUpperCase()));
-            } catch (IllegalArgumentException e) {
-                logger.warnf("Invalid day of week: %s", day);
-            }
-        }
-        
-        return allowedDays;
+    CompiledConfigRegistry<TimeRestrictionConfig> getConfigRegistry() {
+        return configRegistry;
     }
 
     /**
@@ -189,8 +152,6 @@ public class TimeRestrictionAuthenticator implements Authenticator {
      * Create error response with custom message
      */
     private Response createErrorResponse(AuthenticationFlowContext context, String errorMessage) {
-        return context.form()
-            .setError(errorMessage)
-            .createErrorPage(Response.Status.FORBIDDEN);
+        return DenialResponses.create(context, errorMessage, Response.Status.FORBIDDEN);
     }
 }
@@ -113,7 +113,7 @@ public class TimeRestrictionAuthenticatorFactory implements AuthenticatorFactory
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to post-initialize
+        SINGLETON.getConfigRegistry().registerInvalidation(factory);
     }
 
     @Override
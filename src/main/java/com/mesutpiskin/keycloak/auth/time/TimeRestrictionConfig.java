@@ -0,0 +1,134 @@
+package com.mesutpiskin.keycloak.auth.time;
+
+import org.jboss.logging.Logger;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled, immutable form of the time restriction authenticator configuration
+ * An invalid configuration compiles to an instance with isValid() == false,
+ * which the authenticator treats as "allow access" to prevent lockout
+ */
+public class TimeRestrictionConfig {
+
+    private static final Logger logger = Logger.getLogger(TimeRestrictionConfig.class);
+
+    private final boolean valid;
+    private final String timezone;
+    private final String allowedDaysStr;
+    private final String startTimeStr;
+    private final String endTimeStr;
+    private final String errorMessage;
+    private final ZoneId zoneId;
+    private final Set<DayOfWeek> allowedDays;
+    private final LocalTime startTime;
+    private final LocalTime endTime;
+
+    private TimeRestrictionConfig(boolean valid, String timezone, String allowedDaysStr, String startTimeStr,
+                                  String endTimeStr, String errorMessage, ZoneId zoneId,
+                                  Set<DayOfWeek> allowedDays, LocalTime startTime, LocalTime endTime) {
+        this.valid = valid;
+        this.timezone = timezone;
+        this.allowedDaysStr = allowedDaysStr;
+        this.startTimeStr = startTimeStr;
+        this.endTimeStr = endTimeStr;
+        this.errorMessage = errorMessage;
+        this.zoneId = zoneId;
+        this.allowedDays = allowedDays;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Compile the raw configuration map
+     */
+    public static TimeRestrictionConfig compile(Map<String, String> config) {
+        String timezone = config.getOrDefault(TimeRestrictionConstants.TIMEZONE,
+            TimeRestrictionConstants.DEFAULT_TIMEZONE);
+        String allowedDaysStr = config.getOrDefault(TimeRestrictionConstants.ALLOWED_DAYS,
+            TimeRestrictionConstants.DEFAULT_ALLOWED_DAYS);
+        String startTimeStr = config.getOrDefault(TimeRestrictionConstants.START_TIME,
+            TimeRestrictionConstants.DEFAULT_START_TIME);
+        String endTimeStr = config.getOrDefault(TimeRestrictionConstants.END_TIME,
+            TimeRestrictionConstants.DEFAULT_END_TIME);
+        String errorMessage = config.getOrDefault(TimeRestrictionConstants.ERROR_MESSAGE,
+            TimeRestrictionConstants.DEFAULT_ERROR_MESSAGE);
+
+        try {
+            ZoneId zoneId = ZoneId.of(timezone);
+            Set<DayOfWeek> allowedDays = Collections.unmodifiableSet(parseAllowedDays(allowedDaysStr));
+            LocalTime startTime = LocalTime.parse(startTimeStr);
+            LocalTime endTime = LocalTime.parse(endTimeStr);
+
+            return new TimeRestrictionConfig(true, timezone, allowedDaysStr, startTimeStr, endTimeStr,
+                errorMessage, zoneId, allowedDays, startTime, endTime);
+        } catch (Exception e) {
+            logger.errorf(e, "Error in time restriction authenticator configuration: %s", e.getMessage());
+            return new TimeRestrictionConfig(false, timezone, allowedDaysStr, startTimeStr, endTimeStr,
+                errorMessage, null, Collections.emptySet(), null, null);
+        }
+    }
+
+    /**
+     * Parse allowed days from comma-separated string
+     */
+    private static Set<DayOfWeek> parseAllowedDays(String allowedDaysStr) {
+        Set<DayOfWeek> allowedDays = EnumSet.noneOf(DayOfWeek.class);
+
+        for (String day : allowedDaysStr.split(",")) {
+            try {
+                allowedDays.add(DayOfWeek.valueOf(day.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                logger.warnf("Invalid day of week: %s", day);
+            }
+        }
+
+        return allowedDays;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public String getTimezone() {
+        return timezone;
+    }
+
+    public String getAllowedDaysStr() {
+        return allowedDaysStr;
+    }
+
+    public String getStartTimeStr() {
+        return startTimeStr;
+    }
+
+    public String getEndTimeStr() {
+        return endTimeStr;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public ZoneId getZoneId() {
+        return zoneId;
+    }
+
+    public Set<DayOfWeek> getAllowedDays() {
+        return allowedDays;
+    }
+
+    public LocalTime getStartTime() {
+        return startTime;
+    }
+
+    public LocalTime getEndTime() {
+        return endTime;
+    }
+}
@@ -27,17 +27,43 @@
             <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
                     <div class="${properties.kcFormOptionsWrapperClass!}">
+                        <#if (resendCooldown!0) gt 0>
+                            <span id="kc-resend-cooldown" data-seconds="${resendCooldown?c}"
+                                  data-message="${msg("emailCodeResendIn", "{0}")}">${msg("emailCodeResendIn", resendCooldown)}</span>
+                        </#if>
                     </div>
                 </div>
 
                 <div id="kc-form-buttons">
                     <div class="${properties.kcFormButtonsWrapperClass!}">
                         <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonLargeClass!}" name="login" type="submit" value="${msg("doLogIn")}" />
-                        <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonLargeClass!}" name="resend" type="submit" value="${msg("resendCode")}"/>
+                        <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonLargeClass!}" id="kc-resend" name="resend" type="submit" value="${msg("resendCode")}"/>
                         <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonLargeClass!}" name="cancel" type="submit" value="${msg("doCancel")}"/>
                     </div>
                 </div>
             </div>
         </form>
+        <#if (resendCooldown!0) gt 0>
+            <#-- The button stays usable without scripts, the server refuses early resends with a message -->
+            <script>
+                (function () {
+                    var notice = document.getElementById("kc-resend-cooldown");
+                    var resend = document.getElementById("kc-resend");
+                    var message = notice.getAttribute("data-message");
+                    var deadline = Date.now() + parseInt(notice.getAttribute("data-seconds"), 10) * 1000;
+                    resend.disabled = true;
+                    var timer = setInterval(function () {
+                        var seconds = Math.ceil((deadline - Date.now()) / 1000);
+                        if (seconds > 0) {
+                            notice.textContent = message.replace("{0}", seconds);
+                            return;
+                        }
+                        clearInterval(timer);
+                        notice.textContent = "";
+                        resend.disabled = false;
+                    }, 1000);
+                })();
+            </script>
+        </#if>
     </#if>
 </@layout.registrationLayout>
@@ -0,0 +1,174 @@
+package com.mesutpiskin.keycloak.auth;
+
+import org.keycloak.email.DefaultEmailSenderProvider;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.truststore.TruststoreProvider;
+import org.keycloak.truststore.TruststoreProviderFactory;
+import org.keycloak.vault.VaultStringSecret;
+import org.keycloak.vault.VaultTranscriber;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Minimal Keycloak sessions and models for tests, built from proxies that only
+ * answer what the code under test uses and throw on anything else
+ */
+public final class TestSessions {
+
+    // No vault: secrets are used as given
+    private static final VaultTranscriber VAULT = proxy(VaultTranscriber.class, (proxy, method, args) ->
+        switch (method.getName()) {
+            case "getStringSecret" -> proxy(VaultStringSecret.class, (secret, secretMethod, secretArgs) ->
+                switch (secretMethod.getName()) {
+                    case "get" -> Optional.empty();
+                    case "close" -> null;
+                    default -> throw new UnsupportedOperationException(secretMethod.getName());
+                });
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+
+    private static final TruststoreProviderFactory NO_TRUSTSTORE = proxy(TruststoreProviderFactory.class, (proxy, method, args) ->
+        switch (method.getName()) {
+            case "create" -> null;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+
+    private TestSessions() {
+    }
+
+    /**
+     * Session whose single-use object store is backed by a map of keys to notes,
+     * handing out the given factory (may be null); emails are sent with Keycloak's
+     * default sender
+     */
+    public static KeycloakSession session(Map<String, Map<String, String>> singleUseObjects,
+                                          KeycloakSessionFactory sessionFactory) {
+        SingleUseObjectProvider store = singleUseObjects(singleUseObjects);
+        return session(session -> store, sessionFactory, new ArrayList<>());
+    }
+
+    /**
+     * Session backed by a map like above, whose factory creates more of the same
+     * and has no truststore configured
+     */
+    public static KeycloakSession session(Map<String, Map<String, String>> singleUseObjects) {
+        KeycloakSessionFactory[] sessionFactory = new KeycloakSessionFactory[1];
+        sessionFactory[0] = proxy(KeycloakSessionFactory.class, (proxy, method, args) -> switch (method.getName()) {
+            case "create" -> session(singleUseObjects, sessionFactory[0]);
+            case "getProviderFactory" -> {
+                if (args[0] == TruststoreProvider.class) {
+                    yield NO_TRUSTSTORE;
+                }
+                throw new UnsupportedOperationException("getProviderFactory " + args[0]);
+            }
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+        return session(singleUseObjects, sessionFactory[0]);
+    }
+
+    /**
+     * Run one request and commit the transactions enlisted after completion at its
+     * end, like Keycloak does
+     */
+    public static <R> R request(Function<KeycloakSession, SingleUseObjectProvider> store,
+                                Function<KeycloakSession, R> work) {
+        List<KeycloakTransaction> transactions = new ArrayList<>();
+        R result = work.apply(session(store, null, transactions));
+        transactions.forEach(KeycloakTransaction::commit);
+        return result;
+    }
+
+    /**
+     * Single-use object store keeping copies of the notes in a map
+     */
+    public static SingleUseObjectProvider singleUseObjects(Map<String, Map<String, String>> objects) {
+        return proxy(SingleUseObjectProvider.class, (proxy, method, args) -> switch (method.getName()) {
+            case "put" -> {
+                objects.put((String) args[0], new HashMap<>(castNotes(args[2])));
+                yield null;
+            }
+            case "get" -> objects.get((String) args[0]);
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    public static RealmModel realm(String id) {
+        return proxy(RealmModel.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getId" -> id;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    /**
+     * User whose id is its username, with an address at example.com
+     */
+    public static UserModel user(String username) {
+        return proxy(UserModel.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getId", "getUsername" -> username;
+            case "getEmail" -> username + "@example.com";
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TestSessions.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static KeycloakSession session(Function<KeycloakSession, SingleUseObjectProvider> store,
+                                           KeycloakSessionFactory sessionFactory, List<KeycloakTransaction> transactions) {
+        KeycloakTransactionManager transactionManager = proxy(KeycloakTransactionManager.class, (proxy, method, args) ->
+            switch (method.getName()) {
+                case "begin", "setRollbackOnly" -> null;
+                case "isActive" -> false;
+                case "enlistAfterCompletion" -> {
+                    KeycloakTransaction transaction = (KeycloakTransaction) args[0];
+                    transaction.begin();
+                    transactions.add(transaction);
+                    yield null;
+                }
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+        KeycloakSession[] session = new KeycloakSession[1];
+        SingleUseObjectProvider[] provider = new SingleUseObjectProvider[1];
+        session[0] = proxy(KeycloakSession.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getTransactionManager" -> transactionManager;
+            case "singleUseObjects" -> {
+                // Created on first use, like Keycloak's providers
+                if (provider[0] == null) {
+                    provider[0] = store.apply(session[0]);
+                }
+                yield provider[0];
+            }
+            case "getKeycloakSessionFactory" -> sessionFactory;
+            case "getProvider" -> {
+                if (args.length == 1 && args[0] == EmailSenderProvider.class) {
+                    yield new DefaultEmailSenderProvider(session[0]);
+                }
+                throw new UnsupportedOperationException("getProvider " + args[0]);
+            }
+            case "vault" -> VAULT;
+            case "close" -> null;
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+        return session[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> castNotes(Object notes) {
+        return (Map<String, String>) notes;
+    }
+}
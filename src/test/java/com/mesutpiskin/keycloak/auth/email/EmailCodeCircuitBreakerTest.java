@@ -0,0 +1,68 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmailCodeCircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 100;
+
+    private final EmailCodeCircuitBreaker breaker = new EmailCodeCircuitBreaker("smtp.example.com:25", 3, OPEN_MILLIS);
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allow());
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.allow());
+        breaker.recordFailure();
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    void successResetsTheCount() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    void letsOneTrialThroughOnceOpenTimeIsOver() throws InterruptedException {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    void successfulTrialClosesTheCircuit() throws InterruptedException {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertTrue(breaker.allow());
+        breaker.recordSuccess();
+        assertTrue(breaker.allow());
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    void failedTrialOpensTheCircuitAgain() throws InterruptedException {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+        assertTrue(breaker.allow());
+        breaker.recordFailure();
+        assertFalse(breaker.allow());
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        assertFalse(breaker.allow());
+    }
+}
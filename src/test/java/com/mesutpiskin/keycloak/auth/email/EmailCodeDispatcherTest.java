@@ -0,0 +1,205 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import com.mesutpiskin.keycloak.auth.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivery through the dispatcher, with a fake sender or over SMTP to a local
+ * listener, and sessions that only provide a single-use object store
+ */
+class EmailCodeDispatcherTest {
+
+    private static final int FAILURE_LIFESPAN = 60;
+
+    private final EmailCodeDispatcher dispatcher = EmailCodeDispatcher.getInstance();
+    private final FakeEmailCodeSender sender = new FakeEmailCodeSender();
+    private final Map<String, Map<String, String>> singleUseObjects = new ConcurrentHashMap<>();
+    private KeycloakSessionFactory sessionFactory;
+
+    @BeforeEach
+    void setUp() {
+        sessionFactory = TestSessions.proxy(KeycloakSessionFactory.class, (proxy, method, args) -> switch (method.getName()) {
+            case "create" -> session();
+            default -> throw new UnsupportedOperationException(method.getName());
+        });
+        dispatcher.setSender(sender);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sender.release();
+        dispatcher.close();
+        dispatcher.setSender(SmtpEmailCodeSender.INSTANCE);
+    }
+
+    @Test
+    void sendsSynchronously() {
+        configure(false, 1, 3);
+        EmailCodeMessage message = message("smtp.example.com");
+        assertNotNull(dispatcher.dispatch(session(), message, FAILURE_LIFESPAN));
+        assertEquals(1, sender.getSent().size());
+        assertEquals(message, sender.getSent().get(0));
+    }
+
+    @Test
+    void failuresOpenTheCircuit() {
+        configure(false, 1, 2);
+        sender.failWith("connection refused");
+        assertNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+        assertNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+
+        // Refused without trying, other servers are not affected
+        sender.failWith(null);
+        assertNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+        assertEquals(2, sender.getAttempts());
+        assertNotNull(dispatcher.dispatch(session(), message("smtp.example.org"), FAILURE_LIFESPAN));
+    }
+
+    @Test
+    void sendsInTheBackground() {
+        configure(true, 1, 3);
+        sender.hang();
+        String id = dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN);
+        assertNotNull(id);
+        assertTrue(sender.getSent().isEmpty());
+
+        sender.release();
+        await(() -> sender.getSent().size() == 1);
+        assertNull(dispatcher.getFailure(session(), id));
+    }
+
+    @Test
+    void recordsFailures() {
+        configure(true, 1, 3);
+        sender.failWith("mailbox unavailable");
+        String id = dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN);
+        await(() -> dispatcher.getFailure(session(), id) != null);
+        assertEquals("mailbox unavailable", dispatcher.getFailure(session(), id));
+    }
+
+    @Test
+    void abandonsSlowSends() {
+        configure(true, 1, 3);
+        sender.hang();
+        String id = dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN);
+        await(() -> dispatcher.getFailure(session(), id) != null);
+        assertEquals(EmailCodeDispatcher.ERROR_TIMEOUT, dispatcher.getFailure(session(), id));
+    }
+
+    @Test
+    void refusesWhenTooManyArePending() {
+        configure(true, 1, 3);
+        sender.hang();
+        assertNotNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+        assertNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+    }
+
+    @Test
+    void closeWithSendsInFlight() {
+        configure(true, 2, 3);
+        sender.hang();
+        assertNotNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+        dispatcher.close();
+
+        // Started again on the next message
+        sender.release();
+        assertNotNull(dispatcher.dispatch(session(), message("smtp.example.com"), FAILURE_LIFESPAN));
+        await(() -> !sender.getSent().isEmpty());
+    }
+
+    @Test
+    void deliversOverSmtp() throws IOException {
+        configure(false, 1, 3);
+        dispatcher.setSender(SmtpEmailCodeSender.INSTANCE);
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            assertNotNull(dispatcher.dispatch(session(), message(server), FAILURE_LIFESPAN));
+            assertEquals(1, server.getReceived().size());
+            TestSmtpServer.Received received = server.getReceived().get(0);
+            assertEquals("noreply@example.com", received.from);
+            assertEquals(List.of("user@example.com"), received.recipients);
+            assertTrue(received.data.contains("123456"));
+        }
+    }
+
+    @Test
+    void abandonsStallingServer() throws IOException {
+        configure(true, 1, 1);
+        dispatcher.setSender(SmtpEmailCodeSender.INSTANCE);
+        try (TestSmtpServer server = new TestSmtpServer()) {
+            server.setMode(TestSmtpServer.Mode.STALL);
+            String id = dispatcher.dispatch(session(), message(server), FAILURE_LIFESPAN);
+            await(() -> dispatcher.getFailure(session(), id) != null);
+            assertEquals(EmailCodeDispatcher.ERROR_TIMEOUT, dispatcher.getFailure(session(), id));
+
+            // The timeout counts against the server, which is no longer tried
+            assertNull(dispatcher.dispatch(session(), message(server), FAILURE_LIFESPAN));
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    void rejectingServerOpensTheCircuit() throws IOException {
+        configure(false, 1, 2);
+        dispatcher.setSender(SmtpEmailCodeSender.INSTANCE);
+        try (TestSmtpServer rejecting = new TestSmtpServer(); TestSmtpServer healthy = new TestSmtpServer()) {
+            rejecting.setMode(TestSmtpServer.Mode.REJECT);
+            assertNull(dispatcher.dispatch(session(), message(rejecting), FAILURE_LIFESPAN));
+            assertNull(dispatcher.dispatch(session(), message(rejecting), FAILURE_LIFESPAN));
+            assertEquals(2, rejecting.getConnections());
+
+            // Refused without connecting, other servers are not affected
+            assertNull(dispatcher.dispatch(session(), message(rejecting), FAILURE_LIFESPAN));
+            assertEquals(2, rejecting.getConnections());
+            assertTrue(rejecting.getReceived().isEmpty());
+            assertNotNull(dispatcher.dispatch(session(), message(healthy), FAILURE_LIFESPAN));
+            assertEquals(1, healthy.getReceived().size());
+        }
+    }
+
+    /**
+     * One second timeout, circuit open for a minute
+     */
+    private void configure(boolean async, int maxPending, int failureThreshold) {
+        dispatcher.configure(async, 1, maxPending, 1, failureThreshold, 60);
+    }
+
+    private static EmailCodeMessage message(String host) {
+        return new EmailCodeMessage("realm", "user", "user@example.com", "Access code", "123456", null,
+            Map.of("host", host, "port", "25"));
+    }
+
+    private static EmailCodeMessage message(TestSmtpServer server) {
+        return new EmailCodeMessage("realm", "user", "user@example.com", "Access code", "123456", null, server.smtpConfig());
+    }
+
+    private KeycloakSession session() {
+        return TestSessions.session(singleUseObjects, sessionFactory);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting");
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
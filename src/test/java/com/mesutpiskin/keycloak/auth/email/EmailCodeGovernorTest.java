@@ -0,0 +1,68 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import com.mesutpiskin.keycloak.auth.TestSessions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * State shared by the logins of a user, each login reading it anew like a request would
+ */
+class EmailCodeGovernorTest {
+
+    private final Map<String, Map<String, String>> singleUseObjects = new HashMap<>();
+    private final EmailAuthenticatorConfig config = EmailAuthenticatorConfig.compile(Map.of(EmailConstants.MAX_ATTEMPTS, "3"));
+
+    @Test
+    void wrongCodesAreCountedAcrossLogins() {
+        governor().recordSend("secret", System.currentTimeMillis() + 60_000, null);
+        assertEquals(1, governor().recordAttempt("secret"));
+        assertEquals(2, governor().recordAttempt("secret"));
+
+        // Another login that picked up the same code
+        EmailCodeGovernor other = governor();
+        assertEquals("secret", other.getSecret());
+        assertEquals(2, other.getAttempts("secret"));
+    }
+
+    @Test
+    void codeIsNoLongerSharedAtTheLimit() {
+        governor().recordSend("secret", System.currentTimeMillis() + 60_000, null);
+        for (int i = 0; i < 3; i++) {
+            governor().recordAttempt("secret");
+        }
+        assertNull(governor().getSecret());
+        assertEquals(3, governor().getAttempts("secret"));
+    }
+
+    @Test
+    void newCodeStartsAfresh() {
+        governor().recordSend("first", System.currentTimeMillis() + 60_000, null);
+        governor().recordAttempt("first");
+        governor().recordSend("second", System.currentTimeMillis() + 60_000, null);
+        assertEquals(0, governor().getAttempts("second"));
+        assertEquals(1, governor().recordAttempt("second"));
+    }
+
+    private EmailCodeGovernor governor() {
+        KeycloakSession session = TestSessions.session(singleUseObjects, null);
+        RealmModel realm = TestSessions.realm("realm");
+        UserModel user = TestSessions.user("user");
+        AuthenticationFlowContext context = TestSessions.proxy(AuthenticationFlowContext.class, (proxy, method, args) ->
+            switch (method.getName()) {
+                case "getSession" -> session;
+                case "getRealm" -> realm;
+                case "getUser" -> user;
+                default -> throw new UnsupportedOperationException(method.getName());
+            });
+        return EmailCodeGovernor.of(context, config);
+    }
+}
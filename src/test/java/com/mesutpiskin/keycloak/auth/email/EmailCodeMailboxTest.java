@@ -0,0 +1,55 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.mesutpiskin.keycloak.auth.TestSessions.realm;
+import static com.mesutpiskin.keycloak.auth.TestSessions.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EmailCodeMailboxTest {
+
+    private static final String REALM = "realm";
+
+    private final EmailCodeMailbox mailbox = EmailCodeMailbox.getInstance();
+
+    @AfterEach
+    void tearDown() {
+        mailbox.clear(REALM);
+    }
+
+    @Test
+    void pollingUnknownUsersTakesNoSpace() {
+        for (int i = 0; i < 100; i++) {
+            assertNull(mailbox.poll(REALM, "nobody" + i, 0, 1).join());
+        }
+        assertEquals(0, mailbox.size());
+    }
+
+    @Test
+    void waitingReadersGetTheFirstCode() {
+        CompletableFuture<EmailCodeCapture> first = mailbox.poll(REALM, "User1", 0, 5000);
+        CompletableFuture<EmailCodeCapture> second = mailbox.poll(REALM, "user1", 0, 5000);
+        assertFalse(first.isDone());
+
+        mailbox.capture(realm(REALM), user("user1"), "123456", System.currentTimeMillis() + 60_000);
+        assertEquals("123456", first.join().getCode());
+        assertEquals("123456", second.join().getCode());
+        assertEquals(1, mailbox.size());
+    }
+
+    @Test
+    void waitingReadersGetTheNextCode() {
+        mailbox.capture(realm(REALM), user("user2"), "111111", System.currentTimeMillis() + 60_000);
+        long seen = mailbox.poll(REALM, "user2", 0, 0).join().getSequence();
+
+        CompletableFuture<EmailCodeCapture> next = mailbox.poll(REALM, "user2", seen, 5000);
+        assertFalse(next.isDone());
+        mailbox.capture(realm(REALM), user("user2"), "222222", System.currentTimeMillis() + 60_000);
+        assertEquals("222222", next.join().getCode());
+    }
+}
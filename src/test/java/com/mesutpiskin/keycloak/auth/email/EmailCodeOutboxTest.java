@@ -0,0 +1,82 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmailCodeOutboxTest {
+
+    private final EmailCodeOutbox outbox = EmailCodeOutbox.getInstance();
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        outbox.configure(directory.toString());
+    }
+
+    @AfterEach
+    void tearDown() {
+        outbox.close();
+        outbox.configure(null);
+    }
+
+    @Test
+    void replaysPendingEmails() {
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        assertTrue(outbox.append("pending", message("123456"), expiresAt));
+        assertTrue(outbox.append("done", message("654321"), expiresAt));
+        outbox.complete("done");
+        assertTrue(outbox.append("expired", message("111111"), System.currentTimeMillis() - 1));
+        outbox.close();
+
+        Map<String, EmailCodeOutbox.Pending> pending = outbox.recover();
+        assertEquals(List.of("pending"), List.copyOf(pending.keySet()));
+        EmailCodeMessage message = pending.get("pending").message;
+        assertEquals("realm", message.getRealmId());
+        assertEquals("user@example.com", message.getAddress());
+        assertEquals("Your code is 123456", message.getTextBody());
+        assertEquals(expiresAt, pending.get("pending").expiresAt);
+    }
+
+    @Test
+    void doesNotJournalSmtpSettings() throws IOException {
+        assertTrue(outbox.append("id", message("123456"), System.currentTimeMillis() + 60_000));
+        outbox.close();
+
+        String journal = journal();
+        assertTrue(journal.contains("Your code is 123456"));
+        assertFalse(journal.contains("smtp-secret"));
+        assertFalse(journal.contains("smtp.example.com"));
+        assertTrue(outbox.recover().get("id").message.getSmtpConfig().isEmpty());
+    }
+
+    private String journal() throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                content.append(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1));
+            }
+        }
+        return content.toString();
+    }
+
+    private static EmailCodeMessage message(String code) {
+        return new EmailCodeMessage("realm", "user", "user@example.com", "Access code", "Your code is " + code, null,
+            Map.of("host", "smtp.example.com", "port", "25", "auth", "true", "user", "otp", "password", "smtp-secret"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the SMTP sender that records deliveries instead of sending them
+ * Sends can be made to fail (for all servers or some hosts) or to hang until
+ * they are interrupted, like a send to an unresponsive server.
+ */
+class FakeEmailCodeSender implements EmailCodeSender {
+
+    private final List<EmailCodeMessage> sent = new CopyOnWriteArrayList<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final Set<String> failingHosts = ConcurrentHashMap.newKeySet();
+    private volatile String failure;
+    private volatile CountDownLatch hang;
+
+    @Override
+    public void send(KeycloakSession session, EmailCodeMessage message) throws EmailException {
+        attempts.incrementAndGet();
+        CountDownLatch latch = hang;
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EmailException("interrupted", e);
+            }
+        }
+        String host = message.getSmtpConfig().get("host");
+        if (failure != null) {
+            throw new EmailException(failure);
+        }
+        if (failingHosts.contains(host)) {
+            throw new EmailException(host + " is down");
+        }
+        sent.add(message);
+    }
+
+    /**
+     * Fail every send with the given reason, null to deliver again
+     */
+    void failWith(String reason) {
+        this.failure = reason;
+    }
+
+    void failHost(String host) {
+        failingHosts.add(host);
+    }
+
+    void recoverHost(String host) {
+        failingHosts.remove(host);
+    }
+
+    /**
+     * Make sends block until they are interrupted or release() is called
+     */
+    void hang() {
+        hang = new CountDownLatch(1);
+    }
+
+    void release() {
+        CountDownLatch latch = hang;
+        hang = null;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    List<EmailCodeMessage> getSent() {
+        return sent;
+    }
+
+    int getAttempts() {
+        return attempts.get();
+    }
+}
@@ -0,0 +1,113 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import com.mesutpiskin.keycloak.auth.TestSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Pooled SMTP connections against a local SMTP listener
+ */
+class PooledSmtpEmailCodeSenderTest {
+
+    private final PooledSmtpEmailCodeSender sender = PooledSmtpEmailCodeSender.getInstance();
+    private final KeycloakSession session = TestSessions.session(new HashMap<>());
+    private TestSmtpServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new TestSmtpServer();
+        sender.configure(2, 100, 60);
+    }
+
+    @AfterEach
+    void tearDown() {
+        sender.close();
+        server.close();
+    }
+
+    @Test
+    void reusesConnections() throws EmailException {
+        for (int i = 0; i < 5; i++) {
+            sender.send(session, message("user" + i + "@example.com"));
+        }
+        assertEquals(5, server.getReceived().size());
+        assertEquals(List.of("user4@example.com"), server.getReceived().get(4).recipients);
+        assertEquals(1, server.getConnections());
+    }
+
+    @Test
+    void replacesUsedUpConnections() throws EmailException {
+        sender.configure(2, 2, 60);
+        for (int i = 0; i < 5; i++) {
+            sender.send(session, message("user@example.com"));
+        }
+        assertEquals(5, server.getReceived().size());
+        assertEquals(3, server.getConnections());
+    }
+
+    @Test
+    void recoversWhenTheServerDropsTheConnection() throws EmailException {
+        sender.send(session, message("user@example.com"));
+        server.dropConnections();
+
+        sender.send(session, message("user@example.com"));
+        assertEquals(2, server.getReceived().size());
+        assertEquals(2, server.getConnections());
+    }
+
+    @Test
+    void rejectedMessagesFail() throws EmailException {
+        server.setMode(TestSmtpServer.Mode.REJECT);
+        assertThrows(EmailException.class, () -> sender.send(session, message("user@example.com")));
+        assertThrows(EmailException.class, () -> sender.send(session, message("user@example.com")));
+
+        // Not retried, and the rejecting connection is not reused
+        assertEquals(2, server.getConnections());
+        server.setMode(TestSmtpServer.Mode.ACCEPT);
+        sender.send(session, message("user@example.com"));
+        assertEquals(1, server.getReceived().size());
+    }
+
+    @Test
+    void waitsAtTheConnectionLimit() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool("realm", server.smtpConfig(), 1, 100, 60_000);
+        try {
+            SmtpTransportPool.PooledTransport first = pool.borrow(session);
+            CompletableFuture<SmtpTransportPool.PooledTransport> second = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pool.borrow(session);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(second.isDone());
+
+            // Handed the connection given back
+            pool.release(first, true);
+            assertSame(first, second.get(5, TimeUnit.SECONDS));
+            pool.release(first, true);
+            assertEquals(1, server.getConnections());
+        } finally {
+            pool.close();
+        }
+    }
+
+    private EmailCodeMessage message(String address) {
+        return new EmailCodeMessage("realm", "user", address, "Access code", "123456", null, server.smtpConfig());
+    }
+}
@@ -0,0 +1,164 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import com.mesutpiskin.keycloak.auth.TestSessions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RelayEmailCodeSenderTest {
+
+    private static final long SLOW_MILLIS = 10_000;
+
+    private final FakeEmailCodeSender delegate = new FakeEmailCodeSender();
+
+    @Test
+    void followsTheWeights() throws EmailException {
+        RelayEmailCodeSender sender = sender("smtp1.example.net:25;weight=3", "smtp2.example.net:25");
+        int messages = 4000;
+        for (int i = 0; i < messages; i++) {
+            sender.send(null, message("user@example.com"));
+        }
+        double share = count("smtp1.example.net") / (double) messages;
+        assertTrue(share > 0.70 && share < 0.80, "smtp1 took " + share);
+    }
+
+    @Test
+    void appliesTheRelaySettings() throws EmailException {
+        RelayEmailCodeSender sender = sender("smtp1.example.net:587;starttls=true;user=otp");
+        sender.send(null, message("user@example.com"));
+        Map<String, String> config = delegate.getSent().get(0).getSmtpConfig();
+        assertEquals("smtp1.example.net", config.get("host"));
+        assertEquals("587", config.get("port"));
+        assertEquals("true", config.get("starttls"));
+        assertEquals("true", config.get("auth"));
+        assertEquals("noreply@example.com", config.get("from"));
+    }
+
+    @Test
+    void routesDedicatedDomains() throws EmailException {
+        RelayEmailCodeSender sender = sender("shared.example.net:25;weight=100", "corp.example.net:25;domain=example.com");
+        sender.send(null, message("user@example.com"));
+        sender.send(null, message("user@mail.EXAMPLE.com"));
+        sender.send(null, message("user@example.org"));
+        sender.send(null, message("user@notexample.com"));
+
+        assertEquals(2, count("corp.example.net"));
+        assertEquals("user@example.org", delegate.getSent().get(2).getAddress());
+        assertEquals("shared.example.net", delegate.getSent().get(2).getSmtpConfig().get("host"));
+        assertEquals("shared.example.net", delegate.getSent().get(3).getSmtpConfig().get("host"));
+    }
+
+    @Test
+    void dedicatedRelayFallsBackToShared() throws EmailException {
+        RelayEmailCodeSender sender = sender("shared.example.net:25", "corp.example.net:25;domain=example.com");
+        delegate.failHost("corp.example.net");
+        sender.send(null, message("user@example.com"));
+        assertEquals(2, delegate.getAttempts());
+        assertEquals(1, count("shared.example.net"));
+    }
+
+    @Test
+    void failsOverAndSkipsOpenCircuits() throws EmailException {
+        List<SmtpRelay> relays = SmtpRelay.parse(new String[] { "smtp1.example.net:25", "smtp2.example.net:25" }, 2, 60_000);
+        RelayEmailCodeSender sender = new RelayEmailCodeSender(relays, delegate, SLOW_MILLIS);
+        delegate.failHost("smtp1.example.net");
+
+        // Every message gets through, smtp1 is tried until its circuit opens
+        for (int i = 0; i < 50; i++) {
+            sender.send(null, message("user@example.com"));
+        }
+        assertEquals(50, count("smtp2.example.net"));
+        assertFalse(relays.get(0).getBreaker().allow());
+        assertEquals(52, delegate.getAttempts());
+    }
+
+    @Test
+    void failsWhenNoRelayIsLeft() {
+        RelayEmailCodeSender sender = sender("smtp1.example.net:25", "smtp2.example.net:25");
+        delegate.failHost("smtp1.example.net");
+        delegate.failHost("smtp2.example.net");
+        assertThrows(EmailException.class, () -> sender.send(null, message("user@example.com")));
+        assertEquals(2, delegate.getAttempts());
+    }
+
+    @Test
+    void deliversThroughTheRelayListeners() throws IOException, EmailException {
+        try (TestSmtpServer shared = new TestSmtpServer(); TestSmtpServer corp = new TestSmtpServer()) {
+            RelayEmailCodeSender sender = smtpSender(relay(shared),
+                relay(corp) + ";domain=example.com;user=otp;password=secret");
+            sender.send(session(), message("user@example.com"));
+            sender.send(session(), message("user@example.org"));
+
+            assertEquals(1, corp.getReceived().size());
+            TestSmtpServer.Received received = corp.getReceived().get(0);
+            assertEquals(List.of("user@example.com"), received.recipients);
+            assertEquals("otp", received.user);
+            assertEquals("secret", received.password);
+
+            assertEquals(1, shared.getReceived().size());
+            assertEquals(List.of("user@example.org"), shared.getReceived().get(0).recipients);
+            assertNull(shared.getReceived().get(0).user);
+        }
+    }
+
+    @Test
+    void failsOverBetweenListeners() throws IOException, EmailException {
+        try (TestSmtpServer first = new TestSmtpServer(); TestSmtpServer second = new TestSmtpServer();
+             TestSmtpServer corp = new TestSmtpServer()) {
+            first.setMode(TestSmtpServer.Mode.REJECT);
+            corp.setMode(TestSmtpServer.Mode.REJECT);
+            List<SmtpRelay> relays = SmtpRelay.parse(new String[] {
+                relay(first), relay(second), relay(corp) + ";domain=example.com" }, 2, 60_000);
+            RelayEmailCodeSender sender = new RelayEmailCodeSender(relays, SmtpEmailCodeSender.INSTANCE, SLOW_MILLIS);
+
+            // The dedicated relay falls back to the shared ones; each rejecting relay is
+            // tried until its circuit opens
+            for (int i = 0; i < 10; i++) {
+                sender.send(session(), message("user@example.com"));
+            }
+            assertEquals(10, second.getReceived().size());
+            assertTrue(first.getReceived().isEmpty());
+            assertTrue(corp.getReceived().isEmpty());
+            assertEquals(2, corp.getConnections());
+            assertTrue(first.getConnections() <= 2);
+            assertFalse(relays.get(0).getBreaker().allow());
+            assertFalse(relays.get(2).getBreaker().allow());
+        }
+    }
+
+    private RelayEmailCodeSender sender(String... relays) {
+        return new RelayEmailCodeSender(SmtpRelay.parse(relays, 3, 60_000), delegate, SLOW_MILLIS);
+    }
+
+    private static RelayEmailCodeSender smtpSender(String... relays) {
+        return new RelayEmailCodeSender(SmtpRelay.parse(relays, 3, 60_000), SmtpEmailCodeSender.INSTANCE, SLOW_MILLIS);
+    }
+
+    private static String relay(TestSmtpServer server) {
+        return "127.0.0.1:" + server.getPort();
+    }
+
+    private static KeycloakSession session() {
+        return TestSessions.session(new HashMap<>());
+    }
+
+    private long count(String host) {
+        return delegate.getSent().stream().filter(message -> host.equals(message.getSmtpConfig().get("host"))).count();
+    }
+
+    private static EmailCodeMessage message(String address) {
+        return new EmailCodeMessage("realm", "user", address, "Access code", "123456", null,
+            Map.of("host", "smtp.example.com", "port", "25", "from", "noreply@example.com"));
+    }
+}
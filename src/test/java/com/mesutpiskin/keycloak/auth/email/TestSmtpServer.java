@@ -0,0 +1,231 @@
+package com.mesutpiskin.keycloak.auth.email;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process SMTP listener on an ephemeral loopback port
+ * Speaks just enough SMTP for Jakarta Mail (EHLO, AUTH PLAIN/LOGIN, MAIL, RCPT,
+ * DATA, RSET, NOOP, QUIT) and keeps what it received. It can also stall (accept
+ * connections and never answer) or reject every message.
+ */
+class TestSmtpServer implements AutoCloseable {
+
+    enum Mode { ACCEPT, STALL, REJECT }
+
+    /**
+     * A message as received, with the user the connection authenticated as (null if none)
+     */
+    static class Received {
+        final String user;
+        final String password;
+        final String from;
+        final List<String> recipients;
+        final String data;
+
+        Received(String user, String password, String from, List<String> recipients, String data) {
+            this.user = user;
+            this.password = password;
+            this.from = from;
+            this.recipients = recipients;
+            this.data = data;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final List<Received> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile Mode mode = Mode.ACCEPT;
+
+    TestSmtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "test-smtp-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * SMTP settings pointing at this listener
+     */
+    Map<String, String> smtpConfig() {
+        return Map.of("host", "127.0.0.1", "port", String.valueOf(getPort()), "from", "noreply@example.com");
+    }
+
+    /**
+     * Mode for connections opened from now on
+     */
+    void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    List<Received> getReceived() {
+        return Collections.unmodifiableList(received);
+    }
+
+    /**
+     * Number of connections accepted so far
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Close the open connections, like a server restart or an idle timeout would
+     */
+    void dropConnections() {
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(serverSocket);
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                connections.incrementAndGet();
+                clients.add(client);
+                Mode connectionMode = mode;
+                Thread handler = new Thread(() -> handle(client, connectionMode), "test-smtp-client-" + getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void handle(Socket client, Mode connectionMode) {
+        try (client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = client.getOutputStream();
+            if (connectionMode == Mode.STALL) {
+                // Never greet, hold the connection until the client gives up
+                while (in.read() >= 0) {
+                    // Discard
+                }
+                return;
+            }
+
+            reply(out, "220 localhost ESMTP test");
+            String user = null;
+            String password = null;
+            String from = null;
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                switch (command) {
+                    case "EHLO" -> reply(out, "250-localhost\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+                    case "HELO" -> reply(out, "250 localhost");
+                    case "AUTH" -> {
+                        String[] credentials = authenticate(line, in, out);
+                        user = credentials[0];
+                        password = credentials[1];
+                        reply(out, "235 2.7.0 Authentication successful");
+                    }
+                    case "MAIL" -> {
+                        if (connectionMode == Mode.REJECT) {
+                            reply(out, "554 5.7.1 Message rejected");
+                        } else {
+                            from = address(line);
+                            recipients = new ArrayList<>();
+                            reply(out, "250 2.1.0 OK");
+                        }
+                    }
+                    case "RCPT" -> {
+                        recipients.add(address(line));
+                        reply(out, "250 2.1.5 OK");
+                    }
+                    case "DATA" -> {
+                        reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                        StringBuilder data = new StringBuilder();
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            data.append(line.startsWith("..") ? line.substring(1) : line).append('\n');
+                        }
+                        received.add(new Received(user, password, from, List.copyOf(recipients), data.toString()));
+                        reply(out, "250 2.0.0 OK");
+                    }
+                    case "RSET", "NOOP" -> reply(out, "250 2.0.0 OK");
+                    case "QUIT" -> {
+                        reply(out, "221 2.0.0 Bye");
+                        return;
+                    }
+                    default -> reply(out, "502 5.5.2 Command not recognized");
+                }
+            }
+        } catch (IOException e) {
+            // Connection dropped
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Read AUTH PLAIN or AUTH LOGIN credentials, any are accepted
+     */
+    private static String[] authenticate(String line, BufferedReader in, OutputStream out) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts[1].equalsIgnoreCase("PLAIN")) {
+            String response = parts.length > 2 ? parts[2] : null;
+            if (response == null) {
+                reply(out, "334 ");
+                response = in.readLine();
+            }
+            String[] fields = decode(response).split("\0");
+            return new String[] { fields[1], fields[2] };
+        }
+        reply(out, "334 " + Base64.getEncoder().encodeToString("Username:".getBytes(StandardCharsets.US_ASCII)));
+        String user = decode(in.readLine());
+        reply(out, "334 " + Base64.getEncoder().encodeToString("Password:".getBytes(StandardCharsets.US_ASCII)));
+        return new String[] { user, decode(in.readLine()) };
+    }
+
+    private static String decode(String base64) {
+        return new String(Base64.getDecoder().decode(base64.trim()), StandardCharsets.UTF_8);
+    }
+
+    private static String address(String line) {
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        return start < 0 || end < 0 ? line.substring(line.indexOf(':') + 1).trim() : line.substring(start + 1, end);
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already closed
+        }
+    }
+}
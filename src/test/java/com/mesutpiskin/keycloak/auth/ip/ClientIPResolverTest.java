@@ -0,0 +1,70 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ClientIPResolverTest {
+
+    private static final ClientIPResolver BEHIND_PROXIES =
+        ClientIPResolver.compile(true, List.of("10.0.0.0/8", "2001:db8::/32", "not-a-proxy"));
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        // The peer is not a proxy, headers are ignored
+        "203.0.113.9     | 1.2.3.4                                 | 203.0.113.9",
+        // Trusted hops are skipped from the right, the first untrusted one is the client
+        "10.0.0.1        | 1.2.3.4, 10.0.0.2                       | 1.2.3.4",
+        "10.0.0.1        | 6.6.6.6, 1.2.3.4, 10.0.0.2              | 1.2.3.4",
+        "10.0.0.1        | 6.6.6.6,1.2.3.4,,10.0.0.2               | 1.2.3.4",
+        // Every hop trusted, the leftmost is the closest to the client
+        "10.0.0.1        | 10.0.0.3 , 10.0.0.2                     | 10.0.0.3",
+        // Ports and brackets are stripped, IPv6 and IPv4-mapped proxies are trusted
+        "10.0.0.1        | 1.2.3.4:5678                            | 1.2.3.4",
+        "2001:db8::1     | 2001:db9::5, [2001:db8::2]:443          | 2001:db9::5",
+        "::ffff:10.0.0.1 | 1.2.3.4                                 | 1.2.3.4",
+        // Unparsable entries are never trusted
+        "10.0.0.1        | 1.2.3.4, unknown, 10.0.0.2              | unknown",
+    })
+    void walksXForwardedFor(String remoteAddr, String xForwardedFor, String expected) {
+        ClientAddress address = BEHIND_PROXIES.resolve(remoteAddr, null, xForwardedFor);
+        assertEquals(expected, address.getIp());
+        assertEquals(ClientIPResolver.HEADER_X_FORWARDED_FOR, address.getHeaderName());
+        assertEquals(xForwardedFor, address.getHeaderValue());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "10.0.0.1 | for=1.2.3.4;proto=https, for=\"[2001:db8::2]:443\"     | 1.2.3.4",
+        "10.0.0.1 | for=6.6.6.6, FOR=\"1.2.3.4:80\";by=10.0.0.9            | 1.2.3.4",
+        // Elements without for= are skipped
+        "10.0.0.1 | for=1.2.3.4, by=10.0.0.9;proto=http                     | 1.2.3.4",
+        "10.0.0.1 | for=_hidden, for=10.0.0.2                               | _hidden",
+    })
+    void walksForwarded(String remoteAddr, String forwarded, String expected) {
+        ClientAddress address = BEHIND_PROXIES.resolve(remoteAddr, forwarded, "6.6.6.6");
+        assertEquals(expected, address.getIp());
+        assertEquals(ClientIPResolver.HEADER_FORWARDED, address.getHeaderName());
+    }
+
+    @Test
+    void trustsOnlyThePeerWithoutTrustedProxies() {
+        ClientIPResolver resolver = ClientIPResolver.compile(true);
+        assertEquals("1.2.3.4", resolver.resolve("203.0.113.9", null, "6.6.6.6, 1.2.3.4").getIp());
+        assertEquals("1.2.3.4", resolver.resolve("203.0.113.9", "for=6.6.6.6, for=1.2.3.4", null).getIp());
+    }
+
+    @Test
+    void ignoresHeadersWhenDisabled() {
+        ClientAddress address = ClientIPResolver.DIRECT.resolve("203.0.113.9", "for=1.2.3.4", "1.2.3.4");
+        assertEquals("203.0.113.9", address.getIp());
+        assertNull(address.getHeaderName());
+
+        assertEquals("203.0.113.9", BEHIND_PROXIES.resolve("203.0.113.9", "", null).getIp());
+    }
+}
@@ -0,0 +1,108 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import com.mesutpiskin.keycloak.auth.TestSessions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.sessions.infinispan.InfinispanSingleUseObjectProvider;
+import org.keycloak.models.sessions.infinispan.entities.SingleUseObjectValueEntity;
+
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Automatic bans on a single node, with Keycloak's single-use object store on an
+ * embedded local Infinispan cache
+ */
+class IPBanRegistryTest {
+
+    private static final String REALM = "realm";
+
+    private static DefaultCacheManager cacheManager;
+
+    private Cache<String, SingleUseObjectValueEntity> cache;
+    private final IPBanRegistry registry = IPBanRegistry.getInstance();
+
+    @BeforeAll
+    static void startCacheManager() {
+        cacheManager = new DefaultCacheManager();
+        cacheManager.defineConfiguration("actionTokens", new ConfigurationBuilder().build());
+    }
+
+    @AfterAll
+    static void stopCacheManager() {
+        cacheManager.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        cache = cacheManager.getCache("actionTokens");
+        cache.clear();
+        // Threshold 3 in a 60 s window, 60 s bans, bans looked up at every check
+        registry.configure(3, 60, 60, 0);
+    }
+
+    @Test
+    void bansAtThreshold() {
+        assertFalse(request(session -> registry.recordFailure(session, REALM, "192.0.2.1")));
+        assertFalse(request(session -> registry.recordFailure(session, REALM, "192.0.2.1")));
+        assertFalse(request(session -> registry.isBanned(session, REALM, "192.0.2.1")));
+
+        assertTrue(request(session -> registry.recordFailure(session, REALM, "192.0.2.1")));
+        assertTrue(request(session -> registry.isBanned(session, REALM, "192.0.2.1")));
+        assertFalse(request(session -> registry.isBanned(session, REALM, "192.0.2.2")));
+    }
+
+    @Test
+    void failuresDuringBanAreNotCounted() {
+        for (int i = 0; i < 3; i++) {
+            request(session -> registry.recordFailure(session, REALM, "192.0.2.3"));
+        }
+        int entries = cache.size();
+        assertFalse(request(session -> registry.recordFailure(session, REALM, "192.0.2.3")));
+        assertEquals(entries, cache.size());
+    }
+
+    @Test
+    void banIsReadFromTheStore() {
+        for (int i = 0; i < 3; i++) {
+            request(session -> registry.recordFailure(session, REALM, "2001:db8::1"));
+        }
+        // A node that never saw the failures
+        registry.configure(3, 60, 60, 0);
+        assertTrue(request(session -> registry.isBanned(session, REALM, "2001:db8::1")));
+    }
+
+    @Test
+    void failuresAreCountedInTheStore() {
+        request(session -> registry.recordFailure(session, REALM, "192.0.2.4"));
+        request(session -> registry.recordFailure(session, REALM, "192.0.2.4"));
+        // Local counts dropped, the tickets taken in the store still count
+        registry.configure(3, 60, 60, 0);
+        assertTrue(request(session -> registry.recordFailure(session, REALM, "192.0.2.4")));
+    }
+
+    @Test
+    void realmsAreCountedSeparately() {
+        request(session -> registry.recordFailure(session, REALM, "192.0.2.5"));
+        request(session -> registry.recordFailure(session, REALM, "192.0.2.5"));
+        assertFalse(request(session -> registry.recordFailure(session, "other", "192.0.2.5")));
+        assertFalse(request(session -> registry.isBanned(session, "other", "192.0.2.5")));
+    }
+
+    /**
+     * Run one request on a session that only provides the single-use object store,
+     * whose writes are committed at the end like Keycloak does
+     */
+    private boolean request(Predicate<KeycloakSession> work) {
+        return TestSessions.request(session -> new InfinispanSingleUseObjectProvider(session, () -> cache, false), work::test);
+    }
+}
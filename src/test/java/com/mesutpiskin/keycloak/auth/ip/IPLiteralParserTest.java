@@ -0,0 +1,91 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPLiteralParserTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0.0.0.0,         00000000",
+        "192.0.2.1,       c0000201",
+        "10.20.30.40,     0a141e28",
+        "255.255.255.255, ffffffff",
+    })
+    void parsesIPv4(String literal, String expected) {
+        assertEquals(Long.parseLong(expected, 16), IPLiteralParser.parseIPv4(literal));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1.2.3.256", "01.2.3.4", "1.2.3.04", "1..2.3",
+        "1.2.3.", ".1.2.3", " 1.2.3.4", "1.2.3.4 ", "1234.1.1.1", "-1.2.3.4", "a.b.c.d", "::1"
+    })
+    void rejectsMalformedIPv4(String literal) {
+        assertEquals(IPLiteralParser.INVALID, IPLiteralParser.parseIPv4(literal));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        // Full and compressed forms
+        "::,                                      0000000000000000, 0000000000000000",
+        "::1,                                     0000000000000000, 0000000000000001",
+        "1::,                                     0001000000000000, 0000000000000000",
+        "2001:db8::1,                             20010db800000000, 0000000000000001",
+        "2001:0db8:0000:0000:0000:0000:0000:0001, 20010db800000000, 0000000000000001",
+        "2001:db8:0:0:1:0:0:1,                    20010db800000000, 0001000000000001",
+        "2001:db8::1:0:0:1,                       20010db800000000, 0001000000000001",
+        "1:2:3:4:5:6:7::,                         0001000200030004, 0005000600070000",
+        "::2:3:4:5:6:7:8,                         0000000200030004, 0005000600070008",
+        "ABCD:EF01::,                             abcdef0100000000, 0000000000000000",
+        // Embedded IPv4
+        "::ffff:192.0.2.1,                        0000000000000000, 0000ffffc0000201",
+        "64:ff9b::192.0.2.1,                      0064ff9b00000000, 00000000c0000201",
+        "1:2:3:4:5:6:192.0.2.1,                   0001000200030004, 00050006c0000201",
+        // Zone ids are ignored
+        "fe80::1%eth0,                            fe80000000000000, 0000000000000001",
+        "fe80::1%25,                              fe80000000000000, 0000000000000001",
+    })
+    void parsesIPv6(String literal, String high, String low) {
+        long[] out = new long[2];
+        assertTrue(IPLiteralParser.parseIPv6(literal, out), literal);
+        assertArrayEquals(new long[] { Long.parseUnsignedLong(high, 16), Long.parseUnsignedLong(low, 16) }, out, literal);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "", ":", ":::", "1:", ":1", ":1::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::",
+        "1::2::3", "12345::", "g::1", "1:2:3:4:5:6:7:192.0.2.1", "::ffff:192.0.2", "::ffff:256.0.0.1",
+        "::1.2.3.4:1", "%eth0", "192.0.2.1", "2001:db8::1 "
+    })
+    void rejectsMalformedIPv6(String literal) {
+        long[] out = { 7, 7 };
+        assertFalse(IPLiteralParser.parseIPv6(literal, out), literal);
+        assertArrayEquals(new long[] { 7, 7 }, out, "output written for " + literal);
+    }
+
+    @Test
+    void parsesARangeOfTheInput() {
+        assertEquals(0xc0000201L, IPLiteralParser.parseIPv4("for=192.0.2.1:8080", 4, 13));
+
+        long[] out = new long[4];
+        assertTrue(IPLiteralParser.parseIPv6("[2001:db8::1]:443", 1, 12, out, 2));
+        assertArrayEquals(new long[] { 0, 0, 0x20010db800000000L, 1 }, out);
+    }
+
+    @Test
+    void detectsIPv4MappedAddresses() {
+        long[] out = new long[2];
+        IPLiteralParser.parseIPv6("::ffff:192.0.2.1", out);
+        assertTrue(IPLiteralParser.isIPv4Mapped(out[0], out[1]));
+        IPLiteralParser.parseIPv6("64:ff9b::192.0.2.1", out);
+        assertFalse(IPLiteralParser.isIPv4Mapped(out[0], out[1]));
+    }
+}
@@ -0,0 +1,45 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IPRestrictionConfigTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        // A date alone lasts until the end of that day in UTC
+        "-10.0.0.0/8 until 2026-03-31,                   2026-04-01T00:00:00Z",
+        "-10.0.0.0/8 until 2024-02-29,                   2024-03-01T00:00:00Z",
+        "-10.0.0.0/8 until 2026-12-31 ,                  2027-01-01T00:00:00Z",
+        "-10.0.0.0/8 until 2026-03-31T12:30:00Z,         2026-03-31T12:30:00Z",
+        "-10.0.0.0/8 until 2026-03-31T12:30:00.250Z,     2026-03-31T12:30:00.250Z",
+        "+192.0.2.1 until 2026-03-31T14:30:00+02:00,     2026-03-31T12:30:00Z",
+        "+192.0.2.1 until 2026-03-31T07:30-05:00,        2026-03-31T12:30:00Z",
+    })
+    void parsesExpiries(String rule, String expected) {
+        assertEquals(Instant.parse(expected).toEpochMilli(), IPRestrictionConfig.parseExpiry(rule), rule);
+        assertEquals(rule.substring(0, rule.indexOf(" until ")), IPRestrictionConfig.stripExpiry(rule));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "-10.0.0.0/8 until ", "-10.0.0.0/8 until tomorrow", "-10.0.0.0/8 until 2026-02-30",
+        "-10.0.0.0/8 until 31.03.2026", "-10.0.0.0/8 until 2026-03-31T12:30:00",
+        "-10.0.0.0/8 until 2026-03-31T25:00:00Z", "-10.0.0.0/8 until 2026-03-31 12:30"
+    })
+    void rejectsInvalidExpiries(String rule) {
+        assertEquals(-1, IPRestrictionConfig.parseExpiry(rule), rule);
+    }
+
+    @Test
+    void rulesWithoutExpiryNeverExpire() {
+        assertEquals(Long.MAX_VALUE, IPRestrictionConfig.parseExpiry("-10.0.0.0/8"));
+        assertEquals("-10.0.0.0/8", IPRestrictionConfig.stripExpiry("-10.0.0.0/8"));
+    }
+}
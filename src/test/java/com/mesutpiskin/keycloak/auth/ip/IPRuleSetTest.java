@@ -0,0 +1,65 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IPRuleSetTest {
+
+    private static final IPRuleSet RULES = IPRuleSet.compile(List.of(
+        "+10.0.0.0/8",
+        "-10.1.0.0/16",
+        "+10.1.2.0/24",
+        "-10.1.2.3",
+        "+192.168.0.0/16",
+        "+192.168.1.0/24",
+        "-2001:db8:0:1::/64",
+        "+2001:db8::/32",
+        "+2001:db8:0:1::1",
+        "+localhost"
+    ));
+
+    private static final IPRuleSet DENY_ONLY = IPRuleSet.compile(List.of("-10.0.0.0/8", "-10.1.0.0/16"));
+
+    @ParameterizedTest
+    @CsvSource({
+        // Deny wins over allow, whatever the order
+        "10.1.2.3,    false, -10.1.0.0/16",
+        "10.1.2.4,    false, -10.1.0.0/16",
+        "10.1.9.9,    false, -10.1.0.0/16",
+        // Otherwise the first matching allow, not the longest
+        "10.2.0.1,    true,  +10.0.0.0/8",
+        "192.168.1.1, true,  +192.168.0.0/16",
+        // The same for IPv6
+        "2001:db8:0:1::1, false, -2001:db8:0:1::/64",
+        "2001:db8:0:2::1, true,  +2001:db8::/32",
+        "2001:db9::1,     false, none",
+        // IPv4-mapped addresses are checked as IPv4
+        "::ffff:10.1.2.3, false, -10.1.0.0/16",
+        "::ffff:10.2.0.1, true,  +10.0.0.0/8",
+        // Non-IP patterns compare as strings
+        "localhost,   true,  +localhost",
+        // Allow rules exist but none match
+        "172.16.0.1,  false, none",
+        "unknown,     false, none",
+    })
+    void decidesByPrecedence(String clientIP, boolean allowed, String matchedRule) {
+        IPCheckResult result = RULES.evaluate(clientIP);
+        assertEquals(allowed, result.isAllowed(), clientIP);
+        assertEquals(matchedRule, result.getMatchedRule(), clientIP);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "10.1.2.3,   false, -10.0.0.0/8",
+        "172.16.0.1, true,  default",
+    })
+    void allowsByDefaultWithoutAllowRules(String clientIP, boolean allowed, String matchedRule) {
+        IPCheckResult result = DENY_ONLY.evaluate(clientIP);
+        assertEquals(allowed, result.isAllowed(), clientIP);
+        assertEquals(matchedRule, result.getMatchedRule(), clientIP);
+    }
+}
@@ -0,0 +1,100 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPv4PrefixTrieTest {
+
+    private final IPv4PrefixTrie trie = new IPv4PrefixTrie();
+
+    @Test
+    void findsNestedPrefixes() {
+        trie.insert(ip("10.1.2.0"), 24, 0);
+        trie.insert(ip("10.1.0.0"), 16, 1);
+        trie.insert(ip("10.0.0.0"), 8, 2);
+
+        assertEquals(0, trie.firstMatch(ip("10.1.2.3")));
+        assertEquals(1, trie.firstMatch(ip("10.1.3.3")));
+        assertEquals(2, trie.firstMatch(ip("10.200.0.1")));
+        assertEquals(IPv4PrefixTrie.NO_MATCH, trie.firstMatch(ip("11.1.2.3")));
+    }
+
+    @Test
+    void firstRuleWinsOverLongerPrefix() {
+        trie.insert(ip("10.0.0.0"), 8, 0);
+        trie.insert(ip("10.1.2.0"), 24, 1);
+        trie.insert(ip("10.1.2.3"), 32, 2);
+
+        assertEquals(0, trie.firstMatch(ip("10.1.2.3")));
+    }
+
+    @Test
+    void splitsSiblingPrefixes() {
+        trie.insert(ip("192.168.1.0"), 24, 0);
+        trie.insert(ip("192.168.2.0"), 24, 1);
+        trie.insert(ip("192.168.3.7"), 32, 2);
+
+        assertEquals(0, trie.firstMatch(ip("192.168.1.255")));
+        assertEquals(1, trie.firstMatch(ip("192.168.2.0")));
+        assertEquals(2, trie.firstMatch(ip("192.168.3.7")));
+        assertEquals(IPv4PrefixTrie.NO_MATCH, trie.firstMatch(ip("192.168.3.8")));
+        assertEquals(IPv4PrefixTrie.NO_MATCH, trie.firstMatch(ip("192.168.0.1")));
+    }
+
+    @Test
+    void ignoresHostBitsAndMatchesEverythingAtZero() {
+        trie.insert(ip("172.16.99.99"), 12, 1);
+        assertEquals(1, trie.firstMatch(ip("172.31.0.1")));
+        assertEquals(IPv4PrefixTrie.NO_MATCH, trie.firstMatch(ip("172.32.0.1")));
+
+        trie.insert(ip("1.2.3.4"), 0, 5);
+        assertEquals(5, trie.firstMatch(ip("255.255.255.255")));
+        assertEquals(1, trie.firstMatch(ip("172.16.0.1")));
+    }
+
+    @Test
+    void removesPrefixes() {
+        trie.insert(ip("10.0.0.0"), 8, 0);
+        trie.insert(ip("10.1.0.0"), 16, 1);
+
+        assertFalse(trie.remove(ip("10.1.0.0"), 16, 0));
+        assertTrue(trie.remove(ip("10.0.0.0"), 8, 0));
+        assertEquals(1, trie.firstMatch(ip("10.1.0.1")));
+        assertEquals(IPv4PrefixTrie.NO_MATCH, trie.firstMatch(ip("10.2.0.1")));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    void agreesWithLinearScan() {
+        Random random = new Random(42);
+        int rules = 300;
+        int[] addresses = new int[rules];
+        int[] lengths = new int[rules];
+        for (int i = 0; i < rules; i++) {
+            // Few distinct leading bits, so prefixes nest and share paths
+            addresses[i] = random.nextInt() & 0xf0ffffff;
+            lengths[i] = random.nextInt(33);
+            trie.insert(addresses[i], lengths[i], i);
+        }
+
+        for (int probe = 0; probe < 20_000; probe++) {
+            int address = probe % 2 == 0 ? random.nextInt() & 0xf0ffffff : addresses[random.nextInt(rules)];
+            int expected = IPv4PrefixTrie.NO_MATCH;
+            for (int i = 0; i < rules && expected == IPv4PrefixTrie.NO_MATCH; i++) {
+                if (IPv4PrefixTrie.mask(address, lengths[i]) == IPv4PrefixTrie.mask(addresses[i], lengths[i])) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, trie.firstMatch(address), Integer.toHexString(address));
+        }
+    }
+
+    private static int ip(String literal) {
+        return (int) IPLiteralParser.parseIPv4(literal);
+    }
+}
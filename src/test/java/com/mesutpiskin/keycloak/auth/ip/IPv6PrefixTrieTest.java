@@ -0,0 +1,102 @@
+package com.mesutpiskin.keycloak.auth.ip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IPv6PrefixTrieTest {
+
+    private final IPv6PrefixTrie trie = new IPv6PrefixTrie();
+
+    @Test
+    void findsPrefixesAcrossTheHalves() {
+        insert("2001:db8::", 32, 3);
+        insert("2001:db8:0:1::", 64, 2);
+        insert("2001:db8:0:1:8000::", 65, 1);
+        insert("2001:db8:0:1:8000::1", 128, 0);
+
+        assertEquals(0, match("2001:db8:0:1:8000::1"));
+        assertEquals(1, match("2001:db8:0:1:8000::2"));
+        assertEquals(2, match("2001:db8:0:1:7fff::1"));
+        assertEquals(3, match("2001:db8:0:2::1"));
+        assertEquals(IPv6PrefixTrie.NO_MATCH, match("2001:db9::1"));
+    }
+
+    @Test
+    void firstRuleWinsOverLongerPrefix() {
+        insert("2001:db8::", 32, 0);
+        insert("2001:db8:0:1::", 64, 1);
+
+        assertEquals(0, match("2001:db8:0:1::1"));
+    }
+
+    @Test
+    void ignoresHostBitsAndMatchesEverythingAtZero() {
+        insert("fe80::1234", 10, 1);
+        assertEquals(1, match("febf::1"));
+        assertEquals(IPv6PrefixTrie.NO_MATCH, match("fec0::1"));
+
+        insert("2001:db8::1", 0, 5);
+        assertEquals(5, match("::"));
+        assertEquals(1, match("fe80::1"));
+    }
+
+    @Test
+    void removesPrefixes() {
+        insert("2001:db8::", 32, 0);
+        insert("2001:db8:0:1::", 64, 1);
+
+        long[] address = parse("2001:db8::");
+        assertTrue(trie.remove(address[0], address[1], 32, 0));
+        assertEquals(1, match("2001:db8:0:1::1"));
+        assertEquals(IPv6PrefixTrie.NO_MATCH, match("2001:db8:0:2::1"));
+    }
+
+    @Test
+    void agreesWithLinearScan() {
+        Random random = new Random(42);
+        int rules = 300;
+        long[][] addresses = new long[rules][];
+        int[] lengths = new int[rules];
+        for (int i = 0; i < rules; i++) {
+            // Shared leading bits, so prefixes nest and share paths on both halves
+            addresses[i] = new long[] { random.nextLong() & 0xf0000000000000ffL, random.nextLong() & 0xff000000000000ffL };
+            lengths[i] = random.nextInt(129);
+            trie.insert(addresses[i][0], addresses[i][1], lengths[i], i);
+        }
+
+        for (int probe = 0; probe < 20_000; probe++) {
+            long[] address = probe % 2 == 0
+                ? new long[] { random.nextLong() & 0xf0000000000000ffL, random.nextLong() & 0xff000000000000ffL }
+                : addresses[random.nextInt(rules)];
+            int expected = IPv6PrefixTrie.NO_MATCH;
+            for (int i = 0; i < rules && expected == IPv6PrefixTrie.NO_MATCH; i++) {
+                if (IPv6PrefixTrie.maskHigh(address[0], lengths[i]) == IPv6PrefixTrie.maskHigh(addresses[i][0], lengths[i])
+                    && IPv6PrefixTrie.maskLow(address[1], lengths[i]) == IPv6PrefixTrie.maskLow(addresses[i][1], lengths[i])) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, trie.firstMatch(address[0], address[1]),
+                Long.toHexString(address[0]) + ":" + Long.toHexString(address[1]));
+        }
+    }
+
+    private void insert(String literal, int prefixLength, int ruleIndex) {
+        long[] address = parse(literal);
+        trie.insert(address[0], address[1], prefixLength, ruleIndex);
+    }
+
+    private int match(String literal) {
+        long[] address = parse(literal);
+        return trie.firstMatch(address[0], address[1]);
+    }
+
+    private static long[] parse(String literal) {
+        long[] address = new long[2];
+        assertTrue(IPLiteralParser.parseIPv6(literal, address), literal);
+        return address;
+    }
+}